@@ -1,46 +1,22 @@
 package com.openlattice.authorization.serializers;
 
-import com.dataloom.mappers.ObjectMappers;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.SetMultimap;
 import com.openlattice.conductor.rpc.EntityDataLambdas;
 import com.openlattice.data.EntityDataKey;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.util.UUID;
 
-public class EntityDataLambdasStreamSerializer extends Serializer<EntityDataLambdas> {
-    private static final Logger                                   logger = LoggerFactory
-            .getLogger( EntityDataLambdasStreamSerializer.class );
-    private              TypeReference<SetMultimap<UUID, Object>> ref    = new TypeReference<>() {
-    };
-
-    private ObjectMapper mapper;
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.readDictionary;
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.readEntity;
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.readUUID;
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.writeDictionary;
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.writeEntity;
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.writeUUID;
 
-    public EntityDataLambdasStreamSerializer() {
-        this.mapper = ObjectMappers.getSmileMapper();
-    }
-
-    private void writeUUID( Output output, UUID id ) {
-        output.writeLong( id.getLeastSignificantBits() );
-        output.writeLong( id.getMostSignificantBits() );
-    }
-
-    private UUID readUUID( Input input ) {
-        long lsb = input.readLong();
-        long msb = input.readLong();
-        return new UUID( msb, lsb );
-    }
+public class EntityDataLambdasStreamSerializer extends Serializer<EntityDataLambdas> {
 
     @Override
     public void write(
@@ -49,13 +25,9 @@ public class EntityDataLambdasStreamSerializer extends Serializer<EntityDataLamb
         writeUUID( output, object.getEntityDataKey().getEntitySetId() );
         writeUUID( output, object.getEntityDataKey().getEntityKeyId() );
 
-        try {
-            byte[] bytes = mapper.writeValueAsBytes( object.getPropertyValues() );
-            output.writeInt( bytes.length );
-            output.writeBytes( bytes );
-        } catch ( JsonProcessingException e ) {
-            logger.debug( "Unable to serialize entity with id: {}", object.getEntityDataKey().getEntityKeyId() );
-        }
+        // A single entity does not benefit from a property type id dictionary.
+        writeDictionary( output, null );
+        writeEntity( output, object.getPropertyValues(), null );
     }
 
     @Override
@@ -66,15 +38,7 @@ public class EntityDataLambdasStreamSerializer extends Serializer<EntityDataLamb
         UUID entityKeyId = readUUID( input );
         EntityDataKey edk = new EntityDataKey( entitySetId, entityKeyId );
 
-        int numBytes = input.readInt();
-        final SetMultimap<UUID, Object> propertyValues;
-        try {
-            propertyValues = mapper.readValue( input.readBytes( numBytes ), ref );
-        } catch ( IOException e ) {
-            logger.debug( "Unable to deserialize entity with id: {}", entityKeyId );
-            throw new IllegalStateException( "Unable to deserialize entity with id: " + entityKeyId.toString() );
-        }
-
-        return new EntityDataLambdas( entityTypeId, edk, Multimaps.asMap( propertyValues ) );
+        UUID[] dictionary = readDictionary( input );
+        return new EntityDataLambdas( entityTypeId, edk, readEntity( input, dictionary ) );
     }
 }
@@ -41,6 +41,7 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 public interface ConductorElasticsearchApi {
 
@@ -174,6 +175,27 @@ public interface ConductorElasticsearchApi {
             Map<UUID, DelegatedUUIDSet> linkingEntitySets
     );
 
+    /**
+     * Executes several searches over the same entity sets and authorized properties. By default they are executed one
+     * at a time through {@link #executeSearch}, which implementations may override with a single multi search request.
+     *
+     * @return The result of each search, in the order of {@code searchConstraints}.
+     */
+    default List<EntityDataKeySearchResult> executeSearches(
+            List<SearchConstraints> searchConstraints,
+            Map<UUID, UUID> entityTypesByEntitySetId,
+            Map<UUID, DelegatedUUIDSet> authorizedPropertyTypesByEntitySet,
+            Map<UUID, DelegatedUUIDSet> linkingEntitySets
+    ) {
+        return searchConstraints.stream()
+                .map( constraints -> executeSearch(
+                        constraints,
+                        entityTypesByEntitySetId,
+                        authorizedPropertyTypesByEntitySet,
+                        linkingEntitySets ) )
+                .collect( Collectors.toList() );
+    }
+
     /**
      * Performs a capped size search across all non-linked entity sets of a particular index.
      * NOTE: permissions are not enforced on this search, so it should not be exposed via the api.
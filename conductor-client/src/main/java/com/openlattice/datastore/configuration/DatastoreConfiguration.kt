@@ -6,6 +6,7 @@ import com.kryptnostic.rhizome.configuration.ConfigurationKey
 import com.kryptnostic.rhizome.configuration.SimpleConfigurationKey
 import com.kryptnostic.rhizome.configuration.annotation.ReloadableConfiguration
 import com.openlattice.conductor.rpc.SearchConfiguration
+import com.openlattice.data.storage.DEFAULT_PARTITION_WRITE_PARALLELISM
 import java.util.*
 
 const val BUCKET_NAME = "bucketName"
@@ -14,6 +15,7 @@ const val TIME_TO_LIVE = "timeToLive"
 const val ACCESS_KEY_ID = "accessKeyId"
 const val SECRET_ACCESS_KEY = "secretAccessKey"
 const val SEARCH_CONFIGURATION = "searchConfiguration"
+const val PARTITION_WRITE_PARALLELISM = "partitionWriteParallelism"
 
 @ReloadableConfiguration(uri = "datastore.yaml")
 data class DatastoreConfiguration(
@@ -24,7 +26,8 @@ data class DatastoreConfiguration(
         @JsonProperty(SECRET_ACCESS_KEY) val secretAccessKey: String,
         @JsonProperty("readOnlyReplica") val readOnlyReplica: Properties = Properties(),
         @JsonProperty("googleMapsApiKey") val googleMapsApiKey: String = "",
-        @JsonProperty(SEARCH_CONFIGURATION ) val searchConfiguration: SearchConfiguration
+        @JsonProperty(SEARCH_CONFIGURATION ) val searchConfiguration: SearchConfiguration,
+        @JsonProperty(PARTITION_WRITE_PARALLELISM) val partitionWriteParallelism: Int = DEFAULT_PARTITION_WRITE_PARALLELISM
 ) : Configuration {
 
     companion object {
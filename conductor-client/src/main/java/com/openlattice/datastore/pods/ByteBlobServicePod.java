@@ -21,11 +21,14 @@
 
 package com.openlattice.datastore.pods;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.kryptnostic.rhizome.configuration.ConfigurationConstants.Profiles;
 import com.kryptnostic.rhizome.pods.ConfigurationLoader;
+import com.openlattice.data.storage.BlobTransferExecutor;
 import com.openlattice.data.storage.ByteBlobDataManager;
 import com.openlattice.data.storage.LocalBlobDataService;
+import com.openlattice.data.storage.PartitionWriteExecutor;
 import com.openlattice.data.storage.aws.AwsBlobDataService;
 import com.openlattice.datastore.configuration.DatastoreConfiguration;
 import com.openlattice.datastore.constants.DatastoreProfiles;
@@ -37,6 +40,9 @@ import org.springframework.context.annotation.Profile;
 
 import javax.inject.Inject;
 
+import static com.openlattice.data.storage.BlobTransferExecutorKt.DEFAULT_BLOB_TRANSFER_BATCH_SIZE;
+import static com.openlattice.data.storage.BlobTransferExecutorKt.DEFAULT_BLOB_TRANSFER_PARALLELISM;
+
 /**
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
  */
@@ -51,22 +57,36 @@ public class ByteBlobServicePod {
     @Inject
     private ConfigurationLoader configurationLoader;
 
+    @Inject
+    private MetricRegistry metricRegistry;
+
     @Bean
     public DatastoreConfiguration datastoreConfiguration() {
         return configurationLoader.logAndLoad( "datastore", DatastoreConfiguration.class );
     }
 
+    @Bean
+    @DependsOn( "datastoreConfiguration" )
+    public PartitionWriteExecutor partitionWriteExecutor() {
+        return new PartitionWriteExecutor( metricRegistry, datastoreConfiguration().getPartitionWriteParallelism() );
+    }
+
+    @Bean
+    public BlobTransferExecutor blobTransferExecutor() {
+        return new BlobTransferExecutor( metricRegistry, DEFAULT_BLOB_TRANSFER_PARALLELISM, DEFAULT_BLOB_TRANSFER_BATCH_SIZE );
+    }
+
     @Bean( name = "byteBlobDataManager" )
     @DependsOn( "datastoreConfiguration" )
     @Profile( { DatastoreProfiles.MEDIA_LOCAL_PROFILE } )
     public ByteBlobDataManager localBlobDataManager() {
-        return new LocalBlobDataService( hikariDataSource );
+        return new LocalBlobDataService( hikariDataSource, blobTransferExecutor() );
     }
 
     @Bean( name = "byteBlobDataManager" )
     @DependsOn( "datastoreConfiguration" )
     @Profile( { DatastoreProfiles.MEDIA_LOCAL_AWS_PROFILE, Profiles.AWS_CONFIGURATION_PROFILE, Profiles.AWS_TESTING_PROFILE } )
     public ByteBlobDataManager awsByteBlobDataManager() {
-        return new AwsBlobDataService( datastoreConfiguration(), executorService );
+        return new AwsBlobDataService( datastoreConfiguration(), executorService, blobTransferExecutor() );
     }
 }
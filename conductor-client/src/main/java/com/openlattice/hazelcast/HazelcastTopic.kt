@@ -5,5 +5,6 @@ package com.openlattice.hazelcast
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
  */
 enum class HazelcastTopic {
+    ENTITY_KEY_ID_INVALIDATIONS,
     TRIGGERS
 }
\ No newline at end of file
@@ -1,70 +1,41 @@
 package com.openlattice.hazelcast.serializers;
 
-import com.dataloom.mappers.ObjectMappers;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Multimaps;
-import com.google.common.collect.SetMultimap;
-import com.openlattice.authorization.serializers.EntityDataLambdasStreamSerializer;
 import com.openlattice.conductor.rpc.BulkEntityDataLambdas;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.buildDictionary;
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.readDictionary;
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.readEntity;
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.readUUID;
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.writeDictionary;
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.writeEntity;
+import static com.openlattice.hazelcast.serializers.EntityDataCodec.writeUUID;
+
 @Component
 public class BulkEntityDataLambdasStreamSerializer extends Serializer<BulkEntityDataLambdas> {
-    private static final Logger                                   logger = LoggerFactory
-            .getLogger( EntityDataLambdasStreamSerializer.class );
-    private              TypeReference<SetMultimap<UUID, Object>> ref    = new TypeReference<>() {
-    };
-
-    private ObjectMapper mapper;
-
-    public BulkEntityDataLambdasStreamSerializer() {
-        this.mapper = ObjectMappers.getSmileMapper();
-    }
-
-    private void writeUUID( Output output, UUID id ) {
-        output.writeLong( id.getLeastSignificantBits() );
-        output.writeLong( id.getMostSignificantBits() );
-    }
-
-    private UUID readUUID( Input input ) {
-        long lsb = input.readLong();
-        long msb = input.readLong();
-        return new UUID( msb, lsb );
-    }
 
     @Override
     public void write( Kryo kryo, Output output, BulkEntityDataLambdas object ) {
         writeUUID( output, object.getEntityTypeId() );
         writeUUID( output, object.getEntitySetId() );
 
-        try {
-            output.writeInt( object.getEntitiesById().size() );
+        Map<UUID, Integer> dictionary = buildDictionary( object.getEntitiesById().values() );
+        writeDictionary( output, dictionary );
 
-            for ( Map.Entry<UUID, Map<UUID, Set<Object>>> entry : object.getEntitiesById().entrySet() ) {
-                writeUUID( output, entry.getKey() );
+        output.writeInt( object.getEntitiesById().size() );
 
-                byte[] bytes = mapper.writeValueAsBytes( entry.getValue() );
-                output.writeInt( bytes.length );
-                output.writeBytes( bytes );
-            }
-        } catch ( JsonProcessingException e ) {
-            logger.debug( "Unable to serialize entity with for entity set: {}", object.getEntitySetId() );
+        for ( Map.Entry<UUID, Map<UUID, Set<Object>>> entry : object.getEntitiesById().entrySet() ) {
+            writeUUID( output, entry.getKey() );
+            writeEntity( output, entry.getValue(), dictionary );
         }
     }
 
@@ -73,26 +44,15 @@ public class BulkEntityDataLambdasStreamSerializer extends Serializer<BulkEntity
             Kryo kryo, Input input, Class<BulkEntityDataLambdas> type ) {
         UUID entityTypeId = readUUID( input );
         UUID entitySetId = readUUID( input );
+        UUID[] dictionary = readDictionary( input );
 
         int entitiesSize = input.readInt();
-        Map<UUID, SetMultimap<UUID, Object>> entitiesById = new HashMap<>( entitiesSize );
+        Map<UUID, Map<UUID, Set<Object>>> entitiesById = new HashMap<>( entitiesSize );
         for ( int j = 0; j < entitiesSize; j++ ) {
             UUID entityId = readUUID( input );
-
-            int numBytes = input.readInt();
-            final SetMultimap<UUID, Object> entityData;
-            try {
-                entityData = mapper.readValue( input.readBytes( numBytes ), ref );
-                entitiesById.put( entityId, entityData );
-            } catch ( IOException e ) {
-                logger.debug( "Unable to deserialize entities for entity set: {}", entitySetId );
-                throw new IllegalStateException(
-                        "Unable to deserialize entities for entity set: " + entitySetId.toString() );
-            }
+            entitiesById.put( entityId, readEntity( input, dictionary ) );
         }
 
-        return new BulkEntityDataLambdas( entityTypeId,
-                entitySetId,
-                Maps.transformValues( entitiesById, Multimaps::asMap ) );
+        return new BulkEntityDataLambdas( entityTypeId, entitySetId, entitiesById );
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ */
+
+package com.openlattice.linking.util;
+
+import com.openlattice.rhizome.hazelcast.DelegatedStringSet;
+import org.apache.commons.codec.language.DoubleMetaphone;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.olingo.commons.api.edm.FullQualifiedName;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * The values of a person that {@link PersonMetric} compares, normalized once per entity.
+ * <p>
+ * Names are lower cased and their double metaphone codes computed up front, and birth dates are parsed once, so an
+ * entity compared against many candidates only pays for this once instead of once per pair.
+ */
+public class PersonFeatures {
+    private static final DoubleMetaphone doubleMetaphone = new DoubleMetaphone();
+
+    final String[] firstNames;
+    final String[] firstNameMetaphones;
+    final String[] firstNameAlternateMetaphones;
+    final double   firstNameProba;
+
+    final String[] lastNames;
+    final String[] lastNameMetaphones;
+    final String[] lastNameAlternateMetaphones;
+    final double   lastNameProba;
+
+    final String[] sexes;
+    final String[] dobs;
+    final String[] parsedDobs;
+    final String[] races;
+    final String[] ethnicities;
+    final String[] ssns;
+
+    private PersonFeatures( Map<UUID, DelegatedStringSet> entity, Map<FullQualifiedName, UUID> fqnToIdMap ) {
+        firstNames = normalize( PersonProperties.getFirstName( entity, fqnToIdMap ) );
+        firstNameMetaphones = metaphones( firstNames, false );
+        firstNameAlternateMetaphones = metaphones( firstNames, true );
+        firstNameProba = PersonProperties.getFirstProba( entity, fqnToIdMap );
+
+        lastNames = normalize( PersonProperties.getLastName( entity, fqnToIdMap ) );
+        lastNameMetaphones = metaphones( lastNames, false );
+        lastNameAlternateMetaphones = metaphones( lastNames, true );
+        lastNameProba = PersonProperties.getLastProba( entity, fqnToIdMap );
+
+        sexes = normalize( PersonProperties.getSex( entity, fqnToIdMap ) );
+        dobs = normalize( PersonProperties.getDob( entity, fqnToIdMap ) );
+        parsedDobs = PersonProperties.getDobStrs( entity, fqnToIdMap ).toArray( new String[ 0 ] );
+        races = normalize( PersonProperties.getRace( entity, fqnToIdMap ) );
+        ethnicities = normalize( PersonProperties.getEthnicity( entity, fqnToIdMap ) );
+        ssns = normalize( PersonProperties.getSsn( entity, fqnToIdMap ) );
+    }
+
+    public static PersonFeatures of( Map<UUID, DelegatedStringSet> entity, Map<FullQualifiedName, UUID> fqnToIdMap ) {
+        return new PersonFeatures( entity, fqnToIdMap );
+    }
+
+    /**
+     * Computes the features of every entity in {@code entities} in parallel, so they can be reused across all the
+     * pairs each entity is part of.
+     */
+    public static <K> Map<K, PersonFeatures> ofAll(
+            Map<K, Map<UUID, DelegatedStringSet>> entities,
+            Map<FullQualifiedName, UUID> fqnToIdMap ) {
+        return entities.entrySet()
+                .parallelStream()
+                .collect( Collectors.toMap( Map.Entry::getKey, entry -> of( entry.getValue(), fqnToIdMap ) ) );
+    }
+
+    private static String[] normalize( DelegatedStringSet values ) {
+        return values.stream().map( String::toLowerCase ).toArray( String[]::new );
+    }
+
+    private static String[] metaphones( String[] values, boolean alternate ) {
+        String[] codes = new String[ values.length ];
+        for ( int i = 0; i < values.length; ++i ) {
+            codes[ i ] = StringUtils.isNotBlank( values[ i ] )
+                    ? doubleMetaphone.doubleMetaphone( values[ i ], alternate )
+                    : values[ i ];
+        }
+        return codes;
+    }
+}
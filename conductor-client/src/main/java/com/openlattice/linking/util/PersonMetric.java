@@ -30,6 +30,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 
 /**
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
@@ -99,14 +100,72 @@ public enum PersonMetric {
             Map<UUID, DelegatedStringSet> lhs,
             Map<UUID, DelegatedStringSet> rhs,
             Map<FullQualifiedName, UUID> fqnToIdMap ) {
+        return distance( PersonFeatures.of( lhs, fqnToIdMap ), PersonFeatures.of( rhs, fqnToIdMap ) );
+    }
+
+    /**
+     * Computes every metric for a pair of entities whose features were already extracted. This runs on the calling
+     * thread, since a single pair is too little work to be worth splitting; use {@link #distances} to compare an entity
+     * against many candidates in parallel.
+     */
+    public static double[] distance( PersonFeatures lhs, PersonFeatures rhs ) {
         double[] result = new double[ metricsList.size() ];
 
-        metricsList.parallelStream().forEach( m ->
-                result[ m.ordinal() ] = m.extract( lhs, rhs, fqnToIdMap )
-        );
+        result[ FIRST_NAME_STRING.ordinal() ] = getMaxJaroWinkler( lhs.firstNames, rhs.firstNames );
+        result[ FIRST_NAME_METAPHONE.ordinal() ] = getMaxJaroWinkler( lhs.firstNameMetaphones,
+                rhs.firstNameMetaphones );
+        result[ FIRST_NAME_METAPHONE_ALT.ordinal() ] = getMaxJaroWinkler( lhs.firstNameAlternateMetaphones,
+                rhs.firstNameAlternateMetaphones );
+        result[ FIRST_NAME_LHS_PRESENCE.ordinal() ] = presence( lhs.firstNames );
+        result[ FIRST_NAME_RHS_PRESENCE.ordinal() ] = presence( rhs.firstNames );
+        result[ FIRST_NAME_LHS_PROBA.ordinal() ] = lhs.firstNameProba;
+        result[ FIRST_NAME_RHS_PROBA.ordinal() ] = rhs.firstNameProba;
+
+        // middle names are not compared, so all of their metrics stay at zero
+
+        result[ LAST_NAME_STRING.ordinal() ] = getMaxJaroWinkler( lhs.lastNames, rhs.lastNames );
+        result[ LAST_NAME_METAPHONE.ordinal() ] = getMaxJaroWinkler( lhs.lastNameMetaphones,
+                rhs.lastNameMetaphones );
+        result[ LAST_NAME_METAPHONE_ALT.ordinal() ] = getMaxJaroWinkler( lhs.lastNameAlternateMetaphones,
+                rhs.lastNameAlternateMetaphones );
+        result[ LAST_NAME_LHS_PRESENCE.ordinal() ] = presence( lhs.lastNames );
+        result[ LAST_NAME_RHS_PRESENCE.ordinal() ] = presence( rhs.lastNames );
+        result[ LAST_NAME_LHS_PROBA.ordinal() ] = lhs.lastNameProba;
+        result[ LAST_NAME_RHS_PROBA.ordinal() ] = rhs.lastNameProba;
+
+        result[ SEX_STRING.ordinal() ] = getMaxJaroWinkler( lhs.sexes, rhs.sexes );
+        result[ SEX_LHS_PRESENCE.ordinal() ] = presence( lhs.sexes );
+        result[ SEX_RHS_PRESENCE.ordinal() ] = presence( rhs.sexes );
+
+        result[ DOB_STRING.ordinal() ] = getMaxJaroWinkler( lhs.dobs, rhs.dobs );
+        result[ DOB_LHS_PRESENCE.ordinal() ] = presence( lhs.dobs );
+        result[ DOB_RHS_PRESENCE.ordinal() ] = presence( rhs.dobs );
+        result[ DOB_DIFF.ordinal() ] = getMaxDobSimilarity( lhs.parsedDobs, rhs.parsedDobs );
+
+        result[ RACE_STRING.ordinal() ] = getMaxJaroWinkler( lhs.races, rhs.races );
+        result[ RACE_LHS_PRESENCE.ordinal() ] = presence( lhs.races );
+        result[ RACE_RHS_PRESENCE.ordinal() ] = presence( rhs.races );
+
+        result[ ETHNICITY_STRING.ordinal() ] = getMaxJaroWinkler( lhs.ethnicities, rhs.ethnicities );
+        result[ ETHNICITY_LHS_PRESENCE.ordinal() ] = presence( lhs.ethnicities );
+        result[ ETHNICITY_RHS_PRESENCE.ordinal() ] = presence( rhs.ethnicities );
+
+        result[ SSN_STRING.ordinal() ] = getMaxJaroWinkler( lhs.ssns, rhs.ssns );
+        result[ SSN_LHS_PRESENCE.ordinal() ] = presence( lhs.ssns );
+        result[ SSN_RHS_PRESENCE.ordinal() ] = presence( rhs.ssns );
+
         return result;
     }
 
+    /**
+     * Compares {@code lhs} against each of {@code candidates}, computing pairs in parallel.
+     */
+    public static <K> Map<K, double[]> distances( PersonFeatures lhs, Map<K, PersonFeatures> candidates ) {
+        return candidates.entrySet()
+                .parallelStream()
+                .collect( Collectors.toMap( Map.Entry::getKey, entry -> distance( lhs, entry.getValue() ) ) );
+    }
+
     public static double[] pDistance(
             Map<UUID, DelegatedStringSet> lhs,
             Map<UUID, DelegatedStringSet> rhs,
@@ -189,6 +248,32 @@ public enum PersonMetric {
         return max;
     }
 
+    private static double presence( String[] values ) {
+        return values.length > 0 ? 1 : 0;
+    }
+
+    private static double getMaxJaroWinkler( String[] lhs, String[] rhs ) {
+        double max = 0;
+        for ( String s1 : lhs ) {
+            for ( String s2 : rhs ) {
+                double difference = StringUtils.getJaroWinklerDistance( s1, s2 );
+                if ( difference > max ) { max = difference; }
+            }
+        }
+        return max;
+    }
+
+    private static double getMaxDobSimilarity( String[] lhs, String[] rhs ) {
+        double bestValue = 0;
+        for ( String dob1 : lhs ) {
+            for ( String dob2 : rhs ) {
+                double val = ( 8 - StringUtils.getLevenshteinDistance( dob1, dob2 ) ) / 8.0;
+                if ( val > bestValue ) { bestValue = val; }
+            }
+        }
+        return bestValue;
+    }
+
     public static double getStringDistance( String lhs, String rhs, boolean useMetaphone, boolean alternate ) {
         if ( lhs == null ) {
             lhs = "";
@@ -93,6 +93,9 @@ public final class PostgresColumn {
     public static final String                   BLOCK_ID_FIELD                    = "block_id";
     public static final PostgresColumnDefinition BLOCK_ID                          =
             new PostgresColumnDefinition( BLOCK_ID_FIELD, UUID );
+    public static final String                   BLOCK_KEY_FIELD                   = "block_key";
+    public static final PostgresColumnDefinition BLOCK_KEY                         =
+            new PostgresColumnDefinition( BLOCK_KEY_FIELD, TEXT ).notNull();
     public static final String                   CATEGORY_FIELD                    = "category";
     public static final PostgresColumnDefinition CATEGORY                          =
             new PostgresColumnDefinition( CATEGORY_FIELD, TEXT ).notNull();
@@ -185,6 +188,9 @@ public final class PostgresColumn {
     public static final String                   ENTITY_ID_FIELD                   = "entity_id";
     public static final PostgresColumnDefinition ENTITY_ID                         =
             new PostgresColumnDefinition( ENTITY_ID_FIELD, TEXT );
+    public static final String                   ENTITY_KEY_ID_FIELD               = "entity_key_id";
+    public static final PostgresColumnDefinition ENTITY_KEY_ID                     =
+            new PostgresColumnDefinition( ENTITY_KEY_ID_FIELD, UUID ).notNull();
     public static final String                   ENTITY_KEY_IDS_FIELD              = "entity_key_ids";
     public static final PostgresColumnDefinition ENTITY_KEY_IDS_COL                =
             new PostgresColumnDefinition( ENTITY_KEY_IDS_FIELD, UUID_ARRAY );
@@ -39,6 +39,7 @@ import static com.openlattice.postgres.PostgresColumn.AUTHENTICATION_METHOD;
 import static com.openlattice.postgres.PostgresColumn.BASE;
 import static com.openlattice.postgres.PostgresColumn.BASE_TYPE;
 import static com.openlattice.postgres.PostgresColumn.BIDIRECTIONAL;
+import static com.openlattice.postgres.PostgresColumn.BLOCK_KEY;
 import static com.openlattice.postgres.PostgresColumn.CATEGORY;
 import static com.openlattice.postgres.PostgresColumn.CLASS_NAME;
 import static com.openlattice.postgres.PostgresColumn.CLASS_PROPERTIES;
@@ -60,6 +61,7 @@ import static com.openlattice.postgres.PostgresColumn.EDGE_ENTITY_KEY_ID;
 import static com.openlattice.postgres.PostgresColumn.EDGE_ENTITY_SET_ID;
 import static com.openlattice.postgres.PostgresColumn.EMAILS;
 import static com.openlattice.postgres.PostgresColumn.ENTITY_ID;
+import static com.openlattice.postgres.PostgresColumn.ENTITY_KEY_ID;
 import static com.openlattice.postgres.PostgresColumn.ENTITY_SET_COLLECTION_ID;
 import static com.openlattice.postgres.PostgresColumn.ENTITY_SET_FLAGS;
 import static com.openlattice.postgres.PostgresColumn.ENTITY_SET_ID;
@@ -342,6 +344,11 @@ public final class PostgresTable {
             new PostgresTableDefinition( "integration_jobs" )
                     .addColumns( ID, NAME, STATUS );
     public static final PostgresTableDefinition JOBS                          = PostgresJobsMapStore.JOBS;
+    public static final PostgresTableDefinition LINKING_BLOCKS                =
+            new CitusDistributedTableDefinition( "linking_blocks" )
+                    .addColumns( BLOCK_KEY, ENTITY_SET_ID, ENTITY_KEY_ID )
+                    .primaryKey( BLOCK_KEY, ENTITY_SET_ID, ENTITY_KEY_ID )
+                    .distributionColumn( BLOCK_KEY );
     public static final PostgresTableDefinition LINKING_FEEDBACK              =
             new PostgresTableDefinition( "linking_feedback" )
                     .addColumns(
@@ -720,6 +727,12 @@ public final class PostgresTable {
                         .name( "collision_id_idx" )
                         .ifNotExists()
         );
+
+        LINKING_BLOCKS.addIndexes(
+                new PostgresColumnsIndexDefinition( LINKING_BLOCKS, ENTITY_SET_ID, ENTITY_KEY_ID )
+                        .name( "linking_blocks_entity_set_id_entity_key_id_idx" )
+                        .ifNotExists()
+        );
     }
 
     private PostgresTable() {
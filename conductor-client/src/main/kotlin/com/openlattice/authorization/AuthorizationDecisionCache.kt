@@ -0,0 +1,204 @@
+package com.openlattice.authorization
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.RemovalCause
+import com.google.common.cache.RemovalNotification
+import com.hazelcast.core.EntryEvent
+import com.hazelcast.map.IMap
+import com.hazelcast.map.MapEvent
+import com.hazelcast.map.listener.EntryAddedListener
+import com.hazelcast.map.listener.EntryExpiredListener
+import com.hazelcast.map.listener.EntryRemovedListener
+import com.hazelcast.map.listener.EntryUpdatedListener
+import com.hazelcast.map.listener.MapClearedListener
+import com.openlattice.authorization.processors.AuthorizationEntryProcessor
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+const val DEFAULT_AUTHORIZATION_CACHE_SIZE = 1_000_000L
+const val DEFAULT_AUTHORIZATION_CACHE_TTL_MILLIS = 30_000L
+private const val MAX_PENDING_WRITES = 65_536
+
+/**
+ * Node local cache of the permissions granted to a single principal on a single securable object.
+ *
+ * Entries are keyed by [AceKey] rather than by the full set of principals of a request, so that a change to one ace
+ * only invalidates that ace and every request that shares it with other principal sets still benefits from the cache.
+ * Absent aces are cached as empty permission sets, which is what makes a warm cache able to answer a request without
+ * going to the cluster at all.
+ *
+ * Entries are invalidated by an entry listener on the [HazelcastMap.PERMISSIONS] map and expire after a short ttl as a
+ * safety net for missed events. Writes made through [HazelcastAuthorizationService] on this node invalidate their aces
+ * immediately and record the write time, which is used to measure how long the listener takes to deliver the
+ * corresponding invalidation.
+ *
+ * Cached aces are also indexed by acl key and by principal, so that invalidating everything cached for a securable
+ * object or a principal only touches its own entries instead of scanning the whole cache.
+ */
+class AuthorizationDecisionCache @JvmOverloads constructor(
+        private val aces: IMap<AceKey, AceValue>,
+        metricRegistry: MetricRegistry,
+        maximumSize: Long = DEFAULT_AUTHORIZATION_CACHE_SIZE,
+        ttlMillis: Long = DEFAULT_AUTHORIZATION_CACHE_TTL_MILLIS
+) : EntryAddedListener<AceKey, AceValue>,
+    EntryRemovedListener<AceKey, AceValue>,
+    EntryUpdatedListener<AceKey, AceValue>,
+    EntryExpiredListener<AceKey, AceValue>,
+    MapClearedListener {
+
+    private val byAclKey = ConcurrentHashMap<AclKey, MutableSet<AceKey>>()
+    private val byPrincipal = ConcurrentHashMap<Principal, MutableSet<AceKey>>()
+
+    private val permissions: Cache<AceKey, EnumSet<Permission>> = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+            .removalListener<AceKey, EnumSet<Permission>> { removed(it) }
+            .build()
+
+    /*
+     * Bumped on every invalidation, so that results loaded concurrently with an invalidation are not cached.
+     */
+    private val invalidations = AtomicLong()
+    private val pendingWrites = ConcurrentHashMap<AceKey, Long>()
+
+    private val hits = metricRegistry.meter(MetricRegistry.name(AuthorizationDecisionCache::class.java, "hits"))
+    private val misses = metricRegistry.meter(MetricRegistry.name(AuthorizationDecisionCache::class.java, "misses"))
+    private val invalidationMeter = metricRegistry.meter(
+            MetricRegistry.name(AuthorizationDecisionCache::class.java, "invalidations")
+    )
+    private val invalidationLag = metricRegistry.timer(
+            MetricRegistry.name(AuthorizationDecisionCache::class.java, "invalidationLag")
+    )
+
+    init {
+        aces.addEntryListener(this, false)
+    }
+
+    /**
+     * Returns the permissions of every requested ace, loading the ones that are not cached from the cluster in a
+     * single call.
+     */
+    fun getPermissions(aceKeys: Set<AceKey>): Map<AceKey, EnumSet<Permission>> {
+        val cached = permissions.getAllPresent(aceKeys)
+        hits.mark(cached.size.toLong())
+
+        if (cached.size == aceKeys.size) {
+            return cached
+        }
+
+        val missing = aceKeys - cached.keys
+        misses.mark(missing.size.toLong())
+
+        val generation = invalidations.get()
+        val loaded = aces.executeOnKeys(missing, AuthorizationEntryProcessor())
+        val loadedPermissions = missing.associateWith { aceKey ->
+            val acePermissions = loaded[aceKey]
+            if (acePermissions == null || acePermissions.isEmpty()) {
+                EnumSet.noneOf(Permission::class.java)
+            } else {
+                EnumSet.copyOf(acePermissions.unwrap())
+            }
+        }
+
+        if (generation == invalidations.get()) {
+            //Indexed before being cached, so that an entry is never cached without being reachable from its index.
+            loadedPermissions.keys.forEach(this::index)
+            permissions.putAll(loadedPermissions)
+        }
+
+        return cached + loadedPermissions
+    }
+
+    /**
+     * Performs a [mutation] of [aceKeys], invalidating them both before and after so that neither this node nor a
+     * concurrent read on this node can observe permissions cached before the mutation once it has returned.
+     */
+    fun <T> write(aceKeys: Collection<AceKey>, mutation: () -> T): T {
+        invalidateForWrite(aceKeys)
+        try {
+            return mutation()
+        } finally {
+            invalidate(aceKeys)
+        }
+    }
+
+    private fun invalidateForWrite(aceKeys: Collection<AceKey>) {
+        val now = System.nanoTime()
+        //Writes that never produce an event, such as removing permissions from a missing ace, are never cleaned up.
+        if (pendingWrites.size > MAX_PENDING_WRITES) {
+            pendingWrites.clear()
+        }
+        aceKeys.forEach { pendingWrites[it] = now }
+        invalidate(aceKeys)
+    }
+
+    fun invalidateAclKey(aclKey: AclKey) {
+        invalidations.incrementAndGet()
+        byAclKey.remove(aclKey)?.let(permissions::invalidateAll)
+        invalidationMeter.mark()
+    }
+
+    fun invalidatePrincipal(principal: Principal) {
+        invalidations.incrementAndGet()
+        byPrincipal.remove(principal)?.let(permissions::invalidateAll)
+        invalidationMeter.mark()
+    }
+
+    fun invalidateAll() {
+        invalidations.incrementAndGet()
+        permissions.invalidateAll()
+        invalidationMeter.mark()
+    }
+
+    private fun index(aceKey: AceKey) {
+        byAclKey.compute(aceKey.aclKey) { _, aceKeys -> (aceKeys ?: mutableSetOf()).apply { add(aceKey) } }
+        byPrincipal.compute(aceKey.principal) { _, aceKeys -> (aceKeys ?: mutableSetOf()).apply { add(aceKey) } }
+    }
+
+    private fun removed(notification: RemovalNotification<AceKey, EnumSet<Permission>>) {
+        //A replaced entry is still cached under the same key.
+        if (notification.cause == RemovalCause.REPLACED) {
+            return
+        }
+        val aceKey = notification.key ?: return
+        byAclKey.computeIfPresent(aceKey.aclKey) { _, aceKeys -> unindex(aceKeys, aceKey) }
+        byPrincipal.computeIfPresent(aceKey.principal) { _, aceKeys -> unindex(aceKeys, aceKey) }
+    }
+
+    private fun unindex(aceKeys: MutableSet<AceKey>, aceKey: AceKey): MutableSet<AceKey>? {
+        aceKeys.remove(aceKey)
+        return if (aceKeys.isEmpty()) null else aceKeys
+    }
+
+    /**
+     * Returns the number of acl keys and principals that currently have cached entries.
+     */
+    internal fun indexSizes(): Pair<Int, Int> = byAclKey.size to byPrincipal.size
+
+    private fun invalidate(aceKeys: Collection<AceKey>) {
+        invalidations.incrementAndGet()
+        permissions.invalidateAll(aceKeys)
+        invalidationMeter.mark(aceKeys.size.toLong())
+    }
+
+    private fun handle(event: EntryEvent<AceKey, AceValue>) {
+        invalidate(listOf(event.key))
+        pendingWrites.remove(event.key)?.let { writtenAt ->
+            invalidationLag.update(System.nanoTime() - writtenAt, TimeUnit.NANOSECONDS)
+        }
+    }
+
+    override fun entryAdded(event: EntryEvent<AceKey, AceValue>) = handle(event)
+
+    override fun entryRemoved(event: EntryEvent<AceKey, AceValue>) = handle(event)
+
+    override fun entryUpdated(event: EntryEvent<AceKey, AceValue>) = handle(event)
+
+    override fun entryExpired(event: EntryEvent<AceKey, AceValue>) = handle(event)
+
+    override fun mapCleared(event: MapEvent) = invalidateAll()
+}
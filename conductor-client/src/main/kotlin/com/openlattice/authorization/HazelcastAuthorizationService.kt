@@ -1,5 +1,6 @@
 package com.openlattice.authorization
 
+import com.codahale.metrics.MetricRegistry
 import com.codahale.metrics.annotation.Timed
 import com.google.common.collect.HashMultimap
 import com.google.common.collect.ImmutableSet
@@ -19,7 +20,6 @@ import com.openlattice.authorization.mapstores.PermissionMapstore.PERMISSIONS_IN
 import com.openlattice.authorization.mapstores.PermissionMapstore.PRINCIPAL_INDEX
 import com.openlattice.authorization.mapstores.PermissionMapstore.PRINCIPAL_TYPE_INDEX
 import com.openlattice.authorization.mapstores.PermissionMapstore.SECURABLE_OBJECT_TYPE_INDEX
-import com.openlattice.authorization.processors.AuthorizationEntryProcessor
 import com.openlattice.authorization.processors.PermissionMerger
 import com.openlattice.authorization.processors.PermissionRemover
 import com.openlattice.authorization.processors.SecurableObjectTypeUpdater
@@ -38,11 +38,14 @@ import java.util.stream.Stream
 @Service
 class HazelcastAuthorizationService(
         hazelcastInstance: HazelcastInstance,
-        val eventBus: EventBus
+        val eventBus: EventBus,
+        metricRegistry: MetricRegistry
 ) : AuthorizationManager {
 
     private val securableObjectTypes: IMap<AclKey, SecurableObjectType> = HazelcastMap.SECURABLE_OBJECT_TYPES.getMap(hazelcastInstance)
     private val aces: IMap<AceKey, AceValue> = HazelcastMap.PERMISSIONS.getMap(hazelcastInstance)
+    private val decisionCache = AuthorizationDecisionCache(aces, metricRegistry)
+    private val permissionIndex = PermissionIndex(aces, metricRegistry)
 
     companion object {
         private val logger = LoggerFactory.getLogger(HazelcastAuthorizationService::class.java)
@@ -101,11 +104,13 @@ class HazelcastAuthorizationService(
     override fun setSecurableObjectTypes(aclKeys: Set<AclKey>, objectType: SecurableObjectType) {
         securableObjectTypes.putAll(aclKeys.associateWith { objectType })
         aces.executeOnEntries(SecurableObjectTypeUpdater(objectType), hasAnyAclKeys(aclKeys))
+        permissionIndex.setSecurableObjectType(aclKeys, objectType)
     }
 
     override fun setSecurableObjectType(aclKey: AclKey, objectType: SecurableObjectType) {
         securableObjectTypes[aclKey] = objectType
         aces.executeOnEntries(SecurableObjectTypeUpdater(objectType), hasAclKey(aclKey))
+        permissionIndex.setSecurableObjectType(listOf(aclKey), objectType)
     }
 
     /** Add Permissions **/
@@ -118,7 +123,12 @@ class HazelcastAuthorizationService(
         //TODO: We should do something better than reading the securable object type.
         val securableObjectType = getDefaultObjectType(securableObjectTypes, key)
 
-        aces.executeOnKey(AceKey(key, principal), PermissionMerger(permissions, securableObjectType, expirationDate))
+        val aceKey = AceKey(key, principal)
+        permissionIndex.write(listOf(aceKey)) {
+            decisionCache.write(listOf(aceKey)) {
+                aces.executeOnKey(aceKey, PermissionMerger(permissions, securableObjectType, expirationDate))
+            }
+        }
 
         signalMaterializationPermissionChange(key, principal, permissions, securableObjectType)
     }
@@ -140,14 +150,22 @@ class HazelcastAuthorizationService(
             expirationDate: OffsetDateTime
     ) {
         val aceKeys = toAceKeys(keys, principal)
-        aces.executeOnKeys(aceKeys, PermissionMerger(permissions, securableObjectType, expirationDate))
+        permissionIndex.write(aceKeys) {
+            decisionCache.write(aceKeys) {
+                aces.executeOnKeys(aceKeys, PermissionMerger(permissions, securableObjectType, expirationDate))
+            }
+        }
     }
 
     override fun addPermissions(acls: List<Acl>) {
         val updates = getAceValueToAceKeyMap(acls)
         updates.keySet().forEach {
             val aceKeys = updates[it]
-            aces.executeOnKeys(aceKeys, PermissionMerger(it.permissions, it.securableObjectType, it.expirationDate))
+            permissionIndex.write(aceKeys) {
+                decisionCache.write(aceKeys) {
+                    aces.executeOnKeys(aceKeys, PermissionMerger(it.permissions, it.securableObjectType, it.expirationDate))
+                }
+            }
         }
     }
 
@@ -168,7 +186,12 @@ class HazelcastAuthorizationService(
         val updates = getAceValueToAceKeyMap(acls)
 
         updates.keySet().forEach {
-            aces.executeOnKeys(updates[it], PermissionRemover(it.permissions))
+            val aceKeys = updates[it]
+            permissionIndex.write(aceKeys) {
+                decisionCache.write(aceKeys) {
+                    aces.executeOnKeys(aceKeys, PermissionRemover(it.permissions))
+                }
+            }
         }
     }
 
@@ -186,16 +209,25 @@ class HazelcastAuthorizationService(
                 key, principal, permissions, getDefaultObjectType(securableObjectTypes, key)
         )
 
-        aces.executeOnKey(AceKey(key, principal), PermissionRemover(permissions))
+        val aceKey = AceKey(key, principal)
+        permissionIndex.write(listOf(aceKey)) {
+            decisionCache.write(listOf(aceKey)) {
+                aces.executeOnKey(aceKey, PermissionRemover(permissions))
+            }
+        }
     }
 
     override fun deletePermissions(aclKey: AclKey) {
         securableObjectTypes.delete(aclKey)
         aces.removeAll(hasAclKey(aclKey))
+        decisionCache.invalidateAclKey(aclKey)
+        permissionIndex.removeAclKey(aclKey)
     }
 
     override fun deletePrincipalPermissions(principal: Principal) {
         aces.removeAll(hasPrincipal(principal))
+        decisionCache.invalidatePrincipal(principal)
+        permissionIndex.removePrincipal(principal)
     }
 
     /** Set Permissions **/
@@ -217,7 +249,9 @@ class HazelcastAuthorizationService(
             }
         }
 
-        aces.putAll(updates)
+        permissionIndex.write(updates) {
+            decisionCache.write(updates.keys) { aces.putAll(updates) }
+        }
     }
 
     override fun setPermission(
@@ -241,7 +275,13 @@ class HazelcastAuthorizationService(
         //This should be a rare call to overwrite all permissions, so it's okay to do a read before write.
         val securableObjectType = getDefaultObjectType(securableObjectTypes, key)
         signalMaterializationPermissionChange(key, principal, permissions, securableObjectType)
-        aces[AceKey(key, principal)] = AceValue(permissions, securableObjectType, expirationDate)
+        val aceKey = AceKey(key, principal)
+        val aceValue = AceValue(permissions, securableObjectType, expirationDate)
+        permissionIndex.write(mapOf(aceKey to aceValue)) {
+            decisionCache.write(listOf(aceKey)) {
+                aces[aceKey] = aceValue
+            }
+        }
     }
 
     override fun setPermission(aclKeys: Set<AclKey>, principals: Set<Principal>, permissions: EnumSet<Permission>) {
@@ -263,7 +303,9 @@ class HazelcastAuthorizationService(
             }
         }
 
-        aces.putAll(newPermissions)
+        permissionIndex.write(newPermissions) {
+            decisionCache.write(newPermissions.keys) { aces.putAll(newPermissions) }
+        }
     }
 
     override fun setPermissions(permissions: Map<AceKey, EnumSet<Permission>>) {
@@ -285,7 +327,9 @@ class HazelcastAuthorizationService(
             signalMaterializationPermissionChange(aclKey, aceKey.principal, acePermissions, objectType)
         }
 
-        aces.putAll(newPermissions)
+        permissionIndex.write(newPermissions) {
+            decisionCache.write(newPermissions.keys) { aces.putAll(newPermissions) }
+        }
     }
 
     /*** AUTH CHECKS ***/
@@ -302,11 +346,11 @@ class HazelcastAuthorizationService(
             principals.map { principal -> AceKey(aclKey, principal) }
         }.toSet()
 
-        aces.executeOnKeys(aceKeys, AuthorizationEntryProcessor()).forEach { (aceKey: AceKey, permissions: Any) ->
+        decisionCache.getPermissions(aceKeys).forEach { (aceKey, permissions) ->
 
             val aclKeyPermissions = permissionMap.getValue(aceKey.aclKey)
 
-            (permissions as DelegatedPermissionEnumSet).filter { aclKeyPermissions.contains(it) }.forEach {
+            permissions.filter { aclKeyPermissions.contains(it) }.forEach {
                 aclKeyPermissions[it] = true
             }
 
@@ -340,9 +384,9 @@ class HazelcastAuthorizationService(
 
         val aceKeys = principals.map { AceKey(key, it) }.toSet()
 
-        return aces.executeOnKeys(aceKeys, AuthorizationEntryProcessor())
+        return decisionCache.getPermissions(aceKeys)
                 .values
-                .flatMap { it as DelegatedPermissionEnumSet }
+                .flatten()
                 .toSet()
                 .containsAll(requiredPermissions)
     }
@@ -384,6 +428,10 @@ class HazelcastAuthorizationService(
             principals: Set<Principal>,
             objectType: SecurableObjectType,
             permissions: EnumSet<Permission>): Stream<AclKey> {
+        if (permissions.isNotEmpty()) {
+            return permissionIndex.getAuthorizedObjectsOfType(principals, objectType, permissions).stream()
+        }
+
         val principalPredicate = if (principals.size == 1) hasPrincipal(principals.first()) else hasAnyPrincipals(principals)
         val p = Predicates.and<AceKey, AceValue>(
                 principalPredicate,
@@ -433,6 +481,10 @@ class HazelcastAuthorizationService(
     }
 
     override fun getAuthorizedPrincipalsOnSecurableObject(key: AclKey, permissions: EnumSet<Permission>): Set<Principal> {
+        if (permissions.isNotEmpty()) {
+            return permissionIndex.getAuthorizedPrincipals(key, permissions)
+        }
+
         val principalMap = mutableMapOf(key to PrincipalSet(mutableSetOf()))
 
         return aces.aggregate(PrincipalAggregator(principalMap), matches(key, permissions))
@@ -0,0 +1,426 @@
+package com.openlattice.authorization
+
+import com.codahale.metrics.MetricRegistry
+import com.hazelcast.core.EntryEvent
+import com.hazelcast.map.IMap
+import com.hazelcast.map.MapEvent
+import com.hazelcast.map.listener.EntryAddedListener
+import com.hazelcast.map.listener.EntryEvictedListener
+import com.hazelcast.map.listener.EntryExpiredListener
+import com.hazelcast.map.listener.EntryRemovedListener
+import com.hazelcast.map.listener.EntryUpdatedListener
+import com.hazelcast.map.listener.MapClearedListener
+import com.hazelcast.map.listener.MapEvictedListener
+import com.hazelcast.query.Predicates
+import com.openlattice.authorization.mapstores.PermissionMapstore.SECURABLE_OBJECT_TYPE_INDEX
+import com.openlattice.authorization.securable.SecurableObjectType
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Node local index of the [HazelcastMap.PERMISSIONS] map for answering which securable objects a set of principals
+ * has been granted permissions on, and which principals have been granted permissions on a securable object, without
+ * running predicate queries across the cluster.
+ *
+ * Principals and acl keys are assigned dense integer ids, and for every (principal, permission, securable object type)
+ * the index keeps a bitmap of the acl key ids on which the principal holds that permission. Finding the objects of a
+ * type that any of a set of principals can access is then an intersection over the requested permissions followed by
+ * a union over the principals.
+ *
+ * The index is built from a full scan of the permissions map the first time it is queried and is kept up to date by
+ * an entry listener on the map. The scan copies every ace in the cluster to this node, which costs a few hundred bytes
+ * per ace on top of the index itself. To keep the peak of that copy down, the map is read one securable object type at
+ * a time through the [SECURABLE_OBJECT_TYPE_INDEX], so only the aces of a single type are held in transit at once.
+ * Ids are never reused, so the id spaces only grow with the number of distinct principals and securable objects seen
+ * by this node.
+ *
+ * Mutations made on this node go through [write], which indexes their result without waiting for the corresponding
+ * events. Events for the same ace are delivered in order and always win: the result of a local write is only indexed
+ * for the aces that have not received an event since the write started, and otherwise the events, which include the
+ * one for the write itself, bring the index up to date.
+ */
+class PermissionIndex(
+        private val aces: IMap<AceKey, AceValue>,
+        metricRegistry: MetricRegistry
+) : EntryAddedListener<AceKey, AceValue>,
+    EntryRemovedListener<AceKey, AceValue>,
+    EntryUpdatedListener<AceKey, AceValue>,
+    EntryExpiredListener<AceKey, AceValue>,
+    EntryEvictedListener<AceKey, AceValue>,
+    MapClearedListener,
+    MapEvictedListener {
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(PermissionIndex::class.java)
+
+        private fun pack(principalId: Int, aclKeyId: Int): Long {
+            return (principalId.toLong() shl 32) or (aclKeyId.toLong() and 0xFFFFFFFFL)
+        }
+
+        private fun principalIdOf(packed: Long): Int = (packed ushr 32).toInt()
+
+        private fun aclKeyIdOf(packed: Long): Int = packed.toInt()
+    }
+
+    private data class ObjectsKey(
+            val principalId: Int,
+            val permission: Permission,
+            val objectType: SecurableObjectType
+    )
+
+    private data class IndexedAce(val permissions: EnumSet<Permission>, val objectType: SecurableObjectType)
+
+    private val lock = ReentrantReadWriteLock()
+
+    private val principalIds = mutableMapOf<Principal, Int>()
+    private val principals = mutableListOf<Principal>()
+    private val aclKeyIds = mutableMapOf<AclKey, Int>()
+    private val aclKeys = mutableListOf<AclKey>()
+
+    private val indexedAces = mutableMapOf<Long, IndexedAce>()
+    private val objects = mutableMapOf<ObjectsKey, BitSet>()
+    private val principalsByAclKey = mutableMapOf<Int, MutableSet<Int>>()
+
+    /*
+     * Aces changed by events while the initial scan was running. The scan may have read them before the change, so
+     * their indexed state takes precedence over the scanned one.
+     */
+    private val changedWhileLoading = mutableSetOf<AceKey>()
+
+    @Volatile
+    private var loaded = false
+
+    /*
+     * Events are numbered while local writes are in progress, so that a local write can tell which of its aces have
+     * received an event since it started. Both are guarded by the lock and only hold the events that happened during
+     * the oldest write still in progress.
+     */
+    private var eventSequence = 0L
+    private val lastEvents = mutableMapOf<AceKey, Long>()
+    private val localWrites = TreeMap<Long, Int>()
+
+    private val objectsTimer = metricRegistry.timer(
+            MetricRegistry.name(PermissionIndex::class.java, "getAuthorizedObjectsOfType")
+    )
+    private val principalsTimer = metricRegistry.timer(
+            MetricRegistry.name(PermissionIndex::class.java, "getAuthorizedPrincipals")
+    )
+    private val loadTimer = metricRegistry.timer(MetricRegistry.name(PermissionIndex::class.java, "load"))
+
+    init {
+        aces.addEntryListener(this, true)
+    }
+
+    /**
+     * Returns the acl keys of every securable object of [objectType] on which at least one of [principals] has been
+     * granted all of [permissions].
+     */
+    fun getAuthorizedObjectsOfType(
+            principals: Set<Principal>,
+            objectType: SecurableObjectType,
+            permissions: EnumSet<Permission>
+    ): List<AclKey> {
+        require(permissions.isNotEmpty()) { "At least one permission must be requested." }
+        ensureLoaded()
+
+        return objectsTimer.time().use {
+            lock.read {
+                val authorized = BitSet()
+                principals.forEach { principal ->
+                    val principalId = principalIds[principal] ?: return@forEach
+                    intersect(principalId, objectType, permissions)?.let { authorized.or(it) }
+                }
+
+                val authorizedAclKeys = ArrayList<AclKey>(authorized.cardinality())
+                authorized.stream().forEach { authorizedAclKeys.add(aclKeys[it]) }
+                authorizedAclKeys
+            }
+        }
+    }
+
+    /**
+     * Returns every principal that has been granted all of [permissions] on [aclKey].
+     */
+    fun getAuthorizedPrincipals(aclKey: AclKey, permissions: EnumSet<Permission>): Set<Principal> {
+        ensureLoaded()
+
+        return principalsTimer.time().use {
+            lock.read {
+                val aclKeyId = aclKeyIds[aclKey] ?: return@read setOf<Principal>()
+                principalsByAclKey[aclKeyId]
+                        ?.filter { principalId ->
+                            indexedAces.getValue(pack(principalId, aclKeyId)).permissions.containsAll(permissions)
+                        }
+                        ?.mapTo(mutableSetOf()) { principals[it] }
+                        ?: setOf()
+            }
+        }
+    }
+
+    /**
+     * Indexes a change to [aceKey] observed through the events of the permissions map.
+     */
+    fun put(aceKey: AceKey, aceValue: AceValue) {
+        lock.write {
+            changed(aceKey)
+            index(aceKey, aceValue)
+        }
+    }
+
+    /**
+     * Indexes changes to [aces] observed through the events of the permissions map.
+     */
+    fun putAll(aces: Map<AceKey, AceValue>) {
+        lock.write {
+            aces.forEach { (aceKey, aceValue) ->
+                changed(aceKey)
+                index(aceKey, aceValue)
+            }
+        }
+    }
+
+    /**
+     * Indexes the removal of [aceKey] observed through the events of the permissions map.
+     */
+    fun remove(aceKey: AceKey) {
+        lock.write {
+            changed(aceKey)
+            unindex(aceKey)
+        }
+    }
+
+    /**
+     * Performs a [mutation] of [aceKeys] and indexes their values as they are in the cluster once it has returned, so
+     * that mutations made on this node are visible to its queries before the corresponding events have been delivered.
+     */
+    fun <T> write(aceKeys: Collection<AceKey>, mutation: () -> T): T {
+        return write(mutation) { aces.getAll(aceKeys.toSet()).let { current -> aceKeys.associateWith { current[it] } } }
+    }
+
+    /**
+     * Performs a [mutation] that sets the aces in [updates] and indexes them once it has returned, so that mutations
+     * made on this node are visible to its queries before the corresponding events have been delivered.
+     */
+    fun <T> write(updates: Map<AceKey, AceValue>, mutation: () -> T): T {
+        return write(mutation) { updates }
+    }
+
+    private fun <T> write(mutation: () -> T, written: () -> Map<AceKey, AceValue?>): T {
+        val stamp = lock.write {
+            localWrites[eventSequence] = (localWrites[eventSequence] ?: 0) + 1
+            eventSequence
+        }
+
+        try {
+            val result = mutation()
+            if (loaded) {
+                val values = written()
+                lock.write {
+                    values
+                            .filter { (aceKey, _) -> (lastEvents[aceKey] ?: 0L) <= stamp }
+                            .forEach { (aceKey, aceValue) ->
+                                if (aceValue == null) {
+                                    unindex(aceKey)
+                                } else {
+                                    index(aceKey, aceValue)
+                                }
+                            }
+                }
+            }
+            return result
+        } finally {
+            lock.write {
+                val inProgress = localWrites.getValue(stamp) - 1
+                if (inProgress == 0) {
+                    localWrites.remove(stamp)
+                } else {
+                    localWrites[stamp] = inProgress
+                }
+
+                if (localWrites.isEmpty()) {
+                    lastEvents.clear()
+                } else {
+                    val oldest = localWrites.firstKey()
+                    lastEvents.values.removeIf { it <= oldest }
+                }
+            }
+        }
+    }
+
+    /**
+     * Records an event on [aceKey]. Must be called while holding the write lock.
+     */
+    private fun changed(aceKey: AceKey) {
+        if (!loaded) {
+            changedWhileLoading.add(aceKey)
+        }
+        if (localWrites.isNotEmpty()) {
+            lastEvents[aceKey] = ++eventSequence
+        }
+    }
+
+    fun removeAclKey(aclKey: AclKey) {
+        lock.write {
+            val aclKeyId = aclKeyIds[aclKey] ?: return@write
+            principalsByAclKey[aclKeyId]?.toList()?.forEach { unindex(AceKey(aclKey, principals[it])) }
+        }
+    }
+
+    fun removePrincipal(principal: Principal) {
+        lock.write {
+            val principalId = principalIds[principal] ?: return@write
+            indexedAces.keys
+                    .filter { principalIdOf(it) == principalId }
+                    .forEach { unindex(AceKey(aclKeys[aclKeyIdOf(it)], principal)) }
+        }
+    }
+
+    fun setSecurableObjectType(aclKeys: Collection<AclKey>, objectType: SecurableObjectType) {
+        lock.write {
+            aclKeys.forEach { aclKey ->
+                val aclKeyId = aclKeyIds[aclKey] ?: return@forEach
+                principalsByAclKey[aclKeyId]?.toList()?.forEach { principalId ->
+                    val indexedAce = indexedAces.getValue(pack(principalId, aclKeyId))
+                    index(principalId, aclKeyId, IndexedAce(indexedAce.permissions, objectType))
+                }
+            }
+        }
+    }
+
+    fun clear() {
+        lock.write {
+            indexedAces.clear()
+            objects.clear()
+            principalsByAclKey.clear()
+        }
+    }
+
+    private fun ensureLoaded() {
+        if (loaded) {
+            return
+        }
+
+        synchronized(this) {
+            if (loaded) {
+                return
+            }
+
+            loadTimer.time().use {
+                (SecurableObjectType.values().asList() + listOf<SecurableObjectType?>(null)).forEach { objectType ->
+                    val snapshot = aces.entrySet(
+                            Predicates.equal<AceKey, AceValue>(SECURABLE_OBJECT_TYPE_INDEX, objectType)
+                    )
+                    lock.write {
+                        snapshot
+                                .filter { !changedWhileLoading.contains(it.key) }
+                                .forEach { index(it.key, it.value) }
+                    }
+                }
+                lock.write {
+                    changedWhileLoading.clear()
+                    loaded = true
+                    logger.info("Indexed {} aces for {} principals on {} securable objects.",
+                            indexedAces.size, principals.size, aclKeys.size)
+                }
+            }
+        }
+    }
+
+    private fun intersect(
+            principalId: Int,
+            objectType: SecurableObjectType,
+            permissions: EnumSet<Permission>
+    ): BitSet? {
+        var intersection: BitSet? = null
+        permissions.forEach { permission ->
+            val bitmap = objects[ObjectsKey(principalId, permission, objectType)] ?: return null
+            if (intersection == null) {
+                intersection = bitmap.clone() as BitSet
+            } else {
+                intersection!!.and(bitmap)
+            }
+        }
+        return intersection
+    }
+
+    private fun index(aceKey: AceKey, aceValue: AceValue) {
+        val permissions = aceValue.permissions
+        val indexedAce = IndexedAce(
+                if (permissions == null || permissions.isEmpty()) {
+                    EnumSet.noneOf(Permission::class.java)
+                } else {
+                    EnumSet.copyOf(permissions)
+                },
+                aceValue.securableObjectType ?: SecurableObjectType.Unknown
+        )
+        index(principalIdFor(aceKey.principal), aclKeyIdFor(aceKey.aclKey), indexedAce)
+    }
+
+    private fun index(principalId: Int, aclKeyId: Int, indexedAce: IndexedAce) {
+        unindex(principalId, aclKeyId)
+
+        indexedAces[pack(principalId, aclKeyId)] = indexedAce
+        principalsByAclKey.getOrPut(aclKeyId) { mutableSetOf() }.add(principalId)
+        indexedAce.permissions.forEach { permission ->
+            objects.getOrPut(ObjectsKey(principalId, permission, indexedAce.objectType)) { BitSet() }.set(aclKeyId)
+        }
+    }
+
+    private fun unindex(aceKey: AceKey) {
+        val principalId = principalIds[aceKey.principal] ?: return
+        val aclKeyId = aclKeyIds[aceKey.aclKey] ?: return
+        unindex(principalId, aclKeyId)
+    }
+
+    private fun unindex(principalId: Int, aclKeyId: Int) {
+        val indexedAce = indexedAces.remove(pack(principalId, aclKeyId)) ?: return
+
+        principalsByAclKey[aclKeyId]?.let { aclKeyPrincipals ->
+            aclKeyPrincipals.remove(principalId)
+            if (aclKeyPrincipals.isEmpty()) {
+                principalsByAclKey.remove(aclKeyId)
+            }
+        }
+
+        indexedAce.permissions.forEach { permission ->
+            val objectsKey = ObjectsKey(principalId, permission, indexedAce.objectType)
+            objects[objectsKey]?.let { bitmap ->
+                bitmap.clear(aclKeyId)
+                if (bitmap.isEmpty) {
+                    objects.remove(objectsKey)
+                }
+            }
+        }
+    }
+
+    private fun principalIdFor(principal: Principal): Int {
+        return principalIds.getOrPut(principal) {
+            principals.add(principal)
+            principals.size - 1
+        }
+    }
+
+    private fun aclKeyIdFor(aclKey: AclKey): Int {
+        return aclKeyIds.getOrPut(aclKey) {
+            aclKeys.add(aclKey)
+            aclKeys.size - 1
+        }
+    }
+
+    override fun entryAdded(event: EntryEvent<AceKey, AceValue>) = put(event.key, event.value)
+
+    override fun entryUpdated(event: EntryEvent<AceKey, AceValue>) = put(event.key, event.value)
+
+    override fun entryRemoved(event: EntryEvent<AceKey, AceValue>) = remove(event.key)
+
+    override fun entryExpired(event: EntryEvent<AceKey, AceValue>) = remove(event.key)
+
+    override fun entryEvicted(event: EntryEvent<AceKey, AceValue>) = remove(event.key)
+
+    override fun mapCleared(event: MapEvent) = clear()
+
+    override fun mapEvicted(event: MapEvent) = clear()
+}
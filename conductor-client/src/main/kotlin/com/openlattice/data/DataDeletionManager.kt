@@ -37,6 +37,22 @@ interface DataDeletionManager {
             principals: Set<Principal>
     ): WriteEvent
 
+    /**
+     * Submits a job that clears or deletes the specified entity key ids from an entity set, as well as their neighbors in
+     * the requested neighbor entity sets and any edges and association entities, if authorized. Permissions on the
+     * entity set and the neighbor entity sets are checked before the job is submitted.
+     *
+     * @return The id of the submitted job.
+     */
+    fun submitClearOrDeleteEntitiesAndNeighborsJobIfAuthorized(
+            entitySetId: UUID,
+            entityKeyIds: Set<UUID>,
+            srcEntitySetIds: Set<UUID>,
+            dstEntitySetIds: Set<UUID>,
+            deleteType: DeleteType,
+            principals: Set<Principal>
+    ): UUID
+
     /**
      * Clears or deletes certain property values from the specified entity key ids from an entity set, if authorized
      */
@@ -74,4 +90,44 @@ interface DataDeletionManager {
             deleteType: DeleteType
     ): WriteEvent
 
+    /**
+     * Returns the neighbors of the specified entity key ids that are in [neighborEntitySetIds], by entity set.
+     */
+    fun getNeighborEntityKeyIds(
+            entitySetId: UUID,
+            entityKeyIds: Set<UUID>,
+            neighborEntitySetIds: Set<UUID>,
+            deleteType: DeleteType
+    ): Map<UUID, Set<UUID>>
+
+    /**
+     * Authorizes deleting from the association entity sets connected to a chunk of entities of a deletion job, except
+     * for those in [authorizedAssociationEntitySetIds], which the newly authorized ones are added to.
+     *
+     * @throws com.openlattice.controllers.exceptions.ForbiddenException if any of them is not authorized.
+     */
+    fun authorizeAssociationsOfJob(
+            entitySetId: UUID,
+            entityKeyIds: Set<UUID>,
+            deleteType: DeleteType,
+            principals: Set<Principal>,
+            authorizedAssociationEntitySetIds: MutableSet<UUID>
+    )
+
+    /**
+     * Clears or deletes a chunk of entities of a deletion job, as well as any edges and association entities.
+     *
+     * This function does not check permissions on the entity set. Permissions on connected association entity sets are
+     * checked for those not in [authorizedAssociationEntitySetIds], which are added to it once authorized. Jobs
+     * authorize them with [authorizeAssociationsOfJob] before deleting, so only association entity sets connected since
+     * then are checked here.
+     */
+    fun clearOrDeleteEntitiesOfJob(
+            entitySetId: UUID,
+            entityKeyIds: Set<UUID>,
+            deleteType: DeleteType,
+            principals: Set<Principal>,
+            authorizedAssociationEntitySetIds: MutableSet<UUID>
+    ): WriteEvent
+
 }
\ No newline at end of file
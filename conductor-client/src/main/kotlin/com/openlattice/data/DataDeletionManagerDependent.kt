@@ -0,0 +1,14 @@
+package com.openlattice.data
+
+/**
+ * Implemented by components that can only be given a [DataDeletionManager] once it has been constructed, such as
+ * serializers that are needed to construct it.
+ */
+interface DataDeletionManagerDependent<T> {
+    fun init(dataDeletionManager: DataDeletionManager): T
+
+    /**
+     * Returns whether [init] has been called.
+     */
+    fun isDataDeletionManagerInitialized(): Boolean
+}
@@ -0,0 +1,87 @@
+package com.openlattice.data.ids
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.openlattice.data.EntityKey
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+
+const val DEFAULT_ENTITY_KEY_ID_CACHE_SIZE = 1_000_000L
+
+/**
+ * Node local, size bounded cache of the mapping between entity keys and entity key ids in both directions.
+ *
+ * Entity key ids only change when duplicate assignments are repaired, and entries only have to be removed otherwise
+ * when their entity set is deleted. In both cases the entity sets involved are invalidated with [invalidateEntitySet]
+ * on every node.
+ *
+ * Every invalidation advances the [generation] of the cache. Callers read the generation before loading assignments and
+ * pass it to [put] or [putAll], which drop assignments loaded before an invalidation that may have made them stale, even
+ * if the invalidation runs while they are being cached.
+ */
+class EntityKeyIdCache @JvmOverloads constructor(
+        metricRegistry: MetricRegistry,
+        maximumSize: Long = DEFAULT_ENTITY_KEY_ID_CACHE_SIZE
+) {
+    private val entityKeyIds: Cache<EntityKey, UUID> = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build()
+    private val entityKeys: Cache<UUID, EntityKey> = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build()
+    private val generation = AtomicLong()
+
+    init {
+        metricRegistry.gauge(MetricRegistry.name(EntityKeyIdCache::class.java, "entityKeyIds", "hitRate")) {
+            Gauge { entityKeyIds.stats().hitRate() }
+        }
+        metricRegistry.gauge(MetricRegistry.name(EntityKeyIdCache::class.java, "entityKeys", "hitRate")) {
+            Gauge { entityKeys.stats().hitRate() }
+        }
+    }
+
+    /**
+     * Returns the current generation, to be read before loading the assignments passed to [put] or [putAll].
+     */
+    fun generation(): Long = generation.get()
+
+    fun getEntityKeyId(entityKey: EntityKey): UUID? = entityKeyIds.getIfPresent(entityKey)
+
+    fun getEntityKey(entityKeyId: UUID): EntityKey? = entityKeys.getIfPresent(entityKeyId)
+
+    fun getEntityKeyIds(entityKeys: Set<EntityKey>): Map<EntityKey, UUID> = entityKeyIds.getAllPresent(entityKeys)
+
+    fun getEntityKeys(entityKeyIds: Set<UUID>): Map<UUID, EntityKey> = entityKeys.getAllPresent(entityKeyIds)
+
+    fun put(entityKey: EntityKey, entityKeyId: UUID, loadedAt: Long) {
+        putAll(mapOf(entityKey to entityKeyId), loadedAt)
+    }
+
+    /**
+     * Caches [assignments] loaded at generation [loadedAt], unless an invalidation happened since.
+     */
+    fun putAll(assignments: Map<EntityKey, UUID>, loadedAt: Long) {
+        if (assignments.isEmpty() || generation.get() != loadedAt) {
+            return
+        }
+
+        entityKeyIds.putAll(assignments)
+        entityKeys.putAll(assignments.entries.associate { it.value to it.key })
+
+        //An invalidation that ran while caching may have missed the entries cached after it.
+        if (generation.get() != loadedAt) {
+            entityKeyIds.invalidateAll(assignments.keys)
+            entityKeys.invalidateAll(assignments.values)
+        }
+    }
+
+    fun invalidateEntitySet(entitySetId: UUID) {
+        generation.incrementAndGet()
+        entityKeyIds.asMap().keys.removeIf { it.entitySetId == entitySetId }
+        entityKeys.asMap().values.removeIf { it.entitySetId == entitySetId }
+    }
+}
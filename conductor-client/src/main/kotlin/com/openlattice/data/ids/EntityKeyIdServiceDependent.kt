@@ -0,0 +1,9 @@
+package com.openlattice.data.ids
+
+/**
+ * Implemented by components that can only be given a [PostgresEntityKeyIdService] once it has been constructed, such
+ * as serializers that are needed to construct it.
+ */
+interface EntityKeyIdServiceDependent<T> {
+    fun init(entityKeyIdService: PostgresEntityKeyIdService): T
+}
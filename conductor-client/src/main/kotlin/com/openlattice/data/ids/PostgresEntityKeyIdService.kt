@@ -21,12 +21,18 @@
 
 package com.openlattice.data.ids
 
+import com.codahale.metrics.MetricRegistry
+import com.google.common.eventbus.EventBus
+import com.google.common.eventbus.Subscribe
+import com.hazelcast.core.HazelcastInstance
 import com.openlattice.IdConstants
 import com.openlattice.data.EntityKey
 import com.openlattice.data.EntityKeyIdService
 import com.openlattice.data.storage.partitions.PartitionManager
 import com.openlattice.data.storage.partitions.getPartition
 import com.openlattice.data.util.PostgresDataHasher
+import com.openlattice.edm.events.EntitySetDeletedEvent
+import com.openlattice.hazelcast.HazelcastTopic
 import com.openlattice.ids.HazelcastIdGenerationService
 import com.openlattice.postgres.PostgresArrays
 import com.openlattice.postgres.PostgresColumn.*
@@ -68,14 +74,43 @@ private val logger = LoggerFactory.getLogger(PostgresEntityKeyIdService::class.j
 /**
  * This service is responsible for assigning ids to entity keys and persisting the mapping in postgres.
  *
+ * Mappings are consulted in the [EntityKeyIdCache] before going to postgres in either direction. Entity sets whose
+ * assignments are rewritten must be passed to [invalidateReassignedEntitySets], which drops them from the caches of
+ * every node through the [HazelcastTopic.ENTITY_KEY_ID_INVALIDATIONS] topic. Deleted entity sets are dropped from every
+ * node the same way when the node deleting them posts an [EntitySetDeletedEvent].
+ *
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
  */
 @Service
 class PostgresEntityKeyIdService(
         private val hds: HikariDataSource,
         private val idGenerationService: HazelcastIdGenerationService,
-        protected val partitionManager: PartitionManager
+        protected val partitionManager: PartitionManager,
+        hazelcastInstance: HazelcastInstance,
+        eventBus: EventBus,
+        metricRegistry: MetricRegistry
 ) : EntityKeyIdService {
+    private val entityKeyIdCache = EntityKeyIdCache(metricRegistry)
+    private val invalidations = hazelcastInstance.getTopic<UUID>(HazelcastTopic.ENTITY_KEY_ID_INVALIDATIONS.name)
+
+    init {
+        invalidations.addMessageListener { message -> entityKeyIdCache.invalidateEntitySet(message.messageObject) }
+        eventBus.register(this)
+    }
+
+    /**
+     * Drops the cached assignments of [entitySetIds] on every node. Must be called after the entity key ids of any of
+     * their entity keys have been changed in the [SYNC_IDS] table.
+     */
+    fun invalidateReassignedEntitySets(entitySetIds: Set<UUID>) {
+        entitySetIds.forEach(invalidations::publish)
+    }
+
+    @Subscribe
+    fun handleEntitySetDeleted(event: EntitySetDeletedEvent) {
+        invalidations.publish(event.entitySetId)
+    }
+
     private fun genEntityKeyIds(entityIds: Set<EntityKey>): Map<EntityKey, UUID> {
         val ids = idGenerationService.getNextIds(entityIds.size)
         require(ids.size == entityIds.size) { "Insufficient ids generated." }
@@ -104,8 +139,7 @@ class PostgresEntityKeyIdService(
 
     private fun storeEntityKeyIds(entityKeyIds: Map<EntityKey, UUID>): Map<EntityKey, UUID> {
         val partitionsByEntitySet = partitionManager
-                .getPartitionsByEntitySetId(entityKeyIds.keys.map { it.entitySetId }.toSet())
-                .mapValues { it.value.toIntArray() }
+                .getPartitionArraysByEntitySetId(entityKeyIds.keys.map { it.entitySetId }.toSet())
         return hds.connection.use { connection ->
             storeEntityKeyIds(connection, partitionsByEntitySet, entityKeyIds, idGenerationService)
         }
@@ -117,14 +151,23 @@ class PostgresEntityKeyIdService(
     }
 
     override fun reserveEntityKeyIds(entityKeys: Set<EntityKey>): Set<UUID> {
-        val entityIdsByEntitySet = entityKeys
+        val generation = entityKeyIdCache.generation()
+        val cached = entityKeyIdCache.getEntityKeyIds(entityKeys)
+        if (cached.size == entityKeys.size) {
+            return cached.values.toSet()
+        }
+
+        val entityIdsByEntitySet = (entityKeys - cached.keys)
                 .groupBy({ it.entitySetId }, { it.entityId })
                 .mapValues { it.value.toSet() }
         val existing = loadEntityKeyIds(entityIdsByEntitySet)
-        val missing = entityKeys - existing.keys
+        val missing = entityKeys - cached.keys - existing.keys
         val missingMap = assignEntityKeyIds(missing)
 
-        return entityKeys.asSequence().map { existing[it] ?: missingMap.getValue(it) }.toSet()
+        entityKeyIdCache.putAll(existing, generation)
+        entityKeyIdCache.putAll(missingMap, generation)
+
+        return entityKeys.asSequence().map { cached[it] ?: existing[it] ?: missingMap.getValue(it) }.toSet()
     }
 
     override fun reserveLinkingIds(count: Int): List<UUID> {
@@ -142,7 +185,7 @@ class PostgresEntityKeyIdService(
         storeEntityKeyIdReservations(
                 entitySetId,
                 ids,
-                partitionManager.getEntitySetPartitions(entitySetId).toIntArray()
+                partitionManager.getEntitySetPartitionArray(entitySetId)
         )
         return ids.toList()
     }
@@ -154,9 +197,15 @@ class PostgresEntityKeyIdService(
     }
 
     override fun getEntityKeyId(entityKey: EntityKey): UUID {
-        return loadEntityKeyId(entityKey.entitySetId, entityKey.entityId) ?: storeEntityKeyIds(
+        val generation = entityKeyIdCache.generation()
+        entityKeyIdCache.getEntityKeyId(entityKey)?.let { return it }
+
+        val entityKeyId = loadEntityKeyId(entityKey.entitySetId, entityKey.entityId) ?: storeEntityKeyIds(
                 genEntityKeyIds(setOf(entityKey))
         ).getValue(entityKey)
+        entityKeyIdCache.put(entityKey, entityKeyId, generation)
+
+        return entityKeyId
     }
 
     private fun loadEntityKeyId(entitySetId: UUID, entityId: String): UUID? {
@@ -194,7 +243,7 @@ class PostgresEntityKeyIdService(
                 entityKeyId,
                 insertIds,
                 insertToData,
-                partitionManager.getEntitySetPartitions(entitySetId).toIntArray()
+                partitionManager.getEntitySetPartitionArray(entitySetId)
         )
     }
 
@@ -213,16 +262,26 @@ class PostgresEntityKeyIdService(
             entityKeys: Set<EntityKey>,
             entityKeyIds: MutableMap<EntityKey, UUID>
     ): MutableMap<EntityKey, UUID> {
-        val entityIdsByEntitySet = entityKeys
+        val generation = entityKeyIdCache.generation()
+        val cached = entityKeyIdCache.getEntityKeyIds(entityKeys)
+        entityKeyIds.putAll(cached)
+        if (cached.size == entityKeys.size) {
+            return entityKeyIds
+        }
+
+        val entityIdsByEntitySet = (entityKeys - cached.keys)
                 .groupBy({ it.entitySetId }, { it.entityId })
                 .mapValues { it.value.toSet() }
-        entityKeyIds.putAll(loadEntityKeyIds(entityIdsByEntitySet))
+        val loaded = loadEntityKeyIds(entityIdsByEntitySet)
+        entityKeyIds.putAll(loaded)
+        entityKeyIdCache.putAll(loaded, generation)
 
         //Making this line O(n) is why we chose to just take a set instead of a sequence (thus allowing lazy views since copy is required anyway)
         val missing = entityKeys.minus(entityKeyIds.keys)
 
         val missingMap = assignEntityKeyIds(missing)
         entityKeyIds.putAll(missingMap)
+        entityKeyIdCache.putAll(missingMap, generation)
 
         return entityKeyIds
     }
@@ -232,11 +291,21 @@ class PostgresEntityKeyIdService(
     }
 
     override fun getEntityKey(entityKeyId: UUID): EntityKey {
-        return loadEntityKeys(setOf(entityKeyId))[entityKeyId]!!
+        return getEntityKeys(setOf(entityKeyId))[entityKeyId]!!
     }
 
     override fun getEntityKeys(entityKeyIds: Set<UUID>): MutableMap<UUID, EntityKey> {
-        return loadEntityKeys(entityKeyIds)
+        val generation = entityKeyIdCache.generation()
+        val entityKeys = HashMap<UUID, EntityKey>(entityKeyIds.size)
+        entityKeys.putAll(entityKeyIdCache.getEntityKeys(entityKeyIds))
+
+        if (entityKeys.size < entityKeyIds.size) {
+            val loaded = loadEntityKeys(entityKeyIds - entityKeys.keys)
+            entityKeyIdCache.putAll(loaded.entries.associate { it.value to it.key }, generation)
+            entityKeys.putAll(loaded)
+        }
+
+        return entityKeys
     }
 
     private fun loadEntityKeys(entityKeyIds: Set<UUID>): MutableMap<UUID, EntityKey> {
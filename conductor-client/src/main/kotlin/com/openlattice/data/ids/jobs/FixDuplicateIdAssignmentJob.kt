@@ -8,8 +8,10 @@ import com.geekbeast.rhizome.jobs.AbstractDistributedJob
 import com.geekbeast.rhizome.jobs.JobStatus
 import com.openlattice.client.serialization.SerializationConstants
 import com.openlattice.data.EntityKey
+import com.openlattice.data.ids.PostgresEntityKeyIdService
 import com.openlattice.graph.partioning.REPARTITION_DATA_COLUMNS
 import com.openlattice.graph.partioning.REPARTITION_EDGES_COLUMNS
+import com.openlattice.hazelcast.serializers.decorators.EntityKeyIdServiceAware
 import com.openlattice.hazelcast.serializers.decorators.IdGenerationAware
 import com.openlattice.hazelcast.serializers.decorators.MetastoreAware
 import com.openlattice.ids.HazelcastIdGenerationService
@@ -32,7 +34,8 @@ const val BATCH_SIZE = 128000
  */
 class FixDuplicateIdAssignmentJob(
         state: FixDuplicateIdAssignmentJobState
-) : AbstractDistributedJob<Long, FixDuplicateIdAssignmentJobState>(state), MetastoreAware, IdGenerationAware {
+) : AbstractDistributedJob<Long, FixDuplicateIdAssignmentJobState>(state), MetastoreAware, IdGenerationAware,
+        EntityKeyIdServiceAware {
     companion object {
         @Transient
         private val mapper = ObjectMappers.newJsonMapper()
@@ -57,7 +60,14 @@ class FixDuplicateIdAssignmentJob(
     @Transient
     private lateinit var idService: HazelcastIdGenerationService
 
+    @Transient
+    private lateinit var entityKeyIdService: PostgresEntityKeyIdService
+
     override fun processNextBatch() {
+        check(this::entityKeyIdService.isInitialized) {
+            "Entity key id service must be initialized to invalidate cached assignments after repairing them."
+        }
+
         /**
          * Process ids in batches.
          */
@@ -85,7 +95,9 @@ class FixDuplicateIdAssignmentJob(
              * Each entity set appears only once. We will assign new ids to the entity keys and update ids, data, edges
              */
             if (canBeRepaired.isNotEmpty()) {
-                markAsNeedingIndexing(assignNewIdsAndMoveData(id, canBeRepaired.subList(1, entityKeys.size)))
+                val reassigned = canBeRepaired.subList(1, entityKeys.size)
+                markAsNeedingIndexing(assignNewIdsAndMoveData(id, reassigned))
+                entityKeyIdService.invalidateReassignedEntitySets(reassigned.map { it.entitySetId }.toSet())
             }
 
             /**
@@ -215,6 +227,11 @@ class FixDuplicateIdAssignmentJob(
     override fun setIdGenerationService(idService: HazelcastIdGenerationService) {
         this.idService = idService
     }
+
+    @JsonIgnore
+    override fun setEntityKeyIdService(entityKeyIdService: PostgresEntityKeyIdService) {
+        this.entityKeyIdService = entityKeyIdService
+    }
 }
 
 private const val DUPLICATES_FIELD = "duplicates"
@@ -0,0 +1,450 @@
+package com.openlattice.data.jobs
+
+import com.fasterxml.jackson.annotation.JsonCreator
+import com.fasterxml.jackson.annotation.JsonIgnore
+import com.geekbeast.rhizome.jobs.AbstractDistributedJob
+import com.geekbeast.rhizome.jobs.JobStatus
+import com.google.common.annotations.VisibleForTesting
+import com.openlattice.authorization.Principal
+import com.openlattice.data.DataDeletionManager
+import com.openlattice.data.DeleteType
+import com.openlattice.hazelcast.serializers.decorators.DataDeletionAware
+import com.openlattice.hazelcast.serializers.decorators.MetastoreAware
+import com.openlattice.postgres.PostgresArrays
+import com.openlattice.postgres.PostgresColumn.ENTITY_SET_ID
+import com.openlattice.postgres.PostgresColumn.ID
+import com.openlattice.postgres.PostgresColumn.PARTITION
+import com.openlattice.postgres.PostgresTable.IDS
+import com.openlattice.postgres.ResultSetAdapters
+import com.openlattice.postgres.streams.BasePostgresIterable
+import com.openlattice.postgres.streams.PreparedStatementHolderSupplier
+import com.zaxxer.hikari.HikariDataSource
+import java.sql.Connection
+import java.util.*
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Number of entities cleared or deleted per chunk when a job starts.
+ */
+const val DEFAULT_DELETION_CHUNK_SIZE = 1_000
+const val MIN_DELETION_CHUNK_SIZE = 100
+const val MAX_DELETION_CHUNK_SIZE = 10_000
+
+/**
+ * Chunk sizes are adjusted so that each chunk takes about this long.
+ */
+private const val TARGET_CHUNK_MILLIS = 5_000L
+
+/**
+ * Chunks are not started while more than this many queries are running on the database.
+ */
+private const val MAX_ACTIVE_QUERIES = 64
+private const val THROTTLE_MILLIS = 1_000L
+
+/**
+ * Background job for clearing or deleting a set of entities along with their neighbors in a set of neighbor entity
+ * sets.
+ *
+ * The entities to delete are staged in [DELETION_JOB_ENTITIES] by [stageEntitiesForDeletion] before the job is
+ * submitted. The job then walks the staged entities one partition at a time in bounded chunks, first staging their
+ * neighbors and then clearing or deleting everything staged. The position of the walk is checkpointed after every
+ * chunk, so a job interrupted by a restart resumes from its last chunk. Chunks are idempotent, so a chunk interrupted
+ * before its checkpoint is simply run again. The deleted count only advances together with the checkpoint, so a chunk
+ * that is run again is counted once.
+ *
+ * Chunks are sized to take about [TARGET_CHUNK_MILLIS] and are held back while the database is busy. Permissions on
+ * the entity set and the neighbor entity sets are checked once, before the job is submitted. Permissions on the
+ * association entity sets connected to any staged entity are checked by a walk of their own, before the first chunk is
+ * deleted, as the synchronous deletion does. Only association entity sets connected after that walk are checked when
+ * they are first encountered while deleting.
+ */
+class DataDeletionJob(
+        state: DataDeletionJobState
+) : AbstractDistributedJob<Long, DataDeletionJobState>(state), MetastoreAware, DataDeletionAware {
+    @JsonCreator
+    constructor(
+            id: UUID?,
+            taskId: Long?,
+            status: JobStatus,
+            progress: Byte,
+            hasWorkRemaining: Boolean,
+            result: Long?,
+            state: DataDeletionJobState
+    ) : this(state) {
+        initialize(id, taskId, status, progress, hasWorkRemaining, result)
+    }
+
+    constructor(
+            deletionId: UUID,
+            entitySetId: UUID,
+            neighborEntitySetIds: Set<UUID>,
+            deleteType: DeleteType,
+            principals: Set<Principal>
+    ) : this(DataDeletionJobState(
+            deletionId,
+            entitySetId,
+            neighborEntitySetIds,
+            deleteType,
+            principals,
+            phase = if (neighborEntitySetIds.isEmpty()) {
+                DataDeletionJobPhase.AUTHORIZE_ASSOCIATIONS
+            } else {
+                DataDeletionJobPhase.STAGE_NEIGHBORS
+            }
+    ))
+
+    override val resumable: Boolean = true
+
+    @Transient
+    private lateinit var hds: HikariDataSource
+
+    @Transient
+    private lateinit var dataDeletionManager: DataDeletionManager
+
+    @JsonIgnore
+    override fun setHikariDataSource(hds: HikariDataSource) {
+        this.hds = hds
+    }
+
+    @JsonIgnore
+    override fun setDataDeletionManager(dataDeletionManager: DataDeletionManager) {
+        this.dataDeletionManager = dataDeletionManager
+    }
+
+    override fun initialize() {
+        initializeState()
+        publishJobState()
+    }
+
+    override fun processNextBatch() {
+        processNextChunk()
+        publishJobState()
+    }
+
+    /**
+     * Starts the first phase, unless the job is resuming from a checkpoint.
+     */
+    @VisibleForTesting
+    internal fun initializeState() {
+        if (state.partitions.isEmpty()) {
+            startPhase(state.phase)
+        }
+    }
+
+    /**
+     * Processes the next chunk of the current phase and advances the checkpoint past it, without publishing it.
+     */
+    @VisibleForTesting
+    internal fun processNextChunk() {
+        check(this::dataDeletionManager.isInitialized) {
+            "Data deletion job $id cannot run on a member without a data deletion manager."
+        }
+
+        if (isDatabaseBusy()) {
+            state.throttledCount++
+            Thread.sleep(THROTTLE_MILLIS)
+            return
+        }
+
+        if (state.partitionIndex >= state.partitions.size) {
+            finishPhase()
+            return
+        }
+
+        val partition = state.partitions[state.partitionIndex]
+        val chunk = getNextChunk(partition)
+
+        if (chunk.isEmpty()) {
+            state.partitionIndex++
+            state.lastId = UUID(0, 0)
+        } else {
+            val start = System.currentTimeMillis()
+            val numUpdates = when (state.phase) {
+                DataDeletionJobPhase.STAGE_NEIGHBORS -> {
+                    stageNeighbors(chunk)
+                    0
+                }
+                DataDeletionJobPhase.AUTHORIZE_ASSOCIATIONS -> {
+                    authorizeAssociations(chunk)
+                    0
+                }
+                DataDeletionJobPhase.DELETE -> delete(chunk)
+            }
+            val elapsed = System.currentTimeMillis() - start
+
+            checkpoint(chunk, numUpdates, elapsed)
+            adjustChunkSize(elapsed)
+        }
+    }
+
+    override fun updateProgress() {
+        progress = if (state.entityCount == 0L) {
+            0
+        } else {
+            ((100 * state.deletedCount) / state.entityCount).toByte()
+        }
+    }
+
+    private fun startPhase(phase: DataDeletionJobPhase) {
+        state.phase = phase
+        state.partitions = getStagedPartitions()
+        state.partitionIndex = 0
+        state.lastId = UUID(0, 0)
+        state.entityCount = countStaged()
+    }
+
+    /**
+     * Advances the walk past [chunk], together with the counters of the chunk. Nothing is counted until a chunk has
+     * completed, so a chunk that fails and is run again from the same checkpoint is only counted once.
+     */
+    private fun checkpoint(chunk: List<Pair<UUID, UUID>>, numUpdates: Int, elapsedMillis: Long) {
+        state.lastId = chunk.last().second
+
+        if (state.phase == DataDeletionJobPhase.DELETE) {
+            state.deletedCount += chunk.size
+            state.deletionMillis += elapsedMillis
+            result = (result ?: 0L) + numUpdates
+            updateProgress()
+
+            logger.info(
+                    "Data deletion job {} deleted {} of {} entities ({} entities/s).",
+                    id,
+                    state.deletedCount,
+                    state.entityCount,
+                    1_000 * state.deletedCount / max(1L, state.deletionMillis)
+            )
+        }
+    }
+
+    private fun finishPhase() {
+        when (state.phase) {
+            DataDeletionJobPhase.STAGE_NEIGHBORS -> startPhase(DataDeletionJobPhase.AUTHORIZE_ASSOCIATIONS)
+            DataDeletionJobPhase.AUTHORIZE_ASSOCIATIONS -> startPhase(DataDeletionJobPhase.DELETE)
+            DataDeletionJobPhase.DELETE -> {
+                unstage()
+                hasWorkRemaining = false
+                logger.info(
+                        "Data deletion job {} finished deleting {} entities and neighbors of entity set {} in {} ms.",
+                        id,
+                        state.entityCount,
+                        state.entitySetId,
+                        state.deletionMillis
+                )
+            }
+        }
+    }
+
+    private fun stageNeighbors(chunk: List<Pair<UUID, UUID>>) {
+        val neighborsByEntitySet = chunk
+                .groupBy({ it.first }, { it.second })
+                .flatMap { (entitySetId, entityKeyIds) ->
+                    dataDeletionManager.getNeighborEntityKeyIds(
+                            entitySetId,
+                            entityKeyIds.toSet(),
+                            state.neighborEntitySetIds,
+                            state.deleteType
+                    ).entries
+                }
+                .groupBy({ it.key }, { it.value })
+                .mapValues { it.value.flatten().toSet() }
+
+        hds.connection.use { connection ->
+            neighborsByEntitySet.forEach { (entitySetId, entityKeyIds) ->
+                stage(connection, state.deletionId, entitySetId, entityKeyIds, neighbors = true)
+            }
+        }
+    }
+
+    /**
+     * Authorizes deleting from the association entity sets connected to [chunk] that are not authorized yet.
+     */
+    private fun authorizeAssociations(chunk: List<Pair<UUID, UUID>>) {
+        chunk.groupBy({ it.first }, { it.second }).forEach { (entitySetId, entityKeyIds) ->
+            dataDeletionManager.authorizeAssociationsOfJob(
+                    entitySetId,
+                    entityKeyIds.toSet(),
+                    state.deleteType,
+                    state.principals,
+                    state.authorizedAssociationEntitySetIds
+            )
+        }
+    }
+
+    /**
+     * Clears or deletes [chunk].
+     *
+     * @return The number of rows updated.
+     */
+    private fun delete(chunk: List<Pair<UUID, UUID>>): Int {
+        return chunk.groupBy({ it.first }, { it.second }).entries.sumBy { (entitySetId, entityKeyIds) ->
+            dataDeletionManager.clearOrDeleteEntitiesOfJob(
+                    entitySetId,
+                    entityKeyIds.toSet(),
+                    state.deleteType,
+                    state.principals,
+                    state.authorizedAssociationEntitySetIds
+            ).numUpdates
+        }
+    }
+
+    /**
+     * Grows or shrinks the chunk size towards chunks that take [TARGET_CHUNK_MILLIS].
+     */
+    private fun adjustChunkSize(elapsedMillis: Long) {
+        state.chunkSize = when {
+            elapsedMillis > 2 * TARGET_CHUNK_MILLIS -> max(MIN_DELETION_CHUNK_SIZE, state.chunkSize / 2)
+            elapsedMillis < TARGET_CHUNK_MILLIS / 2 -> min(MAX_DELETION_CHUNK_SIZE, state.chunkSize * 2)
+            else -> state.chunkSize
+        }
+    }
+
+    private fun isDatabaseBusy(): Boolean = hds.connection.use { connection ->
+        connection.createStatement().use { stmt ->
+            stmt.executeQuery(COUNT_ACTIVE_QUERIES_SQL).use { rs ->
+                rs.next()
+                rs.getInt(1) > MAX_ACTIVE_QUERIES
+            }
+        }
+    }
+
+    /**
+     * Returns the entity set ids and entity key ids of the next chunk of staged entities in [partition].
+     */
+    private fun getNextChunk(partition: Int): List<Pair<UUID, UUID>> {
+        return BasePostgresIterable(PreparedStatementHolderSupplier(hds, SELECT_NEXT_CHUNK_SQL) { ps ->
+            ps.setObject(1, state.deletionId)
+            ps.setInt(2, partition)
+            ps.setObject(3, state.lastId)
+            ps.setBoolean(4, state.phase != DataDeletionJobPhase.STAGE_NEIGHBORS)
+            ps.setInt(5, state.chunkSize)
+        }) { rs ->
+            rs.getObject(ENTITY_SET_ID.name, UUID::class.java) to ResultSetAdapters.id(rs)
+        }.toList()
+    }
+
+    private fun getStagedPartitions(): List<Int> {
+        return BasePostgresIterable(PreparedStatementHolderSupplier(hds, SELECT_STAGED_PARTITIONS_SQL) { ps ->
+            ps.setObject(1, state.deletionId)
+        }) { rs ->
+            rs.getInt(PARTITION.name)
+        }.toList()
+    }
+
+    private fun countStaged(): Long = hds.connection.use { connection ->
+        connection.prepareStatement(COUNT_STAGED_SQL).use { ps ->
+            ps.setObject(1, state.deletionId)
+            ps.executeQuery().use { rs ->
+                rs.next()
+                ResultSetAdapters.count(rs)
+            }
+        }
+    }
+
+    private fun unstage() = hds.connection.use { connection ->
+        connection.prepareStatement(DELETE_STAGED_SQL).use { ps ->
+            ps.setObject(1, state.deletionId)
+            ps.executeUpdate()
+        }
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is DataDeletionJob) return false
+        return super.equals(other)
+    }
+
+    override fun hashCode(): Int {
+        return super.hashCode()
+    }
+}
+
+/**
+ * Stages the entities of a deletion, so that a [DataDeletionJob] for [deletionId] can walk them. Entities that do not
+ * exist are ignored.
+ */
+fun stageEntitiesForDeletion(hds: HikariDataSource, deletionId: UUID, entitySetId: UUID, entityKeyIds: Set<UUID>) {
+    hds.connection.use { connection ->
+        connection.createStatement().use { it.execute(CREATE_DELETION_JOB_ENTITIES_SQL) }
+        entityKeyIds.chunked(MAX_DELETION_CHUNK_SIZE).forEach { chunk ->
+            stage(connection, deletionId, entitySetId, chunk, neighbors = false)
+        }
+    }
+}
+
+private fun stage(
+        connection: Connection,
+        deletionId: UUID,
+        entitySetId: UUID,
+        entityKeyIds: Collection<UUID>,
+        neighbors: Boolean
+) {
+    connection.prepareStatement(STAGE_ENTITIES_SQL).use { ps ->
+        ps.setObject(1, deletionId)
+        ps.setBoolean(2, neighbors)
+        ps.setObject(3, entitySetId)
+        ps.setArray(4, PostgresArrays.createUuidArray(connection, entityKeyIds))
+        ps.executeUpdate()
+    }
+}
+
+/**
+ * Entities staged for deletion by [DataDeletionJob]s, keyed by the deletion they belong to.
+ */
+const val DELETION_JOB_ENTITIES = "deletion_job_entities"
+
+private const val DELETION_ID = "deletion_id"
+private const val NEIGHBOR = "neighbor"
+
+private val CREATE_DELETION_JOB_ENTITIES_SQL = """
+    CREATE TABLE IF NOT EXISTS $DELETION_JOB_ENTITIES (
+        $DELETION_ID uuid NOT NULL,
+        ${PARTITION.name} integer NOT NULL,
+        ${ENTITY_SET_ID.name} uuid NOT NULL,
+        ${ID.name} uuid NOT NULL,
+        $NEIGHBOR boolean NOT NULL,
+        PRIMARY KEY ($DELETION_ID, ${PARTITION.name}, ${ID.name})
+    )
+""".trimIndent()
+
+/**
+ * Stages entities with the partition they are stored in. Entities that are already staged, including neighbors that
+ * were requested for deletion themselves, are left as they are.
+ *
+ * 1. deletion id
+ * 2. whether the entities are neighbors
+ * 3. entity set id
+ * 4. entity key ids (array)
+ */
+private val STAGE_ENTITIES_SQL = """
+    INSERT INTO $DELETION_JOB_ENTITIES ($DELETION_ID, $NEIGHBOR, ${PARTITION.name}, ${ENTITY_SET_ID.name}, ${ID.name})
+    SELECT ?, ?, ${PARTITION.name}, ${ENTITY_SET_ID.name}, ${ID.name} FROM ${IDS.name}
+    WHERE ${ENTITY_SET_ID.name} = ? AND ${ID.name} = ANY(?)
+    ON CONFLICT DO NOTHING
+""".trimIndent()
+
+/**
+ * Neighbors are only walked after staging neighbors, so that neighbors of neighbors are never staged.
+ *
+ * 1. deletion id
+ * 2. partition
+ * 3. last id of the previous chunk
+ * 4. whether to include neighbors
+ * 5. chunk size
+ */
+private val SELECT_NEXT_CHUNK_SQL = """
+    SELECT ${ENTITY_SET_ID.name}, ${ID.name} FROM $DELETION_JOB_ENTITIES
+    WHERE $DELETION_ID = ? AND ${PARTITION.name} = ? AND ${ID.name} > ? AND (NOT $NEIGHBOR OR ?)
+    ORDER BY ${ID.name}
+    LIMIT ?
+""".trimIndent()
+
+private val SELECT_STAGED_PARTITIONS_SQL = """
+    SELECT DISTINCT ${PARTITION.name} FROM $DELETION_JOB_ENTITIES WHERE $DELETION_ID = ? ORDER BY ${PARTITION.name}
+""".trimIndent()
+
+private val COUNT_STAGED_SQL = "SELECT count(*) FROM $DELETION_JOB_ENTITIES WHERE $DELETION_ID = ?"
+
+private val DELETE_STAGED_SQL = "DELETE FROM $DELETION_JOB_ENTITIES WHERE $DELETION_ID = ?"
+
+private const val COUNT_ACTIVE_QUERIES_SQL = "SELECT count(*) FROM pg_stat_activity WHERE state = 'active'"
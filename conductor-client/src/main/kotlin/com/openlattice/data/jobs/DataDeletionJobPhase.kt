@@ -0,0 +1,24 @@
+package com.openlattice.data.jobs
+
+/**
+ * Phases of a [DataDeletionJob], in the order they are run.
+ */
+enum class DataDeletionJobPhase {
+    /**
+     * Walks the staged entities and stages their neighbors in the requested neighbor entity sets. This has to complete
+     * before anything is deleted, since deleting an entity also deletes the edges its neighbors are found through.
+     */
+    STAGE_NEIGHBORS,
+
+    /**
+     * Walks every staged entity, including staged neighbors, and authorizes deleting from the association entity sets
+     * connected to it. This completes before anything is deleted, so a job that is not allowed to delete from one of
+     * them fails without deleting anything.
+     */
+    AUTHORIZE_ASSOCIATIONS,
+
+    /**
+     * Walks every staged entity, including staged neighbors, and clears or deletes it.
+     */
+    DELETE
+}
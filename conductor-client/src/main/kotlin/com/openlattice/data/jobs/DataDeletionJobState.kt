@@ -0,0 +1,28 @@
+package com.openlattice.data.jobs
+
+import com.geekbeast.rhizome.jobs.JobState
+import com.openlattice.authorization.Principal
+import com.openlattice.data.DeleteType
+import java.util.*
+
+/**
+ * Checkpointed state of a [DataDeletionJob]. The job walks the entities staged under [deletionId] one partition at a
+ * time, in [id] order, so the pair of [partitionIndex] and [lastId] is enough to resume it.
+ */
+data class DataDeletionJobState(
+        val deletionId: UUID,
+        val entitySetId: UUID,
+        val neighborEntitySetIds: Set<UUID>,
+        val deleteType: DeleteType,
+        val principals: Set<Principal>,
+        var phase: DataDeletionJobPhase = DataDeletionJobPhase.STAGE_NEIGHBORS,
+        var partitions: List<Int> = listOf(),
+        var partitionIndex: Int = 0,
+        var lastId: UUID = UUID(0, 0),
+        var chunkSize: Int = DEFAULT_DELETION_CHUNK_SIZE,
+        var authorizedAssociationEntitySetIds: MutableSet<UUID> = mutableSetOf(),
+        var entityCount: Long = 0,
+        var deletedCount: Long = 0,
+        var deletionMillis: Long = 0,
+        var throttledCount: Long = 0
+) : JobState
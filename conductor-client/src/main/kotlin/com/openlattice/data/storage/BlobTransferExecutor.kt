@@ -0,0 +1,117 @@
+package com.openlattice.data.storage
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.google.common.base.Function
+import com.google.common.util.concurrent.Futures
+import com.google.common.util.concurrent.ListenableFuture
+import com.google.common.util.concurrent.ListeningExecutorService
+import com.google.common.util.concurrent.MoreExecutors
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import java.io.Closeable
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Default number of blob transfers in flight at once. Transfers spend nearly all of their time waiting on the object
+ * store, so this is deliberately larger than the number of processors.
+ */
+const val DEFAULT_BLOB_TRANSFER_PARALLELISM = 32
+
+/**
+ * Default number of keys handled by a single transfer task when reading, presigning or deleting objects.
+ */
+const val DEFAULT_BLOB_TRANSFER_BATCH_SIZE = 64
+
+/**
+ * Runs blob transfers on a bounded pool of transfer threads, so that callers can overlap object store latency with
+ * their own work without opening an unbounded number of requests against the object store.
+ *
+ * Keyed operations are split into batches of at most [batchSize] keys, each of which is transferred by a single task.
+ * Results are returned keyed by the key they were requested for, so that keys without a result never shift the results
+ * of other keys, and the future of an operation fails as soon as any of its tasks fails.
+ *
+ * A single instance is shared by all blob stores of an application, so that they are bound by the same number of
+ * transfers in flight.
+ *
+ * The number of tasks waiting for a transfer thread is exposed as the `queueDepth` gauge and the time spent on each
+ * task as the `transfer` timer.
+ */
+class BlobTransferExecutor(
+        metricRegistry: MetricRegistry,
+        val parallelism: Int = DEFAULT_BLOB_TRANSFER_PARALLELISM,
+        val batchSize: Int = DEFAULT_BLOB_TRANSFER_BATCH_SIZE
+) : Closeable {
+    private val executor: ListeningExecutorService = MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(
+                    parallelism,
+                    ThreadFactoryBuilder().setDaemon(true).setNameFormat("blob-transfer-%d").build()
+            )
+    )
+    private val queueDepth = AtomicInteger()
+    private val transferTimer = metricRegistry.timer(MetricRegistry.name(BlobTransferExecutor::class.java, "transfer"))
+
+    init {
+        require(parallelism > 0) { "Blob transfer parallelism must be positive." }
+        require(batchSize > 0) { "Blob transfer batch size must be positive." }
+        metricRegistry.gauge(MetricRegistry.name(BlobTransferExecutor::class.java, "queueDepth")) {
+            Gauge { queueDepth.get() }
+        }
+    }
+
+    /**
+     * Runs [transfer] on a transfer thread.
+     */
+    fun <R> submit(transfer: () -> R): ListenableFuture<R> {
+        queueDepth.incrementAndGet()
+        return executor.submit<R> {
+            queueDepth.decrementAndGet()
+            transferTimer.time().use { transfer() }
+        }
+    }
+
+    /**
+     * Runs [transfer] on every item of [items] individually and completes once all of them have been transferred.
+     */
+    fun <T> forEach(items: Collection<T>, transfer: (T) -> Unit): ListenableFuture<Unit> {
+        return completion(items.map { item -> submit { transfer(item) } })
+    }
+
+    /**
+     * Runs [transfer] on batches of [keys] and returns the union of the results of every batch. Each batch returns the
+     * results of the keys it was given by key, and may leave out keys without a result.
+     */
+    fun <K, R> mapBatches(keys: Collection<K>, transfer: (List<K>) -> Map<K, R>): ListenableFuture<Map<K, R>> {
+        if (keys.isEmpty()) {
+            return Futures.immediateFuture(mapOf())
+        }
+
+        val batches = keys.chunked(batchSize).map { batch -> submit { transfer(batch) } }
+        return Futures.transform(
+                Futures.allAsList(batches),
+                Function<List<Map<K, R>>, Map<K, R>> { results ->
+                    results!!.fold(HashMap<K, R>(keys.size)) { merged, batch -> merged.apply { putAll(batch) } }
+                },
+                MoreExecutors.directExecutor()
+        )
+    }
+
+    /**
+     * Runs [transfer] on batches of [keys] and completes once every batch has been transferred.
+     */
+    fun <K> forEachBatch(keys: Collection<K>, transfer: (List<K>) -> Unit): ListenableFuture<Unit> {
+        return completion(keys.chunked(batchSize).map { batch -> submit { transfer(batch) } })
+    }
+
+    private fun completion(transfers: List<ListenableFuture<Unit>>): ListenableFuture<Unit> {
+        return Futures.transform(
+                Futures.allAsList(transfers),
+                Function<List<Unit>, Unit> { },
+                MoreExecutors.directExecutor()
+        )
+    }
+
+    override fun close() {
+        executor.shutdown()
+    }
+}
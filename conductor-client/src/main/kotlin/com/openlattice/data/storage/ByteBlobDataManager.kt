@@ -1,9 +1,14 @@
 package com.openlattice.data.storage
 
 import com.amazonaws.HttpMethod
+import com.google.common.util.concurrent.ListenableFuture
 import java.net.URL
 import java.util.*
 
+/**
+ * A binary object to be stored under [s3Key].
+ */
+class BlobObject(val s3Key: String, val data: ByteArray, val contentType: String)
 
 interface ByteBlobDataManager {
     fun putObject(s3Key: String, data: ByteArray, contentType: String)
@@ -13,8 +18,21 @@ interface ByteBlobDataManager {
     fun getObjects(keys: Collection<Any>): List<Any>
 
     fun getPresignedUrl(key: Any, expiration: Date, httpMethod: HttpMethod = HttpMethod.GET, contentType: Optional<String>): URL
-  
+
     fun getPresignedUrls(keys: Collection<Any>): List<URL>
-  
+
     fun deleteObjects(s3Keys: List<String>)
-}
\ No newline at end of file
+
+    /*
+     * The async variants below run on a bounded number of transfers and return immediately, so that callers can
+     * overlap object store latency with their own work. Results are returned in the order of the requested keys.
+     */
+
+    fun putObjectsAsync(objects: Collection<BlobObject>): ListenableFuture<Unit>
+
+    fun getObjectsAsync(keys: Collection<Any>): ListenableFuture<List<Any>>
+
+    fun getPresignedUrlsAsync(keys: Collection<Any>): ListenableFuture<List<URL>>
+
+    fun deleteObjectsAsync(s3Keys: List<String>): ListenableFuture<Unit>
+}
@@ -0,0 +1,189 @@
+package com.openlattice.data.storage
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.google.common.eventbus.EventBus
+import com.google.common.util.concurrent.Striped
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import com.openlattice.assembler.events.MaterializedEntitySetDataChangeEvent
+import com.openlattice.data.events.EntitiesDeletedEvent
+import com.openlattice.data.events.EntitiesUpsertedEvent
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * Default time over which writes are coalesced before their entities are loaded and handed to the indexer.
+ */
+const val DEFAULT_INDEXING_WINDOW_MILLIS = 250L
+
+/**
+ * Default number of distinct entities that may be waiting to be indexed before writers are made to wait.
+ */
+const val DEFAULT_MAX_PENDING_INDEXING = 65_536
+
+/**
+ * Maximum number of entities of a single entity set loaded at once when flushing.
+ */
+private const val INDEXING_LOAD_BATCH_SIZE = 1_024
+
+/**
+ * Number of locks entity sets are striped over to order deletes after the flushes of their entity set.
+ */
+private const val FLUSH_LOCK_STRIPES = 64
+
+/**
+ * Coalesces the indexing events of writes over a short window.
+ *
+ * Writers record the entity key ids they wrote with [entitiesWritten] and the entity sets whose data changed with
+ * [entitySetChanged]. Every [windowMillis] the queue loads the latest version of every entity written during the
+ * window with [load], once per entity no matter how many times it was written, and posts the result as
+ * [EntitiesUpsertedEvent]s on [eventBus]. It also posts a single [MaterializedEntitySetDataChangeEvent] per changed
+ * entity set.
+ *
+ * Deletes are posted through [entitiesDeleted], which waits for any flush of the same entity set that is in flight. An
+ * upsert loaded before a delete is therefore always posted before it, so a deleted entity is never reindexed from a
+ * stale load.
+ *
+ * Once [maxPending] distinct entities are waiting, writers block until the next flush, so that indexing can
+ * never fall arbitrarily far behind writes. The number of pending entities is exposed as the `pending` gauge, writes
+ * absorbed by an earlier write of the same entity as the `coalesced` meter, time writers spent blocked as the
+ * `backPressure` timer and the time spent loading and posting as the `flush` timer.
+ */
+class CoalescingIndexingQueue(
+        private val eventBus: EventBus,
+        private val load: (entitySetId: UUID, entityKeyIds: Set<UUID>) -> Map<UUID, Map<UUID, Set<Any>>>,
+        metricRegistry: MetricRegistry,
+        private val windowMillis: Long = DEFAULT_INDEXING_WINDOW_MILLIS,
+        private val maxPending: Int = DEFAULT_MAX_PENDING_INDEXING
+) : Closeable {
+    companion object {
+        private val logger = LoggerFactory.getLogger(CoalescingIndexingQueue::class.java)
+    }
+
+    private val lock = ReentrantLock()
+    private val flushed = lock.newCondition()
+    private val flushLocks = Striped.lock(FLUSH_LOCK_STRIPES)
+
+    private var pendingEntities = mutableMapOf<UUID, MutableSet<UUID>>()
+    private var pendingEntitySets = mutableSetOf<UUID>()
+    private var pendingCount = 0
+
+    private val executor = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder().setDaemon(true).setNameFormat("indexing-queue-%d").build()
+    )
+
+    private val coalesced = metricRegistry.meter(MetricRegistry.name(CoalescingIndexingQueue::class.java, "coalesced"))
+    private val backPressureTimer = metricRegistry.timer(
+            MetricRegistry.name(CoalescingIndexingQueue::class.java, "backPressure")
+    )
+    private val flushTimer = metricRegistry.timer(MetricRegistry.name(CoalescingIndexingQueue::class.java, "flush"))
+
+    init {
+        require(windowMillis > 0) { "Indexing window must be positive." }
+        require(maxPending > 0) { "Maximum number of pending entities must be positive." }
+        metricRegistry.gauge(MetricRegistry.name(CoalescingIndexingQueue::class.java, "pending")) {
+            Gauge { lock.withLock { pendingCount } }
+        }
+        executor.scheduleWithFixedDelay(this::flushSafely, windowMillis, windowMillis, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Records that [entityKeyIds] of [entitySetId] were written and need to be indexed. Blocks while the queue is full.
+     */
+    fun entitiesWritten(entitySetId: UUID, entityKeyIds: Set<UUID>) {
+        lock.withLock {
+            if (pendingCount >= maxPending) {
+                backPressureTimer.time().use {
+                    while (pendingCount >= maxPending) {
+                        flushed.await(windowMillis, TimeUnit.MILLISECONDS)
+                    }
+                }
+            }
+
+            val pending = pendingEntities.getOrPut(entitySetId) { mutableSetOf() }
+            val added = entityKeyIds.count { pending.add(it) }
+            pendingCount += added
+            coalesced.mark((entityKeyIds.size - added).toLong())
+        }
+    }
+
+    /**
+     * Drops any pending indexing of [entityKeyIds] of [entitySetId], since they have been deleted, and posts
+     * [deletedEvent] if there is one. The event is posted once any flush of [entitySetId] in flight has posted its
+     * upserts, so that it is never followed by an upsert of the deleted entities.
+     */
+    fun entitiesDeleted(entitySetId: UUID, entityKeyIds: Set<UUID>, deletedEvent: EntitiesDeletedEvent? = null) {
+        flushLocks.get(entitySetId).withLock {
+            lock.withLock {
+                val pending = pendingEntities[entitySetId]
+                if (pending != null) {
+                    pendingCount -= entityKeyIds.count { pending.remove(it) }
+                }
+            }
+            if (deletedEvent != null) {
+                eventBus.post(deletedEvent)
+            }
+        }
+    }
+
+    /**
+     * Records that the data of [entitySetId] changed, so that materialized views of it are marked as out of date.
+     */
+    fun entitySetChanged(entitySetId: UUID) {
+        lock.withLock {
+            if (!pendingEntitySets.add(entitySetId)) {
+                coalesced.mark()
+            }
+        }
+    }
+
+    /**
+     * Loads and posts everything written since the last flush.
+     */
+    fun flush() {
+        val (entities, entitySets) = lock.withLock {
+            val swapped = pendingEntities to pendingEntitySets
+            pendingEntities = mutableMapOf()
+            pendingEntitySets = mutableSetOf()
+            pendingCount = 0
+            flushed.signalAll()
+            swapped
+        }
+
+        if (entities.isEmpty() && entitySets.isEmpty()) {
+            return
+        }
+
+        flushTimer.time().use {
+            entities.forEach { (entitySetId, entityKeyIds) ->
+                flushLocks.get(entitySetId).withLock {
+                    entityKeyIds.chunked(INDEXING_LOAD_BATCH_SIZE).forEach { chunk ->
+                        val loaded = load(entitySetId, chunk.toSet())
+                        if (loaded.isNotEmpty()) {
+                            eventBus.post(EntitiesUpsertedEvent(entitySetId, loaded))
+                        }
+                    }
+                }
+            }
+            entitySets.forEach { eventBus.post(MaterializedEntitySetDataChangeEvent(it)) }
+        }
+    }
+
+    private fun flushSafely() {
+        try {
+            flush()
+        } catch (ex: Exception) {
+            logger.error("Unable to flush indexing queue. Affected entities will be picked up by background indexing.", ex)
+        }
+    }
+
+    override fun close() {
+        executor.shutdown()
+        flushSafely()
+    }
+}
@@ -1,5 +1,6 @@
 package com.openlattice.data.storage
 
+import com.geekbeast.rhizome.jobs.HazelcastJobService
 import com.google.common.collect.Iterables
 import com.google.common.collect.Sets
 import com.openlattice.IdConstants
@@ -7,6 +8,8 @@ import com.openlattice.auditing.AuditRecordEntitySetsManager
 import com.openlattice.authorization.*
 import com.openlattice.controllers.exceptions.ForbiddenException
 import com.openlattice.data.*
+import com.openlattice.data.jobs.DataDeletionJob
+import com.openlattice.data.jobs.stageEntitiesForDeletion
 import com.openlattice.datastore.services.EdmManager
 import com.openlattice.datastore.services.EntitySetManager
 import com.openlattice.edm.EntitySet
@@ -16,6 +19,7 @@ import com.openlattice.edm.type.PropertyType
 import com.openlattice.graph.core.GraphService
 import com.openlattice.postgres.PostgresMetaDataProperties
 import com.openlattice.postgres.streams.BasePostgresIterable
+import com.zaxxer.hikari.HikariDataSource
 import org.slf4j.LoggerFactory
 import java.util.*
 import java.util.stream.Collectors
@@ -36,6 +40,10 @@ import kotlin.math.max
  * association entity set after the association auth checks are done. This theoretically shouldn't break anything,
  * but at some point we may want to introduce some kind of locking to prevent this behavior.
  *
+ * Deletions of entities along with their neighbors can also be submitted as a DataDeletionJob, which follows the same
+ * steps in bounded chunks and can be resumed if interrupted. The job calls back into this service for every chunk, so
+ * jobs are only submitted once the job stream serializer has been given this service.
+ *
  */
 
 class DataDeletionService(
@@ -45,7 +53,10 @@ class DataDeletionService(
         private val authorizationManager: AuthorizationManager,
         private val aresManager: AuditRecordEntitySetsManager,
         private val eds: EntityDatastore,
-        private val graphService: GraphService
+        private val graphService: GraphService,
+        private val hds: HikariDataSource,
+        private val jobService: HazelcastJobService,
+        private val jobStreamSerializer: DataDeletionManagerDependent<*>
 ) : DataDeletionManager {
 
     companion object {
@@ -134,17 +145,12 @@ class DataDeletionService(
          * 1 - Collect all neighbor entities, organized by EntitySet
          */
 
-        val includeClearedEdges = deleteType == DeleteType.Hard
-
-        val entitySetIdToEntityDataKeys: Map<UUID, Set<UUID>> = dgm
-                .getEdgesConnectedToEntities(entitySetId, entityKeyIds, includeClearedEdges)
-                .filter { edge ->
-                    (edge.dst.entitySetId == entitySetId && filteringNeighborEntitySetIds.contains(edge.src.entitySetId))
-                            || (edge.src.entitySetId == entitySetId && filteringNeighborEntitySetIds.contains(edge.dst.entitySetId))
-                }
-                .flatMap { edge -> setOf(edge.src, edge.dst) }
-                .groupBy { it.entitySetId }
-                .mapValues { it.value.map { it.entityKeyId }.toSet() }
+        val entitySetIdToEntityDataKeys = getNeighborEntityKeyIds(
+                entitySetId,
+                entityKeyIds,
+                filteringNeighborEntitySetIds,
+                deleteType
+        )
 
         /*
         * 2 - Check authorization on all entities
@@ -168,7 +174,8 @@ class DataDeletionService(
             getAuthorizedPropertyTypesOfAssociations(entitySetIdToEntityDataKeys, deleteType, principals)
         } else {
             getAuthorizedPropertyTypesOfAssociations(
-                    mapOf(entitySetId to entityKeyIds) + entitySetIdToEntityDataKeys,
+                    entitySetIdToEntityDataKeys +
+                            (entitySetId to entityKeyIds + entitySetIdToEntityDataKeys.getOrDefault(entitySetId, setOf())),
                     deleteType,
                     principals
             )
@@ -208,7 +215,7 @@ class DataDeletionService(
 
         /* Delete neighbors */
 
-        numUpdates += entitySetIdToEntityDataKeys.entries.stream().parallel().mapToInt { entry ->
+        numUpdates += entitySetIdToEntityDataKeys.entries.sumBy { entry ->
             val neighborEntitySetId = entry.key
             val neighborEntityKeyIds = entry.value
 
@@ -226,11 +233,124 @@ class DataDeletionService(
                     authorizedPropertiesByEntitySets.getValue(neighborEntitySetId))
 
             neighborWriteEvent.numUpdates + associationNumUpdates
-        }.sum()
+        }
 
         return WriteEvent(entityWriteEvent.version, numUpdates)
     }
 
+    override fun submitClearOrDeleteEntitiesAndNeighborsJobIfAuthorized(
+            entitySetId: UUID,
+            entityKeyIds: Set<UUID>,
+            srcEntitySetIds: Set<UUID>,
+            dstEntitySetIds: Set<UUID>,
+            deleteType: DeleteType,
+            principals: Set<Principal>
+    ): UUID {
+        check(jobStreamSerializer.isDataDeletionManagerInitialized()) {
+            "Data deletion jobs cannot be submitted before the job stream serializer is given a data deletion manager."
+        }
+
+        val neighborEntitySetIds = srcEntitySetIds + dstEntitySetIds
+
+        // neighbors are only found while the job runs, so every requested neighbor entity set is checked up front
+        getAuthorizedPropertyTypesForDeleteByEntitySet(
+                setOf(entitySetId) + neighborEntitySetIds,
+                deleteType,
+                Optional.empty(),
+                principals
+        )
+
+        val deletionId = UUID.randomUUID()
+        stageEntitiesForDeletion(hds, deletionId, entitySetId, entityKeyIds)
+
+        return jobService.submitJob(
+                DataDeletionJob(deletionId, entitySetId, neighborEntitySetIds, deleteType, principals)
+        )
+    }
+
+    override fun getNeighborEntityKeyIds(
+            entitySetId: UUID,
+            entityKeyIds: Set<UUID>,
+            neighborEntitySetIds: Set<UUID>,
+            deleteType: DeleteType
+    ): Map<UUID, Set<UUID>> {
+        return dgm
+                .getEdgesConnectedToEntities(entitySetId, entityKeyIds, deleteType == DeleteType.Hard)
+                .mapNotNull { edge ->
+                    when {
+                        edge.dst.entitySetId == entitySetId && neighborEntitySetIds.contains(edge.src.entitySetId) -> edge.src
+                        edge.src.entitySetId == entitySetId && neighborEntitySetIds.contains(edge.dst.entitySetId) -> edge.dst
+                        else -> null
+                    }
+                }
+                .groupBy { it.entitySetId }
+                .mapValues { it.value.map { it.entityKeyId }.toSet() }
+    }
+
+    override fun authorizeAssociationsOfJob(
+            entitySetId: UUID,
+            entityKeyIds: Set<UUID>,
+            deleteType: DeleteType,
+            principals: Set<Principal>,
+            authorizedAssociationEntitySetIds: MutableSet<UUID>
+    ) {
+        // only the edges of association entity sets are deleted, so there are no associations to authorize
+        if (entitySetManager.isAssociationEntitySet(entitySetId)) {
+            return
+        }
+
+        val edgeEntitySetIds = dgm.getEdgeEntitySetsConnectedToEntities(entitySetId, entityKeyIds)
+        getAuthorizedPropertyTypesOfEdgeEntitySets(
+                entitySetId,
+                edgeEntitySetIds - authorizedAssociationEntitySetIds,
+                deleteType,
+                principals,
+                authorizedAssociationEntitySetIds
+        )
+        authorizedAssociationEntitySetIds.addAll(edgeEntitySetIds)
+    }
+
+    override fun clearOrDeleteEntitiesOfJob(
+            entitySetId: UUID,
+            entityKeyIds: Set<UUID>,
+            deleteType: DeleteType,
+            principals: Set<Principal>,
+            authorizedAssociationEntitySetIds: MutableSet<UUID>
+    ): WriteEvent {
+        var numUpdates = 0
+
+        // associations need to be deleted first, because edges are deleted when deleting requested entities
+        if (entitySetManager.isAssociationEntitySet(entitySetId)) {
+            deleteEdgesForAssociationEntitySet(entitySetId, Optional.of(entityKeyIds), deleteType)
+        } else {
+            val edgeEntitySetIds = dgm.getEdgeEntitySetsConnectedToEntities(entitySetId, entityKeyIds)
+            val authorizedAssociationPropertyTypes = getAuthorizedPropertyTypesOfEdgeEntitySets(
+                    entitySetId,
+                    edgeEntitySetIds,
+                    deleteType,
+                    principals,
+                    authorizedAssociationEntitySetIds
+            )
+            authorizedAssociationEntitySetIds.addAll(edgeEntitySetIds)
+
+            numUpdates += clearOrDeleteAuthorizedAssociations(
+                    entitySetId,
+                    Optional.of(entityKeyIds),
+                    deleteType,
+                    authorizedAssociationPropertyTypes
+            )
+        }
+
+        val writeEvent = clearOrDeleteAuthorizedEntities(
+                entitySetId,
+                entityKeyIds,
+                deleteType,
+                entitySetManager.getPropertyTypesForEntitySet(entitySetId)
+        )
+
+        return WriteEvent(writeEvent.version, writeEvent.numUpdates + numUpdates)
+    }
+
     /**
      * Deletes specific entities from an entity set. If skipAuthChecks is set to true, it will not check if entity set
      * is an audit entity set or not nor whether the requesting principals are authorized to delete from entity set.
@@ -439,12 +559,41 @@ class DataDeletionService(
             dgm.getEdgeEntitySetsConnectedToEntitySet(entitySetId)
         }
 
+        return getAuthorizedPropertyTypesOfEdgeEntitySets(
+                entitySetId,
+                edgeEntitySetIds,
+                deleteType,
+                principals,
+                setOf(),
+                skipAuthChecks
+        )
+    }
+
+    /**
+     * Authorizes deleting from the association entity sets in [edgeEntitySetIds], except for those in
+     * [authorizedEdgeEntitySetIds], and returns their property types.
+     */
+    private fun getAuthorizedPropertyTypesOfEdgeEntitySets(
+            entitySetId: UUID,
+            edgeEntitySetIds: Set<UUID>,
+            deleteType: DeleteType,
+            principals: Set<Principal>,
+            authorizedEdgeEntitySetIds: Set<UUID>,
+            skipAuthChecks: Boolean = false
+    ): Map<UUID, Map<UUID, PropertyType>> {
+
         val edgeEntitySets = entitySetManager.getEntitySetsAsMap(edgeEntitySetIds).values
         val nonAuditEdgeEntitySets = edgeEntitySets.filter { !it.flags.contains(EntitySetFlag.AUDIT) }
         val entityTypesById = edmService.getEntityTypesAsMap(edgeEntitySets.map { it.entityTypeId }.toSet())
 
         if (!skipAuthChecks) {
-            authorizeAssociations(entitySetId, nonAuditEdgeEntitySets, entityTypesById, deleteType, principals)
+            authorizeAssociations(
+                    entitySetId,
+                    nonAuditEdgeEntitySets.filter { !authorizedEdgeEntitySetIds.contains(it.id) },
+                    entityTypesById,
+                    deleteType,
+                    principals
+            )
         }
 
         /* Authorizations successful. Return map from entity set ids to property types */
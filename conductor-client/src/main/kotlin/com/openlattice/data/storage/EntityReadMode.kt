@@ -0,0 +1,14 @@
+package com.openlattice.data.storage
+
+/**
+ * Controls how entity data is read from the data table.
+ *
+ * [JSON] aggregates property values into a jsonb document per entity that is parsed on the JVM.
+ * [COLUMNAR] selects property values as arrays per value column and assembles entities without building or parsing a
+ * jsonb document per entity. Both modes return equal values: temporal values are read as the same strings and numbers
+ * and ids are converted to the types the json path produces. Bulk reindexing reads partitions in this mode.
+ */
+enum class EntityReadMode {
+    JSON,
+    COLUMNAR
+}
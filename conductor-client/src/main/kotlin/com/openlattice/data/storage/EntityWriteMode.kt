@@ -0,0 +1,13 @@
+package com.openlattice.data.storage
+
+/**
+ * Controls how property values are written to the data table when upserting entities.
+ *
+ * [BATCH] binds every property value into a JDBC batch of single row upserts.
+ * [COPY] streams property values into a staging table with binary COPY and merges them with one set based upsert per
+ * partition. It has more fixed overhead per partition and is intended for large batches.
+ */
+enum class EntityWriteMode {
+    BATCH,
+    COPY
+}
@@ -5,6 +5,7 @@ import com.openlattice.data.storage.partitions.PartitionManager
 import com.openlattice.data.storage.partitions.getPartition
 import com.openlattice.postgres.DataTables.LAST_INDEX
 import com.openlattice.postgres.DataTables.LAST_LINK
+import com.openlattice.postgres.DataTables.LAST_WRITE
 import com.openlattice.postgres.PostgresArrays
 import com.openlattice.postgres.PostgresColumn.*
 import com.openlattice.postgres.PostgresTable.IDS
@@ -25,9 +26,7 @@ class IndexingMetadataManager(private val hds: HikariDataSource, private val par
     fun markAsIndexed(
             entityKeyIdsWithLastWrite: Map<UUID, Map<UUID, OffsetDateTime>> // entity_set_id -> id -> last_write
     ): Int {
-        val entitySetPartitions = partitionManager
-                .getPartitionsByEntitySetId(entityKeyIdsWithLastWrite.keys)
-                .mapValues { it.value.toList() }
+        val entitySetPartitions = partitionManager.getPartitionArraysByEntitySetId(entityKeyIdsWithLastWrite.keys)
         return hds.connection.use { connection ->
             val ps = connection.prepareStatement(updateLastIndexSql)
             entityKeyIdsWithLastWrite.map { (entitySetId, entities) ->
@@ -50,6 +49,28 @@ class IndexingMetadataManager(private val hds: HikariDataSource, private val par
 
     }
 
+    /**
+     * Marks a chunk of entities in a single partition as indexed with a single statement, by setting last_index to the
+     * last_write they were indexed at. Entities written again since then are left as they are, so that they are
+     * indexed again.
+     * @param lastWrites Map of id to the last_write it was indexed at.
+     */
+    fun markChunkAsIndexed(entitySetId: UUID, partition: Int, lastWrites: Map<UUID, OffsetDateTime>): Int {
+        if (lastWrites.isEmpty()) {
+            return 0
+        }
+
+        return hds.connection.use { connection ->
+            connection.prepareStatement(updateChunkLastIndexSql).use { ps ->
+                ps.setArray(1, PostgresArrays.createUuidArray(connection, lastWrites.keys))
+                ps.setArray(2, PostgresArrays.createTextArray(connection, lastWrites.values.map { it.toString() }))
+                ps.setObject(3, entitySetId)
+                ps.setInt(4, partition)
+                ps.executeUpdate()
+            }
+        }
+    }
+
     /**
      * Marks linking entities as indexed by setting last_index = last_write.
      * @param linkingIdsWithLastWrite Map of (normal) entity_set_id to origin id to linking_id to last_write.
@@ -59,9 +80,7 @@ class IndexingMetadataManager(private val hds: HikariDataSource, private val par
     fun markLinkingEntitiesAsIndexed(
             linkingIdsWithLastWrite: Map<UUID, Map<UUID, Map<UUID, OffsetDateTime>>>
     ): Int {
-        val entitySetPartitions = partitionManager
-                .getPartitionsByEntitySetId(linkingIdsWithLastWrite.keys)
-                .mapValues { it.value.toList() }
+        val entitySetPartitions = partitionManager.getPartitionArraysByEntitySetId(linkingIdsWithLastWrite.keys)
 
         return hds.connection.use { connection ->
             val ps = connection.prepareStatement(updateLastLinkingIndexSql)
@@ -262,6 +281,22 @@ private val entitySetPartition =
  */
 private val updateLastIndexSql = "UPDATE ${IDS.name} SET ${LAST_INDEX.name} = ? WHERE $entityKeyIdInEntitySet"
 
+/**
+ * Arguments of preparable sql in order:
+ * 1. entity key ids (uuid array)
+ * 2. last writes, in the order of the entity key ids (text array)
+ * 3. entity set id
+ * 4. partition
+ */
+private val updateChunkLastIndexSql = """
+    UPDATE ${IDS.name} SET ${LAST_INDEX.name} = indexed.${LAST_WRITE.name}
+    FROM unnest(?::uuid[], ?::text[]::timestamptz[]) AS indexed(${ID.name}, ${LAST_WRITE.name})
+    WHERE ${IDS.name}.${ENTITY_SET_ID.name} = ?
+      AND ${IDS.name}.${PARTITION.name} = ?
+      AND ${IDS.name}.${ID.name} = indexed.${ID.name}
+      AND ${IDS.name}.${LAST_WRITE.name} <= indexed.${LAST_WRITE.name}
+""".trimIndent()
+
 /**
  * Arguments of preparable sql in order:
  * 1. last linking index
@@ -1,29 +1,91 @@
 package com.openlattice.data.storage
 
 import com.amazonaws.HttpMethod
+import com.google.common.base.Function
+import com.google.common.util.concurrent.Futures
+import com.google.common.util.concurrent.ListenableFuture
+import com.google.common.util.concurrent.MoreExecutors
+import com.openlattice.postgres.PostgresArrays
 import com.openlattice.postgres.PostgresColumnDefinition
 import com.openlattice.postgres.PostgresDatatype
 import com.openlattice.postgres.PostgresTableDefinition
 import com.zaxxer.hikari.HikariDataSource
+import org.postgresql.PGConnection
+import org.postgresql.largeobject.LargeObjectManager
 import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Service
+import java.io.DataInputStream
 import java.net.URL
+import java.sql.Connection
+import java.sql.Types
 import java.util.*
 
 private val logger = LoggerFactory.getLogger(LocalBlobDataService::class.java)
 
+/**
+ * Objects larger than this are stored through the large object API instead of inline in the `object` column.
+ */
+const val LOCAL_BLOB_LARGE_OBJECT_THRESHOLD = 8 * 1024 * 1024
+
+private const val LARGE_OBJECT_BUFFER_SIZE = 65_536
+
+private val KEY = PostgresColumnDefinition("key", PostgresDatatype.TEXT)
+private val OBJECT = PostgresColumnDefinition("object", PostgresDatatype.BYTEA)
+private val LARGE_OBJECT = PostgresColumnDefinition("large_object", PostgresDatatype.BIGINT)
+
 private val TABLE = PostgresTableDefinition("mock_s3_bucket")
-        .addColumns(
-                PostgresColumnDefinition("key", PostgresDatatype.TEXT),
-                PostgresColumnDefinition("object", PostgresDatatype.BYTEA)
-        ).primaryKey(PostgresColumnDefinition("key", PostgresDatatype.TEXT))
+        .addColumns(KEY, OBJECT, LARGE_OBJECT)
+        .primaryKey(KEY)
+
+/**
+ * Adds the large object column to buckets created before it existed.
+ */
+private val ADD_LARGE_OBJECT_COLUMN_SQL =
+        "ALTER TABLE ${TABLE.name} ADD COLUMN IF NOT EXISTS ${LARGE_OBJECT.sql()}"
+
+/**
+ * Stores an object, replacing any object already stored under its key as a put to S3 would. Exactly one of the inline
+ * and large object columns is set.
+ */
+private val UPSERT_OBJECT_SQL = """
+    INSERT INTO ${TABLE.name} (${KEY.name}, ${OBJECT.name}, ${LARGE_OBJECT.name}) VALUES (?, ?, ?)
+    ON CONFLICT (${KEY.name}) DO UPDATE
+    SET ${OBJECT.name} = EXCLUDED.${OBJECT.name}, ${LARGE_OBJECT.name} = EXCLUDED.${LARGE_OBJECT.name}
+""".trimIndent()
 
+private val SELECT_OBJECTS_SQL = """
+    SELECT ${KEY.name}, ${OBJECT.name}, ${LARGE_OBJECT.name} FROM ${TABLE.name} WHERE ${KEY.name} = ANY(?)
+""".trimIndent()
+
+/**
+ * Unlinks the large objects stored under a set of keys. It must run in the same transaction as the statement that
+ * replaces or deletes the rows referencing them.
+ */
+private val UNLINK_LARGE_OBJECTS_SQL = """
+    SELECT lo_unlink(${LARGE_OBJECT.name}::oid) FROM ${TABLE.name}
+    WHERE ${KEY.name} = ANY(?) AND ${LARGE_OBJECT.name} IS NOT NULL
+""".trimIndent()
+
+private val DELETE_OBJECTS_SQL = "DELETE FROM ${TABLE.name} WHERE ${KEY.name} = ANY(?)"
+
+/**
+ * Postgres backed stand-in for the object store, used by on-prem and test deployments.
+ *
+ * Every call uses a single connection and prepared statements: puts are written as one batched upsert, and reads and
+ * deletes bind all of their keys as a single array parameter. Objects up to [LOCAL_BLOB_LARGE_OBJECT_THRESHOLD] bytes
+ * are stored inline as `bytea`; larger objects are streamed in and out through the large object API, so that they are
+ * never escaped or detoasted as a single value.
+ */
 @Service
-class LocalBlobDataService(private val hds: HikariDataSource) : ByteBlobDataManager {
+class LocalBlobDataService(
+        private val hds: HikariDataSource,
+        private val transferExecutor: BlobTransferExecutor
+) : ByteBlobDataManager {
     init {
         hds.connection.use { conn ->
             conn.createStatement().use { stmt ->
                 stmt.execute(TABLE.createTableQuery())
+                stmt.execute(ADD_LARGE_OBJECT_COLUMN_SQL)
             }
         }
     }
@@ -39,63 +101,157 @@ class LocalBlobDataService(private val hds: HikariDataSource) : ByteBlobDataMana
     }
 
     override fun putObject(s3Key: String, data: ByteArray, contentType: String) {
-        insertEntity(s3Key, data)
+        putObjects(listOf(BlobObject(s3Key, data, contentType)))
     }
 
     override fun deleteObject(s3Key: String) {
-        deleteEntity(s3Key)
+        deleteObjects(listOf(s3Key))
     }
 
     override fun deleteObjects(s3Keys: List<String>) {
-        s3Keys.forEach { deleteEntity(it) }
+        if (s3Keys.isEmpty()) {
+            return
+        }
+
+        inTransaction { connection ->
+            val keys = PostgresArrays.createTextArray(connection, s3Keys)
+            connection.prepareStatement(UNLINK_LARGE_OBJECTS_SQL).use { ps ->
+                ps.setArray(1, keys)
+                ps.executeQuery().close()
+            }
+            connection.prepareStatement(DELETE_OBJECTS_SQL).use { ps ->
+                ps.setArray(1, keys)
+                ps.executeUpdate()
+            }
+        }
     }
 
+    /**
+     * Returns the objects stored under [keys], in the order of [keys]. Keys without an object are skipped.
+     */
     override fun getObjects(keys: Collection<Any>): List<Any> {
-        return getEntities(keys)
-    }
-
-    fun insertEntity(s3Key: String, value: ByteArray) {
-        val connection = hds.connection
-        val preparedStatement = connection.prepareStatement(insertEntitySql())
-        preparedStatement.setString(1, s3Key)
-        preparedStatement.setBytes(2, value)
-        preparedStatement.execute()
-        preparedStatement.close()
-        connection.close()
-    }
-
-    fun deleteEntity(s3Key: String) {
-        val connection = hds.connection
-        val preparedStatement = connection.prepareStatement(deleteEntitySql(s3Key))
-        preparedStatement.executeUpdate()
-        preparedStatement.close()
-        connection.close()
-    }
-
-    fun getEntities(keys: Collection<Any>): List<ByteArray> {
-        val entities = mutableListOf<ByteArray>()
-        val connection = hds.connection
-        connection.use {
-            for (key in keys) {
-                val ps = connection.prepareStatement(selectEntitySql(key as String))
-                val rs = ps.executeQuery()
-                while (rs.next()) {
-                    entities.add(rs.getBytes(1))
+        val objects = getObjectsByKey(keys)
+        return keys.mapNotNull { objects[it] }
+    }
+
+    /**
+     * Returns the objects stored under [keys] by key. Keys without an object are left out.
+     */
+    private fun getObjectsByKey(keys: Collection<Any>): Map<Any, ByteArray> {
+        if (keys.isEmpty()) {
+            return mapOf()
+        }
+
+        return inTransaction { connection ->
+            val largeObjects by lazy { connection.unwrap(PGConnection::class.java).largeObjectAPI }
+            connection.prepareStatement(SELECT_OBJECTS_SQL).use { ps ->
+                ps.setArray(1, PostgresArrays.createTextArray(connection, keys.map { it as String }))
+                ps.executeQuery().use { rs ->
+                    val objects = HashMap<Any, ByteArray>(keys.size)
+                    while (rs.next()) {
+                        val largeObject = rs.getLong(LARGE_OBJECT.name)
+                        objects[rs.getString(KEY.name)] = if (rs.wasNull()) {
+                            rs.getBytes(OBJECT.name)
+                        } else {
+                            readLargeObject(largeObjects, largeObject)
+                        }
+                    }
+                    objects
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores [objects] with a single batched upsert, replacing the objects already stored under their keys. If a key
+     * appears more than once, the last object stored under it wins.
+     */
+    fun putObjects(objects: Collection<BlobObject>) {
+        if (objects.isEmpty()) {
+            return
+        }
+        val objectsByKey = objects.associateBy { it.s3Key }
+
+        inTransaction { connection ->
+            val largeObjects by lazy { connection.unwrap(PGConnection::class.java).largeObjectAPI }
+
+            connection.prepareStatement(UNLINK_LARGE_OBJECTS_SQL).use { ps ->
+                ps.setArray(1, PostgresArrays.createTextArray(connection, objectsByKey.keys))
+                ps.executeQuery().close()
+            }
+
+            connection.prepareStatement(UPSERT_OBJECT_SQL).use { ps ->
+                objectsByKey.values.forEach { blob ->
+                    ps.setString(1, blob.s3Key)
+                    if (blob.data.size > LOCAL_BLOB_LARGE_OBJECT_THRESHOLD) {
+                        ps.setNull(2, Types.BINARY)
+                        ps.setLong(3, writeLargeObject(largeObjects, blob.data))
+                    } else {
+                        ps.setBytes(2, blob.data)
+                        ps.setNull(3, Types.BIGINT)
+                    }
+                    ps.addBatch()
                 }
+                ps.executeBatch()
             }
         }
-        return entities
     }
 
-    fun insertEntitySql(): String {
-        return "INSERT INTO mock_s3_bucket(key, object) VALUES(?, ?)"
+    override fun putObjectsAsync(objects: Collection<BlobObject>): ListenableFuture<Unit> {
+        return transferExecutor.forEachBatch(objects) { putObjects(it) }
+    }
+
+    override fun getObjectsAsync(keys: Collection<Any>): ListenableFuture<List<Any>> {
+        return Futures.transform(
+                transferExecutor.mapBatches(keys) { getObjectsByKey(it) },
+                Function<Map<Any, ByteArray>, List<Any>> { objects -> keys.mapNotNull { objects!![it] } },
+                MoreExecutors.directExecutor()
+        )
     }
 
-    fun deleteEntitySql(s3Key: String): String {
-        return "DELETE FROM mock_s3_bucket WHERE key = '$s3Key'"
+    override fun getPresignedUrlsAsync(keys: Collection<Any>): ListenableFuture<List<URL>> {
+        return Futures.immediateFailedFuture(UnsupportedOperationException())
     }
 
-    fun selectEntitySql(s3Key: String): String {
-        return "SELECT \"object\" FROM mock_s3_bucket WHERE key = '$s3Key'"
+    override fun deleteObjectsAsync(s3Keys: List<String>): ListenableFuture<Unit> {
+        return transferExecutor.forEachBatch(s3Keys) { deleteObjects(it) }
+    }
+
+    /*
+     * Closing the streams of a large object also closes the large object.
+     */
+
+    private fun writeLargeObject(largeObjects: LargeObjectManager, data: ByteArray): Long {
+        val oid = largeObjects.createLO(LargeObjectManager.READWRITE)
+        val largeObject = largeObjects.open(oid, LargeObjectManager.WRITE)
+        largeObject.outputStream.buffered(LARGE_OBJECT_BUFFER_SIZE).use { it.write(data) }
+        return oid
+    }
+
+    private fun readLargeObject(largeObjects: LargeObjectManager, oid: Long): ByteArray {
+        val largeObject = largeObjects.open(oid, LargeObjectManager.READ)
+        val data = ByteArray(Math.toIntExact(largeObject.size64()))
+        DataInputStream(largeObject.inputStream.buffered(LARGE_OBJECT_BUFFER_SIZE)).use { it.readFully(data) }
+        return data
+    }
+
+    /*
+     * Large objects can only be used inside of a transaction, so every call runs in one.
+     */
+    private fun <T> inTransaction(operation: (Connection) -> T): T {
+        return hds.connection.use { connection ->
+            connection.autoCommit = false
+            try {
+                val result = operation(connection)
+                connection.commit()
+                result
+            } catch (ex: Exception) {
+                logger.error("Unable to access the local blob store.", ex)
+                connection.rollback()
+                throw ex
+            } finally {
+                connection.autoCommit = true
+            }
+        }
     }
-}
\ No newline at end of file
+}
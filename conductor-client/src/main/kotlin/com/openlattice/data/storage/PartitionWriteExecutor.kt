@@ -0,0 +1,99 @@
+package com.openlattice.data.storage
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import java.io.Closeable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Default number of partitions written concurrently. It is kept well below the default hikari pool size, since every
+ * concurrent partition write holds its own connection for the duration of its transaction.
+ */
+val DEFAULT_PARTITION_WRITE_PARALLELISM = Math.min(Runtime.getRuntime().availableProcessors(), 8)
+
+/**
+ * Fans out per-partition write batches to a bounded pool of writer threads.
+ *
+ * Each batch is executed as a single task, so the order of statements within a partition is preserved, as is any
+ * sorted locking order used by the batch itself. Batches for different partitions touch disjoint rows and are
+ * committed in separate transactions, so running them concurrently cannot deadlock against each other.
+ *
+ * The number of batches waiting for a writer thread is exposed as the `queueDepth` gauge and the time spent writing
+ * each partition as the `partitionWrite` timer, which together can be used to tune [parallelism] against the size of
+ * the connection pool.
+ *
+ * A single instance is meant to be shared by every writer in the process, so that [parallelism] bounds the number of
+ * connections held by concurrent partition writes overall.
+ */
+class PartitionWriteExecutor(
+        metricRegistry: MetricRegistry,
+        val parallelism: Int = DEFAULT_PARTITION_WRITE_PARALLELISM
+) : Closeable {
+    private val executor = Executors.newFixedThreadPool(
+            parallelism,
+            ThreadFactoryBuilder().setDaemon(true).setNameFormat("partition-writer-%d").build()
+    )
+    private val queueDepth = AtomicInteger()
+    private val partitionWriteTimer = metricRegistry.timer(
+            MetricRegistry.name(PartitionWriteExecutor::class.java, "partitionWrite")
+    )
+
+    init {
+        require(parallelism > 0) { "Partition write parallelism must be positive." }
+        metricRegistry.gauge(MetricRegistry.name(PartitionWriteExecutor::class.java, "queueDepth")) {
+            Gauge { queueDepth.get() }
+        }
+    }
+
+    /**
+     * Writes every batch by calling [write] on it and returns the results keyed by partition. A single batch is written
+     * on the calling thread.
+     *
+     * If any batch fails, the remaining batches are still allowed to finish, since each one commits independently, and
+     * the first failure is rethrown.
+     */
+    fun <T, R> execute(batches: Map<Int, T>, write: (partition: Int, batch: T) -> R): Map<Int, R> {
+        if (batches.size <= 1) {
+            return batches.mapValues { (partition, batch) -> timed { write(partition, batch) } }
+        }
+
+        val futures: Map<Int, Future<R>> = batches.mapValues { (partition, batch) ->
+            queueDepth.incrementAndGet()
+            executor.submit<R> {
+                queueDepth.decrementAndGet()
+                timed { write(partition, batch) }
+            }
+        }
+
+        var failure: Throwable? = null
+        val results = futures.mapNotNull { (partition, future) ->
+            try {
+                partition to future.get()
+            } catch (ex: ExecutionException) {
+                failure = failure ?: ex.cause ?: ex
+                null
+            }
+        }.toMap()
+
+        failure?.let { throw it }
+
+        return results
+    }
+
+    private inline fun <R> timed(write: () -> R): R {
+        val context = partitionWriteTimer.time()
+        try {
+            return write()
+        } finally {
+            context.stop()
+        }
+    }
+
+    override fun close() {
+        executor.shutdown()
+    }
+}
@@ -99,6 +99,65 @@ fun buildPreparableFiltersSql(
     return sql to filtersClauses.second
 }
 
+/**
+ * Builds a preparable SQL query for reading filterable data as native arrays instead of jsonb.
+ *
+ * Each row is a single entity. For every value column used by [propertyTypes] two parallel arrays are selected: the
+ * property type ids (named with [getColumnarPropertyTypeIdsColumnName]) and the values themselves (named after the value
+ * column). Only [MetadataOption.LAST_WRITE] is supported as a metadata option.
+ *
+ * @return A preparable sql query to read the data to a ordered set of [SqlBinder] objects. The bind order is the same
+ * as for [buildPreparableFiltersSql]:
+ * 1. entity set ids (array)
+ * 2. entity key ids (array)
+ * 3. partition(s) (array)
+ */
+fun buildPreparableColumnarFiltersSql(
+        startIndex: Int,
+        propertyTypes: Map<UUID, PropertyType>,
+        propertyTypeFilters: Map<UUID, Set<Filter>>,
+        metadataOptions: Set<MetadataOption>,
+        linking: Boolean,
+        idsPresent: Boolean,
+        partitionsPresent: Boolean
+): Pair<String, Set<SqlBinder>> {
+    val filtersClauses = buildPreparableFiltersClause(startIndex, propertyTypes, propertyTypeFilters)
+    val filtersClause = if (filtersClauses.first.isNotEmpty()) " AND ${filtersClauses.first} " else ""
+    val linkingClause = if (linking) " AND ${ORIGIN_ID.name} != '${IdConstants.EMPTY_ORIGIN_ID.id}' " else ""
+    val idColumn = if (linking) ORIGIN_ID.name else ID_VALUE.name
+
+    val metadataOptionsSql = metadataOptions.joinToString("") { mapMetaDataToSelector(it) }
+    val valueColumnsSql = getColumnarValueColumns(propertyTypes.values).keys.joinToString("") {
+        ",array_agg(${PROPERTY_TYPE_ID.name}) FILTER (WHERE $it IS NOT NULL) AS ${getColumnarPropertyTypeIdsColumnName(it)}" +
+                ",array_agg($it) FILTER (WHERE $it IS NOT NULL) AS $it"
+    }
+
+    val sql = "SELECT ${ENTITY_SET_ID.name},$idColumn as ${ID_VALUE.name},${PARTITION.name}$metadataOptionsSql$valueColumnsSql " +
+            "FROM ${DATA.name} ${optionalWhereClauses(idsPresent, partitionsPresent, true, linking)}" +
+            linkingClause + filtersClause +
+            groupBy("${ENTITY_SET_ID.name},$idColumn,${PARTITION.name}")
+
+    return sql to filtersClauses.second
+}
+
+/**
+ * Returns the distinct value columns of the [DATA] table that store values for the provided property types, with the
+ * datatype of the values they store.
+ */
+fun getColumnarValueColumns(propertyTypes: Collection<PropertyType>): Map<String, PostgresDatatype> {
+    return propertyTypes.associateTo(linkedMapOf()) {
+        getSourceDataColumnName(it) to PostgresEdmTypeConverter.map(it.datatype)
+    }
+}
+
+/**
+ * Returns the name of the column holding the property type ids for the values selected from [valueColumn] by
+ * [buildPreparableColumnarFiltersSql].
+ */
+fun getColumnarPropertyTypeIdsColumnName(valueColumn: String): String {
+    return "${valueColumn}_${PROPERTY_TYPE_ID.name}s"
+}
+
 internal fun selectEntitiesGroupedByIdAndPropertyTypeId(
         metadataOptions: Set<MetadataOption>,
         idsPresent: Boolean = true,
@@ -338,7 +397,8 @@ val lockLinkedEntitiesInIdsTable =
 /**
  * Preparable sql to upsert entities in [IDS] table.
  *
- * It sets a positive version and updates last write to current time.
+ * It sets a positive version and updates last write to current time. It returns the number of updated entities and
+ * the change in the number of visible entities (see [updateIdsCountingVisibleEntities]).
  *
  * The bind order is the following:
  *
@@ -355,14 +415,15 @@ val lockLinkedEntitiesInIdsTable =
  * 6 - partition
  */
 // @formatter:off
-val upsertEntitiesSql = "UPDATE ${IDS.name} " +
-        "SET ${VERSIONS.name} = ${VERSIONS.name} || ?, " +
+val upsertEntitiesSql = updateIdsCountingVisibleEntities(
+        "${VERSIONS.name} = ${VERSIONS.name} || ?, " +
             "${LAST_WRITE.name} = now(), " +
             "${VERSION.name} = CASE " +
                 "WHEN abs(${IDS.name}.${VERSION.name}) <= abs(?) THEN ? " +
                 "ELSE ${IDS.name}.${VERSION.name} " +
-            "END " +
-        "WHERE ${ENTITY_SET_ID.name} = ? AND ${ID_VALUE.name} = ANY(?) AND ${PARTITION.name} = ? "
+            "END ",
+        "${ENTITY_SET_ID.name} = ? AND ${ID_VALUE.name} = ANY(?) AND ${PARTITION.name} = ? "
+)
 // @formatter:on
 
 /**
@@ -395,9 +456,29 @@ val updateEntitySql = "UPDATE ${IDS.name} " +
         "WHERE ${ENTITY_SET_ID.name} = ? AND ${ID_VALUE.name} = ? AND ${PARTITION.name} = ? "
 // @formatter:on
 
+// @formatter:off
+private val updateVersions =
+        "${VERSIONS.name} = ${VERSIONS.name} || ARRAY[?], " +
+        "${VERSION.name} = " +
+            "CASE " +
+                "WHEN abs(${IDS.name}.${VERSION.name}) <= abs(?) " +
+                "THEN ? " +
+                "ELSE ${IDS.name}.${VERSION.name} " +
+            "END, " +
+        "${LAST_WRITE.name} = 'now()' "
+
+private val inEntitySetPartition = "${ENTITY_SET_ID.name} = ? AND ${PARTITION.name} = ? "
+
+private val zeroVersions =
+        "${VERSIONS.name} = ${VERSIONS.name} || ARRAY[0]::bigint[], " +
+        "${VERSION.name} = 0, " +
+        "${LAST_WRITE.name} = 'now()' "
+// @formatter:on
+
 /**
  * Preparable SQL that upserts a version and sets last write to current datetime for all entities in a given entity set
- * in [IDS] table.
+ * in [IDS] table. It returns the number of updated entities and the change in the number of visible entities (see
+ * [updateIdsCountingVisibleEntities]).
  *
  * The following bind order is expected:
  *
@@ -407,23 +488,12 @@ val updateEntitySql = "UPDATE ${IDS.name} " +
  * 4. entity set id
  * 5. partition
  */
-// @formatter:off
-internal val updateVersionsForEntitySet = "UPDATE ${IDS.name} " +
-        "SET " +
-            "${VERSIONS.name} = ${VERSIONS.name} || ARRAY[?], " +
-            "${VERSION.name} = " +
-                "CASE " +
-                    "WHEN abs(${IDS.name}.${VERSION.name}) <= abs(?) " +
-                    "THEN ? " +
-                    "ELSE ${IDS.name}.${VERSION.name} " +
-                "END, " +
-            "${LAST_WRITE.name} = 'now()' " +
-        "WHERE ${ENTITY_SET_ID.name} = ? " +
-        "AND ${PARTITION.name} = ? "
-// @formatter:on
+internal val updateVersionsForEntitySet = updateIdsCountingVisibleEntities(updateVersions, inEntitySetPartition)
+
 /**
  * Preparable SQL that upserts a version and sets last write to current datetime for all entities in a given entity set
- * in [IDS] table.
+ * in [IDS] table. It returns the number of updated entities and the change in the number of visible entities (see
+ * [updateIdsCountingVisibleEntities]).
  *
  * The following bind order is expected:
  *
@@ -434,33 +504,28 @@ internal val updateVersionsForEntitySet = "UPDATE ${IDS.name} " +
  * 5. partition
  * 6. entity key ids (uuid array)
  */
-internal val updateVersionsForEntitiesInEntitySet = "$updateVersionsForEntitySet " +
-        "AND ${ID_VALUE.name} = ANY(?) "
+internal val updateVersionsForEntitiesInEntitySet = updateIdsCountingVisibleEntities(
+        updateVersions,
+        "$inEntitySetPartition AND ${ID_VALUE.name} = ANY(?) "
+)
 
 /**
  * Preparable SQL that zeroes out the version and sets last write to current datetime for all entities in a given
- * entity set in [IDS] table.
+ * entity set in [IDS] table. It returns the number of updated entities and the change in the number of visible
+ * entities (see [updateIdsCountingVisibleEntities]).
  *
  * The following bind order is expected:
  *
  * 1. entity set id
  * 2. partition
  */
-// @formatter:off
-internal val zeroVersionsForEntitySet = "UPDATE ${IDS.name} " +
-        "SET " +
-            "${VERSIONS.name} = ${VERSIONS.name} || ARRAY[0]::bigint[], " +
-            "${VERSION.name} = 0, " +
-            "${LAST_WRITE.name} = 'now()' " +
-        "WHERE " +
-            "${ENTITY_SET_ID.name} = ? AND " +
-            "${PARTITION.name} = ? "
-// @formatter:on
+internal val zeroVersionsForEntitySet = updateIdsCountingVisibleEntities(zeroVersions, inEntitySetPartition)
 
 
 /**
  * Preparable SQL that zeroes out the version and sets last write to current datetime for all entities in a given
- * entity set in [IDS] table.
+ * entity set in [IDS] table. It returns the number of updated entities and the change in the number of visible
+ * entities (see [updateIdsCountingVisibleEntities]).
  *
  * The following bind order is expected:
  *
@@ -468,7 +533,10 @@ internal val zeroVersionsForEntitySet = "UPDATE ${IDS.name} " +
  * 2. partition
  * 3. id (uuid array)
  */
-internal val zeroVersionsForEntitiesInEntitySet = "$zeroVersionsForEntitySet AND ${ID.name} = ANY(?) "
+internal val zeroVersionsForEntitiesInEntitySet = updateIdsCountingVisibleEntities(
+        zeroVersions,
+        "$inEntitySetPartition AND ${ID.name} = ANY(?) "
+)
 
 /**
  * Preparable SQL that updates a version and sets last write to current datetime for all properties in a given entity
@@ -636,7 +704,8 @@ internal val deleteEntitiesInEntitySet =
 
 
 /**
- * Preparable SQL deletes all entities in a given entity set in [IDS]
+ * Preparable SQL deletes all entities in a given entity set in [IDS]. It returns the number of deleted entities and the
+ * change in the number of visible entities (see [deleteIdsCountingVisibleEntities]).
  *
  * The following bind order is expected:
  *
@@ -644,12 +713,9 @@ internal val deleteEntitiesInEntitySet =
  * 2. entity key ids
  * 3. partition
  */
-// @formatter:off
-internal val deleteEntityKeys =
-        "$deleteEntitySetEntityKeys AND " +
-            "${ID.name} = ANY(?) AND " +
-            "${PARTITION.name} = ? "
-// @formatter:on
+internal val deleteEntityKeys = deleteIdsCountingVisibleEntities(
+        "${ENTITY_SET_ID.name} = ? AND ${ID.name} = ANY(?) AND ${PARTITION.name} = ? "
+)
 
 /**
  * Selects a text properties from entity sets with the following bind order:
@@ -740,16 +806,69 @@ fun upsertPropertyValueSql(propertyType: PropertyType): String {
 
     return "INSERT INTO ${DATA.name} ($metadataColumnsSql,${insertColumn.name}) " +
             "VALUES (?,?,?,?,?,now(),?,?,?) " +
-            "ON CONFLICT ($primaryKeyColumnNamesAsString) " +
-            "DO UPDATE SET " +
+            upsertPropertyValueConflictSql
+}
+
+// @formatter:off
+private val upsertPropertyValueConflictSql =
+        "ON CONFLICT ($primaryKeyColumnNamesAsString) " +
+        "DO UPDATE SET " +
             "${VERSIONS.name} = ${DATA.name}.${VERSIONS.name} || EXCLUDED.${VERSIONS.name}, " +
             "${LAST_WRITE.name} = GREATEST(${DATA.name}.${LAST_WRITE.name},EXCLUDED.${LAST_WRITE.name}), " +
             "${ORIGIN_ID.name} = EXCLUDED.${ORIGIN_ID.name}, " +
             "${VERSION.name} = CASE " +
-            "WHEN abs(${DATA.name}.${VERSION.name}) <= EXCLUDED.${VERSION.name} " +
-            "THEN EXCLUDED.${VERSION.name} " +
-            "ELSE ${DATA.name}.${VERSION.name} " +
+                "WHEN abs(${DATA.name}.${VERSION.name}) <= EXCLUDED.${VERSION.name} " +
+                "THEN EXCLUDED.${VERSION.name} " +
+                "ELSE ${DATA.name}.${VERSION.name} " +
             "END"
+// @formatter:on
+
+const val DATA_STAGING_TABLE = "data_staging"
+
+/**
+ * The metadata columns of the [DATA_STAGING_TABLE] in the order in which they are copied. They are followed by the
+ * value columns passed to [createDataStagingTableSql].
+ */
+val dataStagingMetadataColumns = listOf(ENTITY_SET_ID, ID_VALUE, PARTITION, PROPERTY_TYPE_ID, HASH, VERSION, VERSIONS)
+
+/**
+ * Creates a session local staging table for bulk upserting property values into [DATA]. The table is dropped when
+ * the transaction that created it commits.
+ *
+ * @param valueColumns The value columns of [DATA] that will be populated.
+ */
+fun createDataStagingTableSql(valueColumns: Collection<PostgresColumnDefinition>): String {
+    val columnsSql = (dataStagingMetadataColumns + valueColumns).joinToString(",") { "${it.name} ${it.datatype.sql()}" }
+    return "CREATE TEMPORARY TABLE $DATA_STAGING_TABLE ($columnsSql) ON COMMIT DROP"
+}
+
+/**
+ * Streams rows into the [DATA_STAGING_TABLE] using the binary COPY protocol.
+ *
+ * @param valueColumns The value columns, in the same order they were passed to [createDataStagingTableSql].
+ */
+fun copyIntoDataStagingTableSql(valueColumns: Collection<PostgresColumnDefinition>): String {
+    val columnsSql = (dataStagingMetadataColumns + valueColumns).joinToString(",") { it.name }
+    return "COPY $DATA_STAGING_TABLE ($columnsSql) FROM STDIN WITH (FORMAT binary)"
+}
+
+/**
+ * Merges all rows of the [DATA_STAGING_TABLE] into [DATA] with the same version semantics as
+ * [upsertPropertyValueSql]. Duplicate primary keys in the staging table are collapsed, since a single insert cannot
+ * update the same row twice.
+ *
+ * @param valueColumns The value columns, in the same order they were passed to [createDataStagingTableSql].
+ */
+fun mergeDataStagingTableSql(valueColumns: Collection<PostgresColumnDefinition>): String {
+    val metadataColumnsSql = listOf(ENTITY_SET_ID, ID_VALUE, PARTITION, PROPERTY_TYPE_ID, HASH, LAST_WRITE, VERSION, VERSIONS)
+            .joinToString(",") { it.name }
+    val valueColumnsSql = valueColumns.joinToString("") { ",${it.name}" }
+    val selectColumnsSql = listOf(ENTITY_SET_ID, ID_VALUE, PARTITION, PROPERTY_TYPE_ID, HASH)
+            .joinToString(",") { it.name } + ",now(),${VERSION.name},${VERSIONS.name}$valueColumnsSql"
+
+    return "INSERT INTO ${DATA.name} ($metadataColumnsSql$valueColumnsSql) " +
+            "SELECT DISTINCT ON ($primaryKeyColumnNamesAsString) $selectColumnsSql FROM $DATA_STAGING_TABLE " +
+            upsertPropertyValueConflictSql
 }
 
 /**
@@ -1,18 +1,22 @@
 package com.openlattice.data.storage
 
 import com.codahale.metrics.annotation.Timed
+import com.google.common.util.concurrent.Futures
+import com.google.common.util.concurrent.ListenableFuture
 import com.openlattice.IdConstants
 import com.openlattice.analysis.SqlBindInfo
 import com.openlattice.analysis.requests.Filter
 import com.openlattice.data.DeleteType
 import com.openlattice.data.WriteEvent
-import com.openlattice.data.storage.PostgresEntitySetSizesInitializationTask.Companion.ENTITY_SET_SIZES_VIEW
 import com.openlattice.data.storage.partitions.PartitionManager
 import com.openlattice.data.storage.partitions.getPartition
 import com.openlattice.data.util.PostgresDataHasher
+import com.openlattice.edm.PostgresEdmTypeConverter
 import com.openlattice.edm.type.PropertyType
 import com.openlattice.postgres.*
 import com.openlattice.postgres.PostgresColumn.*
+import com.openlattice.postgres.PostgresDataTables.Companion.getColumnDefinition
+import com.openlattice.postgres.PostgresDataTables.Companion.getSourceDataColumnName
 import com.openlattice.postgres.PostgresTable.DATA
 import com.openlattice.postgres.PostgresTable.IDS
 import com.openlattice.postgres.streams.BasePostgresIterable
@@ -21,6 +25,8 @@ import com.openlattice.postgres.streams.StatementHolderSupplier
 import com.zaxxer.hikari.HikariDataSource
 import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
 import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.postgresql.PGConnection
+import org.postgresql.copy.PGCopyOutputStream
 import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Service
 import java.lang.Exception
@@ -30,10 +36,11 @@ import java.sql.Connection
 import java.sql.PreparedStatement
 import java.sql.ResultSet
 import java.util.*
-import java.util.concurrent.atomic.AtomicLong
-import kotlin.streams.asStream
+import java.util.concurrent.ExecutionException
 
 const val S3_DELETE_BATCH_SIZE = 10_000
+private const val S3_DELETES_IN_FLIGHT = 8
+private const val COPY_BUFFER_SIZE = 65_536
 
 /**
  *
@@ -44,26 +51,69 @@ class PostgresEntityDataQueryService(
         private val hds: HikariDataSource,
         private val reader: HikariDataSource,
         private val byteBlobDataManager: ByteBlobDataManager,
-        protected val partitionManager: PartitionManager
+        protected val partitionManager: PartitionManager,
+        private val partitionWriteExecutor: PartitionWriteExecutor
 ) {
     companion object {
         private val logger = LoggerFactory.getLogger(PostgresEntityDataQueryService::class.java)
+
+        /**
+         * Metadata options that can be served by [EntityReadMode.COLUMNAR]. Reads requesting any other option fall
+         * back to [EntityReadMode.JSON].
+         */
+        private val COLUMNAR_METADATA_OPTIONS = EnumSet.of(MetadataOption.LAST_WRITE)
     }
 
+    private val entitySetCounts = PostgresEntitySetCounts(hds)
+
     fun getEntitySetCounts(): Map<UUID, Long> {
-        return BasePostgresIterable(StatementHolderSupplier(reader, "SELECT * FROM $ENTITY_SET_SIZES_VIEW")) {
+        return BasePostgresIterable(StatementHolderSupplier(reader, "SELECT * FROM $ENTITY_SET_COUNTS")) {
             ResultSetAdapters.entitySetId(it) to ResultSetAdapters.count(it)
         }.toMap()
     }
 
+    /**
+     * Replaces the maintained count of [entitySetId] with an exact count of its visible entities.
+     */
+    fun recountEntitySet(entitySetId: UUID): Long {
+        return entitySetCounts.recount(entitySetId)
+    }
+
+    /**
+     * Compares the maintained count of every entity set with a full count of the [IDS] table.
+     *
+     * @return The entity sets whose counts have drifted, mapped to their maintained and actual counts.
+     */
+    fun checkEntitySetCounts(): Map<UUID, Pair<Long, Long>> {
+        return entitySetCounts.check()
+    }
+
     @JvmOverloads
     fun getEntitiesWithPropertyTypeIds(
             entityKeyIds: Map<UUID, Optional<Set<UUID>>>,
             authorizedPropertyTypes: Map<UUID, Map<UUID, PropertyType>>,
             propertyTypeFilters: Map<UUID, Set<Filter>> = mapOf(),
             metadataOptions: Set<MetadataOption> = EnumSet.noneOf(MetadataOption::class.java),
-            version: Optional<Long> = Optional.empty()
+            version: Optional<Long> = Optional.empty(),
+            readMode: EntityReadMode = EntityReadMode.JSON
     ): BasePostgresIterable<Pair<UUID, Map<UUID, Set<Any>>>> {
+        if (readMode == EntityReadMode.COLUMNAR && COLUMNAR_METADATA_OPTIONS.containsAll(metadataOptions)) {
+            val valueColumns = authorizedPropertyTypes.mapValues { getColumnarValueColumns(it.value.values) }
+
+            return getEntitySetIterable(
+                    entityKeyIds,
+                    authorizedPropertyTypes,
+                    propertyTypeFilters,
+                    metadataOptions,
+                    version,
+                    readMode = EntityReadMode.COLUMNAR
+            ) { rs ->
+                getEntityPropertiesByPropertyTypeIdFromColumns(
+                        rs, authorizedPropertyTypes, valueColumns, metadataOptions, byteBlobDataManager
+                )
+            }
+        }
+
         return getEntitySetIterable(
                 entityKeyIds,
                 authorizedPropertyTypes,
@@ -182,6 +232,45 @@ class PostgresEntityDataQueryService(
         }.toMap()
     }
 
+    /**
+     * Streams every entity of [entitySetId] stored in [partition] with a server side cursor, without loading the
+     * partition into memory.
+     */
+    fun getEntitiesInPartition(
+            entitySetId: UUID,
+            partition: Int,
+            authorizedPropertyTypes: Map<UUID, PropertyType>,
+            metadataOptions: Set<MetadataOption> = EnumSet.noneOf(MetadataOption::class.java),
+            readMode: EntityReadMode = EntityReadMode.JSON
+    ): BasePostgresIterable<Pair<UUID, Map<UUID, Set<Any>>>> {
+        val propertyTypes = mapOf(entitySetId to authorizedPropertyTypes)
+
+        if (readMode == EntityReadMode.COLUMNAR && COLUMNAR_METADATA_OPTIONS.containsAll(metadataOptions)) {
+            val valueColumns = mapOf(entitySetId to getColumnarValueColumns(authorizedPropertyTypes.values))
+
+            return getEntitySetIterable(
+                    mapOf(entitySetId to Optional.empty()),
+                    propertyTypes,
+                    metadataOptions = metadataOptions,
+                    readMode = EntityReadMode.COLUMNAR,
+                    onlyPartitions = setOf(partition)
+            ) { rs ->
+                getEntityPropertiesByPropertyTypeIdFromColumns(
+                        rs, propertyTypes, valueColumns, metadataOptions, byteBlobDataManager
+                )
+            }
+        }
+
+        return getEntitySetIterable(
+                mapOf(entitySetId to Optional.empty()),
+                propertyTypes,
+                metadataOptions = metadataOptions,
+                onlyPartitions = setOf(partition)
+        ) { rs ->
+            getEntityPropertiesByPropertyTypeId(rs, propertyTypes, metadataOptions, byteBlobDataManager)
+        }
+    }
+
     /**
      * Note: for linking queries, linking id and entity set id will be returned, thus data won't be merged by linking id
      */
@@ -193,6 +282,8 @@ class PostgresEntityDataQueryService(
             version: Optional<Long> = Optional.empty(),
             linking: Boolean = false,
             detailed: Boolean = false,
+            readMode: EntityReadMode = EntityReadMode.JSON,
+            onlyPartitions: Set<Int> = setOf(),
             adapter: (ResultSet) -> T
     ): BasePostgresIterable<T> {
         val propertyTypes = authorizedPropertyTypes.values.flatMap { it.values }.associateBy { it.id }
@@ -200,7 +291,7 @@ class PostgresEntityDataQueryService(
         val ids = entityKeyIds.values.flatMap { it.orElse(emptySet()) }.toSet()
         // For linking queries we use all the partitions of participating entity sets, since cannot narrow down the
         // partitions due to the lack of origin ids
-        val partitions = entityKeyIds.flatMap { (entitySetId, maybeEntityKeyIds) ->
+        val partitions = if (onlyPartitions.isNotEmpty()) onlyPartitions else entityKeyIds.flatMap { (entitySetId, maybeEntityKeyIds) ->
             val entitySetPartitions = partitionManager.getEntitySetPartitions(entitySetId).toList()
 
             if (!linking) {
@@ -219,16 +310,27 @@ class PostgresEntityDataQueryService(
             startIndex++
         }
 
-        val (sql, binders) = buildPreparableFiltersSql(
-                startIndex,
-                propertyTypes,
-                propertyTypeFilters,
-                metadataOptions,
-                linking,
-                ids.isNotEmpty(),
-                partitions.isNotEmpty(),
-                detailed
-        )
+        val (sql, binders) = when (readMode) {
+            EntityReadMode.JSON -> buildPreparableFiltersSql(
+                    startIndex,
+                    propertyTypes,
+                    propertyTypeFilters,
+                    metadataOptions,
+                    linking,
+                    ids.isNotEmpty(),
+                    partitions.isNotEmpty(),
+                    detailed
+            )
+            EntityReadMode.COLUMNAR -> buildPreparableColumnarFiltersSql(
+                    startIndex,
+                    propertyTypes,
+                    propertyTypeFilters,
+                    metadataOptions,
+                    linking,
+                    ids.isNotEmpty(),
+                    partitions.isNotEmpty()
+            )
+        }
 
         return BasePostgresIterable(PreparedStatementHolderSupplier(reader, sql, FETCH_SIZE) { ps ->
             val metaBinders = linkedSetOf<SqlBinder>()
@@ -267,6 +369,8 @@ class PostgresEntityDataQueryService(
      * @param awsPassthrough True if the data will be stored directly in AWS via another means and all that is being
      * provided is the s3 prefix and key.
      * @param partitions Contains the partition information for the requested entity set.
+     * @param writeMode How property values are written. [EntityWriteMode.COPY] is not supported together with
+     * [awsPassthrough], in which case [EntityWriteMode.BATCH] is used.
      *
      * @return A write event summarizing the results of performing this operation.
      */
@@ -276,7 +380,8 @@ class PostgresEntityDataQueryService(
             entities: Map<UUID, Map<UUID, Set<Any>>>,
             authorizedPropertyTypes: Map<UUID, PropertyType>,
             awsPassthrough: Boolean = false,
-            partitions: List<Int> = partitionManager.getEntitySetPartitions(entitySetId).toList()
+            partitions: List<Int> = partitionManager.getEntitySetPartitions(entitySetId).toList(),
+            writeMode: EntityWriteMode = EntityWriteMode.BATCH
     ): WriteEvent {
         val version = System.currentTimeMillis()
 
@@ -289,7 +394,8 @@ class PostgresEntityDataQueryService(
                 authorizedPropertyTypes,
                 version,
                 partitions,
-                awsPassthrough
+                awsPassthrough,
+                if (awsPassthrough) EntityWriteMode.BATCH else writeMode
         )
     }
 
@@ -303,6 +409,7 @@ class PostgresEntityDataQueryService(
      * @param partitions Contains the partition information for the requested entity set.
      * @param awsPassthrough True if the data will be stored directly in AWS via another means and all that is being
      * provided is the s3 prefix and key.
+     * @param writeMode How property values are written for each partition.
      *
      * @return A write event summarizing the results of performing this operation.
      */
@@ -313,44 +420,52 @@ class PostgresEntityDataQueryService(
             authorizedPropertyTypes: Map<UUID, PropertyType>,
             version: Long,
             partitions: List<Int> = partitionManager.getEntitySetPartitions(entitySetId).toList(),
-            awsPassthrough: Boolean = false
+            awsPassthrough: Boolean = false,
+            writeMode: EntityWriteMode = EntityWriteMode.BATCH
     ): WriteEvent {
-        var updatedEntityCount = 0
-        var updatedPropertyCounts = 0
-
-
-        entities.entries
+        val batches = entities.entries
                 .groupBy { getPartition(it.key, partitions) }
                 .toSortedMap()
-                .forEach { (partition, batch) ->
-                    var entityBatch = batch.associate { it.key to it.value }
-
-                    if (!awsPassthrough) {
-                        entityBatch = entityBatch.mapValues {
-                            JsonDeserializer.validateFormatAndNormalize(
-                                    it.value,
-                                    authorizedPropertyTypes
-                            ) { "Entity set $entitySetId with entity key id ${it.key}" }
-                        }
-                    }
 
-                    tombstoneFn(version, entityBatch)
+        // Each partition is written in its own transaction on its own connection, so partitions can be written
+        // concurrently while the ids within a partition are still locked in sorted order.
+        val updatedPropertyCounts = partitionWriteExecutor.execute(batches) { partition, batch ->
+            var entityBatch = batch.associate { it.key to it.value }
+
+            if (!awsPassthrough) {
+                entityBatch = entityBatch.mapValues {
+                    JsonDeserializer.validateFormatAndNormalize(
+                            it.value,
+                            authorizedPropertyTypes
+                    ) { "Entity set $entitySetId with entity key id ${it.key}" }
+                }
+            }
 
-                    val upc = upsertEntities(
-                            entitySetId,
-                            entityBatch,
-                            authorizedPropertyTypes,
-                            version + 1,
-                            partition,
-                            awsPassthrough
-                    )
+            tombstoneFn(version, entityBatch)
 
-                    //For now we can't track how many entities were updated in a call transactionally.
-                    //If we want to check how many entities were written at a specific version that is possible but
-                    //expensive.
-                    updatedEntityCount += batch.size
-                    updatedPropertyCounts += upc
-                }
+            when (writeMode) {
+                EntityWriteMode.BATCH -> upsertEntities(
+                        entitySetId,
+                        entityBatch,
+                        authorizedPropertyTypes,
+                        version + 1,
+                        partition,
+                        awsPassthrough
+                )
+                EntityWriteMode.COPY -> copyEntities(
+                        entitySetId,
+                        entityBatch,
+                        authorizedPropertyTypes,
+                        version + 1,
+                        partition
+                )
+            }
+        }.values.sum()
+
+        //For now we can't track how many entities were updated in a call transactionally.
+        //If we want to check how many entities were written at a specific version that is possible but
+        //expensive.
+        val updatedEntityCount = batches.values.sumBy { it.size }
 
         logger.debug("Updated $updatedEntityCount entities and $updatedPropertyCounts properties")
 
@@ -365,7 +480,7 @@ class PostgresEntityDataQueryService(
             partition: Int,
             awsPassthrough: Boolean
     ): Int {
-
+        val blobs = mutableListOf<BlobObject>()
         val entitiesWithHashAndInsertData = entities.mapValues { entityKeyIdToEntity ->
             entityKeyIdToEntity.value.mapValues { propertyTypeIdToPropertyValues ->
                 propertyTypeIdToPropertyValues.value.map { propertyValue ->
@@ -375,12 +490,16 @@ class PostgresEntityDataQueryService(
                             propertyTypeIdToPropertyValues.key,
                             propertyValue,
                             authorizedPropertyTypes.getValue(propertyTypeIdToPropertyValues.key).datatype,
-                            awsPassthrough
+                            awsPassthrough,
+                            blobs
                     )
                 }
             }
         }
 
+        //Binary values are uploaded while the property values are bound.
+        val blobUploads = putObjectsAsync(blobs)
+
         return hds.connection.use { connection ->
             //Update the versions of all entities.
             val versionsArrays = PostgresArrays.createLongArray(connection, version)
@@ -393,17 +512,16 @@ class PostgresEntityDataQueryService(
              *
              */
 
-            //Update property values. We use multiple prepared statements in batch while re-using ARRAY[version].
+            //Bind property values. We use multiple prepared statements in batch while re-using ARRAY[version].
             val upsertPropertyValues = mutableMapOf<UUID, PreparedStatement>()
-            val updatedPropertyCounts = entitiesWithHashAndInsertData.entries.map { (entityKeyId, entityData) ->
-
-                entityData.map { (propertyTypeId, hashAndInsertValue) ->
+            entitiesWithHashAndInsertData.forEach { (entityKeyId, entityData) ->
+                entityData.forEach { (propertyTypeId, hashAndInsertValue) ->
                     val upsertPropertyValue = upsertPropertyValues.getOrPut(propertyTypeId) {
                         val pt = authorizedPropertyTypes[propertyTypeId] ?: abortInsert(entitySetId, entityKeyId)
                         connection.prepareStatement(upsertPropertyValueSql(pt))
                     }
 
-                    hashAndInsertValue.map { (propertyHash, insertValue) ->
+                    hashAndInsertValue.forEach { (propertyHash, insertValue) ->
                         upsertPropertyValue.setObject(1, entitySetId)
                         upsertPropertyValue.setObject(2, entityKeyId)
                         upsertPropertyValue.setInt(3, partition)
@@ -415,8 +533,16 @@ class PostgresEntityDataQueryService(
                         upsertPropertyValue.addBatch()
                     }
                 }
-                upsertPropertyValues.values.map { it.executeBatch().sum() }.sum()
-            }.sum()
+            }
+
+            /*
+             * Property values are only written once the binary values they refer to are stored, so that a failed upload
+             * never leaves behind property values pointing at missing objects.
+             */
+            awaitBlobTransfer(blobUploads)
+
+            //Update property values.
+            val updatedPropertyCounts = upsertPropertyValues.values.map { it.executeBatch().sum() }.sum()
 
             /**
              * At this point, we either need to either commit all versions by updating the version in the ids table our
@@ -425,32 +551,133 @@ class PostgresEntityDataQueryService(
              */
 
             //Make data visible by marking new version in ids table.
-
-            val ps = connection.prepareStatement(updateEntitySql)
-
-            entities.keys.sorted().forEach { entityKeyId ->
+            val updatedEntities = executeCountingVisibleEntities(
+                    connection,
+                    upsertEntitiesSql,
+                    entitySetId,
+                    mapOf(partition to entities.keys)
+            ) { ps, _, entityKeyIds ->
                 ps.setArray(1, versionsArrays)
                 ps.setObject(2, version)
                 ps.setObject(3, version)
                 ps.setObject(4, entitySetId)
-                ps.setObject(5, entityKeyId)
+                ps.setArray(5, PostgresArrays.createUuidArray(connection, entityKeyIds))
                 ps.setInt(6, partition)
-                ps.addBatch()
             }
-
-            val updatedEntities = ps.executeBatch().sum()
             logger.debug("Updated $updatedEntities entities as part of insert.")
             return updatedPropertyCounts
         }
     }
 
+    /**
+     * Upserts the entities of a single partition by streaming their property values into a staging table with binary
+     * COPY. The staged values are then merged into [DATA] with a single set based upsert and the entities are made
+     * visible in [IDS] with a single update, all in one transaction.
+     *
+     * Versions are written exactly as in the batched upsert.
+     */
+    private fun copyEntities(
+            entitySetId: UUID,
+            entities: Map<UUID, Map<UUID, Set<Any>>>,
+            authorizedPropertyTypes: Map<UUID, PropertyType>,
+            version: Long,
+            partition: Int
+    ): Int {
+        val valueColumns = authorizedPropertyTypes.values
+                .map { getColumnDefinition(it.postgresIndexType, it.datatype) }
+                .distinct()
+        val valueColumnIndices = valueColumns.withIndex().associate { it.value.name to it.index }
+        val fieldCount = dataStagingMetadataColumns.size + valueColumns.size
+        val versions = longArrayOf(version)
+        val blobs = mutableListOf<BlobObject>()
+
+        return hds.connection.use { connection ->
+            connection.autoCommit = false
+
+            try {
+                connection.createStatement().use { it.execute(createDataStagingTableSql(valueColumns)) }
+
+                val copyStream = PGCopyOutputStream(
+                        connection.unwrap(PGConnection::class.java),
+                        copyIntoDataStagingTableSql(valueColumns),
+                        COPY_BUFFER_SIZE
+                )
+
+                PostgresBinaryCopyWriter(copyStream).use { writer ->
+                    entities.forEach { (entityKeyId, entityData) ->
+                        entityData.forEach { (propertyTypeId, values) ->
+                            val pt = authorizedPropertyTypes[propertyTypeId] ?: abortInsert(entitySetId, entityKeyId)
+                            val datatype = PostgresEdmTypeConverter.map(pt.datatype)
+                            val valueIndex = valueColumnIndices.getValue(getSourceDataColumnName(pt))
+
+                            values.forEach { value ->
+                                val (propertyHash, insertValue) = getPropertyHash(
+                                        entitySetId,
+                                        entityKeyId,
+                                        propertyTypeId,
+                                        value,
+                                        pt.datatype,
+                                        false,
+                                        blobs
+                                )
+
+                                writer.startRow(fieldCount)
+                                writer.writeUuid(entitySetId)
+                                writer.writeUuid(entityKeyId)
+                                writer.writeInt(partition)
+                                writer.writeUuid(propertyTypeId)
+                                writer.writeBytes(propertyHash)
+                                writer.writeLong(version)
+                                writer.writeLongArray(versions)
+                                writer.writeNulls(valueIndex)
+                                writer.writeValue(insertValue, datatype)
+                                writer.writeNulls(valueColumns.size - valueIndex - 1)
+                            }
+                        }
+                    }
+                    logger.debug("Copied {} property values into staging for partition {}.", writer.rowCount, partition)
+                }
+
+                //Binary values are uploaded while the staged values are merged.
+                val blobUploads = putObjectsAsync(blobs)
+                val updatedPropertyCounts = connection.createStatement().use {
+                    it.executeUpdate(mergeDataStagingTableSql(valueColumns))
+                }
+                awaitBlobTransfer(blobUploads)
+
+                //Make data visible by marking new version in ids table. This commits the transaction.
+                val updatedEntities = executeCountingVisibleEntities(
+                        connection,
+                        upsertEntitiesSql,
+                        entitySetId,
+                        mapOf(partition to entities.keys)
+                ) { ps, _, entityKeyIds ->
+                    ps.setArray(1, PostgresArrays.createLongArray(connection, version))
+                    ps.setObject(2, version)
+                    ps.setObject(3, version)
+                    ps.setObject(4, entitySetId)
+                    ps.setArray(5, PostgresArrays.createUuidArray(connection, entityKeyIds))
+                    ps.setInt(6, partition)
+                }
+
+                logger.debug("Updated $updatedEntities entities as part of insert.")
+                updatedPropertyCounts
+            } catch (ex: Exception) {
+                logger.error("Unable to copy entities into entity set $entitySetId and partition $partition.", ex)
+                connection.rollback()
+                throw ex
+            }
+        }
+    }
+
     private fun getPropertyHash(
             entitySetId: UUID,
             entityKeyId: UUID,
             propertyTypeId: UUID,
             value: Any,
             dataType: EdmPrimitiveTypeKind,
-            awsPassthrough: Boolean
+            awsPassthrough: Boolean,
+            blobs: MutableList<BlobObject>
     ): Pair<ByteArray, Any> {
         if (dataType != EdmPrimitiveTypeKind.Binary) {
             return PostgresDataHasher.hashObject(value, dataType) to value
@@ -469,10 +696,26 @@ class PostgresEntityDataQueryService(
         //store entity set id/entity key id/property type id/property hash as key in S3
         val s3Key = "$entitySetId/$entityKeyId/$propertyTypeId/$digest"
 
-        byteBlobDataManager.putObject(s3Key, binaryData.data, binaryData.contentType)
+        blobs.add(BlobObject(s3Key, binaryData.data, binaryData.contentType))
         return PostgresDataHasher.hashObject(s3Key, EdmPrimitiveTypeKind.String) to s3Key
     }
 
+    private fun putObjectsAsync(blobs: List<BlobObject>): ListenableFuture<Unit> {
+        return if (blobs.isEmpty()) {
+            Futures.immediateFuture(Unit)
+        } else {
+            byteBlobDataManager.putObjectsAsync(blobs)
+        }
+    }
+
+    private fun awaitBlobTransfer(transfer: ListenableFuture<Unit>) {
+        try {
+            transfer.get()
+        } catch (ex: ExecutionException) {
+            throw ex.cause ?: ex
+        }
+    }
+
     @Timed
     fun replaceEntities(
             entitySetId: UUID,
@@ -587,18 +830,20 @@ class PostgresEntityDataQueryService(
      */
     private fun tombstone(conn: Connection, entitySetId: UUID, version: Long): WriteEvent {
         val partitions = partitionManager.getEntitySetPartitions(entitySetId)
-        val idTombstones = conn.prepareStatement(updateVersionsForEntitySet)
         val dataTombstones = conn.prepareStatement(updateVersionsForPropertiesInEntitySet)
 
-        partitions.sorted().map { partition ->
-            idTombstones.setLong(1, -version)
-            idTombstones.setLong(2, -version)
-            idTombstones.setLong(3, -version)
-            idTombstones.setObject(4, entitySetId)
-            idTombstones.setInt(5, partition)
-            idTombstones.addBatch()
+        val numUpdates = executeCountingVisibleEntities(
+                conn,
+                updateVersionsForEntitySet,
+                entitySetId,
+                partitions.associateWith { listOf<UUID>() }
+        ) { ps, partition, _ ->
+            ps.setLong(1, -version)
+            ps.setLong(2, -version)
+            ps.setLong(3, -version)
+            ps.setObject(4, entitySetId)
+            ps.setInt(5, partition)
         }
-        val numUpdates = idTombstones.executeBatch().sum()
 
 
         //We don't count the number of property types that were updated
@@ -822,8 +1067,7 @@ class PostgresEntityDataQueryService(
             entityKeyIds: Set<UUID>,
             propertyTypeId: UUID
     ) {
-        val count = AtomicLong()
-        BasePostgresIterable<String>(
+        val s3Keys = BasePostgresIterable<String>(
                 PreparedStatementHolderSupplier(hds, selectEntitiesTextProperties, FETCH_SIZE) { ps ->
                     val connection = ps.connection
                     val entitySetIdsArr = PostgresArrays.createUuidArray(connection, setOf(entitySetId))
@@ -835,16 +1079,13 @@ class PostgresEntityDataQueryService(
                 }
         ) { rs ->
             rs.getString(getMergedDataColumnName(PostgresDatatype.TEXT))
-        }.asSequence().chunked(S3_DELETE_BATCH_SIZE).asStream().parallel().forEach { s3Keys ->
-            byteBlobDataManager.deleteObjects(s3Keys)
-            count.addAndGet(s3Keys.size.toLong())
         }
+        deleteObjectsFromS3(s3Keys.asSequence())
     }
 
 
     private fun deletePropertiesInEntitySetFromS3(entitySetId: UUID, propertyTypeId: UUID): Long {
-        val count = AtomicLong()
-        BasePostgresIterable<String>(
+        val s3Keys = BasePostgresIterable<String>(
                 PreparedStatementHolderSupplier(hds, selectEntitySetTextProperties, FETCH_SIZE) { ps ->
                     val entitySetIdsArr = PostgresArrays.createUuidArray(ps.connection, setOf(entitySetId))
                     val propertyTypeIdsArr = PostgresArrays.createUuidArray(ps.connection, setOf(propertyTypeId))
@@ -853,11 +1094,28 @@ class PostgresEntityDataQueryService(
                 }
         ) { rs ->
             rs.getString(getMergedDataColumnName(PostgresDatatype.TEXT))
-        }.asSequence().chunked(S3_DELETE_BATCH_SIZE).asStream().parallel().forEach { s3Keys ->
-            byteBlobDataManager.deleteObjects(s3Keys)
-            count.addAndGet(s3Keys.size.toLong())
         }
-        return count.get()
+        return deleteObjectsFromS3(s3Keys.asSequence())
+    }
+
+    /**
+     * Deletes [s3Keys] in batches of [S3_DELETE_BATCH_SIZE] while the keys are still being read, keeping at most
+     * [S3_DELETES_IN_FLIGHT] batches outstanding.
+     *
+     * @return The number of keys deleted.
+     */
+    private fun deleteObjectsFromS3(s3Keys: Sequence<String>): Long {
+        var count = 0L
+        val deletes = ArrayDeque<ListenableFuture<Unit>>()
+        s3Keys.chunked(S3_DELETE_BATCH_SIZE).forEach { batch ->
+            if (deletes.size >= S3_DELETES_IN_FLIGHT) {
+                awaitBlobTransfer(deletes.poll())
+            }
+            deletes.add(byteBlobDataManager.deleteObjectsAsync(batch))
+            count += batch.size
+        }
+        deletes.forEach { awaitBlobTransfer(it) }
+        return count
     }
 
     /**
@@ -868,13 +1126,11 @@ class PostgresEntityDataQueryService(
 
         val numUpdates = hds.connection.use { connection ->
             try {
-                lockIdsAndExecute(
+                executeCountingVisibleEntities(
                         connection,
                         zeroVersionsForEntitySet,
                         entitySetId,
-                        partitions.associateWith { listOf<UUID>() },
-                        batch = true,
-                        shouldLockEntireEntitySet = true
+                        partitions.associateWith { listOf<UUID>() }
                 ) { ps, partition, _ ->
                     ps.setObject(1, entitySetId)
                     ps.setInt(2, partition)
@@ -897,12 +1153,11 @@ class PostgresEntityDataQueryService(
 
         val numUpdates = hds.connection.use { connection ->
             try {
-                lockIdsAndExecute(
+                executeCountingVisibleEntities(
                         connection,
                         deleteEntityKeys,
                         entitySetId,
-                        entitiesByPartition,
-                        batch = true
+                        entitiesByPartition
                 ) { ps, partition, entityKeyIds ->
                     val entityArr = PostgresArrays.createUuidArray(ps.connection, entityKeyIds)
                     ps.setObject(1, entitySetId)
@@ -928,13 +1183,11 @@ class PostgresEntityDataQueryService(
 
         val numUpdates = hds.connection.use { connection ->
             try {
-                lockIdsAndExecute(
+                executeCountingVisibleEntities(
                         connection,
                         zeroVersionsForEntitiesInEntitySet,
                         entitySetId,
-                        entitiesByPartition,
-                        shouldLockEntireEntitySet = false,
-                        batch = true
+                        entitiesByPartition
                 ) { ps, partition, entityKeyIds ->
                     val idsArr = PostgresArrays.createUuidArray(ps.connection, entityKeyIds)
 
@@ -1004,12 +1257,11 @@ class PostgresEntityDataQueryService(
         val idsByPartition = getIdsByPartition(entityKeyIds, partitions)
 
         val numUpdated = hds.connection.use { connection ->
-            lockIdsAndExecute(
+            executeCountingVisibleEntities(
                     connection,
                     updateVersionsForEntitiesInEntitySet,
                     entitySetId,
-                    idsByPartition,
-                    batch = true
+                    idsByPartition
             ) { ps, partition, ids ->
                 val entityKeyIdsArr = PostgresArrays.createUuidArray(ps.connection, ids)
                 ps.setLong(1, -version)
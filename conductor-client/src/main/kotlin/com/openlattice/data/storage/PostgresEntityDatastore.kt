@@ -6,12 +6,10 @@ import com.google.common.collect.ImmutableMap
 import com.google.common.collect.Multimaps
 import com.google.common.collect.SetMultimap
 import com.google.common.eventbus.EventBus
-import com.openlattice.assembler.events.MaterializedEntitySetDataChangeEvent
 import com.openlattice.data.DeleteType
 import com.openlattice.data.EntitySetData
 import com.openlattice.data.WriteEvent
 import com.openlattice.data.events.EntitiesDeletedEvent
-import com.openlattice.data.events.EntitiesUpsertedEvent
 import com.openlattice.datastore.services.EdmManager
 import com.openlattice.datastore.services.EntitySetManager
 import com.openlattice.edm.events.EntitySetDataDeletedEvent
@@ -25,6 +23,7 @@ import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
 import org.apache.olingo.commons.api.edm.FullQualifiedName
 import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Service
+import java.io.Closeable
 import java.nio.ByteBuffer
 import java.util.*
 import java.util.stream.Stream
@@ -43,11 +42,16 @@ class PostgresEntityDatastore(
         private val eventBus: EventBus,
         private val feedbackQueryService: PostgresLinkingFeedbackService,
         private val linkingQueryService: LinkingQueryService
-) : EntityDatastore {
+) : EntityDatastore, Closeable {
 
     companion object {
         private val logger = LoggerFactory.getLogger(PostgresEntityDatastore::class.java)
         const val BATCH_INDEX_THRESHOLD = 256
+
+        /**
+         * Number of entities in a single write above which property values are streamed with COPY instead of batched.
+         */
+        const val BULK_UPSERT_THRESHOLD = 4_096
     }
 
     private val getEntitiesTimer = metricRegistry.timer(
@@ -61,6 +65,15 @@ class PostgresEntityDatastore(
             )
     )
 
+    private val indexingQueue = CoalescingIndexingQueue(eventBus, this::loadEntitiesToIndex, metricRegistry)
+
+    /**
+     * Flushes the writes waiting in [indexingQueue] and stops it. Called by Spring when the context is shut down.
+     */
+    override fun close() {
+        indexingQueue.close()
+    }
+
     @Timed
     override fun createOrUpdateEntities(
             entitySetId: UUID,
@@ -69,7 +82,13 @@ class PostgresEntityDatastore(
     ): WriteEvent {
         // need to collect linking ids before writes to the entities
 
-        val writeEvent = dataQueryService.upsertEntities(entitySetId, entities, authorizedPropertyTypes)
+        val writeMode = if (entities.size > BULK_UPSERT_THRESHOLD) EntityWriteMode.COPY else EntityWriteMode.BATCH
+        val writeEvent = dataQueryService.upsertEntities(
+                entitySetId,
+                entities,
+                authorizedPropertyTypes,
+                writeMode = writeMode
+        )
         signalCreatedEntities(entitySetId, entities.keys)
 
         return writeEvent
@@ -104,18 +123,13 @@ class PostgresEntityDatastore(
         return writeEvent
     }
 
+    /**
+     * Small writes are indexed through [indexingQueue], which coalesces them with other writes to the same entity sets
+     * before loading them. Larger writes are left to background indexing.
+     */
     private fun signalCreatedEntities(entitySetId: UUID, entityKeyIds: Set<UUID>) {
         if (shouldIndexDirectly(entitySetId, entityKeyIds)) {
-            val propertyTypesToIndex = entitySetManager.getPropertyTypesForEntitySet(entitySetId)
-                    .filter { it.value.datatype != EdmPrimitiveTypeKind.Binary }
-            val entities = dataQueryService
-                    .getEntitiesWithPropertyTypeIds(
-                            ImmutableMap.of(entitySetId, Optional.of(entityKeyIds)),
-                            ImmutableMap.of(entitySetId, propertyTypesToIndex),
-                            mapOf(),
-                            EnumSet.of(MetadataOption.LAST_WRITE)
-                    )
-            eventBus.post(EntitiesUpsertedEvent(entitySetId, entities.toMap()))
+            indexingQueue.entitiesWritten(entitySetId, entityKeyIds)
         }
 
         markMaterializedEntitySetDirty(entitySetId) // mark entityset as unsync with data
@@ -133,10 +147,17 @@ class PostgresEntityDatastore(
                 .forEach { this.markMaterializedEntitySetDirty(it) }
     }
 
+    /**
+     * Deletes are posted through [indexingQueue], so that they are ordered after any upserts of the same entity set it
+     * is posting.
+     */
     private fun signalDeletedEntities(entitySetId: UUID, entityKeyIds: Set<UUID>, deleteType: DeleteType) {
-        if (shouldIndexDirectly(entitySetId, entityKeyIds)) {
-            eventBus.post(EntitiesDeletedEvent(entitySetId, entityKeyIds, deleteType))
+        val deletedEvent = if (shouldIndexDirectly(entitySetId, entityKeyIds)) {
+            EntitiesDeletedEvent(entitySetId, entityKeyIds, deleteType)
+        } else {
+            null
         }
+        indexingQueue.entitiesDeleted(entitySetId, entityKeyIds, deletedEvent)
 
         markMaterializedEntitySetDirty(entitySetId) // mark entityset as unsync with data
 
@@ -151,7 +172,20 @@ class PostgresEntityDatastore(
     }
 
     private fun markMaterializedEntitySetDirty(entitySetId: UUID) {
-        eventBus.post(MaterializedEntitySetDataChangeEvent(entitySetId))
+        indexingQueue.entitySetChanged(entitySetId)
+    }
+
+    private fun loadEntitiesToIndex(entitySetId: UUID, entityKeyIds: Set<UUID>): Map<UUID, Map<UUID, Set<Any>>> {
+        val propertyTypesToIndex = entitySetManager.getPropertyTypesForEntitySet(entitySetId)
+                .filter { it.value.datatype != EdmPrimitiveTypeKind.Binary }
+        return dataQueryService
+                .getEntitiesWithPropertyTypeIds(
+                        ImmutableMap.of(entitySetId, Optional.of(entityKeyIds)),
+                        ImmutableMap.of(entitySetId, propertyTypesToIndex),
+                        mapOf(),
+                        EnumSet.of(MetadataOption.LAST_WRITE)
+                )
+                .toMap()
     }
 
     @Timed
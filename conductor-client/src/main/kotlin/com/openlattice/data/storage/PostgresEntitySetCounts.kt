@@ -0,0 +1,391 @@
+package com.openlattice.data.storage
+
+import com.openlattice.data.storage.PostgresEntitySetSizesInitializationTask.Companion.ENTITY_SET_SIZES_VIEW
+import com.openlattice.postgres.PostgresColumn.COUNT
+import com.openlattice.postgres.PostgresColumn.ENTITY_SET_ID
+import com.openlattice.postgres.PostgresColumn.ID
+import com.openlattice.postgres.PostgresColumn.PARTITION
+import com.openlattice.postgres.PostgresColumn.VERSION
+import com.openlattice.postgres.PostgresTable.IDS
+import com.zaxxer.hikari.HikariDataSource
+import org.slf4j.LoggerFactory
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.util.*
+
+/**
+ * Table of the number of visible entities in each entity set, maintained by [PostgresEntitySetCounts].
+ */
+const val ENTITY_SET_COUNTS = "entity_set_visible_counts"
+
+/**
+ * Append only log of changes to the number of visible entities in each entity set, folded into [ENTITY_SET_COUNTS] by
+ * [PostgresEntitySetCounts.fold].
+ */
+const val ENTITY_SET_COUNT_DELTAS = "entity_set_count_deltas"
+
+private const val DELTA = "delta"
+
+private const val PREVIOUS = "previous"
+private const val PREVIOUS_ENTITY_SET_ID = "previous_entity_set_id"
+private const val PREVIOUS_PARTITION = "previous_partition"
+private const val PREVIOUS_ID = "previous_id"
+private const val PREVIOUS_VERSION = "previous_version"
+private const val CURRENT_VERSION = "current_version"
+private const val CHANGED = "changed"
+
+/*
+ * Arbitrary key of the advisory lock serializing initialization, folds and recounts, which all consume the delta log.
+ */
+private const val ENTITY_SET_COUNTS_LOCK_KEY = 0x656e7469747973L
+
+private val CREATE_ENTITY_SET_COUNTS_TABLE = """
+    CREATE TABLE IF NOT EXISTS $ENTITY_SET_COUNTS (
+        ${ENTITY_SET_ID.name} uuid PRIMARY KEY,
+        $COUNT bigint NOT NULL
+    )
+""".trimIndent()
+
+private val CREATE_ENTITY_SET_COUNT_DELTAS_TABLE = """
+    CREATE TABLE IF NOT EXISTS $ENTITY_SET_COUNT_DELTAS (
+        ${ENTITY_SET_ID.name} uuid NOT NULL,
+        $DELTA bigint NOT NULL
+    )
+""".trimIndent()
+
+private const val DROP_ENTITY_SET_SIZES_VIEW = "DROP MATERIALIZED VIEW IF EXISTS $ENTITY_SET_SIZES_VIEW"
+private const val IS_TABLE = "SELECT to_regclass('$ENTITY_SET_COUNTS') IS NOT NULL"
+
+private val ACTUAL_ENTITY_SET_COUNTS =
+        "SELECT ${ENTITY_SET_ID.name}, count(*) AS $COUNT FROM ${IDS.name} WHERE ${VERSION.name} > 0 " +
+                "GROUP BY ${ENTITY_SET_ID.name}"
+
+private val SEED_ENTITY_SET_COUNTS = "INSERT INTO $ENTITY_SET_COUNTS $ACTUAL_ENTITY_SET_COUNTS " +
+        "ON CONFLICT (${ENTITY_SET_ID.name}) DO NOTHING"
+
+/**
+ * Moves every delta in the log into the counts in a single statement. Entity sets without visible entities are
+ * removed, as they never appeared in the materialized view these counts replace.
+ */
+private val FOLD_ENTITY_SET_COUNT_DELTAS = """
+    WITH folded AS (DELETE FROM $ENTITY_SET_COUNT_DELTAS RETURNING ${ENTITY_SET_ID.name}, $DELTA)
+    INSERT INTO $ENTITY_SET_COUNTS
+        SELECT ${ENTITY_SET_ID.name}, sum($DELTA) FROM folded GROUP BY ${ENTITY_SET_ID.name}
+    ON CONFLICT (${ENTITY_SET_ID.name})
+        DO UPDATE SET $COUNT = $ENTITY_SET_COUNTS.$COUNT + EXCLUDED.$COUNT
+""".trimIndent()
+
+private val DELETE_EMPTY_ENTITY_SET_COUNTS = "DELETE FROM $ENTITY_SET_COUNTS WHERE $COUNT <= 0"
+
+private val INSERT_ENTITY_SET_COUNT_DELTA =
+        "INSERT INTO $ENTITY_SET_COUNT_DELTAS (${ENTITY_SET_ID.name}, $DELTA) VALUES (?, ?)"
+
+private val DELETE_ENTITY_SET_COUNT_DELTAS = "DELETE FROM $ENTITY_SET_COUNT_DELTAS WHERE ${ENTITY_SET_ID.name} = ?"
+
+private val DELETE_ALL_ENTITY_SET_COUNT_DELTAS = "DELETE FROM $ENTITY_SET_COUNT_DELTAS"
+
+private val COUNT_VISIBLE_ENTITIES_IN_ENTITY_SET =
+        "SELECT count(*) FROM ${IDS.name} WHERE ${ENTITY_SET_ID.name} = ? AND ${VERSION.name} > 0"
+
+private val SET_ENTITY_SET_COUNT = """
+    INSERT INTO $ENTITY_SET_COUNTS (${ENTITY_SET_ID.name}, $COUNT) VALUES (?, ?)
+    ON CONFLICT (${ENTITY_SET_ID.name}) DO UPDATE SET $COUNT = EXCLUDED.$COUNT
+""".trimIndent()
+
+/**
+ * Maintained counts plus the deltas that have not been folded yet, for every entity set that has either.
+ */
+private val MAINTAINED_ENTITY_SET_COUNTS = """
+    SELECT ${ENTITY_SET_ID.name}, sum($COUNT) AS $COUNT FROM (
+        SELECT ${ENTITY_SET_ID.name}, $COUNT FROM $ENTITY_SET_COUNTS
+        UNION ALL
+        SELECT ${ENTITY_SET_ID.name}, $DELTA AS $COUNT FROM $ENTITY_SET_COUNT_DELTAS
+    ) AS maintained
+    GROUP BY ${ENTITY_SET_ID.name}
+""".trimIndent()
+
+/**
+ * Builds an update of [IDS] that locks the rows matching [where] in id order, applies [set] to them and returns a
+ * single row with the number of updated rows and the change it made to the number of visible entities, in that order.
+ *
+ * The previous version of each row is read by the locking subquery, which waits for concurrent writers and returns the
+ * latest committed row, so the change is exact without separate locks or counts. Parameters of [set] are bound before
+ * parameters of [where].
+ */
+internal fun updateIdsCountingVisibleEntities(set: String, where: String): String {
+    return countingVisibleEntities(
+            "UPDATE ${IDS.name} SET $set " +
+                    "FROM (${lockPrevious(where)}) AS $PREVIOUS " +
+                    "WHERE ${joinPrevious()} " +
+                    "RETURNING $PREVIOUS_VERSION, ${IDS.name}.${VERSION.name} AS $CURRENT_VERSION"
+    )
+}
+
+/**
+ * Builds a delete from [IDS] of the rows matching [where], returning the same single row as
+ * [updateIdsCountingVisibleEntities]. Rows are locked in id order before they are deleted.
+ */
+internal fun deleteIdsCountingVisibleEntities(where: String): String {
+    return countingVisibleEntities(
+            "DELETE FROM ${IDS.name} " +
+                    "USING (${lockPrevious(where)}) AS $PREVIOUS " +
+                    "WHERE ${joinPrevious()} " +
+                    "RETURNING $PREVIOUS_VERSION, 0 AS $CURRENT_VERSION"
+    )
+}
+
+private fun lockPrevious(where: String): String {
+    return "SELECT ${ENTITY_SET_ID.name} AS $PREVIOUS_ENTITY_SET_ID, ${PARTITION.name} AS $PREVIOUS_PARTITION, " +
+            "${ID.name} AS $PREVIOUS_ID, ${VERSION.name} AS $PREVIOUS_VERSION " +
+            "FROM ${IDS.name} WHERE $where ORDER BY ${ID.name} FOR UPDATE"
+}
+
+private fun joinPrevious(): String {
+    return "${IDS.name}.${PARTITION.name} = $PREVIOUS_PARTITION " +
+            "AND ${IDS.name}.${ENTITY_SET_ID.name} = $PREVIOUS_ENTITY_SET_ID " +
+            "AND ${IDS.name}.${ID.name} = $PREVIOUS_ID"
+}
+
+private fun countingVisibleEntities(statement: String): String {
+    return "WITH $CHANGED AS ($statement) " +
+            "SELECT count(*), " +
+            "coalesce(sum(($CURRENT_VERSION > 0)::int - ($PREVIOUS_VERSION > 0)::int), 0) " +
+            "FROM $CHANGED"
+}
+
+/**
+ * Executes [query], built with [updateIdsCountingVisibleEntities] or [deleteIdsCountingVisibleEntities], for each
+ * partition in sorted partition order and records the change it made to the number of visible entities in
+ * [entitySetId] in the delta log. Everything runs in a single transaction that is committed before returning, so the
+ * delta commits or rolls back with the change.
+ *
+ * @return The number of rows that were changed.
+ */
+fun executeCountingVisibleEntities(
+        connection: Connection,
+        query: String,
+        entitySetId: UUID,
+        idsByPartition: Map<Int, Collection<UUID>>,
+        bind: (PreparedStatement, Int, Collection<UUID>) -> Unit
+): Int {
+    if (idsByPartition.isEmpty()) {
+        return 0
+    }
+
+    val ac = connection.autoCommit
+    connection.autoCommit = false
+    return try {
+        var delta = 0L
+        val count = connection.prepareStatement(query).use { ps ->
+            idsByPartition.toSortedMap().map { (partition, entityKeyIds) ->
+                bind(ps, partition, entityKeyIds)
+                ps.executeQuery().use { rs ->
+                    rs.next()
+                    delta += rs.getLong(2)
+                    rs.getInt(1)
+                }
+            }.sum()
+        }
+
+        if (delta != 0L) {
+            connection.prepareStatement(INSERT_ENTITY_SET_COUNT_DELTA).use { ps ->
+                ps.setObject(1, entitySetId)
+                ps.setLong(2, delta)
+                ps.executeUpdate()
+            }
+        }
+
+        connection.commit()
+        count
+    } catch (ex: Exception) {
+        connection.rollback()
+        throw ex
+    } finally {
+        connection.autoCommit = ac
+    }
+}
+
+/**
+ * Incrementally maintained counts of the visible entities in each entity set, stored in [ENTITY_SET_COUNTS].
+ *
+ * Writes that change the visibility of entities in [IDS] append the resulting change to [ENTITY_SET_COUNT_DELTAS] in
+ * the same transaction (see [executeCountingVisibleEntities]) and the deltas are periodically folded into the counts,
+ * so keeping the counts current never requires scanning [IDS]. Writes that do not record deltas, such as direct
+ * changes to the database, are found by [check] and corrected by [recount].
+ */
+class PostgresEntitySetCounts(private val hds: HikariDataSource) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(PostgresEntitySetCounts::class.java)
+    }
+
+    /**
+     * Creates the counts and delta log tables and drops the materialized view previously used for the counts. The
+     * counts are seeded with a full count of [IDS] when the counts table is created.
+     *
+     * Every node runs this on startup. It runs under the counts lock, so only the first node creates and seeds the
+     * table and the others find it already there, and the seed only inserts entity sets that have no count yet. The
+     * tables are created and seeded in a single transaction. Writes can't record deltas until the delta log is
+     * committed, so every write is either part of the seed snapshot or recorded in the delta log, but never both.
+     * Deltas left over from before the counts table existed are read from the same snapshot as the seed, which
+     * already includes them, and are dropped.
+     */
+    fun initialize() {
+        withCountsLock { connection ->
+            connection.transactionIsolation = Connection.TRANSACTION_REPEATABLE_READ
+            connection.autoCommit = false
+            try {
+                connection.createStatement().use { stmt ->
+                    stmt.execute(DROP_ENTITY_SET_SIZES_VIEW)
+
+                    val exists = stmt.executeQuery(IS_TABLE).use { it.next() && it.getBoolean(1) }
+
+                    stmt.execute(CREATE_ENTITY_SET_COUNT_DELTAS_TABLE)
+                    stmt.execute(CREATE_ENTITY_SET_COUNTS_TABLE)
+
+                    if (!exists) {
+                        stmt.executeUpdate(DELETE_ALL_ENTITY_SET_COUNT_DELTAS)
+                        val seeded = stmt.executeUpdate(SEED_ENTITY_SET_COUNTS)
+                        logger.info("Seeded entity set counts for {} entity sets.", seeded)
+                    }
+                }
+                connection.commit()
+            } catch (ex: Exception) {
+                connection.rollback()
+                throw ex
+            } finally {
+                connection.autoCommit = true
+                connection.transactionIsolation = Connection.TRANSACTION_READ_COMMITTED
+            }
+        }
+    }
+
+    /**
+     * Folds every recorded delta into the counts.
+     *
+     * @return The number of entity sets whose count changed.
+     */
+    fun fold(): Int {
+        return withCountsLock { connection ->
+            connection.autoCommit = false
+            try {
+                val folded = connection.createStatement().use { stmt ->
+                    val folded = stmt.executeUpdate(FOLD_ENTITY_SET_COUNT_DELTAS)
+                    stmt.executeUpdate(DELETE_EMPTY_ENTITY_SET_COUNTS)
+                    folded
+                }
+                connection.commit()
+                folded
+            } catch (ex: Exception) {
+                connection.rollback()
+                throw ex
+            } finally {
+                connection.autoCommit = true
+            }
+        }
+    }
+
+    /**
+     * Replaces the count of [entitySetId] with an exact count of its visible entities.
+     *
+     * The count and the deltas it replaces are read from the same snapshot, so deltas of writes that commit during
+     * the recount are kept and folded later.
+     *
+     * @return The exact number of visible entities in the entity set.
+     */
+    fun recount(entitySetId: UUID): Long {
+        return withCountsLock { connection ->
+            connection.transactionIsolation = Connection.TRANSACTION_REPEATABLE_READ
+            connection.autoCommit = false
+            try {
+                val count = connection.prepareStatement(COUNT_VISIBLE_ENTITIES_IN_ENTITY_SET).use { ps ->
+                    ps.setObject(1, entitySetId)
+                    ps.executeQuery().use { rs ->
+                        rs.next()
+                        rs.getLong(1)
+                    }
+                }
+
+                connection.prepareStatement(DELETE_ENTITY_SET_COUNT_DELTAS).use { ps ->
+                    ps.setObject(1, entitySetId)
+                    ps.executeUpdate()
+                }
+
+                connection.prepareStatement(SET_ENTITY_SET_COUNT).use { ps ->
+                    ps.setObject(1, entitySetId)
+                    ps.setLong(2, count)
+                    ps.executeUpdate()
+                }
+
+                connection.commit()
+                count
+            } catch (ex: Exception) {
+                connection.rollback()
+                throw ex
+            } finally {
+                connection.autoCommit = true
+                connection.transactionIsolation = Connection.TRANSACTION_READ_COMMITTED
+            }
+        }
+    }
+
+    /**
+     * Compares the maintained count of every entity set, including deltas not yet folded, with a full count of [IDS].
+     * This scans all of [IDS] and is meant to be run rarely, to detect drift.
+     *
+     * @return The entity sets whose maintained count differs from their actual count, mapped to the maintained and
+     * the actual count respectively.
+     */
+    fun check(): Map<UUID, Pair<Long, Long>> {
+        val (maintained, actual) = withCountsLock { connection ->
+            connection.transactionIsolation = Connection.TRANSACTION_REPEATABLE_READ
+            connection.autoCommit = false
+            try {
+                val counts = readCounts(connection, MAINTAINED_ENTITY_SET_COUNTS) to
+                        readCounts(connection, ACTUAL_ENTITY_SET_COUNTS)
+                connection.commit()
+                counts
+            } finally {
+                connection.autoCommit = true
+                connection.transactionIsolation = Connection.TRANSACTION_READ_COMMITTED
+            }
+        }
+
+        val drift = (maintained.keys + actual.keys)
+                .map { entitySetId -> entitySetId to ((maintained[entitySetId] ?: 0L) to (actual[entitySetId] ?: 0L)) }
+                .filter { (_, counts) -> counts.first != counts.second }
+                .toMap()
+
+        if (drift.isNotEmpty()) {
+            logger.warn("Entity set counts of {} entity sets have drifted: {}", drift.size, drift)
+        }
+
+        return drift
+    }
+
+    private fun readCounts(connection: Connection, sql: String): Map<UUID, Long> {
+        return connection.createStatement().use { stmt ->
+            stmt.executeQuery(sql).use { rs ->
+                val counts = mutableMapOf<UUID, Long>()
+                while (rs.next()) {
+                    counts[rs.getObject(ENTITY_SET_ID.name, UUID::class.java)] = rs.getLong(COUNT)
+                }
+                counts
+            }
+        }
+    }
+
+    /*
+     * The lock is taken at session level before any transaction starts, so that a repeatable read snapshot is only
+     * taken once any concurrent fold has committed.
+     */
+    private fun <T> withCountsLock(operation: (Connection) -> T): T {
+        return hds.connection.use { connection ->
+            connection.createStatement().use { it.execute("SELECT pg_advisory_lock($ENTITY_SET_COUNTS_LOCK_KEY)") }
+            try {
+                operation(connection)
+            } finally {
+                connection.createStatement().use { it.execute("SELECT pg_advisory_unlock($ENTITY_SET_COUNTS_LOCK_KEY)") }
+            }
+        }
+    }
+}
@@ -42,12 +42,11 @@ class PostgresEntitySetSizesInitializationTask : HazelcastInitializationTask<Pos
 
     companion object {
 
+        /**
+         * Materialized view previously used for entity set counts. It is dropped by [PostgresEntitySetCounts], which
+         * maintains the counts in [ENTITY_SET_COUNTS] instead.
+         */
         const val ENTITY_SET_SIZES_VIEW = "entity_set_counts"
-
-        val CREATE_ENTITY_SET_COUNTS_VIEW = "CREATE MATERIALIZED VIEW IF NOT EXISTS $ENTITY_SET_SIZES_VIEW " +
-                "AS $NORMAL_ENTITY_SET_COUNTS " // TODO bring back linking counts
-
-        const val REFRESH_ENTITY_SET_COUNTS_VIEW = "REFRESH MATERIALIZED VIEW $ENTITY_SET_SIZES_VIEW "
     }
 
     override fun getInitialDelay(): Long {
@@ -55,13 +54,8 @@ class PostgresEntitySetSizesInitializationTask : HazelcastInitializationTask<Pos
     }
 
     override fun initialize(dependencies: PostgresEntitySetSizesTaskDependency) {
-        logger.info("Creating entity set count views.")
-        val connection = getDependency().hikariDataSource.connection
-        connection.use {
-            it.createStatement().use { stmt ->
-                stmt.execute(CREATE_ENTITY_SET_COUNTS_VIEW)
-            }
-        }
+        logger.info("Creating entity set count tables.")
+        PostgresEntitySetCounts(dependencies.hikariDataSource).initialize()
     }
 
     override fun after(): Set<Class<out HazelcastInitializationTask<*>>> {
@@ -77,9 +71,6 @@ class PostgresEntitySetSizesInitializationTask : HazelcastInitializationTask<Pos
     }
 }
 
-private val NORMAL_ENTITY_SET_COUNTS =
-        "( SELECT ${ENTITY_SET_ID.name}, COUNT(*) as $COUNT FROM ${IDS.name} WHERE ${VERSION.name} > 0 GROUP BY (${ENTITY_SET_ID.name}) )"
-
 private const val WRAPPED_LINKED_ENTITY_SETS = "wrapped_linked_entity_sets"
 private val WITH_WRAPPED_LINKED_ENTITY_SETS = "WITH $WRAPPED_LINKED_ENTITY_SETS AS " +
         "(SELECT ${ID.name}, ${LINKED_ENTITY_SETS.name} FROM ${ENTITY_SETS.name} WHERE '${EntitySetFlag.LINKING}' = ANY(${FLAGS.name}) ) "
@@ -20,7 +20,6 @@
  */
 package com.openlattice.data.storage
 
-import com.openlattice.data.storage.PostgresEntitySetSizesInitializationTask.Companion.REFRESH_ENTITY_SET_COUNTS_VIEW
 import com.openlattice.tasks.HazelcastFixedRateTask
 import com.openlattice.tasks.Task
 import org.slf4j.LoggerFactory
@@ -35,7 +34,7 @@ class PostgresEntitySetSizesTask : HazelcastFixedRateTask<PostgresEntitySetSizes
     }
 
     override fun getPeriod(): Long {
-        return 60_000 * 60 // 15 minutes
+        return 60_000 // 1 minute
     }
 
     override fun getTimeUnit(): TimeUnit {
@@ -43,12 +42,8 @@ class PostgresEntitySetSizesTask : HazelcastFixedRateTask<PostgresEntitySetSizes
     }
 
     override fun runTask() {
-        logger.info("Refreshing entity set count views.")
-        getDependency().hikariDataSource.connection.use { connection ->
-            connection.createStatement().use { stmt ->
-                stmt.execute(REFRESH_ENTITY_SET_COUNTS_VIEW)
-            }
-        }
+        val folded = PostgresEntitySetCounts(getDependency().hikariDataSource).fold()
+        logger.info("Folded entity set count changes into the counts of {} entity sets.", folded)
     }
 
     override fun getName(): String {
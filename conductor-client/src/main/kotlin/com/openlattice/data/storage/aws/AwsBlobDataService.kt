@@ -13,7 +13,13 @@ import com.amazonaws.services.s3.AmazonS3
 import com.amazonaws.services.s3.AmazonS3ClientBuilder
 import com.amazonaws.services.s3.model.*
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder
+import com.google.common.base.Function
+import com.google.common.util.concurrent.Futures
+import com.google.common.util.concurrent.ListenableFuture
 import com.google.common.util.concurrent.ListeningExecutorService
+import com.google.common.util.concurrent.MoreExecutors
+import com.openlattice.data.storage.BlobObject
+import com.openlattice.data.storage.BlobTransferExecutor
 import com.openlattice.data.storage.ByteBlobDataManager
 import com.openlattice.datastore.configuration.DatastoreConfiguration
 import org.slf4j.LoggerFactory
@@ -27,15 +33,26 @@ private val logger = LoggerFactory.getLogger(AwsBlobDataService::class.java)
 const val MAX_ERROR_RETRIES = 5
 const val MAX_DELAY = 8L * 60L * 1000L
 
+/**
+ * The maximum number of keys S3 accepts in a single multi-object delete request.
+ */
+private const val MAX_KEYS_PER_DELETE = 1_000
+
 @Service
 class AwsBlobDataService(
         private val datastoreConfiguration: DatastoreConfiguration,
-        private val executorService: ListeningExecutorService
+        private val executorService: ListeningExecutorService,
+        private val transferExecutor: BlobTransferExecutor
 ) : ByteBlobDataManager {
 
     private val s3Credentials = BasicAWSCredentials(datastoreConfiguration.accessKeyId, datastoreConfiguration.secretAccessKey)
     private val s3 = newS3Client(datastoreConfiguration)
 
+    /*
+     * Shared by every upload, since each transfer manager owns its own thread pool.
+     */
+    private val transferManager = TransferManagerBuilder.standard().withS3Client(s3).build()
+
     private final fun newS3Client(datastoreConfiguration: DatastoreConfiguration): AmazonS3 {
         val builder = AmazonS3ClientBuilder.standard()
         builder.region = datastoreConfiguration.regionName
@@ -55,16 +72,16 @@ class AwsBlobDataService(
         metadata.contentLength = dataInputStream.available().toLong()
         metadata.contentType = contentType
         val putRequest = PutObjectRequest(datastoreConfiguration.bucketName, s3Key, dataInputStream, metadata)
-        val transferManager = TransferManagerBuilder.standard().withS3Client(s3).build()
         val upload = transferManager.upload(putRequest)
         upload.waitForCompletion()
-        transferManager.shutdownNow(false)
     }
 
     override fun deleteObjects(s3Keys: List<String>) {
-        val keysToDelete = s3Keys.map { DeleteObjectsRequest.KeyVersion(it) }.toList()
-        val deleteRequest = DeleteObjectsRequest(datastoreConfiguration.bucketName).withKeys(keysToDelete)
-        s3.deleteObjects(deleteRequest)
+        s3Keys.chunked(MAX_KEYS_PER_DELETE).forEach { chunk ->
+            val keysToDelete = chunk.map { DeleteObjectsRequest.KeyVersion(it) }
+            val deleteRequest = DeleteObjectsRequest(datastoreConfiguration.bucketName).withKeys(keysToDelete)
+            s3.deleteObjects(deleteRequest)
+        }
     }
 
     override fun deleteObject(s3Key: String) {
@@ -86,6 +103,39 @@ class AwsBlobDataService(
                 .map { it.get() }
     }
 
+    override fun putObjectsAsync(objects: Collection<BlobObject>): ListenableFuture<Unit> {
+        return transferExecutor.forEach(objects) { putObject(it.s3Key, it.data, it.contentType) }
+    }
+
+    override fun getObjectsAsync(keys: Collection<Any>): ListenableFuture<List<Any>> {
+        return Futures.transform(
+                getPresignedUrlsAsync(keys),
+                Function<List<URL>, List<Any>> { urls -> urls!! },
+                MoreExecutors.directExecutor()
+        )
+    }
+
+    override fun getPresignedUrlsAsync(keys: Collection<Any>): ListenableFuture<List<URL>> {
+        return Futures.transform(
+                transferExecutor.mapBatches(keys) { getPresignedUrlsInBatch(it) },
+                Function<Map<Any, URL>, List<URL>> { urls -> keys.map { urls!!.getValue(it) } },
+                MoreExecutors.directExecutor()
+        )
+    }
+
+    override fun deleteObjectsAsync(s3Keys: List<String>): ListenableFuture<Unit> {
+        return transferExecutor.forEach(s3Keys.chunked(MAX_KEYS_PER_DELETE)) { deleteObjects(it) }
+    }
+
+    /**
+     * Presigns [keys] on the calling thread, which is already a transfer thread.
+     */
+    private fun getPresignedUrlsInBatch(keys: List<Any>): Map<Any, URL> {
+        val expirationTime = Date()
+        expirationTime.time = expirationTime.time + datastoreConfiguration.timeToLive
+        return keys.associateWith { getPresignedUrl(it as String, expirationTime, HttpMethod.GET, Optional.empty()) }
+    }
+
     override fun getPresignedUrl(key: Any, expiration: Date, httpMethod: HttpMethod, contentType: Optional<String>): URL {
         val urlRequest = GeneratePresignedUrlRequest(datastoreConfiguration.bucketName, key.toString()).withMethod(
                 httpMethod
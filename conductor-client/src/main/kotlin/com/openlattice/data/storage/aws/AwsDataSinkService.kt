@@ -4,19 +4,13 @@ import com.amazonaws.HttpMethod
 import com.openlattice.data.integration.S3EntityData
 import com.openlattice.data.storage.ByteBlobDataManager
 import com.openlattice.data.storage.PostgresEntityDataQueryService
-import com.openlattice.data.storage.partitions.PartitionManager
 import com.openlattice.edm.type.PropertyType
-import com.zaxxer.hikari.HikariDataSource
 import java.util.*
 
 class AwsDataSinkService(
-        partitionManager: PartitionManager,
         private val byteBlobDataManager: ByteBlobDataManager,
-        hds: HikariDataSource,
-        reader: HikariDataSource
+        private val dqs: PostgresEntityDataQueryService
 ) {
-    private val dqs = PostgresEntityDataQueryService(hds, reader, byteBlobDataManager, partitionManager)
-
     fun generatePresignedUrls(
             entities: List<S3EntityData>,
             authorizedPropertyTypes: Map<UUID, Map<UUID, PropertyType>>
@@ -0,0 +1,141 @@
+package com.openlattice.data.storage.partitions
+
+import com.codahale.metrics.MetricRegistry
+import com.hazelcast.core.EntryEvent
+import com.hazelcast.map.IMap
+import com.hazelcast.map.MapEvent
+import com.hazelcast.map.listener.EntryAddedListener
+import com.hazelcast.map.listener.EntryEvictedListener
+import com.hazelcast.map.listener.EntryExpiredListener
+import com.hazelcast.map.listener.EntryMergedListener
+import com.hazelcast.map.listener.EntryRemovedListener
+import com.hazelcast.map.listener.EntryUpdatedListener
+import com.hazelcast.map.listener.MapClearedListener
+import com.hazelcast.map.listener.MapEvictedListener
+import com.openlattice.edm.EntitySet
+import com.openlattice.edm.processors.GetPartitionsFromEntitySetEntryProcessor
+import com.openlattice.rhizome.DelegatedIntSet
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Node local table of the partitions assigned to each entity set.
+ *
+ * Partitions only change when an entity set is created, deleted or repartitioned, all of which update the
+ * [HazelcastMap.ENTITY_SETS] map, so entries are invalidated by an entry listener on that map and otherwise never
+ * expire. Partitions are stored as [IntArray]s in the order they are assigned to the entity set, which is the order
+ * [getPartition] depends on.
+ *
+ * Entity sets without partitions are never cached, since they are usually entity sets that have not been created yet
+ * and would otherwise read as empty until the creation event arrives.
+ */
+class EntitySetPartitionTable(
+        private val entitySets: IMap<UUID, EntitySet>,
+        metricRegistry: MetricRegistry
+) : EntryAddedListener<UUID, EntitySet>,
+    EntryRemovedListener<UUID, EntitySet>,
+    EntryUpdatedListener<UUID, EntitySet>,
+    EntryMergedListener<UUID, EntitySet>,
+    EntryExpiredListener<UUID, EntitySet>,
+    EntryEvictedListener<UUID, EntitySet>,
+    MapClearedListener,
+    MapEvictedListener {
+
+    private val partitions = ConcurrentHashMap<UUID, IntArray>()
+
+    /*
+     * Bumped on every invalidation, so that partitions loaded concurrently with an invalidation are not cached.
+     */
+    private val invalidations = AtomicLong()
+
+    private val hits = metricRegistry.meter(MetricRegistry.name(EntitySetPartitionTable::class.java, "hits"))
+    private val remoteLoads = metricRegistry.meter(
+            MetricRegistry.name(EntitySetPartitionTable::class.java, "remoteLoads")
+    )
+    private val invalidationMeter = metricRegistry.meter(
+            MetricRegistry.name(EntitySetPartitionTable::class.java, "invalidations")
+    )
+
+    init {
+        entitySets.addEntryListener(this, false)
+    }
+
+    fun get(entitySetId: UUID): IntArray {
+        return getAll(setOf(entitySetId)).getValue(entitySetId)
+    }
+
+    /**
+     * Returns the partitions of every requested entity set, loading the ones that are not cached from the cluster in
+     * a single call. Entity sets that do not exist have no partitions.
+     */
+    fun getAll(entitySetIds: Set<UUID>): Map<UUID, IntArray> {
+        val cached = HashMap<UUID, IntArray>(entitySetIds.size)
+        val missing = mutableSetOf<UUID>()
+
+        entitySetIds.forEach { entitySetId ->
+            val entitySetPartitions = partitions[entitySetId]
+            if (entitySetPartitions == null) {
+                missing.add(entitySetId)
+            } else {
+                cached[entitySetId] = entitySetPartitions
+            }
+        }
+        hits.mark(cached.size.toLong())
+
+        if (missing.isEmpty()) {
+            return cached
+        }
+
+        remoteLoads.mark()
+        val generation = invalidations.get()
+        @Suppress("UNCHECKED_CAST")
+        val loaded = entitySets.executeOnKeys(
+                missing,
+                GetPartitionsFromEntitySetEntryProcessor()
+        ) as Map<UUID, DelegatedIntSet?>
+
+        missing.forEach { entitySetId ->
+            cached[entitySetId] = loaded[entitySetId]?.toIntArray() ?: IntArray(0)
+        }
+
+        if (generation == invalidations.get()) {
+            missing.forEach { entitySetId ->
+                val entitySetPartitions = cached.getValue(entitySetId)
+                if (entitySetPartitions.isNotEmpty()) {
+                    partitions[entitySetId] = entitySetPartitions
+                }
+            }
+        }
+
+        return cached
+    }
+
+    fun invalidate(entitySetId: UUID) {
+        invalidations.incrementAndGet()
+        partitions.remove(entitySetId)
+        invalidationMeter.mark()
+    }
+
+    fun invalidateAll() {
+        invalidations.incrementAndGet()
+        partitions.clear()
+        invalidationMeter.mark()
+    }
+
+    override fun entryAdded(event: EntryEvent<UUID, EntitySet>) = invalidate(event.key)
+
+    override fun entryRemoved(event: EntryEvent<UUID, EntitySet>) = invalidate(event.key)
+
+    override fun entryUpdated(event: EntryEvent<UUID, EntitySet>) = invalidate(event.key)
+
+    override fun entryMerged(event: EntryEvent<UUID, EntitySet>) = invalidate(event.key)
+
+    override fun entryExpired(event: EntryEvent<UUID, EntitySet>) = invalidate(event.key)
+
+    override fun entryEvicted(event: EntryEvent<UUID, EntitySet>) = invalidate(event.key)
+
+    override fun mapCleared(event: MapEvent) = invalidateAll()
+
+    override fun mapEvicted(event: MapEvent) = invalidateAll()
+}
@@ -1,11 +1,11 @@
 package com.openlattice.data.storage.partitions
 
+import com.codahale.metrics.MetricRegistry
 import com.geekbeast.rhizome.hazelcast.DelegatedIntList
 import com.google.common.base.Preconditions.checkArgument
 import com.hazelcast.core.HazelcastInstance
-import com.openlattice.data.storage.PostgresEntitySetSizesInitializationTask.Companion.ENTITY_SET_SIZES_VIEW
+import com.openlattice.data.storage.ENTITY_SET_COUNTS
 import com.openlattice.edm.EntitySet
-import com.openlattice.edm.processors.GetPartitionsFromEntitySetEntryProcessor
 import com.openlattice.hazelcast.HazelcastMap
 import com.openlattice.organizations.processors.OrganizationReadEntryProcessor
 import com.openlattice.postgres.PostgresColumn.*
@@ -13,7 +13,6 @@ import com.openlattice.postgres.PostgresTable.ENTITY_SETS
 import com.openlattice.postgres.ResultSetAdapters
 import com.openlattice.postgres.streams.BasePostgresIterable
 import com.openlattice.postgres.streams.StatementHolderSupplier
-import com.openlattice.rhizome.DelegatedIntSet
 import com.zaxxer.hikari.HikariDataSource
 import org.springframework.stereotype.Service
 import java.util.*
@@ -27,12 +26,14 @@ import java.util.*
 class PartitionManager @JvmOverloads constructor(
         hazelcastInstance: HazelcastInstance,
         private val hds: HikariDataSource,
-        val numPartitions: Int = 257
+        val numPartitions: Int = 257,
+        metricRegistry: MetricRegistry
 ) {
     private val DEFAULT_ORG_PARTITION_COUNT = 2
     private val partitionList = mutableListOf<Int>()
     private val entitySets = HazelcastMap.ENTITY_SETS.getMap( hazelcastInstance )
     private val organizations = HazelcastMap.ORGANIZATIONS.getMap( hazelcastInstance )
+    private val partitionTable = EntitySetPartitionTable(entitySets, metricRegistry)
 
     init {
         setPartitions(numPartitions)
@@ -54,11 +55,29 @@ class PartitionManager @JvmOverloads constructor(
     }
 
     fun getEntitySetPartitions(entitySetId: UUID): Set<Int> {
-        return entitySets.executeOnKey(entitySetId, GetPartitionsFromEntitySetEntryProcessor()) as DelegatedIntSet
+        return partitionTable.get(entitySetId).toCollection(LinkedHashSet())
     }
 
     fun getPartitionsByEntitySetId(entitySetIds: Set<UUID>): Map<UUID, Set<Int>> {
-        return entitySets.executeOnKeys(entitySetIds, GetPartitionsFromEntitySetEntryProcessor()) as Map<UUID, DelegatedIntSet>
+        return partitionTable.getAll(entitySetIds).mapValues { it.value.toCollection(LinkedHashSet()) }
+    }
+
+    /**
+     * Returns the partitions of an entity set in assignment order, from the node local partition table.
+     *
+     * The returned array is shared and must not be modified.
+     */
+    fun getEntitySetPartitionArray(entitySetId: UUID): IntArray {
+        return partitionTable.get(entitySetId)
+    }
+
+    /**
+     * Returns the partitions of each entity set in assignment order, from the node local partition table.
+     *
+     * The returned arrays are shared and must not be modified.
+     */
+    fun getPartitionArraysByEntitySetId(entitySetIds: Set<UUID>): Map<UUID, IntArray> {
+        return partitionTable.getAll(entitySetIds)
     }
 
     /**
@@ -134,11 +153,11 @@ class PartitionManager @JvmOverloads constructor(
 }
 
 private val EMPTIEST_PARTITIONS = """
-        SELECT $ENTITY_SET_SIZES_VIEW.$COUNT, ${ENTITY_SETS.name}.${PARTITIONS.name} 
+        SELECT $ENTITY_SET_COUNTS.$COUNT, ${ENTITY_SETS.name}.${PARTITIONS.name} 
             FROM ${ENTITY_SETS.name} 
-            INNER JOIN $ENTITY_SET_SIZES_VIEW 
-            ON ${ENTITY_SETS.name}.${ID.name} = $ENTITY_SET_SIZES_VIEW.${ENTITY_SET_ID.name} 
-            WHERE $ENTITY_SET_SIZES_VIEW.$COUNT > 0 
+            INNER JOIN $ENTITY_SET_COUNTS 
+            ON ${ENTITY_SETS.name}.${ID.name} = $ENTITY_SET_COUNTS.${ENTITY_SET_ID.name} 
+            WHERE $ENTITY_SET_COUNTS.$COUNT > 0 
             AND array_length( ${PARTITIONS.name}, 1) > 0
         """.trimIndent()
 
@@ -38,7 +38,7 @@ import com.openlattice.authorization.*
 import com.openlattice.authorization.securable.SecurableObjectType
 import com.openlattice.authorization.securable.SecurableObjectType.PropertyTypeInEntitySet
 import com.openlattice.controllers.exceptions.ResourceNotFoundException
-import com.openlattice.data.storage.PostgresEntitySetSizesInitializationTask
+import com.openlattice.data.storage.ENTITY_SET_COUNTS
 import com.openlattice.data.storage.partitions.PartitionManager
 import com.openlattice.datastore.util.Util
 import com.openlattice.edm.EntitySet
@@ -276,7 +276,7 @@ class EntitySetService(
 
     private val GET_ENTITY_SET_COUNT = """
         SELECT ${PostgresColumn.COUNT} 
-            FROM ${PostgresEntitySetSizesInitializationTask.ENTITY_SET_SIZES_VIEW} 
+            FROM $ENTITY_SET_COUNTS 
             WHERE ${PostgresColumn.ENTITY_SET_ID.name} = ?
     """.trimIndent()
 
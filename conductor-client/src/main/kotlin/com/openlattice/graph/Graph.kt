@@ -61,6 +61,7 @@ import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
 import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Service
 import java.security.InvalidParameterException
+import java.sql.Connection
 import java.sql.PreparedStatement
 import java.time.LocalDate
 import java.time.LocalTime
@@ -77,6 +78,9 @@ import kotlin.streams.toList
 const val SELF_ENTITY_SET_ID = "self_entity_set_id"
 const val SELF_ENTITY_KEY_ID = "self_entity_key_id"
 private const val BATCH_SIZE = 10_000
+private const val EDGE_MUTATION_WINDOW_SIZE = 100_000
+private const val EDGE_MUTATION_CHUNK_SIZE = 10_000
+private const val TOP_ENTITIES_BATCH_SIZE = 10_000
 
 private val logger = LoggerFactory.getLogger(Graph::class.java)
 
@@ -94,10 +98,10 @@ class Graph(
     /* Create */
 
     override fun createEdges(keys: Set<DataEdgeKey>): WriteEvent {
-        val partitionsInfoByEntitySet = partitionManager.getPartitionsByEntitySetId(
+        val partitionsInfoByEntitySet = partitionManager.getPartitionArraysByEntitySetId(
                 keys.flatMap { listOf(it.src, it.dst, it.edge) }
                         .map { it.entitySetId }.toSet()
-        ).mapValues { it.value.toList() }
+        )
 
         hds.connection.use { connection ->
             val ps = connection.prepareStatement(EDGES_UPSERT_SQL)
@@ -114,71 +118,123 @@ class Graph(
     }
 
 
-    private fun addKeyIds(ps: PreparedStatement, dataEdgeKey: DataEdgeKey, startIndex: Int = 1) {
-        val edk = dataEdgeKey.src
-        val partitions = partitionManager.getEntitySetPartitions(edk.entitySetId)
-        val partition = getPartition(
-                edk.entityKeyId, partitions.toList()
-        )
-        ps.setObject(startIndex, partition)
-        ps.setObject(startIndex + 1, dataEdgeKey.src.entityKeyId)
-        ps.setObject(startIndex + 2, dataEdgeKey.dst.entityKeyId)
-        ps.setObject(startIndex + 3, dataEdgeKey.edge.entityKeyId)
-        ps.addBatch()
-    }
-
     /* Delete  */
 
     override fun clearEdges(keys: Iterable<DataEdgeKey>): Int {
         val version = -System.currentTimeMillis()
-        return lockAndOperateOnEdges(keys, CLEAR_BY_VERTEX_SQL) { lockStmt, operationStmt, dataEdgeKey ->
-
-            addKeyIds(lockStmt, dataEdgeKey)
+        return mutateEdges(keys, CLEAR_EDGES_IN_PARTITION_SQL, "clear") { ps, partition, chunk ->
+            ps.setLong(1, version)
+            ps.setLong(2, version)
+            bindEdgeKeysInPartition(ps, partition, chunk, 3)
+        }
+    }
 
-            clearEdgesAddVersion(operationStmt, version)
-            addKeyIds(operationStmt, dataEdgeKey, 3)
-            clearEdgesAddVersion(operationStmt, version)
-            addKeyIds(operationStmt, dataEdgeKey, 3)
-            clearEdgesAddVersion(operationStmt, version)
-            addKeyIds(operationStmt, dataEdgeKey, 3)
+    override fun deleteEdges(keys: Iterable<DataEdgeKey>): WriteEvent {
+        val updates = mutateEdges(keys, DELETE_EDGES_IN_PARTITION_SQL, "delete") { ps, partition, chunk ->
+            bindEdgeKeysInPartition(ps, partition, chunk, 1)
         }
+        return WriteEvent(System.currentTimeMillis(), updates)
     }
 
-    private fun lockAndOperateOnEdges(
+    /**
+     * Locks and mutates edges in bounded chunks.
+     *
+     * Keys are read in windows of [EDGE_MUTATION_WINDOW_SIZE] and partitions are resolved once per src entity set.
+     * Each window is grouped by partition and sorted by src entity key id, and each chunk of at most
+     * [EDGE_MUTATION_CHUNK_SIZE] edges of a single partition is locked and mutated with one set based statement each
+     * in its own transaction.
+     */
+    private fun mutateEdges(
             keys: Iterable<DataEdgeKey>,
-            statement: String,
-            statementSupplier: (lockStmt: PreparedStatement, operationStmt: PreparedStatement, dataEdgeKey: DataEdgeKey) -> Unit
+            mutationSql: String,
+            operation: String,
+            bindMutation: (ps: PreparedStatement, partition: Int, chunk: List<DataEdgeKey>) -> Unit
     ): Int {
+        val edgesMutated = metricRegistry.meter(MetricRegistry.name(Graph::class.java, "edges", operation))
+        val chunkTimer = metricRegistry.timer(MetricRegistry.name(Graph::class.java, "edges", operation, "chunks"))
+        val partitionsByEntitySet = mutableMapOf<UUID, IntArray>()
+        var processed = 0L
+        var updates = 0
+
         hds.connection.use { connection ->
-            var updates = 0
-            connection.autoCommit = false
-            connection.prepareStatement(LOCK_BY_VERTEX_SQL).use { psLocks ->
-                connection.prepareStatement(statement).use { psExecute ->
-                    keys.forEach { dataEdgeKey ->
-                        statementSupplier(psLocks, psExecute, dataEdgeKey)
+            connection.prepareStatement(LOCK_EDGES_IN_PARTITION_SQL).use { psLocks ->
+                connection.prepareStatement(mutationSql).use { psMutation ->
+                    keys.asSequence().chunked(EDGE_MUTATION_WINDOW_SIZE).forEach { window ->
+                        val missingEntitySetIds = window.mapTo(mutableSetOf()) { it.src.entitySetId } -
+                                partitionsByEntitySet.keys
+                        if (missingEntitySetIds.isNotEmpty()) {
+                            partitionsByEntitySet.putAll(
+                                    partitionManager.getPartitionArraysByEntitySetId(missingEntitySetIds)
+                            )
+                        }
+
+                        window
+                                .groupBy {
+                                    getPartition(it.src.entityKeyId, partitionsByEntitySet.getValue(it.src.entitySetId))
+                                }
+                                .toSortedMap()
+                                .forEach { (partition, partitionKeys) ->
+                                    partitionKeys
+                                            .sortedBy { it.src.entityKeyId }
+                                            .chunked(EDGE_MUTATION_CHUNK_SIZE)
+                                            .forEach { chunk ->
+                                                chunkTimer.time().use {
+                                                    updates += lockAndMutateChunk(
+                                                            connection, psLocks, psMutation, partition, chunk, bindMutation
+                                                    )
+                                                }
+                                                edgesMutated.mark(chunk.size.toLong())
+                                            }
+                                }
+
+                        processed += window.size
+                        if (window.size == EDGE_MUTATION_WINDOW_SIZE) {
+                            logger.info("Processed {} edges to {} so far.", processed, operation)
+                        }
                     }
-                    psLocks.executeBatch()
-                    updates = psExecute.executeBatch().sum()
                 }
             }
-            connection.commit()
-
-            connection.autoCommit = true
-            return updates
         }
-    }
 
-    private fun clearEdgesAddVersion(ps: PreparedStatement, version: Long) {
-        ps.setLong(1, version)
-        ps.setLong(2, version)
+        return updates
     }
 
-    override fun deleteEdges(keys: Iterable<DataEdgeKey>): WriteEvent {
-        val updates = lockAndOperateOnEdges(keys, DELETE_BY_VERTEX_SQL) { lockStmt, operationStmt, dataEdgeKey ->
-            addKeyIds(lockStmt, dataEdgeKey)
-            addKeyIds(operationStmt, dataEdgeKey)
+    private fun lockAndMutateChunk(
+            connection: Connection,
+            psLocks: PreparedStatement,
+            psMutation: PreparedStatement,
+            partition: Int,
+            chunk: List<DataEdgeKey>,
+            bindMutation: (ps: PreparedStatement, partition: Int, chunk: List<DataEdgeKey>) -> Unit
+    ): Int {
+        connection.autoCommit = false
+        try {
+            bindEdgeKeysInPartition(psLocks, partition, chunk, 1)
+            psLocks.executeQuery().close()
+
+            bindMutation(psMutation, partition, chunk)
+            val updates = psMutation.executeUpdate()
+            connection.commit()
+            return updates
+        } catch (ex: Exception) {
+            connection.rollback()
+            throw ex
+        } finally {
+            connection.autoCommit = true
         }
-        return WriteEvent(System.currentTimeMillis(), updates)
+    }
+
+    private fun bindEdgeKeysInPartition(
+            ps: PreparedStatement,
+            partition: Int,
+            chunk: List<DataEdgeKey>,
+            startIndex: Int
+    ) {
+        val connection = ps.connection
+        ps.setInt(startIndex, partition)
+        ps.setArray(startIndex + 1, PostgresArrays.createUuidArray(connection, chunk.map { it.src.entityKeyId }))
+        ps.setArray(startIndex + 2, PostgresArrays.createUuidArray(connection, chunk.map { it.dst.entityKeyId }))
+        ps.setArray(startIndex + 3, PostgresArrays.createUuidArray(connection, chunk.map { it.edge.entityKeyId }))
     }
 
     /* Select */
@@ -247,6 +303,9 @@ class Graph(
      * 2. Apply relevant filters for person entity sets with an inner join
      * 3. Apply relevant filters for associations with an innner join.
      *
+     * Rankings over normal entity sets are computed by [computeTopEntitiesStreaming] with bounded memory. Rankings
+     * over linked entity sets group source entities by linking id across partitions, so they are still computed by
+     * [computeTopEntitiesInMemory].
      */
     @Timed
     override fun computeTopEntities(
@@ -256,6 +315,26 @@ class Graph(
             filteredRankings: List<AuthorizedFilteredNeighborsRanking>,
             linked: Boolean,
             linkingEntitySetId: Optional<UUID>
+    ): AggregationResult {
+        return if (linked) {
+            computeTopEntitiesInMemory(limit, entitySetIds, authorizedPropertyTypes, filteredRankings, true)
+        } else {
+            computeTopEntitiesStreaming(limit, entitySetIds, authorizedPropertyTypes, filteredRankings)
+        }
+    }
+
+    /**
+     * Computes top entities by loading every source entity and every neighborhood into memory at once.
+     *
+     * Normal entity sets are computed by [computeTopEntitiesStreaming] instead, and are only computed here to check
+     * that both produce the same rankings.
+     */
+    internal fun computeTopEntitiesInMemory(
+            limit: Int,
+            entitySetIds: Set<UUID>,
+            authorizedPropertyTypes: Map<UUID, Map<UUID, PropertyType>>,
+            filteredRankings: List<AuthorizedFilteredNeighborsRanking>,
+            linked: Boolean
     ): AggregationResult {
         //Step 1:
         //Load all entity set data that satisfies filters
@@ -290,105 +369,17 @@ class Graph(
         val reverseLinkedEntities = linkedEntities.entries.groupBy({ it.value }, { it.key })
 
         val ascRankings = sortedSetOf<NeighborhoodRankingAggregationResult>()
-//        val neighbors = mutableMapOf<UUID, Map<UUID, Set<Any>>>()
-//        val associations = mutableMapOf<UUID, Map<UUID, Set<Any>>>()
-        val edgePairs = mutableMapOf<UUID, List<Pair<UUID, UUID>>>()
 
         val neighborhoods = metricRegistry.time(Graph::class.java, "aggregate-neighborhood") { log, context ->
             filteredRankings.parallelStream().flatMap { authorizedFilteredNeighborsRanking ->
-                logger.info("Filtered ranking: {}", authorizedFilteredNeighborsRanking)
-                val assocEntitySetIds = authorizedFilteredNeighborsRanking.associationSets.keys
-                val dstEntitySetIds = authorizedFilteredNeighborsRanking.entitySets.keys
-
-
-                val dst = authorizedFilteredNeighborsRanking.filteredNeighborsRanking.dst
-
-                var neighborsFilter = EntityNeighborsFilter(
-                        srcEntities.keys,
-                        if (dst) Optional.of(dstEntitySetIds) else Optional.of(entitySetIds),
-                        if (dst) Optional.of(entitySetIds) else Optional.of(dstEntitySetIds),
-                        Optional.of(assocEntitySetIds)
-                )
-
-                //Now we load all edges for this neighbor type into memory
-                val edges = getEdgesAndNeighborsForVertices(entitySetIds, PagedNeighborRequest(neighborsFilter))
-                        .toList()
-
-                logger.info("Edges: {}", edges.size)
-
-                val associationEntityKeyIds = edges
-                        .groupBy({ it.edge.entitySetId }, { it.edge.entityKeyId })
-                        .mapValues { Optional.of(it.value.toSet()) }
-
-                logger.info("Association entity key ids: {}", associationEntityKeyIds.size)
-
-                //Purposefully verbose for clarity.
-                val neighborEntityKeyIds = if (dst) {
-                    edges
-                            .groupBy({ it.src.entitySetId }, { it.src.entityKeyId })
-                            .mapValues { Optional.of(it.value.toSet()) }
-                } else {
-                    edges
-                            .groupBy({ it.dst.entitySetId }, { it.dst.entityKeyId })
-                            .mapValues { Optional.of(it.value.toSet()) }
-                }
-
-                logger.info("Neighbor entity key ids: {}", neighborEntityKeyIds.size)
-
-                val associationEntities = pgDataQueryService.getEntitiesWithPropertyTypeIds(
-                        associationEntityKeyIds,
-                        authorizedPropertyTypes,
-                        authorizedFilteredNeighborsRanking.filteredNeighborsRanking.associationFilters
-                ).toMap()
-
-                val neighborEntities = pgDataQueryService.getEntitiesWithPropertyTypeIds(
-                        neighborEntityKeyIds,
-                        authorizedPropertyTypes,
-                        authorizedFilteredNeighborsRanking.filteredNeighborsRanking.neighborFilters
-                ).toMap()
-
-                //Purposefully verbose for clarity.
-                //Need to filter out associations and neighbors not matching filters.
-                val groupedEdges = if (dst) {
-                    edges
-                            .asSequence()
-                            .filter { edge ->
-                                neighborEntities.containsKey(edge.src.entityKeyId) &&
-                                        associationEntities.containsKey(edge.edge.entityKeyId)
-                            }
-                            .groupBy(
-                                    {
-                                        if (linked) getLinkingId(linkedEntities, it.dst.entityKeyId)
-                                        else it.dst.entityKeyId
-                                    },
-                                    { it.edge.entityKeyId to it.src.entityKeyId }
-                            )
-                } else {
-                    edges.asSequence()
-                            .filter { edge ->
-                                neighborEntities.containsKey(edge.dst.entityKeyId) &&
-                                        associationEntities.containsKey(edge.edge.entityKeyId)
-                            }
-                            .groupBy(
-                                    {
-                                        if (linked) getLinkingId(linkedEntities, it.src.entityKeyId)
-                                        else it.src.entityKeyId
-                                    },
-                                    { it.edge.entityKeyId to it.dst.entityKeyId })
-                }
-
-                logger.info("Grouped edges: {}", groupedEdges.size)
-
-                edgePairs.putAll(groupedEdges)
-
                 try {
-                    computeAggregations(
+                    aggregateRanking(
                             authorizedFilteredNeighborsRanking,
-                            srcEntities,
-                            associationEntities,
-                            neighborEntities,
-                            groupedEdges,
-                            propertyTypes
+                            srcEntities.keys,
+                            entitySetIds,
+                            authorizedPropertyTypes,
+                            propertyTypes,
+                            linkedEntities
                     ).stream()
                 } catch (e: Exception) {
                     log.error("wat", e)
@@ -405,21 +396,7 @@ class Graph(
 
         metricRegistry.time(Graph::class.java, "select-top-n") { log, context ->
             neighborhoods.forEach { (entityKeyId, results) ->
-
-                val next = NeighborhoodRankingAggregationResult(
-                        entityKeyId,
-                        results.sumByDouble { it.score },
-                        results
-                )
-                if (ascRankings.size < limit) {
-                    ascRankings.add(next)
-                } else {
-                    if (ascRankings.first().score < next.score) {
-                        ascRankings.remove(ascRankings.first())
-                        ascRankings.add(next)
-                    }
-                }
-
+                offerRanking(ascRankings, entityKeyId, results, limit)
             }
             log.info("Selecting top $limit took ${context.stop() / 1000} ms")
         }
@@ -431,56 +408,301 @@ class Graph(
             } else {
                 rankings.map { it.entityKeyId }.toSet()
             }
-            val allNeighborsFilter = EntityNeighborsFilter(
-                    ekids,
-                    Optional.of(authorizedPropertyTypes.keys),
-                    Optional.of(authorizedPropertyTypes.keys),
-                    Optional.of(authorizedPropertyTypes.keys)
-            )
-            val allNeighborEdges = getEdgesAndNeighborsForVertices(entitySetIds, PagedNeighborRequest(allNeighborsFilter))
-            val associationEntityKeyIds = mutableMapOf<UUID, Optional<MutableSet<UUID>>>()
-            val neighborEntityKeyIds = mutableMapOf<UUID, Optional<MutableSet<UUID>>>()
-            val edges = mutableMapOf<UUID, MutableMap<UUID, UUID>>()
-            allNeighborEdges.forEach {
-                associationEntityKeyIds
-                        .getOrPut(it.edge.entitySetId) { Optional.of(mutableSetOf()) }
-                        .get()
-                        .add(it.edge.entityKeyId)
-
-                neighborEntityKeyIds
-                        .getOrPut(it.dst.entitySetId) { Optional.of(mutableSetOf()) }
-                        .get()
-                        .add(it.dst.entityKeyId)
-                edges.getOrPut(it.src.entityKeyId) { mutableMapOf() }[it.edge.entityKeyId] = it.dst.entityKeyId
-            }
-            val associations = pgDataQueryService.getEntitiesWithPropertyTypeIds(
-                    associationEntityKeyIds as Map<UUID, Optional<Set<UUID>>>,
-                    authorizedPropertyTypes
-            ).toMap()
-            var neighbors = pgDataQueryService.getEntitiesWithPropertyTypeIds(
-                    neighborEntityKeyIds as Map<UUID, Optional<Set<UUID>>>,
-                    authorizedPropertyTypes
-            ).toMap()
-            val allEntities = (srcEntities + associations + neighbors).mapValues { entityPair ->
-                entityPair.value.mapKeys { propertyTypes.getValue(it.key).type }
-            }
             try {
-                AggregationResult(
-                        rankings,
-                        allEntities,
-                        edges
-                )
+                prepareTopEntitiesResult(rankings, ekids, srcEntities, entitySetIds, authorizedPropertyTypes, propertyTypes)
             } finally {
                 log.info("Preparing results took ${context.stop() / 1000} ms")
             }
+        }
+    }
 
+    /**
+     * Computes top entities for normal entity sets without holding more than a batch of source entities and their
+     * neighborhoods in memory.
+     *
+     * Source entity key ids are read from the ids table one partition at a time, in pages of at most
+     * [TOP_ENTITIES_BATCH_SIZE] ids ordered by id, and each page is aggregated before the next one is read. Only the
+     * current top [limit] candidates and their aggregation results are kept between pages. Source entity data is only
+     * loaded for the final top [limit] entities.
+     */
+    private fun computeTopEntitiesStreaming(
+            limit: Int,
+            entitySetIds: Set<UUID>,
+            authorizedPropertyTypes: Map<UUID, Map<UUID, PropertyType>>,
+            filteredRankings: List<AuthorizedFilteredNeighborsRanking>
+    ): AggregationResult {
+        val propertyTypes = authorizedPropertyTypes.values.flatMap { it.values }.associateBy { it.id }
+        val loadSourceIdsTimer = metricRegistry.timer(
+                MetricRegistry.name(Graph::class.java, "top-entities", "load-source-ids")
+        )
+        val aggregateBatchTimer = metricRegistry.timer(
+                MetricRegistry.name(Graph::class.java, "top-entities", "aggregate-batch")
+        )
+        val prepareResultsTimer = metricRegistry.timer(
+                MetricRegistry.name(Graph::class.java, "top-entities", "prepare-results")
+        )
+
+        val ascRankings = sortedSetOf<NeighborhoodRankingAggregationResult>()
+        val partitions = partitionManager.getPartitionArraysByEntitySetId(entitySetIds)
+                .values
+                .flatMapTo(sortedSetOf<Int>()) { it.asIterable() }
+        var sourceEntityCount = 0L
+
+        partitions.forEach { partition ->
+            var lastEntityKeyId: UUID? = null
+            do {
+                val batch = loadSourceIdsTimer.time().use {
+                    getSourceEntityKeyIds(entitySetIds, partition, lastEntityKeyId)
+                }
+                if (batch.isEmpty()) {
+                    break
+                }
+                lastEntityKeyId = batch.last()
+                sourceEntityCount += batch.size
+
+                val neighborhoods = aggregateBatchTimer.time().use {
+                    val batchEntityKeyIds = batch.toSet()
+                    filteredRankings.parallelStream().flatMap { authorizedFilteredNeighborsRanking ->
+                        aggregateRanking(
+                                authorizedFilteredNeighborsRanking,
+                                batchEntityKeyIds,
+                                entitySetIds,
+                                authorizedPropertyTypes,
+                                propertyTypes
+                        ).stream()
+                    }.asSequence().groupBy { it.entityKeyId }
+                }
+
+                neighborhoods.forEach { (entityKeyId, results) ->
+                    offerRanking(ascRankings, entityKeyId, results, limit)
+                }
+            } while (batch.size == TOP_ENTITIES_BATCH_SIZE)
+        }
+
+        val result = prepareResultsTimer.time().use {
+            val rankings = ascRankings.descendingSet()
+            val ekids = rankings.mapTo(mutableSetOf()) { it.entityKeyId }
+            val srcEntities = if (ekids.isEmpty()) {
+                mapOf()
+            } else {
+                pgDataQueryService.getEntitiesWithPropertyTypeIds(
+                        entitySetIds.associateWith { Optional.of<Set<UUID>>(ekids) },
+                        authorizedPropertyTypes
+                ).toMap()
+            }
+            prepareTopEntitiesResult(rankings, ekids, srcEntities, entitySetIds, authorizedPropertyTypes, propertyTypes)
+        }
+
+        logger.info(
+                "Computed top {} of {} source entities across {} partitions.",
+                limit,
+                sourceEntityCount,
+                partitions.size
+        )
+
+        return result
+    }
+
+    /**
+     * Aggregates the neighborhoods of [srcEntityKeyIds] for a single filtered neighbor ranking.
+     *
+     * @param linkedEntities Entity key id to linking id of linked source entities. Empty for normal entity sets.
+     */
+    private fun aggregateRanking(
+            authorizedFilteredNeighborsRanking: AuthorizedFilteredNeighborsRanking,
+            srcEntityKeyIds: Set<UUID>,
+            entitySetIds: Set<UUID>,
+            authorizedPropertyTypes: Map<UUID, Map<UUID, PropertyType>>,
+            propertyTypes: Map<UUID, PropertyType>,
+            linkedEntities: Map<UUID, UUID> = mapOf()
+    ): List<FilteredNeighborsRankingAggregationResult> {
+        logger.debug("Filtered ranking: {}", authorizedFilteredNeighborsRanking)
+        val linked = linkedEntities.isNotEmpty()
+        val assocEntitySetIds = authorizedFilteredNeighborsRanking.associationSets.keys
+        val dstEntitySetIds = authorizedFilteredNeighborsRanking.entitySets.keys
+
+
+        val dst = authorizedFilteredNeighborsRanking.filteredNeighborsRanking.dst
+
+        val neighborsFilter = EntityNeighborsFilter(
+                srcEntityKeyIds,
+                if (dst) Optional.of(dstEntitySetIds) else Optional.of(entitySetIds),
+                if (dst) Optional.of(entitySetIds) else Optional.of(dstEntitySetIds),
+                Optional.of(assocEntitySetIds)
+        )
+
+        //Now we load all edges for this neighbor type into memory
+        val edges = getEdgesAndNeighborsForVertices(entitySetIds, PagedNeighborRequest(neighborsFilter))
+                .toList()
+
+        logger.debug("Edges: {}", edges.size)
+
+        val associationEntityKeyIds = edges
+                .groupBy({ it.edge.entitySetId }, { it.edge.entityKeyId })
+                .mapValues { Optional.of(it.value.toSet()) }
+
+        logger.debug("Association entity key ids: {}", associationEntityKeyIds.size)
+
+        //Purposefully verbose for clarity.
+        val neighborEntityKeyIds = if (dst) {
+            edges
+                    .groupBy({ it.src.entitySetId }, { it.src.entityKeyId })
+                    .mapValues { Optional.of(it.value.toSet()) }
+        } else {
+            edges
+                    .groupBy({ it.dst.entitySetId }, { it.dst.entityKeyId })
+                    .mapValues { Optional.of(it.value.toSet()) }
         }
+
+        logger.debug("Neighbor entity key ids: {}", neighborEntityKeyIds.size)
+
+        val associationEntities = pgDataQueryService.getEntitiesWithPropertyTypeIds(
+                associationEntityKeyIds,
+                authorizedPropertyTypes,
+                authorizedFilteredNeighborsRanking.filteredNeighborsRanking.associationFilters
+        ).toMap()
+
+        val neighborEntities = pgDataQueryService.getEntitiesWithPropertyTypeIds(
+                neighborEntityKeyIds,
+                authorizedPropertyTypes,
+                authorizedFilteredNeighborsRanking.filteredNeighborsRanking.neighborFilters
+        ).toMap()
+
+        //Purposefully verbose for clarity.
+        //Need to filter out associations and neighbors not matching filters.
+        val groupedEdges = if (dst) {
+            edges
+                    .asSequence()
+                    .filter { edge ->
+                        neighborEntities.containsKey(edge.src.entityKeyId) &&
+                                associationEntities.containsKey(edge.edge.entityKeyId)
+                    }
+                    .groupBy(
+                            {
+                                if (linked) getLinkingId(linkedEntities, it.dst.entityKeyId)
+                                else it.dst.entityKeyId
+                            },
+                            { it.edge.entityKeyId to it.src.entityKeyId }
+                    )
+        } else {
+            edges.asSequence()
+                    .filter { edge ->
+                        neighborEntities.containsKey(edge.dst.entityKeyId) &&
+                                associationEntities.containsKey(edge.edge.entityKeyId)
+                    }
+                    .groupBy(
+                            {
+                                if (linked) getLinkingId(linkedEntities, it.src.entityKeyId)
+                                else it.src.entityKeyId
+                            },
+                            { it.edge.entityKeyId to it.dst.entityKeyId })
+        }
+
+        logger.debug("Grouped edges: {}", groupedEdges.size)
+
+        return computeAggregations(
+                authorizedFilteredNeighborsRanking,
+                srcEntityKeyIds,
+                associationEntities,
+                neighborEntities,
+                groupedEdges,
+                propertyTypes
+        )
+    }
+
+    /**
+     * Adds the combined ranking of an entity to [ascRankings] if it is among the top [limit] rankings seen so far.
+     */
+    private fun offerRanking(
+            ascRankings: SortedSet<NeighborhoodRankingAggregationResult>,
+            entityKeyId: UUID,
+            results: List<FilteredNeighborsRankingAggregationResult>,
+            limit: Int
+    ) {
+        val next = NeighborhoodRankingAggregationResult(
+                entityKeyId,
+                results.sumByDouble { it.score },
+                results
+        )
+        if (ascRankings.size < limit) {
+            ascRankings.add(next)
+        } else {
+            if (ascRankings.first().score < next.score) {
+                ascRankings.remove(ascRankings.first())
+                ascRankings.add(next)
+            }
+        }
+    }
+
+    private fun prepareTopEntitiesResult(
+            rankings: SortedSet<NeighborhoodRankingAggregationResult>,
+            ekids: Set<UUID>,
+            srcEntities: Map<UUID, Map<UUID, Set<Any>>>,
+            entitySetIds: Set<UUID>,
+            authorizedPropertyTypes: Map<UUID, Map<UUID, PropertyType>>,
+            propertyTypes: Map<UUID, PropertyType>
+    ): AggregationResult {
+        val allNeighborsFilter = EntityNeighborsFilter(
+                ekids,
+                Optional.of(authorizedPropertyTypes.keys),
+                Optional.of(authorizedPropertyTypes.keys),
+                Optional.of(authorizedPropertyTypes.keys)
+        )
+        val allNeighborEdges = getEdgesAndNeighborsForVertices(entitySetIds, PagedNeighborRequest(allNeighborsFilter))
+        val associationEntityKeyIds = mutableMapOf<UUID, Optional<MutableSet<UUID>>>()
+        val neighborEntityKeyIds = mutableMapOf<UUID, Optional<MutableSet<UUID>>>()
+        val edges = mutableMapOf<UUID, MutableMap<UUID, UUID>>()
+        allNeighborEdges.forEach {
+            associationEntityKeyIds
+                    .getOrPut(it.edge.entitySetId) { Optional.of(mutableSetOf()) }
+                    .get()
+                    .add(it.edge.entityKeyId)
+
+            neighborEntityKeyIds
+                    .getOrPut(it.dst.entitySetId) { Optional.of(mutableSetOf()) }
+                    .get()
+                    .add(it.dst.entityKeyId)
+            edges.getOrPut(it.src.entityKeyId) { mutableMapOf() }[it.edge.entityKeyId] = it.dst.entityKeyId
+        }
+        val associations = pgDataQueryService.getEntitiesWithPropertyTypeIds(
+                associationEntityKeyIds as Map<UUID, Optional<Set<UUID>>>,
+                authorizedPropertyTypes
+        ).toMap()
+        val neighbors = pgDataQueryService.getEntitiesWithPropertyTypeIds(
+                neighborEntityKeyIds as Map<UUID, Optional<Set<UUID>>>,
+                authorizedPropertyTypes
+        ).toMap()
+        val allEntities = (srcEntities + associations + neighbors).mapValues { entityPair ->
+            entityPair.value.mapKeys { propertyTypes.getValue(it.key).type }
+        }
+
+        return AggregationResult(
+                rankings,
+                allEntities,
+                edges
+        )
+    }
+
+    /**
+     * Returns the next page of at most [TOP_ENTITIES_BATCH_SIZE] source entity key ids of [partition] that sort after
+     * [after], or the first page if [after] is null.
+     */
+    private fun getSourceEntityKeyIds(entitySetIds: Set<UUID>, partition: Int, after: UUID?): List<UUID> {
+        return BasePostgresIterable(
+                PreparedStatementHolderSupplier(reader, SOURCE_ENTITY_KEY_IDS_IN_PARTITION_SQL, BATCH_SIZE) { ps ->
+                    ps.setArray(1, PostgresArrays.createUuidArray(ps.connection, entitySetIds))
+                    ps.setInt(2, partition)
+                    ps.setObject(3, after)
+                    ps.setObject(4, after)
+                    ps.setInt(5, TOP_ENTITIES_BATCH_SIZE)
+                }
+        ) { ResultSetAdapters.id(it) }.toList()
     }
 
     /**
      * Computes the aggregations for a filtered neighbor ranking
      * @param authorizedFilteredNeighborsRanking The aggregations to compute
-     * @param srcEntities The source entities.
+     * @param srcEntityKeyIds The source entity key ids.
      * @param associationEntities The association entities
      * @param neighborEntities The destination entities
      * @param edges Each source entity key id and its neighborhood of entity key ids
@@ -489,14 +711,14 @@ class Graph(
      */
     private fun computeAggregations(
             authorizedFilteredNeighborsRanking: AuthorizedFilteredNeighborsRanking,
-            srcEntities: Map<UUID, Map<UUID, Set<Any>>>,
+            srcEntityKeyIds: Set<UUID>,
             associationEntities: Map<UUID, Map<UUID, Set<Any>>>,
             neighborEntities: Map<UUID, Map<UUID, Set<Any>>>,
             edges: Map<UUID, List<Pair<UUID, UUID>>>,
             propertyTypes: Map<UUID, PropertyType>
     ): List<FilteredNeighborsRankingAggregationResult> {
         //For each entity compute the association and neighbor aggregations.
-        return srcEntities.mapNotNull { (entityKeyId, _) ->
+        return srcEntityKeyIds.mapNotNull { entityKeyId ->
             val neighbors = edges[entityKeyId] ?: return@mapNotNull FilteredNeighborsRankingAggregationResult(
                     entityKeyId,
                     0.0,
@@ -1096,13 +1318,36 @@ val EDGES_UPSERT_SQL = "INSERT INTO ${E.name} (${INSERT_COLUMNS.joinToString(","
 private val CLEAR_SQL = "UPDATE ${E.name} SET ${VERSION.name} = ?, ${VERSIONS.name} = ${VERSIONS.name} || ? WHERE "
 private val DELETE_SQL = "DELETE FROM ${E.name} WHERE "
 private val LOCK_SQL1 = "SELECT 1 FROM ${E.name} WHERE "
-private const val LOCK_SQL2 = " FOR UPDATE"
 
-private val VERTEX_FILTER_SQL = "${KEY_COLUMNS.joinToString(" = ? AND ")} = ? "
+/**
+ * 1. entity set ids - uuid array
+ * 2. partition - int
+ * 3. id after which to start, or null for the first page - uuid
+ * 4. id after which to start, or null for the first page - uuid
+ * 5. page size - int
+ */
+private val SOURCE_ENTITY_KEY_IDS_IN_PARTITION_SQL = "SELECT ${PostgresColumn.ID.name} FROM ${IDS.name} " +
+        "WHERE ${PostgresColumn.ENTITY_SET_ID.name} = ANY(?) AND ${PARTITION.name} = ? AND ${VERSION.name} > 0 " +
+        "AND (?::uuid IS NULL OR ${PostgresColumn.ID.name} > ?) " +
+        "ORDER BY ${PostgresColumn.ID.name} LIMIT ?"
+
+private val EDGE_ID_COLUMNS = "${SRC_ENTITY_KEY_ID.name},${DST_ENTITY_KEY_ID.name},${EDGE_ENTITY_KEY_ID.name}"
+
+/**
+ * Matches the edges of a single partition whose (src, dst, edge) entity key ids are given as three arrays of equal
+ * length. Restricting each statement to a single partition keeps it on a single shard.
+ *
+ * 1. partition
+ * 2. src entity key ids (array)
+ * 3. dst entity key ids (array)
+ * 4. edge entity key ids (array)
+ */
+private val EDGES_IN_PARTITION_FILTER_SQL = "${PARTITION.name} = ? AND ($EDGE_ID_COLUMNS) IN " +
+        "(SELECT * FROM unnest(?::uuid[], ?::uuid[], ?::uuid[]))"
 
-private val CLEAR_BY_VERTEX_SQL = "$CLEAR_SQL $VERTEX_FILTER_SQL"
-private val DELETE_BY_VERTEX_SQL = "$DELETE_SQL $VERTEX_FILTER_SQL"
-private val LOCK_BY_VERTEX_SQL = "$LOCK_SQL1 $VERTEX_FILTER_SQL $LOCK_SQL2"
+private val CLEAR_EDGES_IN_PARTITION_SQL = "$CLEAR_SQL $EDGES_IN_PARTITION_FILTER_SQL"
+private val DELETE_EDGES_IN_PARTITION_SQL = "$DELETE_SQL $EDGES_IN_PARTITION_FILTER_SQL"
+private val LOCK_EDGES_IN_PARTITION_SQL = "$LOCK_SQL1 $EDGES_IN_PARTITION_FILTER_SQL ORDER BY $EDGE_ID_COLUMNS FOR UPDATE"
 
 private val NEIGHBORHOOD_OF_ENTITY_SET_SQL = "SELECT * FROM ${E.name} WHERE " +
         "( (${SRC_ENTITY_SET_ID.name} = ?) OR (${EDGE_ENTITY_SET_ID.name} = ?) OR (${DST_ENTITY_SET_ID.name} = ?) )"
@@ -1375,7 +1620,7 @@ fun bindColumnsForEdge(
         dataEdgeKey: DataEdgeKey,
         version: Long,
         versions: java.sql.Array,
-        partitionsInfoByEntitySet: Map<UUID, List<Int>>
+        partitionsInfoByEntitySet: Map<UUID, IntArray>
 ) {
 
     val edk = dataEdgeKey.src
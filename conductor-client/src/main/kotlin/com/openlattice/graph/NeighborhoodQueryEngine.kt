@@ -0,0 +1,345 @@
+package com.openlattice.graph
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.openlattice.analysis.requests.Filter
+import com.openlattice.data.DataEdgeKey
+import com.openlattice.data.EntityDataKey
+import com.openlattice.data.storage.doBind
+import com.openlattice.edm.type.PropertyType
+import com.openlattice.postgres.DataTables.LAST_WRITE
+import com.openlattice.postgres.PostgresArrays
+import com.openlattice.postgres.PostgresColumn.*
+import com.openlattice.postgres.PostgresDataTables.Companion.getSourceDataColumnName
+import com.openlattice.postgres.PostgresTable.DATA
+import com.openlattice.postgres.PostgresTable.E
+import com.openlattice.postgres.streams.BasePostgresIterable
+import com.openlattice.postgres.streams.PreparedStatementHolderSupplier
+import com.zaxxer.hikari.HikariDataSource
+import java.sql.PreparedStatement
+import java.util.*
+
+/**
+ * Default number of distinct query shapes whose compiled sql is kept.
+ */
+const val DEFAULT_NEIGHBORHOOD_QUERY_CACHE_SIZE = 1_024L
+
+private const val SELECTION_INDEX = "selection_index"
+
+private val EDGE_COLUMNS = listOf(
+        SRC_ENTITY_SET_ID,
+        SRC_ENTITY_KEY_ID,
+        DST_ENTITY_SET_ID,
+        DST_ENTITY_KEY_ID,
+        EDGE_ENTITY_SET_ID,
+        EDGE_ENTITY_KEY_ID
+).joinToString(",") { it.name }
+
+/**
+ * Side of an edge that neighbors selected by a [NeighborhoodSelectionDefinition] are on. For [SRC] selections the
+ * entities at the center of the neighborhood are the destinations of the edges, for [DST] selections the sources.
+ */
+enum class NeighborhoodDirection {
+    SRC,
+    DST
+}
+
+/**
+ * A neighbor selection of a [NeighborhoodQuery] with its entity types resolved to entity sets.
+ */
+data class NeighborhoodSelectionDefinition(
+        val direction: NeighborhoodDirection,
+        val entityFilterDefinitions: List<AssociationFilterDefinition>,
+        val associationFilterDefinitions: List<AssociationFilterDefinition>
+) {
+    val entitySetIds: Set<UUID> = entityFilterDefinitions.flatMapTo(mutableSetOf()) { it.entitySetIds }
+    val associationEntitySetIds: Set<UUID> = associationFilterDefinitions.flatMapTo(mutableSetOf()) { it.entitySetIds }
+}
+
+/**
+ * An edge of a neighborhood along with the index of the selection that matched it.
+ */
+data class NeighborhoodEdge(val selectionIndex: Int, val edge: DataEdgeKey)
+
+/**
+ * The structure of a neighborhood query without any of its values. Queries with the same shape compile to the same
+ * sql, which lets postgres reuse its plan.
+ */
+internal data class NeighborhoodQueryShape(
+        val selections: List<NeighborhoodSelectionShape>,
+        val filterSql: String?
+)
+
+/**
+ * Each filter shape holds, per filtered property type, the sql fragments of the filters on its values.
+ */
+internal data class NeighborhoodSelectionShape(
+        val direction: NeighborhoodDirection,
+        val entityFilters: List<List<List<String>>>,
+        val associationFilters: List<List<List<String>>>
+)
+
+/**
+ * Compiles a whole neighborhood query into a single parameterized statement and streams back its edges.
+ *
+ * Every selection becomes a common table expression over the edges table, bound to arrays of center entity key ids
+ * and entity set ids, and every filter definition with filters becomes a common table expression over the data table.
+ * The selections are combined with `UNION ALL`, so a query takes a single round trip no matter how many selections
+ * it has and never creates views. Compiled sql is cached by [NeighborhoodQueryShape].
+ */
+class NeighborhoodQueryEngine(
+        private val hds: HikariDataSource,
+        cacheSize: Long = DEFAULT_NEIGHBORHOOD_QUERY_CACHE_SIZE
+) {
+    private val compiledShapes: Cache<NeighborhoodQueryShape, String> = CacheBuilder.newBuilder()
+            .maximumSize(cacheSize)
+            .build()
+
+    /**
+     * Streams the edges around the entities in [ids] matched by [selections]. Filters are only applied on the
+     * property types in [authorizedPropertyTypes] of each entity set, see [authorizeFilters]. Selections left without
+     * entity sets or association entity sets are skipped, but keep their index.
+     */
+    fun getNeighborhoodEdges(
+            ids: Map<UUID, Optional<Set<UUID>>>,
+            selections: List<NeighborhoodSelectionDefinition>,
+            propertyTypes: Map<UUID, PropertyType>,
+            authorizedPropertyTypes: Map<UUID, Set<UUID>>,
+            filter: Optional<Filter>
+    ): Iterable<NeighborhoodEdge> {
+        check(ids.isNotEmpty()) { "Ids must be provided." }
+
+        val indexedSelections = selections
+                .map { selection ->
+                    selection.copy(
+                            entityFilterDefinitions = authorizeFilters(
+                                    selection.entityFilterDefinitions,
+                                    authorizedPropertyTypes
+                            ),
+                            associationFilterDefinitions = authorizeFilters(
+                                    selection.associationFilterDefinitions,
+                                    authorizedPropertyTypes
+                            )
+                    )
+                }
+                .withIndex()
+                .filter { it.value.entitySetIds.isNotEmpty() && it.value.associationEntitySetIds.isNotEmpty() }
+        if (indexedSelections.isEmpty()) {
+            return listOf()
+        }
+
+        val sql = compile(indexedSelections.map { it.value }, propertyTypes, filter)
+        val selectionIndices = indexedSelections.map { it.index }
+
+        return BasePostgresIterable(PreparedStatementHolderSupplier(hds, sql) { ps ->
+            bind(ps, ids, indexedSelections.map { it.value }, filter)
+        }) { rs ->
+            NeighborhoodEdge(
+                    selectionIndices[rs.getInt(SELECTION_INDEX)],
+                    DataEdgeKey(
+                            EntityDataKey(
+                                    rs.getObject(SRC_ENTITY_SET_ID.name, UUID::class.java),
+                                    rs.getObject(SRC_ENTITY_KEY_ID.name, UUID::class.java)
+                            ),
+                            EntityDataKey(
+                                    rs.getObject(DST_ENTITY_SET_ID.name, UUID::class.java),
+                                    rs.getObject(DST_ENTITY_KEY_ID.name, UUID::class.java)
+                            ),
+                            EntityDataKey(
+                                    rs.getObject(EDGE_ENTITY_SET_ID.name, UUID::class.java),
+                                    rs.getObject(EDGE_ENTITY_KEY_ID.name, UUID::class.java)
+                            )
+                    )
+            )
+        }
+    }
+
+    internal fun compile(
+            selections: List<NeighborhoodSelectionDefinition>,
+            propertyTypes: Map<UUID, PropertyType>,
+            filter: Optional<Filter>
+    ): String {
+        val shape = getShape(selections, propertyTypes, filter)
+        return compiledShapes.get(shape) { buildNeighborhoodSql(shape) }
+    }
+
+    internal fun cachedShapeCount(): Long = compiledShapes.size()
+
+    /**
+     * Binds the values of a query in the order [buildNeighborhoodSql] places their parameters.
+     */
+    private fun bind(
+            ps: PreparedStatement,
+            ids: Map<UUID, Optional<Set<UUID>>>,
+            selections: List<NeighborhoodSelectionDefinition>,
+            filter: Optional<Filter>
+    ) {
+        val connection = ps.connection
+        val centerEntitySetIds = ids.filterValues { !it.isPresent }.keys
+        val centerIds = ids.values.flatMap { it.orElse(setOf()) }
+        var index = 1
+
+        selections.forEach { selection ->
+            ps.setArray(index++, PostgresArrays.createUuidArray(connection, centerEntitySetIds))
+            ps.setArray(index++, PostgresArrays.createUuidArray(connection, centerIds))
+            ps.setArray(index++, PostgresArrays.createUuidArray(connection, selection.entitySetIds))
+            ps.setArray(index++, PostgresArrays.createUuidArray(connection, selection.associationEntitySetIds))
+
+            (selection.entityFilterDefinitions + selection.associationFilterDefinitions)
+                    .filter { it.filters.isNotEmpty() }
+                    .forEach { definition ->
+                        ps.setArray(index++, PostgresArrays.createUuidArray(connection, definition.entitySetIds))
+                        definition.filters.forEach { (propertyTypeId, propertyTypeFilters) ->
+                            ps.setObject(index++, propertyTypeId)
+                            propertyTypeFilters.forEach { propertyTypeFilter ->
+                                val bindInfo = propertyTypeFilter.bindInfo(index)
+                                bindInfo.forEach { doBind(ps, it) }
+                                index += bindInfo.size
+                            }
+                        }
+                        filter.ifPresent {
+                            val bindInfo = it.bindInfo(index)
+                            bindInfo.forEach { info -> doBind(ps, info) }
+                            index += bindInfo.size
+                        }
+                    }
+        }
+
+        selections.forEach { selection ->
+            listOf(selection.entityFilterDefinitions, selection.associationFilterDefinitions).forEach { definitions ->
+                if (definitions.any { it.filters.isNotEmpty() }) {
+                    val unfilteredEntitySetIds = definitions
+                            .filter { it.filters.isEmpty() }
+                            .flatMap { it.entitySetIds }
+                    ps.setArray(index++, PostgresArrays.createUuidArray(connection, unfilteredEntitySetIds))
+                }
+            }
+        }
+    }
+
+    private fun getShape(
+            selections: List<NeighborhoodSelectionDefinition>,
+            propertyTypes: Map<UUID, PropertyType>,
+            filter: Optional<Filter>
+    ): NeighborhoodQueryShape {
+        fun filterShapes(definitions: List<AssociationFilterDefinition>) = definitions
+                .filter { it.filters.isNotEmpty() }
+                .map { definition ->
+                    definition.filters.map { (propertyTypeId, propertyTypeFilters) ->
+                        val valueColumn = getSourceDataColumnName(propertyTypes.getValue(propertyTypeId))
+                        propertyTypeFilters.map { it.asSql(valueColumn) }
+                    }
+                }
+
+        return NeighborhoodQueryShape(
+                selections.map {
+                    NeighborhoodSelectionShape(
+                            it.direction,
+                            filterShapes(it.entityFilterDefinitions),
+                            filterShapes(it.associationFilterDefinitions)
+                    )
+                },
+                filter.map { it.asSql(LAST_WRITE.name) }.orElse(null)
+        )
+    }
+}
+
+/**
+ * Restricts the filters of [definitions] to what can be read according to [authorizedPropertyTypes], so that filters
+ * never match on values that can't be read:
+ *
+ * 1. filters on property types that can't be read in any entity set of a definition are dropped;
+ * 2. definitions with remaining filters are narrowed to the entity sets in which all filtered property types can be
+ * read, and definitions left without entity sets are dropped.
+ */
+internal fun authorizeFilters(
+        definitions: List<AssociationFilterDefinition>,
+        authorizedPropertyTypes: Map<UUID, Set<UUID>>
+): List<AssociationFilterDefinition> {
+    return definitions
+            .map { definition ->
+                val filters = definition.filters.filterKeys { propertyTypeId ->
+                    definition.entitySetIds.any { authorizedPropertyTypes[it]?.contains(propertyTypeId) ?: false }
+                }
+                val entitySetIds = definition.entitySetIds.filterTo(mutableSetOf()) { entitySetId ->
+                    authorizedPropertyTypes[entitySetId]?.containsAll(filters.keys) ?: filters.isEmpty()
+                }
+                definition.copy(entitySetIds = entitySetIds, filters = filters)
+            }
+            .filter { it.entitySetIds.isNotEmpty() }
+}
+
+/**
+ * Builds the sql of a neighborhood query of the given [shape]. Parameters are, in order:
+ *
+ * For every selection:
+ * 1. center entity set ids whose entities are all selected (array)
+ * 2. center entity key ids (array)
+ * 3. neighbor entity set ids (array)
+ * 4. association entity set ids (array)
+ * 5. for every entity and association filter definition with filters: its entity set ids (array), then for every
+ * filtered property type its id followed by the parameters of its filters, then the parameters of the query filter.
+ *
+ * Then for every selection, if it has filtered entities, the entity set ids of its unfiltered entities (array), and if
+ * it has filtered associations, the entity set ids of its unfiltered associations (array).
+ */
+internal fun buildNeighborhoodSql(shape: NeighborhoodQueryShape): String {
+    val ctes = mutableListOf<String>()
+    val selects = shape.selections.mapIndexed { selectionIndex, selection ->
+        val edges = "edges_$selectionIndex"
+        val (centerEntitySetId, centerEntityKeyId, neighborEntitySetId, neighborEntityKeyId) = when (selection.direction) {
+            NeighborhoodDirection.SRC -> listOf(DST_ENTITY_SET_ID, DST_ENTITY_KEY_ID, SRC_ENTITY_SET_ID, SRC_ENTITY_KEY_ID)
+            NeighborhoodDirection.DST -> listOf(SRC_ENTITY_SET_ID, SRC_ENTITY_KEY_ID, DST_ENTITY_SET_ID, DST_ENTITY_KEY_ID)
+        }.map { it.name }
+
+        ctes.add(
+                "$edges AS (SELECT $EDGE_COLUMNS FROM ${E.name} " +
+                        "WHERE ($centerEntitySetId = ANY(?) OR $centerEntityKeyId = ANY(?)) " +
+                        "AND $neighborEntitySetId = ANY(?) AND ${EDGE_ENTITY_SET_ID.name} = ANY(?))"
+        )
+
+        val entityFilterCtes = selection.entityFilters.mapIndexed { filterIndex, filters ->
+            "filtered_${selectionIndex}_entities_$filterIndex".also {
+                ctes.add(buildFilteredEntitiesCte(it, filters, shape.filterSql))
+            }
+        }
+        val associationFilterCtes = selection.associationFilters.mapIndexed { filterIndex, filters ->
+            "filtered_${selectionIndex}_associations_$filterIndex".also {
+                ctes.add(buildFilteredEntitiesCte(it, filters, shape.filterSql))
+            }
+        }
+
+        val predicates = listOfNotNull(
+                buildFilteredPredicate(neighborEntitySetId, neighborEntityKeyId, entityFilterCtes),
+                buildFilteredPredicate(EDGE_ENTITY_SET_ID.name, EDGE_ENTITY_KEY_ID.name, associationFilterCtes)
+        )
+        val whereClause = if (predicates.isEmpty()) "" else " WHERE " + predicates.joinToString(" AND ")
+
+        "SELECT $selectionIndex AS $SELECTION_INDEX,$EDGE_COLUMNS FROM $edges$whereClause"
+    }
+
+    return "WITH " + ctes.joinToString(", ") + " " + selects.joinToString(" UNION ALL ")
+}
+
+/**
+ * Selects the ids of entities that have a value matching every filter of every filtered property type.
+ */
+private fun buildFilteredEntitiesCte(name: String, filters: List<List<String>>, filterSql: String?): String {
+    val propertyTypeClauses = filters.joinToString(" OR ") { propertyTypeFilters ->
+        "(" + (listOf("${PROPERTY_TYPE_ID.name} = ?") + propertyTypeFilters).joinToString(" AND ") + ")"
+    }
+    val filterClause = filterSql?.let { " AND $it" } ?: ""
+
+    return "$name AS (SELECT ${ID_VALUE.name} FROM ${DATA.name} " +
+            "WHERE ${ENTITY_SET_ID.name} = ANY(?) AND ${VERSION.name} > 0 AND ($propertyTypeClauses)$filterClause " +
+            "GROUP BY ${ID_VALUE.name} HAVING count(DISTINCT ${PROPERTY_TYPE_ID.name}) = ${filters.size})"
+}
+
+private fun buildFilteredPredicate(entitySetIdColumn: String, entityKeyIdColumn: String, filterCtes: List<String>): String? {
+    if (filterCtes.isEmpty()) {
+        return null
+    }
+
+    return "($entitySetIdColumn = ANY(?) OR " +
+            filterCtes.joinToString(" OR ") { "$entityKeyIdColumn IN (SELECT ${ID_VALUE.name} FROM $it)" } + ")"
+}
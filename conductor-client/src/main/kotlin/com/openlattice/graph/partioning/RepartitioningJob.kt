@@ -4,6 +4,8 @@ import com.fasterxml.jackson.annotation.JsonCreator
 import com.fasterxml.jackson.annotation.JsonIgnore
 import com.geekbeast.rhizome.jobs.AbstractDistributedJob
 import com.geekbeast.rhizome.jobs.JobStatus
+import com.google.common.annotations.VisibleForTesting
+import com.google.common.util.concurrent.ThreadFactoryBuilder
 import com.hazelcast.core.HazelcastInstance
 import com.hazelcast.map.IMap
 import com.openlattice.data.storage.getDirectPartitioningSelector
@@ -20,12 +22,62 @@ import com.openlattice.postgres.PostgresTableDefinition
 import com.openlattice.postgres.ResultSetAdapters
 import com.zaxxer.hikari.HikariDataSource
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings
+import java.sql.Connection
 import java.sql.PreparedStatement
 import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Default number of old partitions moved concurrently by a job.
+ */
+const val DEFAULT_REPARTITIONING_PARALLELISM = 4
+
+/**
+ * Number of entities whose rows are moved per chunk when a job starts.
+ */
+const val DEFAULT_REPARTITIONING_CHUNK_SIZE = 10_000
+const val MIN_REPARTITIONING_CHUNK_SIZE = 500
+const val MAX_REPARTITIONING_CHUNK_SIZE = 100_000
+
+/**
+ * Chunk sizes and the pause between batches are adjusted so that each chunk takes about this long.
+ */
+private const val TARGET_CHUNK_MILLIS = 2_000L
+private const val MIN_PAUSE_MILLIS = 250L
+private const val MAX_PAUSE_MILLIS = 30_000L
+
+/**
+ * Threads of a job that have been idle for this long are stopped, so jobs that are paused or no longer running on this
+ * member don't hold on to threads.
+ */
+private const val IDLE_THREAD_MILLIS = 60_000L
+
+private val LAST_ID = UUID(-1L, -1L)
 
 /**
  * Background job for re-partitioning data in an entity set.
  *
+ * Each old partition is walked in ranges of entity key ids that cover about [RepartitioningJobState.chunkSize] entities,
+ * and the rows of a range are moved with a single statement per table. Up to [RepartitioningJobState.parallelism] old
+ * partitions are walked at once. The position of every walk is checkpointed after each batch of chunks, so a paused or
+ * interrupted job resumes from its last batch. Chunks are idempotent, so a chunk interrupted before its checkpoint is
+ * simply run again.
+ *
+ * The job runs in two phases. In [RepartitioningPhase.POPULATE] rows are copied into their new partitions while writes
+ * still go to the old partitions. The entity set is then switched to its new partitions, and in
+ * [RepartitioningPhase.FINALIZE] each range is copied again, to pick up anything written in the meantime, and removed
+ * from its old partition in the same transaction. Ranges are never missing from both partitions, and writes to ranges
+ * that have already been moved go straight to their new partitions.
+ *
+ * The latency of chunks throttles the job: chunks are resized to take about [TARGET_CHUNK_MILLIS], and while the
+ * slowest chunk of a batch takes longer than that the job backs off with a growing pause between batches. The pause is
+ * checkpointed as the time the next batch is due, and the chunks of the next batch are scheduled for that time on the
+ * executor of the job, which has a thread for each of the [RepartitioningJobState.parallelism] concurrent walks.
+ *
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
  */
 class RepartitioningJob(
@@ -46,11 +98,13 @@ class RepartitioningJob(
         this.phase = phase
     }
 
+    @JvmOverloads
     constructor(
             entitySetId: UUID,
             oldPartitions: List<Int>,
-            newPartitions: Set<Int>
-    ) : this(RepartitioningJobState(entitySetId, oldPartitions, newPartitions))
+            newPartitions: Set<Int>,
+            parallelism: Int = DEFAULT_REPARTITIONING_PARALLELISM
+    ) : this(RepartitioningJobState(entitySetId, oldPartitions, newPartitions, parallelism = parallelism))
 
     override val resumable: Boolean = true
 
@@ -63,8 +117,8 @@ class RepartitioningJob(
     @Transient
     private lateinit var entitySets: IMap<UUID, EntitySet>
 
-    private val currentlyMigratingPartition: Int
-        get() = state.oldPartitions[state.currentlyMigratingPartitionIndex]
+    @Transient
+    private var executor: ScheduledThreadPoolExecutor? = null
 
     @JsonIgnore
     override fun setHazelcastInstance(hazelcastInstance: HazelcastInstance) {
@@ -78,10 +132,54 @@ class RepartitioningJob(
     }
 
     override fun initialize() {
-        state.needsMigrationCount = getNeedsMigrationCount()
+        try {
+            initializeState()
+        } catch (ex: Exception) {
+            abort { "Job $id terminated: ${ex.message}" }
+            throw ex
+        } finally {
+            publishJobState()
+        }
     }
 
     override fun processNextBatch() {
+        try {
+            moveNextChunks()
+        } catch (ex: Exception) {
+            shutdownExecutor()
+            publishJobState()
+            abort { "Job $id terminated: ${ex.message}" }
+            throw ex
+        }
+
+        if (!hasWorkRemaining) {
+            shutdownExecutor()
+        }
+
+        try {
+            //Pull status updates after every batch, so that pausing or canceling takes effect between batches.
+            updateJobStatus()
+        } finally {
+            //Even if something goes wrong with pulling job status let's save the state we are in.
+            publishJobState()
+        }
+    }
+
+    @VisibleForTesting
+    internal fun initializeState() {
+        state.needsMigrationCount = getNeedsMigrationCount()
+    }
+
+    /**
+     * Moves the next chunk of every partition being walked and advances their cursors, without publishing the state
+     * of the job. Once every old partition has been walked in [RepartitioningPhase.POPULATE], the entity set is
+     * switched to its new partitions and the job continues with [RepartitioningPhase.FINALIZE].
+     *
+     * Chunks that complete are counted and checkpointed even if another chunk of the batch fails, in which case the
+     * failure is rethrown afterwards.
+     */
+    @VisibleForTesting
+    internal fun moveNextChunks() {
         if (state.needsMigrationCount == 0L) {
             if (phase == RepartitioningPhase.POPULATE) {
                 setPartitions(state.entitySetId, state.newPartitions)
@@ -91,65 +189,69 @@ class RepartitioningJob(
             return
         }
 
-        /**
-         * Do an INSERT INTO ... SELECT FROM to re-partition the data.
-         *
-         * Entity key id dependent operations will not see data, until data has been inserted to the appropriate partition.
-         */
-
-        state.repartitionCount += repartition(REPARTITION_DATA_SQL)
-        state.repartitionCount += repartition(REPARTITION_IDS_SQL)
-        state.repartitionCount += repartition(REPARTITION_EDGES_SQL)
-
-        /**
-         * Phase 1
-         * Delete data whose partition doesn't match its computed partition.
-         */
-        if (phase == RepartitioningPhase.FINALIZE) {
-            state.deleteCount += delete(DELETE_DATA_SQL)
-            state.deleteCount += delete(DELETE_IDS_SQL)
-            state.deleteCount += delete(DELETE_EDGES_SQL)
+        //Start walking old partitions until we have as many walks as we are allowed to run concurrently.
+        while (state.partitionCursors.size < state.parallelism &&
+                state.currentlyMigratingPartitionIndex < state.oldPartitions.size) {
+            state.partitionCursors[state.oldPartitions[state.currentlyMigratingPartitionIndex++]] = UUID(0, 0)
+        }
+
+        //Chunks of a batch that follows a slow batch are scheduled for when the pause after the slow batch is over.
+        val delay = getNextBatchDelay()
+        val futures = state.partitionCursors.map { (partition, lowerBound) ->
+            getExecutor().schedule<ChunkResult>({ moveNextChunk(partition, lowerBound) }, delay, TimeUnit.MILLISECONDS)
         }
 
+        var failure: Throwable? = null
+        val results = futures.mapNotNull { future ->
+            try {
+                future.get()
+            } catch (ex: ExecutionException) {
+                failure = failure ?: ex.cause ?: ex
+                null
+            }
+        }
+
+        results.forEach { chunk ->
+            if (chunk.upperBound == LAST_ID) {
+                state.partitionCursors.remove(chunk.partition)
+            } else {
+                state.partitionCursors[chunk.partition] = chunk.upperBound
+            }
+            state.repartitionCount += chunk.repartitionCount
+            state.deleteCount += chunk.deleteCount
+        }
+        state.elapsedMillis += results.map { it.elapsedMillis }.max() ?: 0L
         result = state.repartitionCount + state.deleteCount
-        hasWorkRemaining = (++state.currentlyMigratingPartitionIndex < state.oldPartitions.size)
+
+        failure?.let { throw it }
+
+        throttle(results.map { it.elapsedMillis }.max() ?: 0L)
+        updateProgress()
+        logger.info(
+                "Repartitioning of entity set {} moved {} rows and deleted {} rows in phase {} ({} rows/s, ETA {} s).",
+                state.entitySetId,
+                state.repartitionCount,
+                state.deleteCount,
+                phase,
+                getRate(),
+                state.etaSeconds
+        )
+
+        hasWorkRemaining = state.partitionCursors.isNotEmpty() ||
+                state.currentlyMigratingPartitionIndex < state.oldPartitions.size
 
         //TODO: Consider adding completion hook to distributable jobs framework
         //Once we are done, set the partitions.
         if (!hasWorkRemaining && phase == RepartitioningPhase.POPULATE) {
-            //First, we save job progress with the latest job status so that the job can safely be resumed.
+            //Switch the entity set before the finalize phase is checkpointed, so that a job resumed in the finalize
+            //phase never removes rows from partitions that are still in use.
+            setPartitions(state.entitySetId, state.newPartitions)
             state.currentlyMigratingPartitionIndex = 0
             hasWorkRemaining = true
             phase = RepartitioningPhase.FINALIZE
-            try {
-                //Make sure we pull any status updates, in case job has been canceled or pause
-                updateJobStatus()
-            } finally {
-                //Even if something goes wrong with pulling job status let's save the state we are in.
-                publishJobState()
-            }
-
-            setPartitions(state.entitySetId, state.newPartitions)
             //The 4*getCount was an estimate, we remove estimate and addin updated value.
             state.needsMigrationCount /= 2
             state.needsMigrationCount += getNeedsMigrationCount()
-            //Another publish to save needsMigrationCount
-            publishJobState()
-        }
-    }
-
-    private fun delete(deleteSql: String): Long = hds.connection.use { connection ->
-        try {
-            connection.prepareStatement(deleteSql).use { deleteData ->
-                bindForDelete(deleteData)
-                logger.info(deleteData.toString())
-                deleteData.executeLargeUpdate()
-            }
-        } catch (ex: Exception) {
-            abort { "Job $id terminated: ${ex.message}" }
-            throw ex
-        } finally {
-            publishJobState()
         }
     }
 
@@ -157,38 +259,162 @@ class RepartitioningJob(
         progress = if (state.needsMigrationCount == 0L) {
             0
         } else {
-            ((100 * (state.repartitionCount + state.deleteCount)) / state.needsMigrationCount).toByte()
+            min(100L, (100 * (state.repartitionCount + state.deleteCount)) / state.needsMigrationCount).toByte()
         }
+
+        val rate = getRate()
+        val remaining = max(0L, state.needsMigrationCount - state.repartitionCount - state.deleteCount)
+        state.etaSeconds = if (rate > 0) remaining / rate else -1L
     }
 
-    private fun repartition(repartitionSql: String): Long = hds.connection.use { connection ->
-        updateProgress()
-        try {
-            connection.prepareStatement(repartitionSql).use { repartitionData ->
-                bind(repartitionData)
-                repartitionData.executeLargeUpdate()
+    private fun getRate(): Long = if (state.elapsedMillis == 0L) {
+        0L
+    } else {
+        1_000 * (state.repartitionCount + state.deleteCount) / state.elapsedMillis
+    }
+
+    /**
+     * Resizes chunks towards [TARGET_CHUNK_MILLIS] and backs off between batches while chunks take longer than that, by
+     * moving the time the next batch is due.
+     */
+    @VisibleForTesting
+    internal fun throttle(slowestChunkMillis: Long) {
+        state.chunkSize = when {
+            slowestChunkMillis > 2 * TARGET_CHUNK_MILLIS -> max(MIN_REPARTITIONING_CHUNK_SIZE, state.chunkSize / 2)
+            slowestChunkMillis < TARGET_CHUNK_MILLIS / 2 -> min(MAX_REPARTITIONING_CHUNK_SIZE, state.chunkSize * 2)
+            else -> state.chunkSize
+        }
+
+        state.pauseMillis = when {
+            slowestChunkMillis > TARGET_CHUNK_MILLIS -> min(MAX_PAUSE_MILLIS, max(MIN_PAUSE_MILLIS, 2 * state.pauseMillis))
+            state.pauseMillis <= MIN_PAUSE_MILLIS -> 0L
+            else -> state.pauseMillis / 2
+        }
+
+        state.nextBatchMillis = System.currentTimeMillis() + state.pauseMillis
+    }
+
+    /**
+     * Returns how long the chunks of the next batch have to wait before they are due.
+     */
+    @VisibleForTesting
+    internal fun getNextBatchDelay(): Long = max(0L, state.nextBatchMillis - System.currentTimeMillis())
+
+    /**
+     * Returns the executor of this job, with a thread for each partition walked concurrently. Threads that have been
+     * idle for [IDLE_THREAD_MILLIS] are stopped.
+     */
+    private fun getExecutor(): ScheduledThreadPoolExecutor = synchronized(this) {
+        executor ?: ScheduledThreadPoolExecutor(
+                state.parallelism,
+                ThreadFactoryBuilder().setDaemon(true).setNameFormat("repartitioning-job-${state.entitySetId}-%d").build()
+        ).apply {
+            setKeepAliveTime(IDLE_THREAD_MILLIS, TimeUnit.MILLISECONDS)
+            allowCoreThreadTimeOut(true)
+            executor = this
+        }
+    }
+
+    private fun shutdownExecutor() = synchronized(this) {
+        executor?.shutdown()
+        executor = null
+    }
+
+    /**
+     * Moves the rows of the next range of entity key ids in [partition] after [lowerBound]. In the finalize phase the
+     * rows are also removed from [partition] in the same transaction.
+     */
+    private fun moveNextChunk(partition: Int, lowerBound: UUID): ChunkResult {
+        val start = System.currentTimeMillis()
+        return hds.connection.use { connection ->
+            val upperBound = getUpperBound(connection, partition, lowerBound)
+            var repartitionCount = 0L
+            var deleteCount = 0L
+
+            if (phase == RepartitioningPhase.FINALIZE) {
+                connection.autoCommit = false
             }
-        } catch (ex: Exception) {
-            abort { "Job $id terminated: ${ex.message}" }
-            throw ex
-        } finally {
-            publishJobState()
+
+            try {
+                repartitionCount += repartition(connection, REPARTITION_DATA_SQL, partition, lowerBound, upperBound)
+                repartitionCount += repartition(connection, REPARTITION_IDS_SQL, partition, lowerBound, upperBound)
+                repartitionCount += repartition(connection, REPARTITION_EDGES_SQL, partition, lowerBound, upperBound)
+
+                /**
+                 * Phase 1
+                 * Delete data whose partition doesn't match its computed partition.
+                 */
+                if (phase == RepartitioningPhase.FINALIZE) {
+                    deleteCount += delete(connection, DELETE_DATA_SQL, partition, lowerBound, upperBound)
+                    deleteCount += delete(connection, DELETE_IDS_SQL, partition, lowerBound, upperBound)
+                    deleteCount += delete(connection, DELETE_EDGES_SQL, partition, lowerBound, upperBound)
+                    connection.commit()
+                }
+            } catch (ex: Exception) {
+                if (!connection.autoCommit) {
+                    connection.rollback()
+                }
+                throw ex
+            } finally {
+                connection.autoCommit = true
+            }
+
+            ChunkResult(
+                    partition,
+                    upperBound,
+                    repartitionCount,
+                    deleteCount,
+                    System.currentTimeMillis() - start
+            )
         }
     }
 
+    /**
+     * Returns the entity key id that ends a range of [RepartitioningJobState.chunkSize] entities after [lowerBound] in
+     * [partition], or [LAST_ID] if fewer entities are left.
+     */
+    private fun getUpperBound(connection: Connection, partition: Int, lowerBound: UUID): UUID {
+        return connection.prepareStatement(NEXT_UPPER_BOUND_SQL).use { ps ->
+            ps.setObject(1, state.entitySetId)
+            ps.setInt(2, partition)
+            ps.setObject(3, lowerBound)
+            ps.setInt(4, state.chunkSize - 1)
+            ps.executeQuery().use { rs -> if (rs.next()) ResultSetAdapters.id(rs) else LAST_ID }
+        }
+    }
+
+    private fun delete(
+            connection: Connection,
+            deleteSql: String,
+            partition: Int,
+            lowerBound: UUID,
+            upperBound: UUID
+    ): Long = connection.prepareStatement(deleteSql).use { deleteData ->
+        bindForDelete(deleteData, partition)
+        deleteData.setObject(7, lowerBound)
+        deleteData.setObject(8, upperBound)
+        deleteData.executeLargeUpdate()
+    }
+
+    private fun repartition(
+            connection: Connection,
+            repartitionSql: String,
+            partition: Int,
+            lowerBound: UUID,
+            upperBound: UUID
+    ): Long = connection.prepareStatement(repartitionSql).use { repartitionData ->
+        bind(repartitionData, partition)
+        repartitionData.setObject(4, lowerBound)
+        repartitionData.setObject(5, upperBound)
+        repartitionData.executeLargeUpdate()
+    }
+
     private fun getCount(countSql: String, partition: Int): Long = hds.connection.use { connection ->
-        try {
-            connection.prepareStatement(countSql).use { countQuery ->
-                bind(countQuery, partition)
-                val rs = countQuery.executeQuery()
-                rs.next()
-                ResultSetAdapters.count(rs)
-            }
-        } catch (ex: Exception) {
-            abort { "Job $id terminated: ${ex.message}" }
-            throw ex
-        } finally {
-            publishJobState()
+        connection.prepareStatement(countSql).use { countQuery ->
+            bind(countQuery, partition)
+            val rs = countQuery.executeQuery()
+            rs.next()
+            ResultSetAdapters.count(rs)
         }
     }
 
@@ -198,13 +424,13 @@ class RepartitioningJob(
                 getCount(edgesNeedingMigrationCountSql, partition)
     }
 
-    private fun bind(ps: PreparedStatement, partition: Int = currentlyMigratingPartition) {
+    private fun bind(ps: PreparedStatement, partition: Int) {
         ps.setObject(1, state.entitySetId)
         ps.setArray(2, PostgresArrays.createIntArray(ps.connection, state.newPartitions))
         ps.setInt(3, partition)
     }
 
-    private fun bindForDelete(ps: PreparedStatement, partition: Int = currentlyMigratingPartition) {
+    private fun bindForDelete(ps: PreparedStatement, partition: Int) {
         ps.setObject(1, state.entitySetId)
         ps.setInt(2, partition)
         ps.setArray(3, PostgresArrays.createIntArray(ps.connection, state.newPartitions))
@@ -245,6 +471,13 @@ class RepartitioningJob(
         return result
     }
 
+    private data class ChunkResult(
+            val partition: Int,
+            val upperBound: UUID,
+            val repartitionCount: Long,
+            val deleteCount: Long,
+            val elapsedMillis: Long
+    )
 }
 
 private val REPARTITION_SELECTOR = getPartitioningSelector(ID)
@@ -314,11 +547,28 @@ val REPARTITION_IDS_COLUMNS = buildRepartitionColumns(IDS)
 val REPARTITION_EDGES_COLUMNS = buildRepartitionColumns(E)
 
 /**
- * Query for repartition a partition of data.
+ * Finds the entity key id ending the next range of entities to move in a partition.
+ *
+ * 1. entity set id
+ * 2. partition
+ * 3. lower bound of entity key ids (exclusive)
+ * 4. number of entities in a range - 1
+ */
+private val NEXT_UPPER_BOUND_SQL = """
+SELECT ${ID.name} FROM ${IDS.name}
+    WHERE ${ENTITY_SET_ID.name} = ? AND ${PARTITION.name} = ? AND ${ID.name} > ?
+    ORDER BY ${ID.name}
+    OFFSET ? LIMIT 1
+""".trimIndent()
+
+/**
+ * Query for repartition a range of entity key ids in a partition of data.
  *
  * 1. entity set id
  * 2. partitions (array)
  * 3. partition
+ * 4. lower bound of entity key ids (exclusive)
+ * 5. upper bound of entity key ids (inclusive)
  *
  * NOTE: We do not attempt to move data values on conflict. In theory, data is immutable and a conflict wouldn't impact the
  * actual content of the data columns, unless a hash collection had occured during a re-partition.
@@ -330,6 +580,7 @@ INSERT INTO ${DATA.name} SELECT $REPARTITION_DATA_COLUMNS
     FROM ${DATA.name} INNER JOIN (select ? as ${ENTITY_SET_ID.name},? as ${PARTITIONS.name} ) as es 
     USING ( ${ENTITY_SET_ID.name} )
     WHERE ${PARTITION.name} = ? AND ${PARTITION.name}!=$REPARTITION_SELECTOR
+      AND ${ID.name} > ? AND ${ID.name} <= ?
     ON CONFLICT (${DATA.primaryKey.joinToString(",") { it.name }}) DO UPDATE SET
         ${latestSql(DATA, ORIGIN_ID, VERSION)},
         ${latestSql(DATA, VERSION, VERSION)},
@@ -344,6 +595,8 @@ INSERT INTO ${DATA.name} SELECT $REPARTITION_DATA_COLUMNS
  * 1. entity set id
  * 2. partitions (array)
  * 3. partition
+ * 4. lower bound of entity key ids (exclusive)
+ * 5. upper bound of entity key ids (inclusive)
  *
  * NOTE: Using last_link for LINKING_ID in this query because a link can happen without triggering a version update.
  */
@@ -352,6 +605,7 @@ INSERT INTO ${IDS.name} SELECT $REPARTITION_IDS_COLUMNS
     FROM ${IDS.name} INNER JOIN (select ? as ${ENTITY_SET_ID.name},? as ${PARTITIONS.name} ) as es 
     USING (${ENTITY_SET_ID.name})
     WHERE ${PARTITION.name} = ? AND ${PARTITION.name}!=$REPARTITION_SELECTOR
+      AND ${ID.name} > ? AND ${ID.name} <= ?
     ON CONFLICT (${IDS.primaryKey.joinToString(",") { it.name }}) DO UPDATE SET
         ${latestSql(IDS, LINKING_ID, LAST_LINK)}, 
         ${latestSql(IDS, VERSION, VERSION)},
@@ -369,6 +623,8 @@ INSERT INTO ${IDS.name} SELECT $REPARTITION_IDS_COLUMNS
  * 1. entity set id
  * 2. partitions (array)
  * 3. partition
+ * 4. lower bound of entity key ids (exclusive)
+ * 5. upper bound of entity key ids (inclusive)
  *
  * NOTE: Using last_link for LINKING_ID in this query because a link can happen without triggering a version update.
  */
@@ -377,6 +633,7 @@ INSERT INTO ${E.name} SELECT $REPARTITION_EDGES_COLUMNS
     FROM ${E.name} INNER JOIN (select ? as ${SRC_ENTITY_SET_ID.name},? as ${PARTITIONS.name} ) as es
     USING (${SRC_ENTITY_SET_ID.name})
     WHERE ${PARTITION.name} = ? AND ${PARTITION.name}!=$REPARTITION_SELECTOR_E
+      AND ${SRC_ENTITY_KEY_ID.name} > ? AND ${SRC_ENTITY_KEY_ID.name} <= ?
     ON CONFLICT (${E.primaryKey.joinToString(",") { it.name }}) DO UPDATE SET
         ${latestSql(E, VERSION, VERSION)},
         ${VERSIONS.name} = ARRAY( SELECT DISTINCT UNNEST(${E.name}.${VERSIONS.name} || EXCLUDED.${VERSIONS.name} ) ORDER BY 1  )
@@ -390,6 +647,8 @@ INSERT INTO ${E.name} SELECT $REPARTITION_EDGES_COLUMNS
  * 4. array length ( partitions )
  * 5. array length ( partitions )
  * 6. array length ( partitions )
+ * 7. lower bound of entity key ids (exclusive)
+ * 8. upper bound of entity key ids (inclusive)
  *
  */
 private val DELETE_DATA_SQL = """
@@ -398,6 +657,7 @@ DELETE FROM ${DATA.name}
       ${DATA.name}.${ENTITY_SET_ID.name} = ?
       AND ${DATA.name}.${PARTITION.name} = ?
       AND ${DATA.name}.${PARTITION.name}!=${getDirectPartitioningSelector(DATA.name + "." + ID.name)}
+      AND ${DATA.name}.${ID.name} > ? AND ${DATA.name}.${ID.name} <= ?
 """.trimIndent()
 
 /**
@@ -408,6 +668,8 @@ DELETE FROM ${DATA.name}
  * 4. array length ( partitions )
  * 5. array length ( partitions )
  * 6. array length ( partitions )
+ * 7. lower bound of entity key ids (exclusive)
+ * 8. upper bound of entity key ids (inclusive)
  *
  */
 private val DELETE_IDS_SQL = """
@@ -416,6 +678,7 @@ DELETE FROM ${IDS.name}
       ${IDS.name}.${ENTITY_SET_ID.name} = ?
       AND ${IDS.name}.${PARTITION.name} = ?
       AND ${IDS.name}.${PARTITION.name}!=${getDirectPartitioningSelector(IDS.name + "." + ID.name)}
+      AND ${IDS.name}.${ID.name} > ? AND ${IDS.name}.${ID.name} <= ?
 """.trimIndent()
 
 /**
@@ -427,6 +690,8 @@ DELETE FROM ${IDS.name}
  * 4. array length ( partitions )
  * 5. array length ( partitions )
  * 6. array length ( partitions )
+ * 7. lower bound of entity key ids (exclusive)
+ * 8. upper bound of entity key ids (inclusive)
  *
  */
 private val DELETE_EDGES_SQL = """
@@ -435,4 +700,5 @@ DELETE FROM ${E.name}
       ${E.name}.${SRC_ENTITY_SET_ID.name} = ?
       AND ${E.name}.${PARTITION.name} = ? 
       AND ${E.name}.${PARTITION.name}!=${getDirectPartitioningSelector(E.name + "." + SRC_ENTITY_KEY_ID.name)}
+      AND ${E.name}.${SRC_ENTITY_KEY_ID.name} > ? AND ${E.name}.${SRC_ENTITY_KEY_ID.name} <= ?
 """.trimIndent()
\ No newline at end of file
@@ -4,6 +4,11 @@ import com.geekbeast.rhizome.jobs.JobState
 import java.util.*
 
 /**
+ * State of a [RepartitioningJob].
+ *
+ * [currentlyMigratingPartitionIndex] is the index of the next old partition to start walking and [partitionCursors]
+ * holds the last entity key id moved for every old partition currently being walked. [nextBatchMillis] is the time at
+ * which the next batch is due, after the pause that follows a slow batch.
  *
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
  */
@@ -15,5 +20,12 @@ data class RepartitioningJobState(
         var currentlyMigratingPartitionIndex: Int = 0,
         var repartitionCount: Long = 0,
         var deleteCount: Long = 0,
-        internal var needsMigrationCount: Long = 0
-) : JobState
\ No newline at end of file
+        internal var needsMigrationCount: Long = 0,
+        val parallelism: Int = DEFAULT_REPARTITIONING_PARALLELISM,
+        var chunkSize: Int = DEFAULT_REPARTITIONING_CHUNK_SIZE,
+        val partitionCursors: MutableMap<Int, UUID> = mutableMapOf(),
+        var pauseMillis: Long = 0,
+        var nextBatchMillis: Long = 0,
+        var elapsedMillis: Long = 0,
+        var etaSeconds: Long = -1
+) : JobState
@@ -1,7 +1,8 @@
 package com.openlattice.graph.processing
 
+import com.codahale.metrics.MetricRegistry
+import com.google.common.annotations.VisibleForTesting
 import com.google.common.base.Preconditions.checkState
-import com.google.common.base.Stopwatch
 import com.hazelcast.config.IndexType
 import com.hazelcast.core.HazelcastInstance
 import com.hazelcast.query.QueryConstants
@@ -25,17 +26,48 @@ import com.zaxxer.hikari.HikariDataSource
 import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
 import org.apache.olingo.commons.api.edm.FullQualifiedName
 import org.slf4j.LoggerFactory
+import java.sql.Connection
 import java.sql.SQLException
+import java.sql.Statement
 import java.util.*
-import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantLock
 
+/**
+ * Default maximum number of compute or propagate iterations run by a single step before giving up on convergence.
+ */
+const val DEFAULT_MAX_GRAPH_PROCESSING_ITERATIONS = 32
+
+/**
+ * Temporary table holding the entities whose properties changed in the previous iteration.
+ */
+const val GRAPH_PROCESSING_FRONTIER = "graph_processing_frontier"
+
+/**
+ * Temporary table collecting the entities whose properties change in the current iteration.
+ */
+const val GRAPH_PROCESSING_NEXT_FRONTIER = "graph_processing_next_frontier"
+
+/**
+ * Runs graph processors and propagates their outputs.
+ *
+ * Computing and propagating are both delta driven. The first iteration of each scans every candidate row, and every
+ * statement records the entities whose properties it changed in [GRAPH_PROCESSING_NEXT_FRONTIER]. Those entities
+ * become the frontier of the next iteration, which only touches the frontier and its neighborhoods, so steady state
+ * cost follows the amount of change rather than the size of the graph. Iterations stop once the frontier is empty or
+ * after [maxIterations]; whatever is left is picked up by the first iteration of the next step.
+ *
+ * Rows touched per iteration are exposed as the `rowsTouched` histogram, the size of the frontier as the `frontier`
+ * histogram, wall time per iteration as the `iteration` timer and steps that hit [maxIterations] as the `unconverged`
+ * meter.
+ */
 class GraphProcessingService(
         private val edm: EdmManager,
         private val entitySetManager: EntitySetManager,
         private val hds: HikariDataSource,
         hazelcastInstance: HazelcastInstance,
-        processorsToRegister: Set<GraphProcessor>
+        processorsToRegister: Set<GraphProcessor>,
+        metricRegistry: MetricRegistry,
+        private val maxIterations: Int = DEFAULT_MAX_GRAPH_PROCESSING_ITERATIONS
 ) {
     private val propertyTypes = HazelcastMap.PROPERTY_TYPES.getMap( hazelcastInstance )
     private val processors = mutableSetOf<GraphProcessor>()
@@ -43,11 +75,21 @@ class GraphProcessingService(
 
     private val propagationGraphProcessor = PropagationGraphProcessor(edm)
 
+    private val rowsTouched = metricRegistry.histogram(
+            MetricRegistry.name(GraphProcessingService::class.java, "rowsTouched")
+    )
+    private val frontierSize = metricRegistry.histogram(
+            MetricRegistry.name(GraphProcessingService::class.java, "frontier")
+    )
+    private val iterationTimer = metricRegistry.timer(MetricRegistry.name(GraphProcessingService::class.java, "iteration"))
+    private val unconverged = metricRegistry.meter(MetricRegistry.name(GraphProcessingService::class.java, "unconverged"))
+
     companion object {
         private val logger = LoggerFactory.getLogger(GraphProcessingService::class.java)
     }
 
     init {
+        require(maxIterations > 0) { "Maximum number of graph processing iterations must be positive." }
         processorsToRegister.forEach { register(it) }
         if(propagationGraphProcessor.hasCycle()) {
             throw IllegalStateException("There is a cycle in the background graph processing")
@@ -59,11 +101,90 @@ class GraphProcessingService(
 
     fun step() {
         if (taskLock.tryLock()) {
-            markRootsPropagated()
-            while(compute() > 0){}
-            propagate()
+            try {
+                markRootsPropagated()
+                hds.connection.use { connection ->
+                    createFrontier(connection)
+                    iterate(connection, "compute") { restrictToFrontier -> compute(connection, restrictToFrontier) }
+                    iterate(connection, "propagate") { restrictToFrontier -> propagate(connection, restrictToFrontier) }
+                }
+            } finally {
+                taskLock.unlock()
+            }
+        }
+    }
+
+    /**
+     * Runs [pass] until it no longer changes anything or [maxIterations] is reached. The first pass scans everything,
+     * later passes only start from the frontier left by the previous pass.
+     */
+    @VisibleForTesting
+    internal fun iterate(connection: Connection, stage: String, pass: (Boolean) -> Int) {
+        clearFrontier(connection)
+
+        var iteration = 0
+        var frontier: Int
+        do {
+            val context = iterationTimer.time()
+            val touched = pass(iteration > 0)
+            frontier = advanceFrontier(connection)
+            val elapsed = context.stop() / 1_000_000
+
+            rowsTouched.update(touched)
+            frontierSize.update(frontier)
+            logger.info(
+                    "Graph processing {} iteration {} touched {} rows and left a frontier of {} entities in {} ms.",
+                    stage,
+                    iteration,
+                    touched,
+                    frontier,
+                    elapsed
+            )
+        } while (frontier > 0 && ++iteration < maxIterations)
+
+        if (frontier > 0) {
+            unconverged.mark()
+            logger.warn(
+                    "Graph processing {} did not converge after {} iterations. The remaining {} entities will be picked up by the next step.",
+                    stage,
+                    maxIterations,
+                    frontier
+            )
+        }
+    }
+
+    @VisibleForTesting
+    internal fun createFrontier(connection: Connection) {
+        connection.createStatement().use { stmt ->
+            listOf(GRAPH_PROCESSING_FRONTIER, GRAPH_PROCESSING_NEXT_FRONTIER).forEach { table ->
+                stmt.execute(
+                        "CREATE TEMPORARY TABLE IF NOT EXISTS $table " +
+                                "(${ENTITY_SET_ID.name} uuid, ${ID_VALUE.name} uuid, " +
+                                "PRIMARY KEY (${ENTITY_SET_ID.name}, ${ID_VALUE.name}))"
+                )
+            }
+        }
+    }
+
+    private fun clearFrontier(connection: Connection) {
+        connection.createStatement().use { stmt ->
+            stmt.execute("TRUNCATE $GRAPH_PROCESSING_FRONTIER, $GRAPH_PROCESSING_NEXT_FRONTIER")
+        }
+    }
 
-            taskLock.unlock()
+    /**
+     * Replaces the frontier with the entities changed by the last iteration.
+     *
+     * @return The size of the new frontier.
+     */
+    private fun advanceFrontier(connection: Connection): Int {
+        return connection.createStatement().use { stmt ->
+            stmt.execute("TRUNCATE $GRAPH_PROCESSING_FRONTIER")
+            val size = stmt.executeUpdate(
+                    "INSERT INTO $GRAPH_PROCESSING_FRONTIER SELECT * FROM $GRAPH_PROCESSING_NEXT_FRONTIER"
+            )
+            stmt.execute("TRUNCATE $GRAPH_PROCESSING_NEXT_FRONTIER")
+            size
         }
     }
 
@@ -102,26 +223,23 @@ class GraphProcessingService(
         }
     }
 
-    private fun propagate(): Int {
+    private fun propagate(connection: Connection, restrictToFrontier: Boolean): Int {
         //Basically update all neighbors of where last_write > last_propagated. No filtering required because we
         //want to continuously be propagating the signal of this
-
-        var count = Int.MAX_VALUE
-        while (count > 0) {
-            val w = Stopwatch.createStarted()
-            count =
-                    propagationGraphProcessor.singleForwardPropagationGraph.map {
-                        markIfNeedsPropagation(it.key, it.value, false)
-                    }.sum() +
-                    propagationGraphProcessor.selfPropagationGraph.map {
-                        markIfNeedsPropagation(it.key, it.value, true)
-                    }.sum()
-            logger.info("Propagated $count in ${w.elapsed(TimeUnit.MILLISECONDS)}ms")
-        }
-        return count
+        return propagationGraphProcessor.singleForwardPropagationGraph.map {
+            markIfNeedsPropagation(connection, it.key, it.value, false, restrictToFrontier)
+        }.sum() + propagationGraphProcessor.selfPropagationGraph.map {
+            markIfNeedsPropagation(connection, it.key, it.value, true, restrictToFrontier)
+        }.sum()
     }
 
-    private fun markIfNeedsPropagation(input: Propagation, outputs: Set<Propagation>, isSelf: Boolean): Int {
+    private fun markIfNeedsPropagation(
+            conn: Connection,
+            input: Propagation,
+            outputs: Set<Propagation>,
+            isSelf: Boolean,
+            restrictToFrontier: Boolean
+    ): Int {
         val entitySetIds = entitySetManager.getEntitySetIdsOfType(input.entityTypeId)
         val propertyTypes = this.propertyTypes.getAll(setOf(input.propertyTypeId))
         val outputEntitySetIds = outputs.flatMap { entitySetManager.getEntitySetIdsOfType(it.entityTypeId) }
@@ -135,21 +253,24 @@ class GraphProcessingService(
                     entitySetIds,
                     propertyTypes,
                     associationType,
-                    isSelf
+                    isSelf,
+                    restrictToFrontier,
+                    true
             )
 
-            return hds.connection.use { conn ->
-                conn.autoCommit = false
-                try {
-                    conn.createStatement().use { stmt ->
-                        return queries.map(stmt::executeUpdate).sum()
-                    }
-                } catch (e: SQLException) {
-                    logger.error("Unable to propagate information with sql queries: {} ${System.lineSeparator()}$e", queries)
-                    return 0
-                } finally {
-                    conn.autoCommit = true
+            conn.autoCommit = false
+            try {
+                conn.createStatement().use { stmt ->
+                    val count = queries.map { executeRecordingChanges(stmt, it) }.sum()
+                    conn.commit()
+                    return count
                 }
+            } catch (e: SQLException) {
+                conn.rollback()
+                logger.error("Unable to propagate information with sql queries: {} ${System.lineSeparator()}$e", queries)
+                return 0
+            } finally {
+                conn.autoCommit = true
             }
         } catch(e:IllegalStateException) {
             logger.error("Couldn't propagate input entity type ${edm.getEntityTypeFqn(input.entityTypeId)}: $e")
@@ -157,7 +278,7 @@ class GraphProcessingService(
         }
     }
 
-    private fun compute(): Int {
+    private fun compute(conn: Connection, restrictToFrontier: Boolean): Int {
         val count = processors.map { processor ->
             val outputPropertyType = getPropertyTypes(mapOf(processor.getOutput()).mapValues { setOf(it.value) }).values.first()
             val filters = processor.getFilters().values.flatMap { it.map{ edm.getPropertyTypeId(it.key) to setOf(it.value)} }.toMap()
@@ -197,7 +318,9 @@ class GraphProcessingService(
                                 dstEntitySetId,
                                 dstPropertyTypes,
                                 dstAliases,
-                                targetEntityKeyIdColumns)
+                                targetEntityKeyIdColumns,
+                                restrictToFrontier,
+                                true)
                     }
                     is SelfProcessor -> {
                         val entitySetIds = getEntitySets(processor.getInputs())
@@ -209,26 +332,24 @@ class GraphProcessingService(
                                 outputPropertyType.id,
                                 quote(outputPropertyType.type.fullQualifiedNameAsString),
                                 entitySetIds,
-                                propertyTypes)
+                                propertyTypes,
+                                restrictToFrontier,
+                                true)
                     }
                     else -> throw IllegalArgumentException("Not feasible processor")
                 }
 
 
-                hds.connection.use { conn ->
-                    conn.use {
-                        try {
-                            conn.createStatement().use { stmt ->
-                                val insertCount = stmt.executeUpdate(computeQuery)
-                                logger.info("Finished computing $insertCount entities for property type ${outputPropertyType.type.fullQualifiedNameAsString}")
+                try {
+                    conn.createStatement().use { stmt ->
+                        val insertCount = executeRecordingChanges(stmt, computeQuery)
+                        logger.info("Finished computing $insertCount entities for property type ${outputPropertyType.type.fullQualifiedNameAsString}")
 
-                                insertCount
-                            }
-                        } catch (e: SQLException) {
-                            logger.error("Unable to compute aggregated values with queries: {} ${System.lineSeparator()}$e", computeQuery)
-                             0
-                        }
+                        insertCount
                     }
+                } catch (e: SQLException) {
+                    logger.error("Unable to compute aggregated values with queries: {} ${System.lineSeparator()}$e", computeQuery)
+                     0
                 }
             } catch(e:IllegalStateException) {
                 logger.error("Couldn't compute property type ${processor.getOutput().second} of entity type ${processor.getOutput().first}: $e")
@@ -309,7 +430,9 @@ internal fun buildComputeQueriesForAssociation(
         dstEntitySetId: Collection<UUID>, //Propagation
         dstPropertyTypes: Map<UUID, PropertyType>, //Propagation
         dstAliases: Map<FullQualifiedName, String>,
-        targetEntityKeyIdColumns: Pair<String, String>
+        targetEntityKeyIdColumns: Pair<String, String>,
+        restrictToFrontier: Boolean = false,
+        recordChanges: Boolean = false
 ): String {
     checkState(!(srcEntitySetId.isEmpty() && dstEntitySetId.isEmpty() && edgeEntitySetId.isEmpty()), "Entity set ids are empty (no input entity set present)")
 
@@ -321,7 +444,14 @@ internal fun buildComputeQueriesForAssociation(
 
     val updatableJoin = buildQueryForTargetPropertyDirtyCheck(propertyTableName, targetEntityKeyIdColumns, false)
 
-    val edgeQuery = buildFilteredEdges(srcEntitySetId, edgeEntitySetId, dstEntitySetId)
+    val edgeQuery = if (restrictToFrontier) {
+        "SELECT * FROM (${buildFilteredEdges(srcEntitySetId, edgeEntitySetId, dstEntitySetId)}) as candidate_edges " +
+                "WHERE ${buildFrontierFilter(SRC_ENTITY_SET_ID.name, SRC_ENTITY_KEY_ID.name)} " +
+                "OR ${buildFrontierFilter(EDGE_ENTITY_SET_ID.name, EDGE_ENTITY_KEY_ID.name)} " +
+                "OR ${buildFrontierFilter(DST_ENTITY_SET_ID.name, DST_ENTITY_KEY_ID.name)}"
+    } else {
+        buildFilteredEdges(srcEntitySetId, edgeEntitySetId, dstEntitySetId)
+    }
 
     val propagation =
         "(SELECT * FROM($edgeQuery) as filtered_edges " +
@@ -332,7 +462,7 @@ internal fun buildComputeQueriesForAssociation(
 
     val version = System.currentTimeMillis()
 
-    return "INSERT INTO $propertyTableName ($entityKeyIdColumns,hash,$fqn,version,versions,last_propagate, last_write) " +
+    val computeQuery = "INSERT INTO $propertyTableName ($entityKeyIdColumns,hash,$fqn,version,versions,last_propagate, last_write) " +
             "(SELECT ${targetEntityKeyIdColumns.first}, ${targetEntityKeyIdColumns.second},digest(($computeExpression)::text,'sha1'),$computeExpression,$version,ARRAY[$version],now(),now() " +
             "FROM $propagation " +
             "GROUP BY ( ${targetEntityKeyIdColumns.first}, ${targetEntityKeyIdColumns.second} ) ) " +
@@ -341,6 +471,8 @@ internal fun buildComputeQueriesForAssociation(
             "${VERSIONS.name} = $propertyTableName.${VERSIONS.name} || EXCLUDED.${VERSIONS.name}, " +
             "last_propagate=excluded.last_propagate, last_write=excluded.last_write"
 
+    return if (recordChanges) buildRecordChangesSql(propertyTableName, computeQuery) else computeQuery
+
 }
 
 internal fun buildComputeQueriesForSelf(
@@ -349,7 +481,9 @@ internal fun buildComputeQueriesForSelf(
         outputProperty: UUID,
         fqn: String,
         entitySetIds: Collection<UUID>, //Propagation
-        propertyTypes: Map<UUID, PropertyType> //Propagation
+        propertyTypes: Map<UUID, PropertyType>, //Propagation
+        restrictToFrontier: Boolean = false,
+        recordChanges: Boolean = false
 ): String {
     checkState(entitySetIds.isNotEmpty(), "Entity set ids are empty (no input entity set present)")
 
@@ -363,12 +497,14 @@ internal fun buildComputeQueriesForSelf(
     val propagation =
         "(SELECT * FROM (SELECT * " +
                 "FROM (SELECT $entityKeyIdColumns, $outputPropertyFqns  " +
-                "FROM ($propertyTable) as joined_properties ) as blocked_properties " +
+                "FROM ($propertyTable) as joined_properties " +
+                (if (restrictToFrontier) "WHERE ${buildFrontierFilter(ENTITY_SET_ID.name, ID_VALUE.name)} " else "") +
+                ") as blocked_properties " +
                 "$updatableJoin ) as updatable) as propagations "
 
     val version = System.currentTimeMillis()
 
-    return "INSERT INTO $propertyTableName ($entityKeyIdColumns,hash,$fqn,version,versions,last_propagate, last_write) " +
+    val computeQuery = "INSERT INTO $propertyTableName ($entityKeyIdColumns,hash,$fqn,version,versions,last_propagate, last_write) " +
             "(SELECT $entityKeyIdColumns,digest(($computeExpression)::text,'sha1'),$computeExpression,$version,ARRAY[$version],now(),now() " +
             "FROM $propagation " +
             "GROUP BY ( $entityKeyIdColumns ) ) " +
@@ -376,6 +512,40 @@ internal fun buildComputeQueriesForSelf(
             "${VERSION.name} =  EXCLUDED.${VERSION.name}, " +
             "${VERSIONS.name} = $propertyTableName.${VERSIONS.name} || EXCLUDED.${VERSIONS.name}, " +
             "last_propagate=excluded.last_propagate, last_write=excluded.last_write"
+
+    return if (recordChanges) buildRecordChangesSql(propertyTableName, computeQuery) else computeQuery
+}
+
+/**
+ * Matches rows whose entity is in the frontier left by the previous iteration.
+ */
+internal fun buildFrontierFilter(entitySetIdColumn: String, entityKeyIdColumn: String): String {
+    return "($entitySetIdColumn, $entityKeyIdColumn) IN " +
+            "(SELECT ${ENTITY_SET_ID.name}, ${ID_VALUE.name} FROM $GRAPH_PROCESSING_FRONTIER)"
+}
+
+/**
+ * Wraps an insert or update of [propertyTableName] so that the entities it changes are added to the next frontier.
+ * The wrapped statement is a query returning the number of rows changed by [sql], which is run with
+ * [executeRecordingChanges].
+ */
+internal fun buildRecordChangesSql(propertyTableName: String, sql: String): String {
+    return "WITH changed AS ($sql RETURNING $propertyTableName.${ENTITY_SET_ID.name}, $propertyTableName.${ID_VALUE.name}), " +
+            "recorded AS (INSERT INTO $GRAPH_PROCESSING_NEXT_FRONTIER " +
+            "SELECT DISTINCT ${ENTITY_SET_ID.name}, ${ID_VALUE.name} FROM changed ON CONFLICT DO NOTHING) " +
+            "SELECT count(*) FROM changed"
+}
+
+/**
+ * Runs a statement built by [buildRecordChangesSql].
+ *
+ * @return The number of rows changed by the wrapped insert or update.
+ */
+internal fun executeRecordingChanges(stmt: Statement, sql: String): Int {
+    return stmt.executeQuery(sql).use { rs ->
+        rs.next()
+        rs.getInt(1)
+    }
 }
 
 
@@ -404,16 +574,24 @@ internal fun buildPropagationQueries(
         entitySetIds: Collection<UUID>, //Propagation
         propertyTypes: Map<UUID, PropertyType>, //Propagation
         associationType: Boolean,
-        isSelf: Boolean
+        isSelf: Boolean,
+        restrictToFrontier: Boolean = false,
+        recordChanges: Boolean = false
 ): List<String> {
     checkState(entitySetIds.isNotEmpty(), "Entity set ids are empty (no input entity set present)")
 
     val filters = propertyTypes.keys.map { it to setOf<ValueFilter<*>>() }.toMap()
     val propertyTable = buildGetBlockedPropertiesSql(entitySetIds, propertyTypes, filters)
 
+    val frontierFilter = if (restrictToFrontier) {
+        "WHERE ${buildFrontierFilter(ENTITY_SET_ID.name, ID_VALUE.name)} "
+    } else {
+        ""
+    }
+
     val propagations = if(isSelf) {
         listOf("SELECT ${ENTITY_SET_ID.name} as $TARGET_ENTITY_SET_ID, ${ID_VALUE.name} as $TARGET_ENTITY_KEY_ID " +
-                "FROM ($propertyTable) as blocked_property ")
+                "FROM ($propertyTable) as blocked_property $frontierFilter")
     } else {
         val edgesSql = if (associationType) {
             buildFilteredEdgesSqlForAssociations(entitySetIds, outputEntitySetIds)
@@ -424,7 +602,7 @@ internal fun buildPropagationQueries(
         edgesSql.map {
             "SELECT * " +
                     "FROM ($propertyTable) as blocked_property " +
-                    "INNER JOIN  ($it) as filtered_edges USING($entityKeyIdColumns) "
+                    "INNER JOIN  ($it) as filtered_edges USING($entityKeyIdColumns) $frontierFilter"
         }
     }
 
@@ -437,6 +615,7 @@ internal fun buildPropagationQueries(
                             "WHERE $propertyTableName.${ENTITY_SET_ID.name} = propagations.$TARGET_ENTITY_SET_ID " +
                             " AND  $propertyTableName.${ID_VALUE.name} = propagations.$TARGET_ENTITY_KEY_ID "
                 }
+                .map { if (recordChanges) buildRecordChangesSql(propertyTableName, it) else it }
     }
 }
 
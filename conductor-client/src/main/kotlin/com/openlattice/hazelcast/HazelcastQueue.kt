@@ -60,7 +60,6 @@ class HazelcastQueue<T> internal constructor(val name: String) : TypedQueueIdent
         @JvmField val AUDITING = HazelcastQueue<AuditableEvent>("AUDITING")
         @JvmField val BACKGROUND_INDEXING = HazelcastQueue<EntitySet>("BACKGROUND_INDEXING")
         @JvmField val EMAIL_SPOOL = HazelcastQueue<RenderableEmailRequest>("EMAIL_SPOOL")
-        @JvmField val ID_GENERATION = HazelcastQueue<UUID>("ID_GENERATION")
         @JvmField val INDEXING = HazelcastQueue<UUID>("INDEXING")
         @JvmField val QUEUED_INTEGRATION_JOBS = HazelcastQueue<QueuedIntegrationJob>("QUEUED_INTEGRATION_JOBS")
         @JvmField val LINKING_CANDIDATES = HazelcastQueue<EntityDataKey>("LINKING_CANDIDATES")
@@ -22,7 +22,6 @@ package com.openlattice.hazelcast.pods
 
 import com.kryptnostic.rhizome.pods.hazelcast.BaseHazelcastInstanceConfigurationPod
 import com.openlattice.hazelcast.HazelcastQueue
-import com.openlattice.ids.HazelcastIdGenerationService
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
 
@@ -41,13 +40,6 @@ class HazelcastQueuePod {
         }
     }
 
-    @Bean
-    fun idGenerationQueueConfigurer(): QueueConfigurer {
-        return QueueConfigurer(HazelcastQueue.ID_GENERATION.name) { config ->
-            config.setMaxSize(HazelcastIdGenerationService.NUM_PARTITIONS * 10).backupCount = 1
-        }
-    }
-
     @Bean
     fun twilioQueueConfigurer(): QueueConfigurer {
         return QueueConfigurer(HazelcastQueue.TWILIO.name) { config ->
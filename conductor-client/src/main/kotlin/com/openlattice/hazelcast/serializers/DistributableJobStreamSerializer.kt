@@ -25,7 +25,13 @@ import com.geekbeast.rhizome.jobs.AbstractDistributableJobStreamSerializer
 import com.geekbeast.rhizome.jobs.DistributableJob
 import com.google.common.annotations.VisibleForTesting
 import com.hazelcast.nio.ObjectDataInput
+import com.openlattice.data.DataDeletionManager
+import com.openlattice.data.DataDeletionManagerDependent
+import com.openlattice.data.ids.EntityKeyIdServiceDependent
+import com.openlattice.data.ids.PostgresEntityKeyIdService
 import com.openlattice.hazelcast.StreamSerializerTypeIds
+import com.openlattice.hazelcast.serializers.decorators.DataDeletionAware
+import com.openlattice.hazelcast.serializers.decorators.EntityKeyIdServiceAware
 import com.openlattice.hazelcast.serializers.decorators.IdGenerationAware
 import com.openlattice.hazelcast.serializers.decorators.MetastoreAware
 import com.openlattice.ids.HazelcastIdGenerationService
@@ -39,12 +45,18 @@ import javax.inject.Inject
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
  */
 @Component
-class DistributableJobStreamSerializer : IdGenerationServiceDependent<DistributableJobStreamSerializer>, AbstractDistributableJobStreamSerializer(){
+class DistributableJobStreamSerializer : IdGenerationServiceDependent<DistributableJobStreamSerializer>,
+        DataDeletionManagerDependent<DistributableJobStreamSerializer>,
+        EntityKeyIdServiceDependent<DistributableJobStreamSerializer>, AbstractDistributableJobStreamSerializer(){
     @Inject
     private lateinit var hds: HikariDataSource
 
     private lateinit var idService: HazelcastIdGenerationService
 
+    private lateinit var dataDeletionManager: DataDeletionManager
+
+    private lateinit var entityKeyIdService: PostgresEntityKeyIdService
+
     override fun getTypeId(): Int = StreamSerializerTypeIds.DISTRIBUTABLE_JOB.ordinal
     override fun read(`in`: ObjectDataInput): DistributableJob<*> {
         val job = super.read(`in`)
@@ -54,6 +66,12 @@ class DistributableJobStreamSerializer : IdGenerationServiceDependent<Distributa
         if (job is IdGenerationAware) {
             job.setIdGenerationService(idService)
         }
+        if (job is DataDeletionAware && this::dataDeletionManager.isInitialized) {
+            job.setDataDeletionManager(dataDeletionManager)
+        }
+        if (job is EntityKeyIdServiceAware && this::entityKeyIdService.isInitialized) {
+            job.setEntityKeyIdService(entityKeyIdService)
+        }
         return job
     }
 
@@ -66,4 +84,18 @@ class DistributableJobStreamSerializer : IdGenerationServiceDependent<Distributa
         this.idService = idService
         return this
     }
+
+    override fun init(dataDeletionManager: DataDeletionManager): DistributableJobStreamSerializer {
+        this.dataDeletionManager = dataDeletionManager
+        return this
+    }
+
+    override fun isDataDeletionManagerInitialized(): Boolean {
+        return this::dataDeletionManager.isInitialized
+    }
+
+    override fun init(entityKeyIdService: PostgresEntityKeyIdService): DistributableJobStreamSerializer {
+        this.entityKeyIdService = entityKeyIdService
+        return this
+    }
 }
\ No newline at end of file
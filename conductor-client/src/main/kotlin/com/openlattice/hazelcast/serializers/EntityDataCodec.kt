@@ -0,0 +1,193 @@
+package com.openlattice.hazelcast.serializers
+
+import com.dataloom.mappers.ObjectMappers
+import com.esotericsoftware.kryo.io.Input
+import com.esotericsoftware.kryo.io.Output
+import com.fasterxml.jackson.core.JsonProcessingException
+import java.io.IOException
+import java.util.*
+
+/**
+ * Binary encoding of entity property maps shipped to the search cluster by the entity data lambdas.
+ *
+ * UUIDs are written as two longs and property values are written with a one byte tag followed by a primitive encoding
+ * for strings, numbers, booleans and UUIDs. Any other value is written as smile bytes, which is how every value used
+ * to be written.
+ *
+ * Lambdas that carry many entities can write a dictionary of the property type ids used by the batch once, after
+ * which every entity refers to its property types by their index in the dictionary.
+ */
+object EntityDataCodec {
+    private const val NULL: Byte = 0
+    private const val STRING: Byte = 1
+    private const val LONG: Byte = 2
+    private const val INT: Byte = 3
+    private const val SHORT: Byte = 4
+    private const val BYTE: Byte = 5
+    private const val DOUBLE: Byte = 6
+    private const val FLOAT: Byte = 7
+    private const val BOOLEAN: Byte = 8
+    private const val UUID_VALUE: Byte = 9
+    private const val SMILE: Byte = 10
+
+    private val mapper = ObjectMappers.getSmileMapper()
+
+    @JvmStatic
+    fun writeUUID(output: Output, id: UUID) {
+        output.writeLong(id.leastSignificantBits)
+        output.writeLong(id.mostSignificantBits)
+    }
+
+    @JvmStatic
+    fun readUUID(input: Input): UUID {
+        val lsb = input.readLong()
+        val msb = input.readLong()
+        return UUID(msb, lsb)
+    }
+
+    /**
+     * Assigns an index to every property type id used by [entities], in order of first use.
+     */
+    @JvmStatic
+    fun buildDictionary(entities: Iterable<Map<UUID, Set<Any>>>): Map<UUID, Int> {
+        val dictionary = LinkedHashMap<UUID, Int>()
+        entities.forEach { entity ->
+            entity.keys.forEach { propertyTypeId -> dictionary.putIfAbsent(propertyTypeId, dictionary.size) }
+        }
+        return dictionary
+    }
+
+    /**
+     * Writes [dictionary], or marks that there is none if it is null, in which case entities must be written without
+     * one.
+     */
+    @JvmStatic
+    fun writeDictionary(output: Output, dictionary: Map<UUID, Int>?) {
+        if (dictionary == null) {
+            output.writeBoolean(false)
+            return
+        }
+
+        output.writeBoolean(true)
+        output.writeVarInt(dictionary.size, true)
+        dictionary.keys.forEach { writeUUID(output, it) }
+    }
+
+    @JvmStatic
+    fun readDictionary(input: Input): Array<UUID>? {
+        if (!input.readBoolean()) {
+            return null
+        }
+
+        val size = input.readVarInt(true)
+        return Array(size) { readUUID(input) }
+    }
+
+    @JvmStatic
+    fun writeEntity(output: Output, entity: Map<UUID, Set<Any?>>, dictionary: Map<UUID, Int>?) {
+        output.writeVarInt(entity.size, true)
+        entity.forEach { (propertyTypeId, values) ->
+            if (dictionary == null) {
+                writeUUID(output, propertyTypeId)
+            } else {
+                output.writeVarInt(dictionary.getValue(propertyTypeId), true)
+            }
+
+            output.writeVarInt(values.size, true)
+            values.forEach { writeValue(output, it) }
+        }
+    }
+
+    @JvmStatic
+    fun readEntity(input: Input, dictionary: Array<UUID>?): MutableMap<UUID, Set<Any>> {
+        val size = input.readVarInt(true)
+        val entity = HashMap<UUID, Set<Any>>(size)
+        for (i in 0 until size) {
+            val propertyTypeId = if (dictionary == null) readUUID(input) else dictionary[input.readVarInt(true)]
+
+            val valuesSize = input.readVarInt(true)
+            val values = LinkedHashSet<Any>(valuesSize)
+            for (j in 0 until valuesSize) {
+                readValue(input)?.let { values.add(it) }
+            }
+            entity[propertyTypeId] = values
+        }
+        return entity
+    }
+
+    private fun writeValue(output: Output, value: Any?) {
+        when (value) {
+            null -> output.writeByte(NULL)
+            is String -> {
+                output.writeByte(STRING)
+                output.writeString(value)
+            }
+            is Long -> {
+                output.writeByte(LONG)
+                output.writeLong(value)
+            }
+            is Int -> {
+                output.writeByte(INT)
+                output.writeInt(value)
+            }
+            is Short -> {
+                output.writeByte(SHORT)
+                output.writeShort(value.toInt())
+            }
+            is Byte -> {
+                output.writeByte(BYTE)
+                output.writeByte(value)
+            }
+            is Double -> {
+                output.writeByte(DOUBLE)
+                output.writeDouble(value)
+            }
+            is Float -> {
+                output.writeByte(FLOAT)
+                output.writeFloat(value)
+            }
+            is Boolean -> {
+                output.writeByte(BOOLEAN)
+                output.writeBoolean(value)
+            }
+            is UUID -> {
+                output.writeByte(UUID_VALUE)
+                writeUUID(output, value)
+            }
+            else -> {
+                val bytes = try {
+                    mapper.writeValueAsBytes(value)
+                } catch (e: JsonProcessingException) {
+                    throw IllegalStateException("Unable to serialize property value of type ${value.javaClass}", e)
+                }
+                output.writeByte(SMILE)
+                output.writeVarInt(bytes.size, true)
+                output.writeBytes(bytes)
+            }
+        }
+    }
+
+    private fun readValue(input: Input): Any? {
+        return when (val tag = input.readByte()) {
+            NULL -> null
+            STRING -> input.readString()
+            LONG -> input.readLong()
+            INT -> input.readInt()
+            SHORT -> input.readShort()
+            BYTE -> input.readByte()
+            DOUBLE -> input.readDouble()
+            FLOAT -> input.readFloat()
+            BOOLEAN -> input.readBoolean()
+            UUID_VALUE -> readUUID(input)
+            SMILE -> {
+                val bytes = input.readBytes(input.readVarInt(true))
+                try {
+                    mapper.readValue(bytes, Any::class.java)
+                } catch (e: IOException) {
+                    throw IllegalStateException("Unable to deserialize property value.", e)
+                }
+            }
+            else -> throw IllegalStateException("Unrecognized property value tag $tag.")
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.openlattice.hazelcast.serializers.decorators
+
+import com.openlattice.data.DataDeletionManager
+
+/**
+ * Implemented by distributed jobs that clear or delete data through a [DataDeletionManager].
+ */
+interface DataDeletionAware {
+    fun setDataDeletionManager(dataDeletionManager: DataDeletionManager)
+}
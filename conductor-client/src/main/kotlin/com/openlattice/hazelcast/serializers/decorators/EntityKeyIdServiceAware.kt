@@ -0,0 +1,11 @@
+package com.openlattice.hazelcast.serializers.decorators
+
+import com.openlattice.data.ids.PostgresEntityKeyIdService
+
+/**
+ * Implemented by distributed jobs that rewrite entity key id assignments and must invalidate the cached assignments
+ * through a [PostgresEntityKeyIdService].
+ */
+interface EntityKeyIdServiceAware {
+    fun setEntityKeyIdService(entityKeyIdService: PostgresEntityKeyIdService)
+}
@@ -1,27 +1,45 @@
 package com.openlattice.ids
 
-import com.geekbeast.hazelcast.HazelcastClientProvider
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
 import com.geekbeast.hazelcast.IHazelcastClientProvider
-import com.google.common.collect.Queues
-import com.google.common.util.concurrent.ListeningExecutorService
+import com.google.common.util.concurrent.ThreadFactoryBuilder
 import com.openlattice.hazelcast.HazelcastClient
 import com.openlattice.hazelcast.HazelcastMap
-import com.openlattice.hazelcast.HazelcastQueue
 import org.slf4j.LoggerFactory
 import java.util.*
-import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.Executors
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 /**
+ * Hands out ids from a node local buffer that is refilled by leasing contiguous blocks of ids from the [Range]s in the
+ * [HazelcastMap.ID_GENERATION] map.
+ *
+ * Each lease advances a single range with an entry processor, so leases from different nodes or threads are always
+ * disjoint without having to lock the whole map. Once the local buffer drops below [LOW_WATERMARK] a background refill
+ * leases blocks until it is back above [HIGH_WATERMARK]. Callers that find the buffer empty lease blocks themselves
+ * instead of waiting on the refill.
+ *
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
  */
-class HazelcastIdGenerationService(clients: IHazelcastClientProvider) {
+class HazelcastIdGenerationService(
+        clients: IHazelcastClientProvider,
+        metricRegistry: MetricRegistry
+) {
     var random = false
 
     /**
      * For testing only
      */
-    internal constructor(clients: IHazelcastClientProvider, random: Boolean) : this(clients) {
+    internal constructor(
+            clients: IHazelcastClientProvider,
+            metricRegistry: MetricRegistry,
+            random: Boolean
+    ) : this(clients, metricRegistry) {
         this.random = random
     }
 
@@ -29,11 +47,15 @@ class HazelcastIdGenerationService(clients: IHazelcastClientProvider) {
      * This should be good enough until we scale past 65536 Hazelcast nodes.
      */
     companion object {
-        private const val PARTITION_SCROLL_SIZE = 5
         private const val MASK_LENGTH = 16
         const val NUM_PARTITIONS = 1 shl MASK_LENGTH //65536
+        const val BLOCK_SIZE = 1024
+        const val LOW_WATERMARK = 4 * BLOCK_SIZE
+        const val HIGH_WATERMARK = 16 * BLOCK_SIZE
         private val logger = LoggerFactory.getLogger(HazelcastIdGenerationService::class.java)
-        private val executor = Executors.newSingleThreadExecutor()
+        private val executor = Executors.newSingleThreadExecutor(
+                ThreadFactoryBuilder().setDaemon(true).setNameFormat("id-block-refill-%d").build()
+        )
     }
 
     /*
@@ -41,33 +63,31 @@ class HazelcastIdGenerationService(clients: IHazelcastClientProvider) {
      */
     private val hazelcastInstance = clients.getClient(HazelcastClient.IDS.name)
     private val scrolls = HazelcastMap.ID_GENERATION.getMap(hazelcastInstance)
-    private val idsQueue = HazelcastQueue.ID_GENERATION.getQueue(hazelcastInstance)
-    private val localQueue = Queues.newArrayBlockingQueue<UUID>(NUM_PARTITIONS) as BlockingQueue<UUID>
+    private val localIds = ConcurrentLinkedQueue<UUID>()
+    private val localIdCount = AtomicInteger()
+    private val refilling = AtomicBoolean(false)
+
+    /*
+     * Each node starts leasing from a random range and then walks the ranges in order, which spreads leases from
+     * different nodes across the whole map.
+     */
+    private val nextRange = AtomicLong(ThreadLocalRandom.current().nextLong(NUM_PARTITIONS.toLong()))
+
+    private val idsMeter = metricRegistry.meter(MetricRegistry.name(HazelcastIdGenerationService::class.java, "ids"))
+    private val getNextIdsTimer = metricRegistry.timer(
+            MetricRegistry.name(HazelcastIdGenerationService::class.java, "getNextIds")
+    )
+    private val leaseTimer = metricRegistry.timer(
+            MetricRegistry.name(HazelcastIdGenerationService::class.java, "leaseBlock")
+    )
 
     init {
         if (scrolls.isEmpty) {
             //Initialize the ranges
             scrolls.putAll((0L until NUM_PARTITIONS).associateWith { Range(it shl 48) })
         }
-    }
-
-    private val enqueueJob = executor.execute {
-        if (random) {
-            generateSequence { UUID.randomUUID() }.forEach { idsQueue.put(it) }
-        }
-        while (true) {
-            val ids = try {
-                //Use the 0 key a fence around the entire map.
-                scrolls.lock(0L)
-                //TODO: Handle exhaustion of partition.
-                scrolls.executeOnEntries(IdsGeneratingEntryProcessor(PARTITION_SCROLL_SIZE)) as Map<Long, List<UUID>>
-            } finally {
-                scrolls.unlock(0L)
-            }
-
-            ids.values.asSequence().flatten().forEach { idsQueue.put(it) }
-
-            logger.info("Added $NUM_PARTITIONS ids to queue")
+        metricRegistry.gauge(MetricRegistry.name(HazelcastIdGenerationService::class.java, "bufferedIds")) {
+            Gauge { localIdCount.get() }
         }
     }
 
@@ -76,7 +96,8 @@ class HazelcastIdGenerationService(clients: IHazelcastClientProvider) {
      * @param id to return to the pool
      */
     fun returnId(id: UUID) {
-        localQueue.offer(id)
+        localIds.offer(id)
+        localIdCount.incrementAndGet()
     }
 
     fun returnIds(ids: Collection<UUID>) {
@@ -84,10 +105,89 @@ class HazelcastIdGenerationService(clients: IHazelcastClientProvider) {
     }
 
     fun getNextIds(count: Int): Set<UUID> {
-        return generateSequence { getNextId() }.take(count).toSet()
+        return getNextIdArray(count).toSet()
     }
 
     fun getNextId(): UUID {
-        return localQueue.poll() ?: idsQueue.take()
+        return getNextIdArray(1)[0]
+    }
+
+    /**
+     * Returns [count] unused ids, taking them from the local buffer first and leasing any remaining ids directly.
+     */
+    fun getNextIdArray(count: Int): Array<UUID> {
+        val context = getNextIdsTimer.time()
+        try {
+            val ids = arrayOfNulls<UUID>(count)
+            var filled = 0
+
+            while (filled < count) {
+                val id = localIds.poll() ?: break
+                localIdCount.decrementAndGet()
+                ids[filled++] = id
+            }
+
+            while (filled < count) {
+                val block = leaseBlock(Math.max(count - filled, BLOCK_SIZE))
+                val used = Math.min(block.size, count - filled)
+                System.arraycopy(block, 0, ids, filled, used)
+                filled += used
+                //Keep the remainder of the block for later calls.
+                (used until block.size).forEach { returnId(block[it]) }
+            }
+
+            idsMeter.mark(count.toLong())
+            scheduleRefillIfNeeded()
+
+            @Suppress("UNCHECKED_CAST")
+            return ids as Array<UUID>
+        } finally {
+            context.stop()
+        }
+    }
+
+    private fun scheduleRefillIfNeeded() {
+        if (localIdCount.get() < LOW_WATERMARK && refilling.compareAndSet(false, true)) {
+            executor.execute {
+                try {
+                    while (localIdCount.get() < HIGH_WATERMARK) {
+                        returnIds(leaseBlock(BLOCK_SIZE).asList())
+                    }
+                } catch (ex: Exception) {
+                    logger.error("Unable to refill local id buffer.", ex)
+                } finally {
+                    refilling.set(false)
+                }
+            }
+        }
+    }
+
+    /**
+     * Leases a block of at least [count] contiguous ids from the next range. A range that has been exhausted returns
+     * a short block, in which case the next range is used for the rest of the ids.
+     */
+    private fun leaseBlock(count: Int): Array<UUID> {
+        if (random) {
+            return Array(count) { UUID.randomUUID() }
+        }
+
+        val context = leaseTimer.time()
+        try {
+            val ids = ArrayList<UUID>(count)
+            var rangesTried = 0
+            while (ids.size < count) {
+                check(rangesTried++ < NUM_PARTITIONS) { "All id ranges have been exhausted." }
+                val range = Math.floorMod(nextRange.getAndIncrement(), NUM_PARTITIONS.toLong())
+                @Suppress("UNCHECKED_CAST")
+                val leased = scrolls.executeOnKey(
+                        range,
+                        IdsGeneratingEntryProcessor(count - ids.size)
+                ) as List<UUID?>
+                leased.filterNotNullTo(ids)
+            }
+            return ids.toTypedArray()
+        } finally {
+            context.stop()
+        }
     }
-}
\ No newline at end of file
+}
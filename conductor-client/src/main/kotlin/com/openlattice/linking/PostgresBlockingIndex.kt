@@ -0,0 +1,433 @@
+package com.openlattice.linking
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.eventbus.EventBus
+import com.google.common.eventbus.Subscribe
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import com.openlattice.assembler.events.MaterializedEntitySetDataChangeEvent
+import com.openlattice.data.EntityDataKey
+import com.openlattice.data.events.EntitiesDeletedEvent
+import com.openlattice.data.events.EntitiesUpsertedEvent
+import com.openlattice.datastore.services.EntitySetManager
+import com.openlattice.edm.events.EntitySetDataDeletedEvent
+import com.openlattice.edm.events.EntitySetDeletedEvent
+import com.openlattice.linking.util.BlockingKey
+import com.openlattice.linking.util.PersonFeatures
+import com.openlattice.postgres.PostgresArrays
+import com.openlattice.postgres.PostgresColumn.*
+import com.openlattice.postgres.PostgresTable.LINKING_BLOCKS
+import com.openlattice.postgres.ResultSetAdapters
+import com.openlattice.postgres.streams.BasePostgresIterable
+import com.openlattice.postgres.streams.PreparedStatementHolderSupplier
+import com.openlattice.rhizome.hazelcast.DelegatedStringSet
+import com.zaxxer.hikari.HikariDataSource
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.sql.Connection
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Default size above which a block is considered too common to be useful and skipped when generating candidates.
+ */
+const val DEFAULT_MAX_BLOCK_SIZE = 1_000
+
+/**
+ * Default number of entities whose blocking keys are written in a single transaction when rebuilding.
+ */
+const val DEFAULT_BLOCKING_INDEX_CHUNK_SIZE = 10_000
+
+/**
+ * Default time changes to an entity set are coalesced over before its blocks are rebuilt.
+ */
+const val DEFAULT_BLOCKING_INDEX_REBUILD_DELAY_MILLIS = 60_000L
+
+/**
+ * Maintains the blocks of people in the `linking_blocks` table, so that candidates for linking can be generated for
+ * many entities with a single query instead of a search per entity.
+ *
+ * Entities of entity sets of the types returned by [getLinkableEntityTypeIds] are indexed under the keys of each of
+ * [blockingKeys] as the datastore posts their writes and deletes on [eventBus]. The linkable entity types and the ids of
+ * the person property types returned by [getFqnToIdMap] are looked up on every use, since the data model may be
+ * created after the index.
+ *
+ * Writes and deletes too large to be posted directly only post a [MaterializedEntitySetDataChangeEvent]. Every such
+ * event schedules a [rebuild] of the entity set from the entities returned by [load], run [rebuildDelayMillis] later so
+ * that a burst of changes to the same entity set is rebuilt once. Blocks larger than [maxBlockSize] do little to narrow
+ * down candidates, so they are skipped when generating candidates.
+ *
+ * The size of every block used to generate candidates is recorded in the `blockSize` histogram, and every block
+ * skipped for being too large marks the `oversizedBlocks` meter.
+ */
+class PostgresBlockingIndex(
+        private val hds: HikariDataSource,
+        eventBus: EventBus,
+        metricRegistry: MetricRegistry,
+        private val entitySetManager: EntitySetManager,
+        private val getLinkableEntityTypeIds: () -> Set<UUID>,
+        private val getFqnToIdMap: () -> Map<FullQualifiedName, UUID>,
+        private val load: (entitySetId: UUID, propertyTypeIds: Set<UUID>) -> Sequence<Pair<UUID, Map<UUID, Set<Any>>>>,
+        val blockingKeys: Set<BlockingKey> = EnumSet.allOf(BlockingKey::class.java),
+        val maxBlockSize: Int = DEFAULT_MAX_BLOCK_SIZE,
+        private val rebuildDelayMillis: Long = DEFAULT_BLOCKING_INDEX_REBUILD_DELAY_MILLIS
+) : Closeable {
+    companion object {
+        private val logger = LoggerFactory.getLogger(PostgresBlockingIndex::class.java)
+    }
+
+    private val blockSizes = metricRegistry.histogram(MetricRegistry.name(PostgresBlockingIndex::class.java, "blockSize"))
+    private val oversizedBlocks = metricRegistry.meter(
+            MetricRegistry.name(PostgresBlockingIndex::class.java, "oversizedBlocks")
+    )
+    private val candidatesTimer = metricRegistry.timer(
+            MetricRegistry.name(PostgresBlockingIndex::class.java, "candidates")
+    )
+
+    private val scheduledRebuilds: MutableSet<UUID> = ConcurrentHashMap.newKeySet()
+    private val rebuildExecutor = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder().setDaemon(true).setNameFormat("blocking-index-rebuild-%d").build()
+    )
+
+    init {
+        require(blockingKeys.isNotEmpty()) { "At least one blocking key is required." }
+        require(maxBlockSize > 0) { "Maximum block size must be positive." }
+        require(rebuildDelayMillis >= 0) { "Rebuild delay must not be negative." }
+        eventBus.register(this)
+    }
+
+    @Subscribe
+    fun entitiesUpserted(event: EntitiesUpsertedEvent) {
+        if (isLinkable(event.entitySetId)) {
+            index(event.entitySetId, toStrings(event.entities))
+        }
+    }
+
+    @Subscribe
+    fun entitiesDeleted(event: EntitiesDeletedEvent) {
+        if (isLinkable(event.entitySetId)) {
+            remove(event.entitySetId, event.entityKeyIds)
+        }
+    }
+
+    @Subscribe
+    fun entitySetDataDeleted(event: EntitySetDataDeletedEvent) {
+        if (isLinkable(event.entitySetId)) {
+            removeEntitySet(event.entitySetId)
+        }
+    }
+
+    @Subscribe
+    fun entitySetDeleted(event: EntitySetDeletedEvent) {
+        if (getLinkableEntityTypeIds().contains(event.entityTypeId)) {
+            removeEntitySet(event.entitySetId)
+        }
+    }
+
+    @Subscribe
+    fun entitySetDataChanged(event: MaterializedEntitySetDataChangeEvent) {
+        if (isLinkable(event.entitySetId)) {
+            scheduleRebuild(event.entitySetId)
+        }
+    }
+
+    private fun isLinkable(entitySetId: UUID): Boolean {
+        val linkableEntityTypeIds = getLinkableEntityTypeIds()
+        if (linkableEntityTypeIds.isEmpty()) {
+            return false
+        }
+        val entityTypeId = entitySetManager.getEntityTypeIdsByEntitySetIds(setOf(entitySetId))[entitySetId]
+        return linkableEntityTypeIds.contains(entityTypeId)
+    }
+
+    /**
+     * Rebuilds the blocks of [entitySetId] from [load] after [rebuildDelayMillis], unless a rebuild of it is already
+     * scheduled. The entity set is unscheduled before its rebuild starts, so that changes made while it runs schedule
+     * another rebuild.
+     */
+    fun scheduleRebuild(entitySetId: UUID) {
+        if (!scheduledRebuilds.add(entitySetId)) {
+            return
+        }
+
+        rebuildExecutor.schedule({
+            scheduledRebuilds.remove(entitySetId)
+            try {
+                rebuild(entitySetId, load(entitySetId, getFqnToIdMap().values.toSet()).map { (entityKeyId, entity) ->
+                    entityKeyId to toStrings(entity)
+                })
+            } catch (ex: Exception) {
+                logger.error("Unable to rebuild blocking index of entity set {}.", entitySetId, ex)
+            }
+        }, rebuildDelayMillis, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Returns the keys of the blocks an entity with [features] belongs to.
+     */
+    fun getBlockKeys(features: PersonFeatures): Set<String> {
+        return blockingKeys.flatMap { it.keys(features) }.toSet()
+    }
+
+    /**
+     * Replaces the blocks of [entities] of [entitySetId] with the blocks of their current values.
+     *
+     * @return The number of block memberships written.
+     */
+    fun index(entitySetId: UUID, entities: Map<UUID, Map<UUID, DelegatedStringSet>>): Int {
+        if (entities.isEmpty()) {
+            return 0
+        }
+
+        return inTransaction { connection ->
+            deleteEntities(connection, entitySetId, entities.keys)
+            insertBlockKeys(connection, INSERT_BLOCK_KEY_SQL, entitySetId, getBlockKeys(entities))
+        }
+    }
+
+    /**
+     * Removes [entityKeyIds] of [entitySetId] from all blocks.
+     */
+    fun remove(entitySetId: UUID, entityKeyIds: Set<UUID>): Int {
+        return hds.connection.use { connection -> deleteEntities(connection, entitySetId, entityKeyIds) }
+    }
+
+    /**
+     * Removes all entities of [entitySetId] from all blocks.
+     */
+    fun removeEntitySet(entitySetId: UUID): Int {
+        return hds.connection.use { connection -> deleteEntitySet(connection, entitySetId) }
+    }
+
+    /**
+     * Replaces all blocks of [entitySetId] with the blocks of [entities], computed [chunkSize] entities at a time.
+     *
+     * The blocks are staged in a temporary table and swapped in with a single transaction, so the previous blocks of
+     * the entity set keep being used to generate candidates until the rebuild is done. Writes indexed while the
+     * rebuild runs are replaced by the values read from [entities].
+     *
+     * @return The number of block memberships written.
+     */
+    fun rebuild(
+            entitySetId: UUID,
+            entities: Sequence<Pair<UUID, Map<UUID, DelegatedStringSet>>>,
+            chunkSize: Int = DEFAULT_BLOCKING_INDEX_CHUNK_SIZE
+    ): Int {
+        val (deleted, written) = inTransaction { connection ->
+            connection.createStatement().use { stmt -> stmt.execute(CREATE_STAGING_TABLE_SQL) }
+            entities.chunked(chunkSize).forEach { chunk ->
+                insertBlockKeys(connection, INSERT_STAGED_BLOCK_KEY_SQL, entitySetId, getBlockKeys(chunk.toMap()))
+            }
+
+            deleteEntitySet(connection, entitySetId) to
+                    connection.createStatement().use { stmt -> stmt.executeUpdate(SWAP_IN_STAGED_BLOCKS_SQL) }
+        }
+
+        logger.info(
+                "Rebuilt blocking index of entity set {}: removed {} and wrote {} block memberships.",
+                entitySetId,
+                deleted,
+                written
+        )
+
+        return written
+    }
+
+    /**
+     * Returns the candidates for linking of each of [entities], i.e. every other entity sharing a block of at most
+     * [maxBlockSize] entities with it.
+     */
+    fun getCandidates(entities: Set<EntityDataKey>): Map<EntityDataKey, Set<EntityDataKey>> {
+        if (entities.isEmpty()) {
+            return mapOf()
+        }
+
+        return candidatesTimer.time().use {
+            val blocks = getBlocks(entities)
+            val (usable, oversized) = blocks.values.partition { it.size <= maxBlockSize }
+
+            usable.forEach { blockSizes.update(it.size) }
+            if (oversized.isNotEmpty()) {
+                oversizedBlocks.mark(oversized.size.toLong())
+                logger.info("Skipped {} blocks larger than {} entities.", oversized.size, maxBlockSize)
+            }
+
+            val candidates = entities.associateWith { mutableSetOf<EntityDataKey>() }
+            usable.forEach { members ->
+                members.filter { candidates.containsKey(it) }.forEach { entity ->
+                    candidates.getValue(entity).addAll(members)
+                    candidates.getValue(entity).remove(entity)
+                }
+            }
+            candidates
+        }
+    }
+
+    /**
+     * Returns the number of blocks of each size that contain entities of [entitySetId], including the entities of
+     * other entity sets in those blocks.
+     */
+    fun getBlockSizeDistribution(entitySetId: UUID): SortedMap<Long, Long> {
+        return BasePostgresIterable(PreparedStatementHolderSupplier(hds, BLOCK_SIZE_DISTRIBUTION_SQL) { ps ->
+            ps.setObject(1, entitySetId)
+        }) { rs -> rs.getLong(BLOCK_SIZE) to rs.getLong(BLOCK_COUNT) }.toMap(TreeMap())
+    }
+
+    /**
+     * Loads the members of every block containing at least one of [entities], counting members beyond [maxBlockSize]
+     * only so far as to tell that the block is oversized.
+     */
+    private fun getBlocks(entities: Set<EntityDataKey>): Map<String, List<EntityDataKey>> {
+        val entitySetIds = entities.map { it.entitySetId }
+        val entityKeyIds = entities.map { it.entityKeyId }
+
+        return BasePostgresIterable(PreparedStatementHolderSupplier(hds, SELECT_BLOCKS_SQL) { ps ->
+            ps.setArray(1, PostgresArrays.createUuidArray(ps.connection, entitySetIds))
+            ps.setArray(2, PostgresArrays.createUuidArray(ps.connection, entityKeyIds))
+            ps.setInt(3, maxBlockSize + 1)
+        }) { rs ->
+            rs.getString(BLOCK_KEY.name) to EntityDataKey(
+                    ResultSetAdapters.entitySetId(rs),
+                    rs.getObject(ENTITY_KEY_ID.name, UUID::class.java)
+            )
+        }.groupBy({ it.first }, { it.second })
+    }
+
+    private fun getBlockKeys(entities: Map<UUID, Map<UUID, DelegatedStringSet>>): Map<UUID, Set<String>> {
+        return PersonFeatures.ofAll(entities, getFqnToIdMap()).mapValues { getBlockKeys(it.value) }
+    }
+
+    private fun toStrings(entities: Map<UUID, Map<UUID, Set<Any>>>): Map<UUID, Map<UUID, DelegatedStringSet>> {
+        return entities.mapValues { (_, entity) -> toStrings(entity) }
+    }
+
+    private fun toStrings(entity: Map<UUID, Set<Any>>): Map<UUID, DelegatedStringSet> {
+        return entity.mapValues { (_, values) -> DelegatedStringSet.wrap(values.map { it.toString() }.toSet()) }
+    }
+
+    /**
+     * Stops scheduling rebuilds. Called by Spring when the context is shut down.
+     */
+    override fun close() {
+        rebuildExecutor.shutdownNow()
+    }
+
+    private fun <T> inTransaction(action: (Connection) -> T): T {
+        return hds.connection.use { connection ->
+            connection.autoCommit = false
+            try {
+                val result = action(connection)
+                connection.commit()
+                result
+            } catch (ex: Exception) {
+                connection.rollback()
+                throw ex
+            } finally {
+                connection.autoCommit = true
+            }
+        }
+    }
+
+    private fun deleteEntitySet(connection: Connection, entitySetId: UUID): Int {
+        return connection.prepareStatement(DELETE_ENTITY_SET_SQL).use { ps ->
+            ps.setObject(1, entitySetId)
+            ps.executeUpdate()
+        }
+    }
+
+    private fun deleteEntities(connection: Connection, entitySetId: UUID, entityKeyIds: Set<UUID>): Int {
+        return connection.prepareStatement(DELETE_ENTITIES_SQL).use { ps ->
+            ps.setObject(1, entitySetId)
+            ps.setArray(2, PostgresArrays.createUuidArray(connection, entityKeyIds))
+            ps.executeUpdate()
+        }
+    }
+
+    private fun insertBlockKeys(
+            connection: Connection,
+            sql: String,
+            entitySetId: UUID,
+            blockKeys: Map<UUID, Set<String>>
+    ): Int {
+        return connection.prepareStatement(sql).use { ps ->
+            blockKeys.forEach { (entityKeyId, keys) ->
+                keys.forEach { key ->
+                    ps.setString(1, key)
+                    ps.setObject(2, entitySetId)
+                    ps.setObject(3, entityKeyId)
+                    ps.addBatch()
+                }
+            }
+            ps.executeBatch().sum()
+        }
+    }
+}
+
+private const val BLOCK_SIZE = "block_size"
+private const val BLOCK_COUNT = "block_count"
+private const val MEMBER_INDEX = "member_index"
+private const val STAGED_BLOCKS = "linking_blocks_staging"
+
+private val BLOCK_COLUMNS = "${BLOCK_KEY.name}, ${ENTITY_SET_ID.name}, ${ENTITY_KEY_ID.name}"
+
+private val INSERT_BLOCK_KEY_SQL = """
+    INSERT INTO ${LINKING_BLOCKS.name} ($BLOCK_COLUMNS)
+    VALUES (?, ?, ?)
+    ON CONFLICT DO NOTHING
+""".trimIndent()
+
+private val CREATE_STAGING_TABLE_SQL = "CREATE TEMPORARY TABLE $STAGED_BLOCKS (LIKE ${LINKING_BLOCKS.name}) ON COMMIT DROP"
+
+private val INSERT_STAGED_BLOCK_KEY_SQL = "INSERT INTO $STAGED_BLOCKS ($BLOCK_COLUMNS) VALUES (?, ?, ?)"
+
+private val SWAP_IN_STAGED_BLOCKS_SQL = """
+    INSERT INTO ${LINKING_BLOCKS.name} ($BLOCK_COLUMNS)
+    SELECT DISTINCT $BLOCK_COLUMNS FROM $STAGED_BLOCKS
+    ON CONFLICT DO NOTHING
+""".trimIndent()
+
+private val DELETE_ENTITIES_SQL = """
+    DELETE FROM ${LINKING_BLOCKS.name} WHERE ${ENTITY_SET_ID.name} = ? AND ${ENTITY_KEY_ID.name} = ANY(?)
+""".trimIndent()
+
+private val DELETE_ENTITY_SET_SQL = "DELETE FROM ${LINKING_BLOCKS.name} WHERE ${ENTITY_SET_ID.name} = ?"
+
+/**
+ * Numbers the members of each block, which is partitioned on the distribution column so that it runs on the workers,
+ * and keeps only as many as requested.
+ *
+ * 1. entity set ids of the entities to generate candidates for
+ * 2. entity key ids of the entities to generate candidates for
+ * 3. maximum number of members loaded per block
+ */
+private val SELECT_BLOCKS_SQL = """
+    WITH query_blocks AS (
+        SELECT DISTINCT ${BLOCK_KEY.name}
+        FROM ${LINKING_BLOCKS.name}
+        INNER JOIN unnest(?::uuid[], ?::uuid[]) AS q(${ENTITY_SET_ID.name}, ${ENTITY_KEY_ID.name})
+            USING (${ENTITY_SET_ID.name}, ${ENTITY_KEY_ID.name})
+    )
+    SELECT $BLOCK_COLUMNS
+    FROM (
+        SELECT $BLOCK_COLUMNS, row_number() OVER (PARTITION BY ${BLOCK_KEY.name}) AS $MEMBER_INDEX
+        FROM ${LINKING_BLOCKS.name}
+        WHERE ${BLOCK_KEY.name} IN (SELECT ${BLOCK_KEY.name} FROM query_blocks)
+    ) AS members
+    WHERE $MEMBER_INDEX <= ?
+""".trimIndent()
+
+private val BLOCK_SIZE_DISTRIBUTION_SQL = """
+    SELECT $BLOCK_SIZE, count(*) AS $BLOCK_COUNT
+    FROM (
+        SELECT count(*) AS $BLOCK_SIZE
+        FROM ${LINKING_BLOCKS.name}
+        WHERE ${BLOCK_KEY.name} IN (
+            SELECT ${BLOCK_KEY.name} FROM ${LINKING_BLOCKS.name} WHERE ${ENTITY_SET_ID.name} = ?
+        )
+        GROUP BY ${BLOCK_KEY.name}
+    ) AS block_sizes
+    GROUP BY $BLOCK_SIZE
+    ORDER BY $BLOCK_SIZE
+""".trimIndent()
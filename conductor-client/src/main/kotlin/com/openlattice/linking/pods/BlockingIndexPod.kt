@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+package com.openlattice.linking.pods
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.eventbus.EventBus
+import com.openlattice.data.storage.PostgresEntityDataQueryService
+import com.openlattice.datastore.services.EdmManager
+import com.openlattice.datastore.services.EntitySetManager
+import com.openlattice.linking.PostgresBlockingIndex
+import com.openlattice.linking.util.PersonProperties
+import com.zaxxer.hikari.HikariDataSource
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.slf4j.LoggerFactory
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import java.util.*
+import javax.inject.Inject
+
+@Configuration
+class BlockingIndexPod {
+    @Inject
+    private lateinit var hds: HikariDataSource
+    @Inject
+    private lateinit var eventBus: EventBus
+    @Inject
+    private lateinit var metricRegistry: MetricRegistry
+    @Inject
+    private lateinit var dataModelService: EdmManager
+    @Inject
+    private lateinit var entitySetManager: EntitySetManager
+    @Inject
+    private lateinit var dataQueryService: PostgresEntityDataQueryService
+
+    @Bean
+    fun blockingIndex(): PostgresBlockingIndex {
+        LoggerFactory.getLogger(BlockingIndexPod::class.java).info("Constructing PostgresBlockingIndex")
+
+        val personType = PersonTypeLookup(dataModelService)
+        return PostgresBlockingIndex(
+                hds,
+                eventBus,
+                metricRegistry,
+                entitySetManager,
+                personType::getLinkableEntityTypeIds,
+                personType::getFqnToIdMap,
+                { entitySetId, propertyTypeIds ->
+                    val propertyTypes = entitySetManager.getPropertyTypesForEntitySet(entitySetId)
+                            .filterKeys { propertyTypeIds.contains(it) }
+                    dataQueryService.getEntitiesWithPropertyTypeIds(
+                            mapOf(entitySetId to Optional.empty()),
+                            mapOf(entitySetId to propertyTypes)
+                    ).asSequence()
+                }
+        )
+    }
+}
+
+/**
+ * Looks up the person entity type and property types until the person entity type exists and remembers them from then
+ * on. Without the person entity type there is nothing to link, so nothing is indexed until it is created.
+ */
+private class PersonTypeLookup(private val dataModelService: EdmManager) {
+    @Volatile
+    private var personType: Pair<Set<UUID>, Map<FullQualifiedName, UUID>>? = null
+
+    fun getLinkableEntityTypeIds(): Set<UUID> = lookUp()?.first ?: setOf()
+
+    fun getFqnToIdMap(): Map<FullQualifiedName, UUID> = lookUp()?.second ?: mapOf()
+
+    private fun lookUp(): Pair<Set<UUID>, Map<FullQualifiedName, UUID>>? {
+        personType?.let { return it }
+        if (!dataModelService.checkEntityTypeExists(PersonProperties.PERSON_TYPE_FQN)) {
+            return null
+        }
+
+        val found = setOf(dataModelService.getEntityType(PersonProperties.PERSON_TYPE_FQN).id) to
+                dataModelService.getFqnToIdMap(PersonProperties.FQNS)
+        personType = found
+        return found
+    }
+}
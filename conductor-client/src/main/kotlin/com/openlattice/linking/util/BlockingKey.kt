@@ -0,0 +1,58 @@
+package com.openlattice.linking.util
+
+/**
+ * Keys used to group people into blocks of linking candidates. Two people are candidates for linking if they share at
+ * least one block.
+ *
+ * Keys are computed from [PersonFeatures], so names are compared by their double metaphone codes and birth dates after
+ * parsing. Every key is prefixed with the name of the blocking key it was derived from, so keys of different kinds
+ * never collide.
+ */
+enum class BlockingKey {
+    /**
+     * Phonetic surname and birth year.
+     */
+    SURNAME_METAPHONE_BIRTH_YEAR {
+        override fun compute(features: PersonFeatures): Set<String> {
+            return combine(features.lastNameMetaphones, features.parsedDobs.map { it.takeLast(4) })
+        }
+    },
+
+    /**
+     * Phonetic first name and full birth date.
+     */
+    FIRST_NAME_METAPHONE_BIRTH_DATE {
+        override fun compute(features: PersonFeatures): Set<String> {
+            return combine(features.firstNameMetaphones, features.parsedDobs.asList())
+        }
+    },
+
+    /**
+     * Last four digits of the social security number, ignoring any separators.
+     */
+    SSN_SUFFIX {
+        override fun compute(features: PersonFeatures): Set<String> {
+            return features.ssns
+                    .map { ssn -> ssn.filter { it.isDigit() } }
+                    .filter { it.length >= SSN_SUFFIX_LENGTH }
+                    .map { it.takeLast(SSN_SUFFIX_LENGTH) }
+                    .toSet()
+        }
+    };
+
+    protected abstract fun compute(features: PersonFeatures): Set<String>
+
+    /**
+     * Returns the keys of the blocks a person with [features] belongs to for this blocking key.
+     */
+    fun keys(features: PersonFeatures): Set<String> {
+        return compute(features).map { "$name:$it" }.toSet()
+    }
+
+    protected fun combine(first: Array<String>, second: Collection<String>): Set<String> {
+        return first.filter { it.isNotBlank() }.flatMap { a -> second.filter { it.isNotBlank() }.map { b -> "$a:$b" } }
+                .toSet()
+    }
+}
+
+private const val SSN_SUFFIX_LENGTH = 4
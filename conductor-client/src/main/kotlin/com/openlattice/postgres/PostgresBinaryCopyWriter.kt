@@ -0,0 +1,152 @@
+package com.openlattice.postgres
+
+import java.io.Closeable
+import java.io.DataOutputStream
+import java.io.OutputStream
+import java.nio.charset.StandardCharsets
+import java.time.LocalDate
+import java.time.LocalTime
+import java.time.OffsetDateTime
+import java.time.ZoneOffset
+import java.time.temporal.ChronoUnit
+import java.util.*
+
+private val COPY_SIGNATURE = byteArrayOf(
+        'P'.toByte(), 'G'.toByte(), 'C'.toByte(), 'O'.toByte(), 'P'.toByte(), 'Y'.toByte(),
+        '\n'.toByte(), 0xFF.toByte(), '\r'.toByte(), '\n'.toByte(), 0
+)
+private val POSTGRES_EPOCH_DATE = LocalDate.of(2000, 1, 1)
+private val POSTGRES_EPOCH = POSTGRES_EPOCH_DATE.atStartOfDay().atOffset(ZoneOffset.UTC)
+private const val INT8_OID = 20
+
+/**
+ * Writes rows in the PostgreSQL binary COPY format to the provided output stream, usually a
+ * [org.postgresql.copy.PGCopyOutputStream] for a `COPY ... FROM STDIN WITH (FORMAT binary)` statement.
+ *
+ * Callers must write exactly the number of fields declared by [startRow] for each row, in the column order of the
+ * COPY statement. Closing the writer writes the trailer and closes the underlying stream, which ends the copy.
+ */
+class PostgresBinaryCopyWriter(outputStream: OutputStream) : Closeable {
+    private val out = DataOutputStream(outputStream)
+    private var rows = 0L
+
+    init {
+        out.write(COPY_SIGNATURE)
+        out.writeInt(0) //flags
+        out.writeInt(0) //header extension length
+    }
+
+    val rowCount: Long
+        get() = rows
+
+    fun startRow(fieldCount: Int) {
+        out.writeShort(fieldCount)
+        rows++
+    }
+
+    fun writeNull() {
+        out.writeInt(-1)
+    }
+
+    fun writeNulls(count: Int) {
+        repeat(count) { out.writeInt(-1) }
+    }
+
+    fun writeUuid(value: UUID) {
+        out.writeInt(16)
+        out.writeLong(value.mostSignificantBits)
+        out.writeLong(value.leastSignificantBits)
+    }
+
+    fun writeShort(value: Short) {
+        out.writeInt(2)
+        out.writeShort(value.toInt())
+    }
+
+    fun writeInt(value: Int) {
+        out.writeInt(4)
+        out.writeInt(value)
+    }
+
+    fun writeLong(value: Long) {
+        out.writeInt(8)
+        out.writeLong(value)
+    }
+
+    fun writeDouble(value: Double) {
+        out.writeInt(8)
+        out.writeDouble(value)
+    }
+
+    fun writeBoolean(value: Boolean) {
+        out.writeInt(1)
+        out.writeByte(if (value) 1 else 0)
+    }
+
+    fun writeBytes(value: ByteArray) {
+        out.writeInt(value.size)
+        out.write(value)
+    }
+
+    fun writeText(value: String) {
+        writeBytes(value.toByteArray(StandardCharsets.UTF_8))
+    }
+
+    fun writeDate(value: LocalDate) {
+        out.writeInt(4)
+        out.writeInt(ChronoUnit.DAYS.between(POSTGRES_EPOCH_DATE, value).toInt())
+    }
+
+    fun writeTimestampTz(value: OffsetDateTime) {
+        out.writeInt(8)
+        out.writeLong(ChronoUnit.MICROS.between(POSTGRES_EPOCH, value))
+    }
+
+    /**
+     * Local times are written with a UTC zone, which matches how they are bound through JDBC.
+     */
+    fun writeTimeTz(value: LocalTime) {
+        out.writeInt(12)
+        out.writeLong(value.toNanoOfDay() / 1_000)
+        out.writeInt(0)
+    }
+
+    fun writeLongArray(values: LongArray) {
+        out.writeInt(20 + 12 * values.size)
+        out.writeInt(1) //dimensions
+        out.writeInt(0) //no nulls
+        out.writeInt(INT8_OID)
+        out.writeInt(values.size)
+        out.writeInt(1) //lower bound
+        values.forEach {
+            out.writeInt(8)
+            out.writeLong(it)
+        }
+    }
+
+    /**
+     * Writes a normalized property value into a column of the provided datatype.
+     */
+    fun writeValue(value: Any, datatype: PostgresDatatype) {
+        when (datatype) {
+            PostgresDatatype.TEXT -> writeText(value.toString())
+            PostgresDatatype.UUID -> writeUuid(value as UUID)
+            PostgresDatatype.SMALLINT -> writeShort((value as Number).toShort())
+            PostgresDatatype.INTEGER -> writeInt((value as Number).toInt())
+            PostgresDatatype.BIGINT -> writeLong((value as Number).toLong())
+            PostgresDatatype.DOUBLE -> writeDouble((value as Number).toDouble())
+            PostgresDatatype.BOOLEAN -> writeBoolean(value as Boolean)
+            PostgresDatatype.DATE -> writeDate(value as LocalDate)
+            PostgresDatatype.TIMESTAMPTZ -> writeTimestampTz(value as OffsetDateTime)
+            PostgresDatatype.TIMETZ -> writeTimeTz(value as LocalTime)
+            PostgresDatatype.BYTEA -> writeBytes(value as ByteArray)
+            else -> throw IllegalArgumentException("Binary copy of $datatype values is not supported.")
+        }
+    }
+
+    override fun close() {
+        out.writeShort(-1)
+        out.flush()
+        out.close()
+    }
+}
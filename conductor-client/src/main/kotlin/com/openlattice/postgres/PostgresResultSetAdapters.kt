@@ -2,11 +2,13 @@ package com.openlattice.postgres
 
 import com.dataloom.mappers.ObjectMappers
 import com.fasterxml.jackson.module.kotlin.readValue
+import com.google.common.util.concurrent.ListenableFuture
 import com.openlattice.IdConstants.LAST_WRITE_ID
 import com.openlattice.data.storage.ByteBlobDataManager
 import com.openlattice.data.storage.MetadataOption
 import com.openlattice.data.storage.PROPERTIES
 import com.openlattice.data.storage.VALUE
+import com.openlattice.data.storage.getColumnarPropertyTypeIdsColumnName
 import com.openlattice.edm.EdmConstants.Companion.ID_FQN
 import com.openlattice.edm.EdmConstants.Companion.LAST_WRITE_FQN
 import com.openlattice.edm.type.PropertyType
@@ -17,9 +19,15 @@ import org.slf4j.LoggerFactory
 import java.sql.*
 import java.sql.Date
 import java.time.Instant
+import java.time.LocalDate
 import java.time.OffsetDateTime
+import java.time.OffsetTime
 import java.time.ZoneId
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeFormatterBuilder
 import java.util.*
+import java.util.concurrent.ExecutionException
 
 
 internal class PostgresResultSetAdapters
@@ -52,6 +60,112 @@ fun getEntityPropertiesByPropertyTypeId(
     return id to entity
 }
 
+/**
+ * Returns entity data from a [ResultSet] produced by [buildPreparableColumnarFiltersSql] mapped by property type id.
+ *
+ * @param valueColumns The value columns selected for each entity set, as returned by [getColumnarValueColumns].
+ */
+@Throws(SQLException::class)
+fun getEntityPropertiesByPropertyTypeIdFromColumns(
+        rs: ResultSet,
+        authorizedPropertyTypes: Map<UUID, Map<UUID, PropertyType>>,
+        valueColumns: Map<UUID, Map<String, PostgresDatatype>>,
+        metadataOptions: Set<MetadataOption>,
+        byteBlobDataManager: ByteBlobDataManager
+): Pair<UUID, MutableMap<UUID, MutableSet<Any>>> {
+    val id = id(rs)
+    val entitySetId = entitySetId(rs)
+    val propertyTypes = authorizedPropertyTypes.getValue(entitySetId)
+
+    val entity = readColumnarDataColumns(
+            rs,
+            propertyTypes,
+            valueColumns.getValue(entitySetId),
+            byteBlobDataManager
+    )
+
+    if (metadataOptions.contains(MetadataOption.LAST_WRITE)) {
+        entity[LAST_WRITE_ID.id] = mutableSetOf<Any>(lastWriteTyped(rs))
+    }
+
+    return id to entity
+}
+
+/**
+ * Reads the parallel property type id and value arrays selected by [buildPreparableColumnarFiltersSql] into an entity.
+ * Values of property types missing from [propertyTypes] are skipped.
+ */
+@Throws(SQLException::class)
+fun readColumnarDataColumns(
+        rs: ResultSet,
+        propertyTypes: Map<UUID, PropertyType>,
+        valueColumns: Map<String, PostgresDatatype>,
+        byteBlobDataManager: ByteBlobDataManager
+): MutableMap<UUID, MutableSet<Any>> {
+    val entity = mutableMapOf<UUID, MutableSet<Any>>()
+
+    valueColumns.forEach { (valueColumn, datatype) ->
+        val propertyTypeIds = rs.getArray(getColumnarPropertyTypeIdsColumnName(valueColumn))?.array as Array<UUID>?
+                ?: return@forEach
+        val values = readColumnarValues(rs.getArray(valueColumn), datatype)
+
+        propertyTypeIds.forEachIndexed { index, propertyTypeId ->
+            val propertyType = propertyTypes[propertyTypeId] ?: return@forEachIndexed
+            val value = values[index] ?: return@forEachIndexed
+            entity.getOrPut(propertyType.id) { mutableSetOf() }.add(columnarValue(value))
+        }
+    }
+
+    resolveBinaryValues(listOf(entity), propertyTypes, byteBlobDataManager)
+
+    return entity
+}
+
+/**
+ * Reads the elements of a value array selected by [buildPreparableColumnarFiltersSql]. Temporal values are read with
+ * the typed accessors of the driver, as the array elements it returns for them drop precision and time zones.
+ */
+private fun readColumnarValues(array: java.sql.Array, datatype: PostgresDatatype): List<Any?> {
+    val temporalType: Class<*> = when (datatype) {
+        PostgresDatatype.DATE -> LocalDate::class.java
+        PostgresDatatype.TIMESTAMPTZ -> OffsetDateTime::class.java
+        PostgresDatatype.TIMETZ -> String::class.java
+        else -> return (array.array as Array<*>).asList()
+    }
+
+    return array.resultSet.use { elements ->
+        val values = mutableListOf<Any?>()
+        while (elements.next()) {
+            val value = elements.getObject(2, temporalType)
+            values.add(if (value is String) OffsetTime.parse(value, TIMETZ_FORMATTER) else value)
+        }
+        values
+    }
+}
+
+/**
+ * Parses time with time zone values as Postgres outputs them, which omits the minutes of whole hour offsets.
+ */
+private val TIMETZ_FORMATTER = DateTimeFormatterBuilder()
+        .append(DateTimeFormatter.ISO_LOCAL_TIME)
+        .appendOffset("+HH:mm", "+00")
+        .toFormatter()
+
+/**
+ * Converts a single value read from the [DATA] table into the value [readJsonDataColumns] returns for it. Temporal
+ * values are kept as their native types, to be compared by value rather than by how they are formatted.
+ */
+internal fun columnarValue(value: Any): Any {
+    return when (value) {
+        is UUID -> value.toString()
+        is Short -> value.toInt()
+        is Long -> if (value in Int.MIN_VALUE..Int.MAX_VALUE) value.toInt() else value
+        is Double -> if (value.isNaN() || value.isInfinite()) value.toString() else value
+        is OffsetDateTime -> value.withOffsetSameInstant(ZoneOffset.UTC)
+        else -> value
+    }
+}
+
 /**
  * Returns linked entity data from the [ResultSet] mapped respectively by its id, entity set, origin id and property
  * type id.
@@ -151,15 +265,7 @@ fun readJsonDataColumns(
     // Note: this call deletes all entries from result, which is not in propertyTypes (ID for example)
     (entity.keys - propertyTypes.keys).forEach { entity.remove(it) }
 
-    propertyTypes.forEach { (_, propertyType) ->
-
-        if (propertyType.datatype == EdmPrimitiveTypeKind.Binary) {
-            val urls = entity.getOrElse(propertyType.id) { mutableSetOf() }
-            if (urls.isNotEmpty()) {
-                entity[propertyType.id] = byteBlobDataManager.getObjects(urls).toMutableSet()
-            }
-        }
-    }
+    resolveBinaryValues(listOf(entity), propertyTypes, byteBlobDataManager)
 
     return entity
 }
@@ -197,18 +303,58 @@ fun readJsonDataColumnsWithId(
         }
     }
 
-    propertyTypes.forEach { (_, propertyType) ->
-        if (propertyType.datatype == EdmPrimitiveTypeKind.Binary) {
-            entities.forEach { (_, entity) ->
-                val urls = entity.getOrElse(propertyType.id) { mutableSetOf() }
-                if (urls.isNotEmpty()) {
-                    entity[propertyType.id] = byteBlobDataManager.getObjects(urls).toMutableSet()
-                }
+    resolveBinaryValues(entities.values, propertyTypes, byteBlobDataManager)
+
+    return entities
+}
+
+/**
+ * Replaces the object keys stored for the binary properties of [entities] with [PendingObjects] for the objects
+ * returned by [byteBlobDataManager]. Lookups are only started here and are not waited on, so that reading a row never
+ * blocks on the object store, and the lookups of consecutive rows run concurrently while the rest of the result set is
+ * read.
+ */
+private fun resolveBinaryValues(
+        entities: Collection<MutableMap<UUID, MutableSet<Any>>>,
+        propertyTypes: Map<UUID, PropertyType>,
+        byteBlobDataManager: ByteBlobDataManager
+) {
+    val binaryPropertyTypeIds = propertyTypes.values
+            .filter { it.datatype == EdmPrimitiveTypeKind.Binary }
+            .map { it.id }
+    if (binaryPropertyTypeIds.isEmpty()) {
+        return
+    }
+
+    entities.forEach { entity ->
+        binaryPropertyTypeIds.forEach { propertyTypeId ->
+            val urls = entity[propertyTypeId]
+            if (!urls.isNullOrEmpty()) {
+                entity[propertyTypeId] = PendingObjects(byteBlobDataManager.getObjectsAsync(urls))
             }
         }
     }
+}
 
-    return entities
+/**
+ * The objects of a binary property that are still being fetched from the object store. The set waits for the lookup
+ * the first time it is read, and rethrows the failure of the lookup if it failed.
+ */
+internal class PendingObjects(private val objects: ListenableFuture<List<Any>>) : AbstractMutableSet<Any>() {
+    private val resolved: MutableSet<Any> by lazy {
+        try {
+            objects.get().toMutableSet()
+        } catch (ex: ExecutionException) {
+            throw ex.cause ?: ex
+        }
+    }
+
+    override val size: Int
+        get() = resolved.size
+
+    override fun iterator(): MutableIterator<Any> = resolved.iterator()
+
+    override fun add(element: Any): Boolean = resolved.add(element)
 }
 
 
@@ -0,0 +1,198 @@
+package com.openlattice.search
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import com.openlattice.IdConstants
+import com.openlattice.conductor.rpc.ConductorElasticsearchApi
+import com.openlattice.edm.type.PropertyType
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.time.OffsetDateTime
+import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Default number of partitions scanned concurrently by a bulk reindex.
+ */
+val DEFAULT_BULK_REINDEX_PARALLELISM = Math.min(Runtime.getRuntime().availableProcessors(), 8)
+
+/**
+ * Default number of entities sent to elasticsearch in a single bulk request.
+ */
+const val DEFAULT_BULK_REINDEX_CHUNK_SIZE = 1_000
+
+/**
+ * Where a [BulkReindexer] reads entities from and records what it has indexed.
+ */
+interface BulkReindexSource {
+    /**
+     * Returns the partitions [entitySetId] is stored in.
+     */
+    fun getPartitions(entitySetId: UUID): Set<Int>
+
+    /**
+     * Returns an estimate of the number of entities in [entitySetId], used to report progress.
+     */
+    fun getEntityCount(entitySetId: UUID): Long
+
+    /**
+     * Streams every entity of [entitySetId] in [partition] with the values of [propertyTypes] and its last write.
+     */
+    fun scan(
+            entitySetId: UUID,
+            partition: Int,
+            propertyTypes: Map<UUID, PropertyType>
+    ): Iterable<Pair<UUID, Map<UUID, Set<Any>>>>
+
+    /**
+     * Records that entities of [entitySetId] in [partition] were indexed at the last writes in [lastWrites].
+     */
+    fun markAsIndexed(entitySetId: UUID, partition: Int, lastWrites: Map<UUID, OffsetDateTime>)
+}
+
+/**
+ * Reindexes all data of entity sets by scanning their partitions directly, instead of marking every entity as needing
+ * to be indexed and leaving it to background indexing.
+ *
+ * Up to [parallelism] partitions are scanned at once. Each partition is streamed and sent to elasticsearch in chunks of
+ * [chunkSize] entities, and the last index of a chunk is recorded with a single statement once elasticsearch has
+ * accepted it, so an interrupted reindex leaves every chunk it completed marked as indexed.
+ *
+ * Entities indexed are exposed as the `entities` meter, whose rate is the throughput of reindexing. The number of
+ * entities left to index by running reindexes is exposed as the `remaining` gauge and the estimated time to index them
+ * at the current rate as the `etaSeconds` gauge.
+ */
+class BulkReindexer(
+        private val elasticsearchApi: ConductorElasticsearchApi,
+        private val source: BulkReindexSource,
+        metricRegistry: MetricRegistry,
+        val parallelism: Int = DEFAULT_BULK_REINDEX_PARALLELISM,
+        val chunkSize: Int = DEFAULT_BULK_REINDEX_CHUNK_SIZE
+) : Closeable {
+    companion object {
+        private val logger = LoggerFactory.getLogger(BulkReindexer::class.java)
+    }
+
+    private val executor = Executors.newFixedThreadPool(
+            parallelism,
+            ThreadFactoryBuilder().setDaemon(true).setNameFormat("bulk-reindexer-%d").build()
+    )
+
+    private val entitiesMeter = metricRegistry.meter(MetricRegistry.name(BulkReindexer::class.java, "entities"))
+    private val chunkTimer = metricRegistry.timer(MetricRegistry.name(BulkReindexer::class.java, "chunk"))
+    private val remaining = AtomicLong()
+
+    init {
+        require(parallelism > 0) { "Bulk reindex parallelism must be positive." }
+        require(chunkSize > 0) { "Bulk reindex chunk size must be positive." }
+        metricRegistry.gauge(MetricRegistry.name(BulkReindexer::class.java, "remaining")) {
+            Gauge { remaining.get() }
+        }
+        metricRegistry.gauge(MetricRegistry.name(BulkReindexer::class.java, "etaSeconds")) {
+            Gauge {
+                val rate = entitiesMeter.oneMinuteRate
+                if (rate > 0) (remaining.get() / rate).toLong() else -1L
+            }
+        }
+    }
+
+    /**
+     * Reindexes every entity of [entitySetId] with the values of [propertyTypes] and blocks until done.
+     *
+     * @return The number of entities indexed.
+     */
+    fun reindex(entitySetId: UUID, entityTypeId: UUID, propertyTypes: Map<UUID, PropertyType>): Long {
+        // the count is an estimate, so what is left is clamped at zero and anything not indexed is dropped at the end
+        val left = AtomicLong(source.getEntityCount(entitySetId))
+        remaining.addAndGet(left.get())
+
+        val start = System.currentTimeMillis()
+        val indexed = AtomicLong()
+        try {
+            val futures = source.getPartitions(entitySetId).map { partition ->
+                executor.submit {
+                    reindexPartition(entitySetId, entityTypeId, partition, propertyTypes) { count ->
+                        indexed.addAndGet(count)
+                        val before = left.getAndUpdate { Math.max(0L, it - count) }
+                        remaining.addAndGet(-Math.min(before, count))
+                    }
+                }
+            }
+
+            var failure: Throwable? = null
+            futures.forEach { future ->
+                try {
+                    future.get()
+                } catch (ex: ExecutionException) {
+                    failure = failure ?: ex.cause ?: ex
+                }
+            }
+            failure?.let { throw it }
+        } finally {
+            remaining.addAndGet(-left.getAndSet(0L))
+        }
+
+        val elapsed = Math.max(1L, System.currentTimeMillis() - start)
+        logger.info(
+                "Reindexed {} entities of entity set {} in {} ms ({} entities/s).",
+                indexed.get(),
+                entitySetId,
+                elapsed,
+                1_000 * indexed.get() / elapsed
+        )
+
+        return indexed.get()
+    }
+
+    private fun reindexPartition(
+            entitySetId: UUID,
+            entityTypeId: UUID,
+            partition: Int,
+            propertyTypes: Map<UUID, PropertyType>,
+            onIndexed: (Long) -> Unit
+    ) {
+        source.scan(entitySetId, partition, propertyTypes).asSequence().chunked(chunkSize).forEach { chunk ->
+            chunkTimer.time().use {
+                val entities = chunk.toMap()
+                check(elasticsearchApi.createBulkEntityData(entityTypeId, entitySetId, entities)) {
+                    "Unable to index partition $partition of entity set $entitySetId."
+                }
+
+                val lastWrites = getLastWrites(entities)
+                if (lastWrites.size < entities.size) {
+                    logger.warn(
+                            "Not marking {} entities of partition {} of entity set {} without a last write as indexed.",
+                            entities.size - lastWrites.size,
+                            partition,
+                            entitySetId
+                    )
+                }
+                source.markAsIndexed(entitySetId, partition, lastWrites)
+            }
+
+            entitiesMeter.mark(chunk.size.toLong())
+            onIndexed(chunk.size.toLong())
+        }
+    }
+
+    /**
+     * Returns the last write of every entity in [entities] that has one. Last writes are read as timestamps, or as
+     * strings when read as json. Entities without a readable last write are left out, so they are indexed again later.
+     */
+    private fun getLastWrites(entities: Map<UUID, Map<UUID, Set<Any>>>): Map<UUID, OffsetDateTime> {
+        return entities.entries.mapNotNull { (entityKeyId, entity) ->
+            when (val lastWrite = entity[IdConstants.LAST_WRITE_ID.id]?.firstOrNull()) {
+                is OffsetDateTime -> entityKeyId to lastWrite
+                is String -> entityKeyId to OffsetDateTime.parse(lastWrite)
+                else -> null
+            }
+        }.toMap()
+    }
+
+    override fun close() {
+        executor.shutdown()
+    }
+}
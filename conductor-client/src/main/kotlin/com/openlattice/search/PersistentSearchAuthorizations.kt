@@ -0,0 +1,96 @@
+package com.openlattice.search
+
+import com.hazelcast.query.Predicates
+import com.openlattice.authorization.EdmAuthorizationHelper
+import com.openlattice.authorization.Permission
+import com.openlattice.authorization.Principal
+import com.openlattice.authorization.SecurablePrincipal
+import com.openlattice.authorization.securable.SecurableObjectType
+import com.openlattice.authorization.util.getLastAclKeySafely
+import com.openlattice.edm.EntitySet
+import com.openlattice.edm.set.EntitySetFlag
+import com.openlattice.edm.type.PropertyType
+import com.openlattice.postgres.mapstores.EntitySetMapstore
+import com.openlattice.search.requests.PersistentSearch
+import com.openlattice.search.requests.SearchConstraints
+import java.util.*
+import kotlin.streams.asSequence
+
+/**
+ * A persistent search to evaluate in the current pass of the [PersistentSearchMessengerTask], with the constraints
+ * restricted to writes after its last read and the property types its owner may read.
+ */
+data class PersistentSearchEvaluation(
+        val userSecurablePrincipal: SecurablePrincipal,
+        val principals: Set<Principal>,
+        val persistentSearch: PersistentSearch,
+        val constraints: SearchConstraints,
+        val authorizedPropertyTypes: Map<UUID, Map<UUID, PropertyType>>
+) {
+    /**
+     * Evaluations with the same key search the same entity sets with the same authorized property types, so they can
+     * be executed together and the entities they hit loaded once.
+     */
+    fun groupKey(): Pair<Set<UUID>, Map<UUID, Set<UUID>>> {
+        return persistentSearch.searchConstraints.entitySetIds.toSet() to
+                authorizedPropertyTypes.mapValues { it.value.keys }
+    }
+}
+
+/**
+ * Caches what sets of principals may read for the duration of a single pass of the [PersistentSearchMessengerTask],
+ * so that users with many persistent searches over the same entity sets have their permissions checked once.
+ */
+class PersistentSearchAuthorizations(private val dependencies: PersistentSearchMessengerTaskDependencies) {
+    private val authorizedPropertyTypesByPrincipals = mutableMapOf<Set<Principal>, MutableMap<UUID, Map<UUID, PropertyType>?>>()
+    private val associationEntitySetsByPrincipals = mutableMapOf<Set<Principal>, Set<UUID>>()
+
+    /**
+     * Returns the property types [principals] may read on each of [entitySetIds], or null if they can't read all of the
+     * entity sets.
+     */
+    fun getAuthorizedPropertyTypes(
+            principals: Set<Principal>,
+            entitySetIds: Set<UUID>
+    ): Map<UUID, Map<UUID, PropertyType>>? {
+        val cached = authorizedPropertyTypesByPrincipals.getOrPut(principals) { mutableMapOf() }
+
+        val missingEntitySetIds = entitySetIds.filterNot { cached.containsKey(it) }.toSet()
+        if (missingEntitySetIds.isNotEmpty()) {
+            val authorizedEntitySetIds = dependencies.authorizationHelper.getAuthorizedEntitySetsForPrincipals(
+                    missingEntitySetIds, EdmAuthorizationHelper.READ_PERMISSION, principals
+            )
+            val authorizedPropertyTypes = dependencies.authorizationHelper.getAuthorizedPropertiesOnEntitySets(
+                    authorizedEntitySetIds, EdmAuthorizationHelper.READ_PERMISSION, principals
+            )
+            missingEntitySetIds.forEach { entitySetId ->
+                cached[entitySetId] = if (authorizedEntitySetIds.contains(entitySetId)) {
+                    authorizedPropertyTypes[entitySetId] ?: mapOf()
+                } else {
+                    null
+                }
+            }
+        }
+
+        return entitySetIds.associateWith { cached[it] ?: return null }
+    }
+
+    /**
+     * Returns the association entity sets [principals] may read.
+     */
+    fun getAuthorizedAssociationEntitySets(principals: Set<Principal>): Set<UUID> {
+        return associationEntitySetsByPrincipals.getOrPut(principals) {
+            val readableEntitySetIds = dependencies.authorizationManager.getAuthorizedObjectsOfType(
+                    principals,
+                    SecurableObjectType.EntitySet,
+                    EnumSet.of(Permission.READ)
+            ).asSequence().map { getLastAclKeySafely(it) }.toSet()
+
+            dependencies.entitySets.keySet(Predicates.and(
+                    Predicates.`in`<UUID, EntitySet>(EntitySetMapstore.ID_INDEX, *readableEntitySetIds.toTypedArray()),
+                    Predicates.equal<UUID, EntitySet>(EntitySetMapstore.FLAGS_INDEX, EntitySetFlag.ASSOCIATION),
+                    Predicates.notEqual<UUID, EntitySet>(EntitySetMapstore.FLAGS_INDEX, EntitySetFlag.AUDIT)
+            ))
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.openlattice.search
+
+import com.openlattice.authorization.AclKey
+import com.openlattice.authorization.Principal
+import com.openlattice.authorization.SecurablePrincipal
+import com.openlattice.data.requests.NeighborEntityDetails
+import com.openlattice.edm.EdmConstants
+import com.openlattice.graph.PagedNeighborRequest
+import com.openlattice.search.requests.DataSearchResult
+import com.openlattice.search.requests.EntityNeighborsFilter
+import com.openlattice.search.requests.PersistentSearch
+import com.openlattice.search.requests.SearchConstraints
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.slf4j.LoggerFactory
+import java.util.*
+
+/**
+ * Evaluates the persistent searches of a single pass of the [PersistentSearchMessengerTask].
+ *
+ * Searches are grouped by the entity sets they search and the property types their owners may read, and the searches
+ * of a group are executed together. What each set of principals may read is resolved once for the whole pass.
+ */
+class PersistentSearchEvaluator(private val dependencies: PersistentSearchMessengerTaskDependencies) {
+    companion object {
+        private val logger = LoggerFactory.getLogger(PersistentSearchEvaluator::class.java)
+    }
+
+    private val authorizations = PersistentSearchAuthorizations(dependencies)
+
+    /**
+     * Returns a pending evaluation for every search in [persistentSearchesByUser] over entity sets its owner can still
+     * read, grouped by [PersistentSearchEvaluation.groupKey].
+     */
+    fun groupEvaluations(
+            persistentSearchesByUser: Map<AclKey, Set<PersistentSearch>>
+    ): Collection<List<PersistentSearchEvaluation>> {
+        return prepareEvaluations(persistentSearchesByUser).groupBy { it.groupKey() }.values
+    }
+
+    /**
+     * Executes [evaluations], which all search the same entity sets with the same authorized property types, together.
+     *
+     * @return The result of each evaluation that had new writes, together with the evaluation.
+     */
+    fun search(evaluations: List<PersistentSearchEvaluation>): List<Pair<PersistentSearchEvaluation, DataSearchResult>> {
+        val results = dependencies.searchService.executeSearches(
+                evaluations.map { it.constraints },
+                evaluations.first().authorizedPropertyTypes
+        )
+
+        return evaluations.zip(results).filter { (_, result) -> result.hits.isNotEmpty() }
+    }
+
+    /**
+     * Loads the neighbors of the hits of [hitsByEvaluation] in the non linking entity sets they search. Neighbors depend
+     * on what associations each set of principals may read, so they are loaded once per set of principals.
+     *
+     * @return The neighbors of each hit, by entity key id of the hit, for each set of principals.
+     */
+    fun loadNeighbors(
+            hitsByEvaluation: List<Pair<PersistentSearchEvaluation, DataSearchResult>>
+    ): Map<Set<Principal>, Map<UUID, List<NeighborEntityDetails>>> {
+        if (hitsByEvaluation.isEmpty()) {
+            return mapOf()
+        }
+
+        val entitySetIds = hitsByEvaluation.first().first.persistentSearch.searchConstraints.entitySetIds.toSet()
+        val nonLinkingEntitySetIds = dependencies.entitySets.getAll(entitySetIds).values
+                .filterNot { it.isLinking }
+                .map { it.id }
+                .toSet()
+
+        return hitsByEvaluation
+                .groupBy({ (evaluation, _) -> evaluation.principals }, { (_, result) -> result })
+                .mapValues { (principals, results) ->
+                    dependencies.searchService.executeEntityNeighborSearch(
+                            nonLinkingEntitySetIds,
+                            PagedNeighborRequest(
+                                    EntityNeighborsFilter(
+                                            results.flatMap { getHitEntityKeyIds(it.hits) }.toSet(),
+                                            Optional.empty(),
+                                            Optional.empty(),
+                                            Optional.of(authorizations.getAuthorizedAssociationEntitySets(principals))
+                                    )
+                            ),
+                            principals
+                    ).neighbors
+                }
+    }
+
+    private fun getHitEntityKeyIds(hits: List<Map<FullQualifiedName, Set<Any>>>): Set<UUID> {
+        return hits.map { UUID.fromString((it[EdmConstants.ID_FQN] ?: emptySet()).first().toString()) }.toSet()
+    }
+
+    private fun getUpdatedConstraints(persistentSearch: PersistentSearch): SearchConstraints {
+        val constraints: SearchConstraints = persistentSearch.searchConstraints
+        val timeFilterConstraintGroup = SearchConstraints.writeDateTimeFilterConstraints(
+                constraints.entitySetIds,
+                constraints.start,
+                constraints.maxHits,
+                Optional.of(persistentSearch.lastRead),
+                Optional.empty()
+        ).constraintGroups[0]
+        constraints.constraintGroups.add(timeFilterConstraintGroup)
+        return constraints
+    }
+
+    /**
+     * Resolves the principals of [userAclKey], or returns null if the user can't be recognized.
+     */
+    private fun getUserPrincipals(userAclKey: AclKey): Pair<SecurablePrincipal, Set<Principal>>? {
+        val userSecurablePrincipal = dependencies.principalsManager.getSecurablePrincipal(userAclKey)
+
+        if (userSecurablePrincipal.principal == null || userSecurablePrincipal.principal.id == null) {
+            logger.error(
+                    "Failed to send persistent search for unrecognized principal {} with aclKey {}",
+                    userSecurablePrincipal, userAclKey
+            )
+            return null
+        }
+
+        val allUserPrincipals = dependencies.principalsManager.getAllPrincipals(
+                userSecurablePrincipal
+        ).map { it.principal }.toSet().plus(userSecurablePrincipal.principal)
+
+        return userSecurablePrincipal to allUserPrincipals
+    }
+
+    /**
+     * Resolves what each user with active persistent searches may read, and returns a pending evaluation for every
+     * search over entity sets the user can still read.
+     */
+    private fun prepareEvaluations(
+            persistentSearchesByUser: Map<AclKey, Set<PersistentSearch>>
+    ): List<PersistentSearchEvaluation> {
+        return persistentSearchesByUser.flatMap { (userAclKey, persistentSearches) ->
+            val (userSecurablePrincipal, allUserPrincipals) = getUserPrincipals(userAclKey)
+                    ?: return@flatMap listOf<PersistentSearchEvaluation>()
+
+            persistentSearches.mapNotNull { persistentSearch ->
+                val entitySetIds = persistentSearch.searchConstraints.entitySetIds.toSet()
+                val authorizedPropertyTypes = authorizations.getAuthorizedPropertyTypes(allUserPrincipals, entitySetIds)
+                        ?: return@mapNotNull null
+
+                PersistentSearchEvaluation(
+                        userSecurablePrincipal,
+                        allUserPrincipals,
+                        persistentSearch,
+                        getUpdatedConstraints(persistentSearch),
+                        authorizedPropertyTypes
+                )
+            }
+        }
+    }
+}
@@ -1,40 +1,37 @@
 package com.openlattice.search
 
-import com.hazelcast.query.Predicates
+import com.codahale.metrics.MetricRegistry
 import com.openlattice.authorization.*
-import com.openlattice.authorization.securable.SecurableObjectType
-import com.openlattice.authorization.util.getLastAclKeySafely
 import com.openlattice.data.requests.NeighborEntityDetails
 import com.openlattice.edm.EdmConstants
-import com.openlattice.edm.EntitySet
-import com.openlattice.edm.set.EntitySetFlag
 import com.openlattice.edm.type.PropertyType
-import com.openlattice.graph.PagedNeighborRequest
 import com.openlattice.postgres.PostgresColumn.*
 import com.openlattice.postgres.PostgresTable.PERSISTENT_SEARCHES
 import com.openlattice.postgres.ResultSetAdapters
-import com.openlattice.postgres.mapstores.EntitySetMapstore
 import com.openlattice.postgres.streams.BasePostgresIterable
 import com.openlattice.postgres.streams.StatementHolderSupplier
 import com.openlattice.search.requests.DataSearchResult
-import com.openlattice.search.requests.EntityNeighborsFilter
 import com.openlattice.search.requests.PersistentSearch
-import com.openlattice.search.requests.SearchConstraints
 import com.openlattice.tasks.HazelcastFixedRateTask
 import com.openlattice.tasks.HazelcastTaskDependencies
 import com.openlattice.tasks.Task
 import org.apache.olingo.commons.api.edm.FullQualifiedName
 import org.slf4j.LoggerFactory
+import java.time.Duration
 import java.time.OffsetDateTime
 import java.util.*
 import java.util.concurrent.TimeUnit
 import java.util.stream.Collectors
-import kotlin.streams.asSequence
 
 private val logger = LoggerFactory.getLogger(PersistentSearchMessengerTask::class.java)
 
 const val ALERT_MESSENGER_INTERVAL_MILLIS = 60000L
 
+/**
+ * Maximum number of persistent searches executed together by a single call to [SearchService.executeSearches].
+ */
+const val PERSISTENT_SEARCH_BATCH_SIZE = 100
+
 private val LOAD_ACTIVE_ALERTS_SQL = "SELECT * FROM ${PERSISTENT_SEARCHES.name} WHERE ${EXPIRATION_DATE.name} > now()"
 
 class PersistentSearchMessengerTask : HazelcastFixedRateTask<PersistentSearchMessengerTaskDependencies>, HazelcastTaskDependencies {
@@ -77,19 +74,6 @@ class PersistentSearchMessengerTask : HazelcastFixedRateTask<PersistentSearchMes
                         .collect(Collectors.toSet()))
     }
 
-    private fun getUpdatedConstraints(persistentSearch: PersistentSearch): SearchConstraints {
-        val constraints: SearchConstraints = persistentSearch.searchConstraints
-        val timeFilterConstraintGroup = SearchConstraints.writeDateTimeFilterConstraints(
-                constraints.entitySetIds,
-                constraints.start,
-                constraints.maxHits,
-                Optional.of(persistentSearch.lastRead),
-                Optional.empty()
-        ).constraintGroups[0]
-        constraints.constraintGroups.add(timeFilterConstraintGroup)
-        return constraints
-    }
-
     private fun sendAlertsForNewWrites(
             userSecurablePrincipal: SecurablePrincipal,
             persistentSearch: PersistentSearch,
@@ -116,101 +100,54 @@ class PersistentSearchMessengerTask : HazelcastFixedRateTask<PersistentSearchMes
                 .map { it as OffsetDateTime }.max()
     }
 
-    private fun getHitEntityKeyIds(hits: List<Map<FullQualifiedName, Set<Any>>>): Set<UUID> {
-        return hits.map { UUID.fromString((it[EdmConstants.ID_FQN] ?: emptySet()).first().toString()) }.toSet()
-    }
-
-    private fun findNewWritesForAlerts(userAclKey: AclKey, persistentSearches: Set<PersistentSearch>): Map<UUID, OffsetDateTime> {
-        val dependencies = getDependency()
-
-        val userSecurablePrincipal = dependencies.principalsManager.getSecurablePrincipal(userAclKey)
-        val allUserPrincipals = dependencies.principalsManager.getAllPrincipals(
-                userSecurablePrincipal
-        ).map { it.principal }.toSet().plus(userSecurablePrincipal.principal)
-
-        if (userSecurablePrincipal.principal == null || userSecurablePrincipal.principal.id == null) {
-            logger.error(
-                    "Failed to send persistent search for unrecognized principal {} with aclKey {}",
-                    userSecurablePrincipal, userAclKey
-            )
-            return mapOf()
-        }
-
-        val allEntitySetIds = persistentSearches.flatMap { it.searchConstraints.entitySetIds.toSet() }.toSet()
-
-        val authorizedEntitySetIds = dependencies.authorizationHelper
-                .getAuthorizedEntitySetsForPrincipals(
-                        allEntitySetIds, EdmAuthorizationHelper.READ_PERMISSION, allUserPrincipals
-                )
-
-        val authorizedPropertyTypesByEntitySet = dependencies.authorizationHelper.getAuthorizedPropertiesOnEntitySets(
-                authorizedEntitySetIds, EdmAuthorizationHelper.READ_PERMISSION, allUserPrincipals
-        )
+    /**
+     * Evaluates [evaluations], which all search the same entity sets with the same authorized property types, together
+     * and sends alerts for their new writes.
+     *
+     * @return The latest write alerted on for each persistent search that had new writes.
+     */
+    private fun evaluateBatch(
+            evaluations: List<PersistentSearchEvaluation>,
+            evaluator: PersistentSearchEvaluator
+    ): Map<UUID, OffsetDateTime> {
+        val hitsByEvaluation = evaluator.search(evaluations)
+        val neighborsByPrincipals = evaluator.loadNeighbors(hitsByEvaluation)
 
         val updatedReadDateTimes = mutableMapOf<UUID, OffsetDateTime>()
-
-        persistentSearches.forEach { persistentSearch ->
-
-            val entitySetIds = persistentSearch.searchConstraints.entitySetIds.toSet()
-
-            val constraints = getUpdatedConstraints(persistentSearch)
-
-            if (!authorizedEntitySetIds.containsAll(entitySetIds)) {
-                return@forEach
-            }
-
-            val results = dependencies.searchService.executeSearch(constraints, authorizedPropertyTypesByEntitySet.filterKeys { entitySetIds.contains(it) })
-
-            if (results.hits.isEmpty()) {
-                return@forEach
-            }
-
-            val entitySets = dependencies.entitySets.getAll(entitySetIds).values.groupBy { it.isLinking }
-            val neighborsById = dependencies.searchService.executeEntityNeighborSearch(
-                    entitySets.getOrDefault(false, listOf()).map { it.id }.toSet(),
-                    PagedNeighborRequest(
-                            EntityNeighborsFilter(
-                                    getHitEntityKeyIds(results.hits),
-                                    Optional.empty(),
-                                    Optional.empty(),
-                                    Optional.of(getAuthorizedAssociationEntitySets(allUserPrincipals))
-                            )
-                    ),
-                    allUserPrincipals
-            ).neighbors
-            sendAlertsForNewWrites(userSecurablePrincipal, persistentSearch, results, neighborsById)
-            val lastReadDateTime = getLatestRead(results.hits)
+        hitsByEvaluation.forEach { (evaluation, result) ->
+            sendAlertsForNewWrites(
+                    evaluation.userSecurablePrincipal,
+                    evaluation.persistentSearch,
+                    result,
+                    neighborsByPrincipals.getValue(evaluation.principals)
+            )
+            val lastReadDateTime = getLatestRead(result.hits)
             logger.info(
-                    "Last read date time {} for alert {} with {} hits", lastReadDateTime, persistentSearch.id,
-                    results.numHits
+                    "Last read date time {} for alert {} with {} hits",
+                    lastReadDateTime,
+                    evaluation.persistentSearch.id,
+                    result.numHits
             )
-            lastReadDateTime?.let { updatedReadDateTimes[persistentSearch.id] = it }
+            lastReadDateTime?.let { updatedReadDateTimes[evaluation.persistentSearch.id] = it }
         }
 
         return updatedReadDateTimes
     }
 
-    private fun getAuthorizedAssociationEntitySets(principals: Set<Principal>): Set<UUID> {
-        val dependencies = getDependency()
+    override fun runTask() {
+        val metricRegistry = getDependency().searchService.metricRegistry
 
-        val readableEntitySetIds = dependencies.authorizationManager.getAuthorizedObjectsOfType(
-                principals,
-                SecurableObjectType.EntitySet,
-                EnumSet.of(Permission.READ)
-        ).asSequence().map { getLastAclKeySafely(it) }.toSet()
-
-        return dependencies.entitySets.keySet(Predicates.and(
-                Predicates.`in`<UUID, EntitySet>(EntitySetMapstore.ID_INDEX, *readableEntitySetIds.toTypedArray()),
-                Predicates.equal<UUID, EntitySet>(EntitySetMapstore.FLAGS_INDEX, EntitySetFlag.ASSOCIATION),
-                Predicates.notEqual<UUID, EntitySet>(EntitySetMapstore.FLAGS_INDEX, EntitySetFlag.AUDIT)
-        ))
+        metricRegistry.timer(MetricRegistry.name(PersistentSearchMessengerTask::class.java, "pass")).time().use {
+            sendAlerts(metricRegistry)
+        }
     }
 
-    override fun runTask() {
+    private fun sendAlerts(metricRegistry: MetricRegistry) {
 
         logger.info("Loading new writes for persistent searches and sending alerts")
 
         val dependencies = getDependency()
+        val passStart = OffsetDateTime.now()
 
         val persistentSearchesById = BasePostgresIterable(
                 StatementHolderSupplier(dependencies.hds, LOAD_ACTIVE_ALERTS_SQL, 32_000)
@@ -218,12 +155,45 @@ class PersistentSearchMessengerTask : HazelcastFixedRateTask<PersistentSearchMes
                 .groupBy { (aclKey, _) -> aclKey }
                 .mapValues { it.value.map { (_, persistentSearch) -> persistentSearch }.toSet() }
 
-        logger.info("Loaded {} active persistent searches.", persistentSearchesById.size)
+        val activeSearchIds = persistentSearchesById.values.flatMap { searches -> searches.map { it.id } }.toSet()
+        logger.info("Loaded {} active persistent searches.", activeSearchIds.size)
+
+        val evaluator = PersistentSearchEvaluator(dependencies)
+        val evaluationGroups = evaluator.groupEvaluations(persistentSearchesById)
 
+        logger.info(
+                "Evaluating persistent searches in {} groups of shared entity sets and authorized properties.",
+                evaluationGroups.size
+        )
+
+        val batchMeter = metricRegistry.meter(MetricRegistry.name(PersistentSearchMessengerTask::class.java, "batches"))
         val lastWritesForMessagesSent = mutableMapOf<UUID, OffsetDateTime>()
-        persistentSearchesById.map { (aclKey, searches) ->
-            lastWritesForMessagesSent.putAll(findNewWritesForAlerts(aclKey, searches))
+        val failedSearchIds = mutableSetOf<UUID>()
+        evaluationGroups.forEach { evaluations ->
+            evaluations.chunked(PERSISTENT_SEARCH_BATCH_SIZE).forEach { batch ->
+                try {
+                    lastWritesForMessagesSent.putAll(evaluateBatch(batch, evaluator))
+                } catch (ex: Exception) {
+                    val batchSearchIds = batch.map { it.persistentSearch.id }
+                    logger.error("Unable to evaluate persistent searches {}.", batchSearchIds, ex)
+                    failedSearchIds.addAll(batchSearchIds)
+                }
+                batchMeter.mark()
+            }
+        }
+
+        // searches that failed keep the watermark of their last successful run, so lag grows until they recover
+        val lastRunBySearch = dependencies.lastRunBySearch
+        lastRunBySearch.keys.retainAll(activeSearchIds)
+        activeSearchIds.forEach { id ->
+            if (failedSearchIds.contains(id)) {
+                lastRunBySearch.putIfAbsent(id, passStart)
+            } else {
+                lastRunBySearch[id] = passStart
+            }
         }
+        val oldestRun = lastRunBySearch.values.min() ?: passStart
+        dependencies.lagMillis.set(Duration.between(oldestRun, OffsetDateTime.now()).toMillis())
 
         logger.info("Sent {} notifications for persistent searches.", lastWritesForMessagesSent.size)
 
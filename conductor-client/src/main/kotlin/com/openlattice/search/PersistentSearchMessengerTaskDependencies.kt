@@ -1,5 +1,7 @@
 package com.openlattice.search
 
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
 import com.hazelcast.core.HazelcastInstance
 import com.hazelcast.map.IMap
 import com.openlattice.authorization.AuthorizationManager
@@ -12,7 +14,10 @@ import com.openlattice.mail.MailServiceClient
 import com.openlattice.organizations.roles.SecurePrincipalsManager
 import com.openlattice.tasks.HazelcastTaskDependencies
 import com.zaxxer.hikari.HikariDataSource
+import java.time.OffsetDateTime
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 
 /*
  * Copyright (C) 2019. OpenLattice, Inc.
@@ -47,6 +52,21 @@ data class PersistentSearchMessengerTaskDependencies(
         val entityTypes: IMap<UUID, EntityType>,
         val propertyTypes: IMap<UUID, PropertyType>
 ) : HazelcastTaskDependencies {
+    /**
+     * When each active persistent search was last evaluated successfully by the [PersistentSearchMessengerTask].
+     */
+    val lastRunBySearch: MutableMap<UUID, OffsetDateTime> = ConcurrentHashMap()
+
+    /**
+     * How long ago the least recently evaluated active persistent search was evaluated, as of the end of the last pass.
+     */
+    val lagMillis = AtomicLong()
+
+    init {
+        searchService.metricRegistry.gauge(MetricRegistry.name(PersistentSearchMessengerTask::class.java, "lag")) {
+            Gauge { lagMillis.get() }
+        }
+    }
 
     constructor(
             hazelcastInstance: HazelcastInstance,
@@ -0,0 +1,64 @@
+package com.openlattice.search
+
+import com.openlattice.data.storage.ENTITY_SET_COUNTS
+import com.openlattice.data.storage.EntityReadMode
+import com.openlattice.data.storage.IndexingMetadataManager
+import com.openlattice.data.storage.MetadataOption
+import com.openlattice.data.storage.PostgresEntityDataQueryService
+import com.openlattice.data.storage.partitions.PartitionManager
+import com.openlattice.edm.type.PropertyType
+import com.openlattice.postgres.PostgresColumn.COUNT
+import com.openlattice.postgres.PostgresColumn.ENTITY_SET_ID
+import com.zaxxer.hikari.HikariDataSource
+import org.springframework.stereotype.Service
+import java.time.OffsetDateTime
+import java.util.*
+
+private val SELECT_ENTITY_SET_COUNT = "SELECT $COUNT FROM $ENTITY_SET_COUNTS WHERE ${ENTITY_SET_ID.name} = ?"
+
+/**
+ * Reads entities for bulk reindexing straight from the partitions of the data table, with a server side cursor per
+ * partition.
+ */
+@Service
+class PostgresBulkReindexSource(
+        private val hds: HikariDataSource,
+        private val dataQueryService: PostgresEntityDataQueryService,
+        private val partitionManager: PartitionManager,
+        private val indexingMetadataManager: IndexingMetadataManager
+) : BulkReindexSource {
+
+    override fun getPartitions(entitySetId: UUID): Set<Int> {
+        return partitionManager.getEntitySetPartitions(entitySetId)
+    }
+
+    /**
+     * Uses the maintained entity set counts, so that estimating the size of a reindex never scans the ids table.
+     */
+    override fun getEntityCount(entitySetId: UUID): Long {
+        return hds.connection.use { connection ->
+            connection.prepareStatement(SELECT_ENTITY_SET_COUNT).use { ps ->
+                ps.setObject(1, entitySetId)
+                ps.executeQuery().use { rs -> if (rs.next()) rs.getLong(COUNT) else 0L }
+            }
+        }
+    }
+
+    override fun scan(
+            entitySetId: UUID,
+            partition: Int,
+            propertyTypes: Map<UUID, PropertyType>
+    ): Iterable<Pair<UUID, Map<UUID, Set<Any>>>> {
+        return dataQueryService.getEntitiesInPartition(
+                entitySetId,
+                partition,
+                propertyTypes,
+                EnumSet.of(MetadataOption.LAST_WRITE),
+                EntityReadMode.COLUMNAR
+        )
+    }
+
+    override fun markAsIndexed(entitySetId: UUID, partition: Int, lastWrites: Map<UUID, OffsetDateTime>) {
+        indexingMetadataManager.markChunkAsIndexed(entitySetId, partition, lastWrites)
+    }
+}
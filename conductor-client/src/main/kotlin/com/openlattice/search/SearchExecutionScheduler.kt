@@ -0,0 +1,170 @@
+package com.openlattice.search
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import org.slf4j.LoggerFactory
+import java.io.Closeable
+import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Default number of search tasks running at once across all requests.
+ */
+val DEFAULT_SEARCH_PARALLELISM = Math.max(4, 2 * Runtime.getRuntime().availableProcessors())
+
+/**
+ * Default number of search tasks a single request may have queued or running at once.
+ */
+const val DEFAULT_SEARCH_REQUEST_PARALLELISM = 4
+
+/**
+ * Default time a request waits for its search tasks before returning what it has.
+ */
+const val DEFAULT_SEARCH_DEADLINE_MILLIS = 30_000L
+
+/**
+ * Results of the tasks of a request that completed before it finished. [complete] is false if the request ran into
+ * its deadline or stopped early because it had enough results.
+ */
+data class SearchTaskResults<R>(val results: List<R>, val complete: Boolean)
+
+/**
+ * Runs the per entity set tasks of searches on a dedicated, bounded pool of threads.
+ *
+ * At most [parallelism] tasks run at once across all requests, and a single request never has more than
+ * [requestParallelism] tasks queued or running, so a request spanning hundreds of entity sets cannot crowd out the
+ * others. Requests stop submitting tasks once they have enough results, and give up on tasks still outstanding at
+ * their deadline, returning the results they already have.
+ *
+ * The time tasks wait for a thread is exposed as the `queueWait` timer, the time spent running each task as the
+ * `task` timer, the number of tasks waiting and running as the `queued` and `running` gauges, and requests cut short
+ * by their deadline as the `timedOut` meter.
+ */
+class SearchExecutionScheduler(
+        val parallelism: Int = DEFAULT_SEARCH_PARALLELISM,
+        val requestParallelism: Int = DEFAULT_SEARCH_REQUEST_PARALLELISM,
+        metricRegistry: MetricRegistry
+) : Closeable {
+    companion object {
+        private val logger = LoggerFactory.getLogger(SearchExecutionScheduler::class.java)
+    }
+
+    private val executor = Executors.newFixedThreadPool(
+            parallelism,
+            ThreadFactoryBuilder().setDaemon(true).setNameFormat("search-execution-%d").build()
+    )
+
+    private val queued = AtomicInteger()
+    private val running = AtomicInteger()
+    private val queueWaitTimer = metricRegistry.timer(
+            MetricRegistry.name(SearchExecutionScheduler::class.java, "queueWait")
+    )
+    private val taskTimer = metricRegistry.timer(MetricRegistry.name(SearchExecutionScheduler::class.java, "task"))
+    private val timedOut = metricRegistry.meter(MetricRegistry.name(SearchExecutionScheduler::class.java, "timedOut"))
+
+    init {
+        require(parallelism > 0) { "Search parallelism must be positive." }
+        require(requestParallelism > 0) { "Search request parallelism must be positive." }
+        metricRegistry.gauge(MetricRegistry.name(SearchExecutionScheduler::class.java, "queued")) {
+            Gauge { queued.get() }
+        }
+        metricRegistry.gauge(MetricRegistry.name(SearchExecutionScheduler::class.java, "running")) {
+            Gauge { running.get() }
+        }
+    }
+
+    /**
+     * Runs [task] on every item of [items] and blocks until all of them are done, until the results counted by
+     * [count] reach [maxResults] or until [deadlineMillis] have passed, whichever comes first. Results are returned in
+     * completion order. The first task to fail fails the request.
+     */
+    fun <T, R> execute(
+            items: Collection<T>,
+            maxResults: Int,
+            deadlineMillis: Long = DEFAULT_SEARCH_DEADLINE_MILLIS,
+            count: (R) -> Int,
+            task: (T) -> R
+    ): SearchTaskResults<R> {
+        val deadline = System.currentTimeMillis() + deadlineMillis
+        val completionService = ExecutorCompletionService<R>(executor)
+        val pending = ArrayDeque(items)
+        // whether each outstanding task has left the queue, either by starting or by being cancelled
+        val inFlight = mutableMapOf<Future<R>, AtomicBoolean>()
+        val results = mutableListOf<R>()
+        var resultCount = 0
+
+        fun submitNext() {
+            while (inFlight.size < requestParallelism && pending.isNotEmpty()) {
+                val item = pending.poll()
+                val submitted = System.nanoTime()
+                val dequeued = AtomicBoolean()
+                queued.incrementAndGet()
+                inFlight[completionService.submit {
+                    if (dequeued.compareAndSet(false, true)) {
+                        queued.decrementAndGet()
+                    }
+                    queueWaitTimer.update(System.nanoTime() - submitted, TimeUnit.NANOSECONDS)
+                    running.incrementAndGet()
+                    try {
+                        taskTimer.time().use { task(item) }
+                    } finally {
+                        running.decrementAndGet()
+                    }
+                }] = dequeued
+            }
+        }
+
+        try {
+            submitNext()
+            while (inFlight.isNotEmpty()) {
+                val remaining = deadline - System.currentTimeMillis()
+                val future = if (remaining > 0) completionService.poll(remaining, TimeUnit.MILLISECONDS) else null
+
+                if (future == null) {
+                    timedOut.mark()
+                    logger.warn(
+                            "Search ran into its deadline of {} ms with {} tasks outstanding. Returning partial results.",
+                            deadlineMillis,
+                            inFlight.size + pending.size
+                    )
+                    return SearchTaskResults(results, false)
+                }
+
+                inFlight.remove(future)
+                val result = try {
+                    future.get()
+                } catch (ex: ExecutionException) {
+                    throw ex.cause ?: ex
+                }
+                results.add(result)
+                resultCount += count(result)
+
+                if (resultCount >= maxResults) {
+                    return SearchTaskResults(results, inFlight.isEmpty() && pending.isEmpty())
+                }
+
+                submitNext()
+            }
+        } finally {
+            inFlight.forEach { (future, dequeued) ->
+                future.cancel(true)
+                if (dequeued.compareAndSet(false, true)) {
+                    queued.decrementAndGet()
+                }
+            }
+        }
+
+        return SearchTaskResults(results, true)
+    }
+
+    override fun close() {
+        executor.shutdown()
+    }
+}
@@ -39,6 +39,7 @@ import com.openlattice.organizations.events.OrganizationDeletedEvent
 import com.openlattice.organizations.events.OrganizationUpdatedEvent
 import com.openlattice.rhizome.hazelcast.DelegatedUUIDSet
 import com.openlattice.search.requests.*
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
 import org.apache.olingo.commons.api.edm.FullQualifiedName
 import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Service
@@ -47,6 +48,16 @@ import java.util.*
 import java.util.stream.Collectors
 import kotlin.streams.toList
 
+/**
+ * Maximum number of edges loaded at once by a neighbor search.
+ */
+const val MAX_NEIGHBOR_PAGE_SIZE = 10_000
+
+/**
+ * Number of times the entities hit by a search are loaded before giving up on entity sets that didn't load in time.
+ */
+private const val SEARCH_LOAD_ATTEMPTS = 2
+
 /**
  *
  * @author Matthew Tamayo-Rios &lt;matthew@openlattice.com&gt;
@@ -61,7 +72,8 @@ class SearchService(
         val entitySetService: EntitySetManager,
         val graphService: GraphService,
         val dataManager: EntityDatastore,
-        val indexingMetadataManager: IndexingMetadataManager
+        val indexingMetadataManager: IndexingMetadataManager,
+        bulkReindexSource: BulkReindexSource
 ) {
 
     companion object {
@@ -93,6 +105,10 @@ class SearchService(
             MetricRegistry.name(SearchService::class.java, "markAsIndexed")
     )
 
+    private val bulkReindexer = BulkReindexer(elasticsearchApi, bulkReindexSource, metricRegistry)
+
+    private val searchExecutionScheduler = SearchExecutionScheduler(metricRegistry = metricRegistry)
+
 
     @Timed
     fun executeEntitySetKeywordSearchQuery(
@@ -166,8 +182,22 @@ class SearchService(
             searchConstraints: SearchConstraints,
             authorizedPropertyTypesByEntitySet: Map<UUID, Map<UUID, PropertyType>>
     ): DataSearchResult {
+        return executeSearches(listOf(searchConstraints), authorizedPropertyTypesByEntitySet).first()
+    }
 
-        val entitySetIds = searchConstraints.entitySetIds.toSet()
+    /**
+     * Executes several searches with the same authorized property types through
+     * [ConductorElasticsearchApi.executeSearches], and loads the entities hit by any of them once per entity set.
+     *
+     * @return The result of each search, in the order of [searchConstraints].
+     */
+    @Timed
+    fun executeSearches(
+            searchConstraints: List<SearchConstraints>,
+            authorizedPropertyTypesByEntitySet: Map<UUID, Map<UUID, PropertyType>>
+    ): List<DataSearchResult> {
+
+        val entitySetIds = searchConstraints.flatMap { it.entitySetIds.asIterable() }.toSet()
         val entitySetsById = entitySetService.getEntitySetsAsMap(entitySetIds)
         val linkingEntitySets = entitySetsById.values
                 .filter { it.isLinking }
@@ -178,14 +208,12 @@ class SearchService(
                 .associate { it.key to DelegatedUUIDSet.wrap(it.value.keys) }
 
         if (authorizedPropertiesByEntitySet.isEmpty()) {
-            return DataSearchResult(0, Lists.newArrayList())
+            return searchConstraints.map { DataSearchResult(0, Lists.newArrayList()) }
         }
 
-        val entityTypesByEntitySet = entitySetService
-                .getEntitySetsAsMap(searchConstraints.entitySetIds.toSet())
-                .mapValues { it.value.entityTypeId }
+        val entityTypesByEntitySet = entitySetsById.mapValues { it.value.entityTypeId }
 
-        val result = elasticsearchApi.executeSearch(
+        val searchResults = elasticsearchApi.executeSearches(
                 searchConstraints,
                 entityTypesByEntitySet,
                 authorizedPropertiesByEntitySet,
@@ -193,28 +221,57 @@ class SearchService(
         )
 
         val entityKeyIdsByEntitySetId = HashMultimap.create<UUID, UUID>()
-        result.entityDataKeys
-                .forEach { edk -> entityKeyIdsByEntitySetId.put(edk.entitySetId, edk.entityKeyId) }
-
-        //TODO: Properly parallelize this at some point
-        val entitiesById = entityKeyIdsByEntitySetId.keySet()
-                .parallelStream()
-                .map { entitySetId ->
-                    val es = entitySetsById.getValue(entitySetId)
-                    getResults(
-                            es,
-                            entityKeyIdsByEntitySetId.get(entitySetId),
-                            authorizedPropertyTypesByEntitySet,
-                            es.isLinking
-                    )
-                }
-                .flatMap { it.map { entity -> getEntityKeyId(entity) to entity }.stream() }
-                .toList()
-                .toMap()
+        searchResults.forEach { result ->
+            result.entityDataKeys
+                    .forEach { edk -> entityKeyIdsByEntitySetId.put(edk.entitySetId, edk.entityKeyId) }
+        }
+
+        val maxHits = searchConstraints.fold(0L) { total, constraints -> total + constraints.maxHits }
+        val loaded = mutableMapOf<UUID, List<Map<FullQualifiedName, Set<Any>>>>()
+
+        //Entity sets that didn't load before the deadline are loaded once more, so that hits are never dropped.
+        for (attempt in 1..SEARCH_LOAD_ATTEMPTS) {
+            val pending = entityKeyIdsByEntitySetId.keySet() - loaded.keys
+            if (pending.isEmpty()) {
+                break
+            }
 
-        val results = result.entityDataKeys.mapNotNull { entitiesById[it.entityKeyId] }
+            if (attempt > 1) {
+                logger.warn(
+                        "Retrying the load of {} of {} entity sets for search of entity sets {}.",
+                        pending.size,
+                        entityKeyIdsByEntitySetId.keySet().size,
+                        entitySetIds
+                )
+            }
+
+            searchExecutionScheduler.execute(
+                    pending,
+                    Math.min(maxHits, Int.MAX_VALUE.toLong()).toInt(),
+                    count = { (_, entities): Pair<UUID, List<Map<FullQualifiedName, Set<Any>>>> -> entities.size }
+            ) { entitySetId ->
+                val es = entitySetsById.getValue(entitySetId)
+                entitySetId to getResults(
+                        es,
+                        entityKeyIdsByEntitySetId.get(entitySetId),
+                        authorizedPropertyTypesByEntitySet,
+                        es.isLinking
+                )
+            }.results.toMap(loaded)
+        }
 
-        return DataSearchResult(result.numHits, results)
+        check(loaded.keys.containsAll(entityKeyIdsByEntitySetId.keySet())) {
+            "Unable to load the hits of ${entityKeyIdsByEntitySetId.keySet().size - loaded.size} entity sets for " +
+                    "search of entity sets $entitySetIds after $SEARCH_LOAD_ATTEMPTS attempts."
+        }
+
+        val entitiesById = loaded.values
+                .flatMap { entities -> entities.map { entity -> getEntityKeyId(entity) to entity } }
+                .toMap()
+
+        return searchResults.map { result ->
+            DataSearchResult(result.numHits, result.entityDataKeys.mapNotNull { entitiesById[it.entityKeyId] })
+        }
     }
 
     @Timed
@@ -653,11 +710,22 @@ class SearchService(
         return entitySetIdToEntityKeyId
     }
 
+    /**
+     * Returns a page of the neighbors of the entities in [pagedNeighborRequest], ordered by edge.
+     *
+     * Pages hold at most [PagedNeighborRequest.pageSize] edges, capped at [MAX_NEIGHBOR_PAGE_SIZE], and the returned
+     * bookmark is passed back to get the next page. Only the entities of the current page are loaded, so memory does
+     * not depend on the degree of the entities. A page size of 0 returns all neighbors, still loading them one page at
+     * a time. Neighbors can be narrowed down by neighbor entity set through the filter of the request and by
+     * association entity type through [associationEntityTypeIds].
+     */
     @Timed
+    @JvmOverloads
     fun executeEntityNeighborSearch(
             entitySetIds: Set<UUID>,
             pagedNeighborRequest: PagedNeighborRequest,
-            principals: Set<Principal>
+            principals: Set<Principal>,
+            associationEntityTypeIds: Optional<Set<UUID>> = Optional.empty()
     ): NeighborPage {
 
 
@@ -665,10 +733,9 @@ class SearchService(
 
         val (filter, entitySetsIdsToAuthorizedProps) = getAuthorizedFilterEntitySetOptions(
                 entitySetIds,
-                pagedNeighborRequest.filter,
+                filterByAssociationEntityTypes(pagedNeighborRequest.filter, associationEntityTypeIds),
                 principals
         )
-        val authorizedPagedNeighborRequest = PagedNeighborRequest(filter, pagedNeighborRequest.bookmark, pagedNeighborRequest.pageSize)
 
         val allEntitySets = filter.srcEntitySetIds.get() + filter.dstEntitySetIds.get() + filter.associationEntitySetIds.get()
 
@@ -689,14 +756,64 @@ class SearchService(
         val entityKeyIds = getEntityKeyIdsToQueryFor(entityKeyIdsByLinkingId, filter.entityKeyIds)
 
 
-        /* Load authorized edges and their corresponding neighbor data */
+        /* Load authorized edges and their corresponding neighbor data, one page at a time */
 
-        val edges = graphService.getEdgesAndNeighborsForVertices(allBaseEntitySetIds, authorizedPagedNeighborRequest).toList()
+        val entityNeighbors = Maps.newLinkedHashMap<UUID, MutableList<NeighborEntityDetails>>()
+        var bookmark = pagedNeighborRequest.bookmark
+
+        if (pagedNeighborRequest.pageSize > 0) {
+            bookmark = loadNeighborPage(
+                    allBaseEntitySetIds,
+                    PagedNeighborRequest(filter, bookmark, Math.min(pagedNeighborRequest.pageSize, MAX_NEIGHBOR_PAGE_SIZE)),
+                    entityKeyIds,
+                    entitySetsById,
+                    entitySetsIdsToAuthorizedProps,
+                    entityNeighbors
+            )
+        } else {
+            do {
+                bookmark = loadNeighborPage(
+                        allBaseEntitySetIds,
+                        PagedNeighborRequest(filter, bookmark, MAX_NEIGHBOR_PAGE_SIZE),
+                        entityKeyIds,
+                        entitySetsById,
+                        entitySetsIdsToAuthorizedProps,
+                        entityNeighbors
+                )
+            } while (bookmark != null)
+        }
+
+        /* Map linkingIds to the collection of neighbors for all entityKeyIds in the cluster */
+        entityKeyIdsByLinkingId.forEach { (linkingId, normalEntityKeyIds) ->
+            entityNeighbors[linkingId] = normalEntityKeyIds
+                    .flatMap { entityKeyId ->
+                        entityNeighbors.getOrDefault(entityKeyId, arrayListOf())
+                    }.toMutableList()
+
+        }
+
+        return NeighborPage(entityNeighbors, bookmark)
+    }
+
+    /**
+     * Loads a single page of edges and the entities on them, adding their neighbor details to [entityNeighbors].
+     *
+     * @return The bookmark of the next page, or null if this was the last page.
+     */
+    private fun loadNeighborPage(
+            entitySetIds: Set<UUID>,
+            pagedNeighborRequest: PagedNeighborRequest,
+            entityKeyIds: Set<UUID>,
+            entitySetsById: Map<UUID, EntitySet>,
+            authorizedPropertyTypesByEntitySet: Map<UUID, Map<UUID, PropertyType>>,
+            entityNeighbors: MutableMap<UUID, MutableList<NeighborEntityDetails>>
+    ): DataEdgeKey? {
+        val edges = graphService.getEdgesAndNeighborsForVertices(entitySetIds, pagedNeighborRequest).toList()
 
         val entitySetIdToEntityKeyId = getNeighborEntitySetIdToEntityKeyIdForEdges(edges, entityKeyIds)
 
         val entitiesByEntitySetId = dataManager
-                .getEntitiesAcrossEntitySets(entitySetIdToEntityKeyId, entitySetsIdsToAuthorizedProps)
+                .getEntitiesAcrossEntitySets(entitySetIdToEntityKeyId, authorizedPropertyTypesByEntitySet)
 
         val entities = Maps.newHashMap<UUID, Map<FullQualifiedName, Set<Any>>>()
         entitiesByEntitySetId.values.forEach { entries ->
@@ -706,8 +823,6 @@ class SearchService(
         }
 
         /* Format neighbor data into the expected return format */
-        val entityNeighbors = Maps.newLinkedHashMap<UUID, MutableList<NeighborEntityDetails>>()
-
         edges.forEach { edge ->
 
             mapOf(
@@ -725,28 +840,37 @@ class SearchService(
                 )
 
                 if (entityKeyIds.contains(directedEdge.src.entityKeyId) && neighborDetails != null) {
-
-                    if (!entityNeighbors.containsKey(vertexEntityKeyId)) {
-                        entityNeighbors[vertexEntityKeyId] = mutableListOf()
-                    }
-
-                    entityNeighbors.getValue(vertexEntityKeyId).add(neighborDetails)
+                    entityNeighbors.getOrPut(vertexEntityKeyId) { mutableListOf() }.add(neighborDetails)
                 }
 
             }
 
         }
 
-        /* Map linkingIds to the collection of neighbors for all entityKeyIds in the cluster */
-        entityKeyIdsByLinkingId.forEach { (linkingId, normalEntityKeyIds) ->
-            entityNeighbors[linkingId] = normalEntityKeyIds
-                    .flatMap { entityKeyId ->
-                        entityNeighbors.getOrDefault(entityKeyId, arrayListOf())
-                    }.toMutableList()
+        return if (edges.size < pagedNeighborRequest.pageSize) null else edges.last().key
+    }
 
+    /**
+     * Narrows the association entity sets of [filter] down to entity sets of [associationEntityTypeIds], if present.
+     */
+    private fun filterByAssociationEntityTypes(
+            filter: EntityNeighborsFilter,
+            associationEntityTypeIds: Optional<Set<UUID>>
+    ): EntityNeighborsFilter {
+        if (!associationEntityTypeIds.isPresent) {
+            return filter
         }
 
-        return NeighborPage(entityNeighbors, edges.lastOrNull()?.key)
+        val entitySetIdsOfTypes = associationEntityTypeIds.get()
+                .flatMap { entitySetService.getEntitySetIdsOfType(it) }
+                .toSet()
+
+        return EntityNeighborsFilter(
+                filter.entityKeyIds,
+                filter.srcEntitySetIds,
+                filter.dstEntitySetIds,
+                Optional.of(filter.associationEntitySetIds.map { it.intersect(entitySetIdsOfTypes) }.orElse(entitySetIdsOfTypes))
+        )
     }
 
     private fun getNeighborEntityDetails(
@@ -933,7 +1057,13 @@ class SearchService(
         elasticsearchApi.triggerEntitySetIndex(entitySets, propertyTypes)
     }
 
-    fun triggerEntitySetDataIndex(entitySetId: UUID) {
+    /**
+     * Recreates the index of an entity set and reindexes its data. By default every entity is marked as needing to be
+     * indexed and left to background indexing. With [bulk], the data of a normal entity set is instead scanned and
+     * reindexed by [BulkReindexer] before returning, which is much faster for large entity sets.
+     */
+    @JvmOverloads
+    fun triggerEntitySetDataIndex(entitySetId: UUID, bulk: Boolean = false) {
         val entityType = entitySetService.getEntityTypeByEntitySetId(entitySetId)
         val propertyTypes = dataModelService.getPropertyTypesAsMap(entityType.properties)
         val propertyTypeList = Lists.newArrayList(propertyTypes.values)
@@ -946,12 +1076,22 @@ class SearchService(
         )
 
         val entitySet = entitySetService.getEntitySet(entitySetId)
+        if (bulk && !entitySet!!.isLinking) {
+            bulkReindexer.reindex(
+                    entitySetId,
+                    entityType.id,
+                    propertyTypes.filterValues { it.datatype != EdmPrimitiveTypeKind.Binary }
+            )
+            return
+        }
+
         val entitySetIds = if (entitySet!!.isLinking) entitySet.linkedEntitySets else setOf(entitySetId)
         indexingMetadataManager.markEntitySetsAsNeedsToBeIndexed(entitySetIds, entitySet.isLinking)
     }
 
-    fun triggerAllEntitySetDataIndex() {
-        entitySetService.getEntitySets().forEach { entitySet -> triggerEntitySetDataIndex(entitySet.getId()) }
+    @JvmOverloads
+    fun triggerAllEntitySetDataIndex(bulk: Boolean = false) {
+        entitySetService.getEntitySets().forEach { entitySet -> triggerEntitySetDataIndex(entitySet.getId(), bulk) }
     }
 
     fun triggerAppIndex(apps: List<App>) {
@@ -20,6 +20,7 @@
 
 package com.openlattice.authorization;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
@@ -348,7 +349,8 @@ public class HzAuthzTest extends TestServer {
     public static void init() {
         hzAuthz = new HazelcastAuthorizationService(
                 hazelcastInstance,
-                testServer.getContext().getBean( EventBus.class )
+                testServer.getContext().getBean( EventBus.class ),
+                new MetricRegistry()
         );
     }
 
@@ -0,0 +1,127 @@
+package com.openlattice.authorization
+
+import com.codahale.metrics.MetricRegistry
+import com.hazelcast.core.EntryEvent
+import com.hazelcast.map.IMap
+import com.openlattice.authorization.processors.AuthorizationEntryProcessor
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.util.*
+
+class AuthorizationDecisionCacheTest {
+    private val metricRegistry = MetricRegistry()
+    private val stored = mutableMapOf<AceKey, EnumSet<Permission>>()
+    private var loads = 0
+
+    @Suppress("UNCHECKED_CAST")
+    private val aces = Mockito.mock(IMap::class.java) as IMap<AceKey, AceValue>
+
+    init {
+        Mockito.`when`(
+                aces.executeOnKeys(
+                        Mockito.anySetOf(AceKey::class.java),
+                        Mockito.any(AuthorizationEntryProcessor::class.java)
+                )
+        ).thenAnswer { invocation ->
+            loads++
+            (invocation.arguments[0] as Set<*>)
+                    .map { it as AceKey }
+                    .filter { stored.containsKey(it) }
+                    .associateWith { DelegatedPermissionEnumSet.wrap(stored.getValue(it)) }
+        }
+    }
+
+    private val cache = AuthorizationDecisionCache(aces, metricRegistry)
+
+    private val p1 = Principal(PrincipalType.USER, "p1")
+    private val p2 = Principal(PrincipalType.USER, "p2")
+    private val a1 = AclKey(UUID.randomUUID())
+    private val a2 = AclKey(UUID.randomUUID())
+    private val all = setOf(AceKey(a1, p1), AceKey(a1, p2), AceKey(a2, p1), AceKey(a2, p2))
+
+    private fun meter(name: String): Long {
+        return metricRegistry.meter(MetricRegistry.name(AuthorizationDecisionCache::class.java, name)).count
+    }
+
+    private fun grant(vararg aceKeys: AceKey) {
+        aceKeys.forEach { stored[it] = EnumSet.of(Permission.READ) }
+    }
+
+    private fun readable(): Set<AceKey> {
+        return cache.getPermissions(all).filterValues { it.contains(Permission.READ) }.keys
+    }
+
+    @Test
+    fun testHitsAndMisses() {
+        grant(AceKey(a1, p1))
+
+        Assert.assertEquals(setOf(AceKey(a1, p1)), readable())
+        Assert.assertEquals(1, loads)
+        Assert.assertEquals(4L, meter("misses"))
+        Assert.assertEquals(0L, meter("hits"))
+
+        //Absent aces are cached as well, so a warm cache answers without going to the cluster.
+        Assert.assertEquals(setOf(AceKey(a1, p1)), readable())
+        Assert.assertEquals(1, loads)
+        Assert.assertEquals(4L, meter("misses"))
+        Assert.assertEquals(4L, meter("hits"))
+        Assert.assertEquals(EnumSet.noneOf(Permission::class.java), cache.getPermissions(setOf(AceKey(a2, p2))).values.single())
+    }
+
+    @Test
+    fun testInvalidateAclKeyOnlyDropsItsEntries() {
+        readable()
+        grant(*all.toTypedArray())
+
+        cache.invalidateAclKey(a1)
+
+        Assert.assertEquals(setOf(AceKey(a1, p1), AceKey(a1, p2)), readable())
+        Assert.assertEquals(2, loads)
+    }
+
+    @Test
+    fun testInvalidatePrincipalOnlyDropsItsEntries() {
+        readable()
+        grant(*all.toTypedArray())
+
+        cache.invalidatePrincipal(p2)
+
+        Assert.assertEquals(setOf(AceKey(a1, p2), AceKey(a2, p2)), readable())
+        Assert.assertEquals(2, loads)
+    }
+
+    @Test
+    fun testListenerEventsInvalidateTheirAce() {
+        readable()
+        grant(AceKey(a2, p1))
+
+        @Suppress("UNCHECKED_CAST")
+        val event = Mockito.mock(EntryEvent::class.java) as EntryEvent<AceKey, AceValue>
+        Mockito.`when`(event.key).thenReturn(AceKey(a2, p1))
+        cache.entryAdded(event)
+
+        Assert.assertEquals(setOf(AceKey(a2, p1)), readable())
+    }
+
+    @Test
+    fun testWritesInvalidateTheirAces() {
+        readable()
+
+        cache.write(listOf(AceKey(a1, p2))) { grant(AceKey(a1, p2)) }
+
+        Assert.assertEquals(setOf(AceKey(a1, p2)), readable())
+    }
+
+    @Test
+    fun testIndexOnlyTracksCachedEntries() {
+        readable()
+        Assert.assertEquals(2 to 2, cache.indexSizes())
+
+        cache.invalidateAclKey(a1)
+        Assert.assertEquals(1 to 2, cache.indexSizes())
+
+        cache.invalidateAll()
+        Assert.assertEquals(0 to 0, cache.indexSizes())
+    }
+}
@@ -20,6 +20,7 @@
  */
 package com.openlattice.authorization
 
+import com.codahale.metrics.MetricRegistry
 import com.google.common.eventbus.EventBus
 import com.openlattice.auditing.AuditingConfiguration
 import com.openlattice.authorization.securable.SecurableObjectType
@@ -54,7 +55,7 @@ class EdmAuthorizationHelperTest : HzAuthzTest() {
                 Mockito.mock(EventBus::class.java),
                 HazelcastAclKeyReservationService(hazelcastInstance),
                 hzAuthz,
-                PartitionManager(hazelcastInstance, hds),
+                PartitionManager(hazelcastInstance, hds, metricRegistry = MetricRegistry()),
                 edmManager,
                 hds,
                 Mockito.mock(OrganizationMetadataEntitySetsService::class.java),
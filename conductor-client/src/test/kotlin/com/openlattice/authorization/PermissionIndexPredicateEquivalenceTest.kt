@@ -0,0 +1,104 @@
+package com.openlattice.authorization
+
+import com.codahale.metrics.MetricRegistry
+import com.hazelcast.map.IMap
+import com.hazelcast.query.Predicates
+import com.openlattice.TestServer
+import com.openlattice.authorization.mapstores.PermissionMapstore.PERMISSIONS_INDEX
+import com.openlattice.authorization.mapstores.PermissionMapstore.PRINCIPAL_INDEX
+import com.openlattice.authorization.mapstores.PermissionMapstore.SECURABLE_OBJECT_TYPE_INDEX
+import com.openlattice.authorization.securable.SecurableObjectType
+import com.openlattice.hazelcast.HazelcastMap
+import com.openlattice.mapstores.TestDataFactory
+import org.junit.Assert
+import org.junit.BeforeClass
+import org.junit.Test
+import java.time.OffsetDateTime
+import java.util.*
+
+/**
+ * Checks that the [PermissionIndex] answers the same as the predicate query on the permissions map it replaces, both
+ * right after loading and after changes delivered by its entry listener.
+ */
+class PermissionIndexPredicateEquivalenceTest : TestServer() {
+    companion object {
+        private val types = listOf(
+                SecurableObjectType.EntitySet,
+                SecurableObjectType.PropertyTypeInEntitySet,
+                SecurableObjectType.Organization
+        )
+        private val permissionChoices = listOf(
+                EnumSet.of(Permission.READ),
+                EnumSet.of(Permission.READ, Permission.WRITE),
+                EnumSet.of(Permission.OWNER, Permission.READ, Permission.WRITE)
+        )
+        private val principals = (0 until 10).map { TestDataFactory.userPrincipal() }
+
+        private lateinit var aces: IMap<AceKey, AceValue>
+
+        @BeforeClass
+        @JvmStatic
+        fun setUp() {
+            aces = HazelcastMap.PERMISSIONS.getMap(hazelcastInstance)
+            aces.putAll(randomAces(Random(0), 500))
+        }
+
+        private fun randomAces(random: Random, count: Int): Map<AceKey, AceValue> {
+            return (0 until count).associate {
+                AceKey(AclKey(UUID.randomUUID()), principals[random.nextInt(principals.size)]) to AceValue(
+                        permissionChoices[random.nextInt(permissionChoices.size)],
+                        types[random.nextInt(types.size)],
+                        OffsetDateTime.MAX
+                )
+            }
+        }
+    }
+
+    private fun queryPredicate(
+            principals: Set<Principal>,
+            objectType: SecurableObjectType,
+            permissions: EnumSet<Permission>
+    ): Set<AclKey> {
+        val predicate = Predicates.and<AceKey, AceValue>(
+                Predicates.`in`<AceKey, AceValue>(PRINCIPAL_INDEX, *principals.toTypedArray()),
+                Predicates.equal<AceKey, AceValue>(SECURABLE_OBJECT_TYPE_INDEX, objectType),
+                *permissions.map { Predicates.equal<AceKey, AceValue>(PERMISSIONS_INDEX, it) }.toTypedArray()
+        )
+        return aces.keySet(predicate).mapTo(mutableSetOf()) { it.aclKey }
+    }
+
+    private fun assertEquivalent(index: PermissionIndex) {
+        listOf(principals.take(1).toSet(), principals.take(4).toSet(), principals.toSet()).forEach { requesting ->
+            types.forEach { objectType ->
+                permissionChoices.forEach { permissions ->
+                    Assert.assertEquals(
+                            queryPredicate(requesting, objectType, permissions),
+                            index.getAuthorizedObjectsOfType(requesting, objectType, permissions).toSet()
+                    )
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testIndexMatchesPredicateQuery() {
+        val index = PermissionIndex(aces, MetricRegistry())
+        assertEquivalent(index)
+
+        val random = Random(1)
+        val added = randomAces(random, 100)
+        aces.putAll(added)
+        aces.keys.filter { principals.contains(it.principal) }.take(50).forEach { aces.delete(it) }
+
+        val deadline = System.currentTimeMillis() + 10_000
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                assertEquivalent(index)
+                return
+            } catch (e: AssertionError) {
+                Thread.sleep(100)
+            }
+        }
+        assertEquivalent(index)
+    }
+}
@@ -0,0 +1,215 @@
+package com.openlattice.authorization
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.base.Stopwatch
+import com.hazelcast.core.EntryEvent
+import com.hazelcast.core.EntryEventType
+import com.hazelcast.map.IMap
+import com.openlattice.authorization.securable.SecurableObjectType
+import org.junit.Assert
+import org.junit.Ignore
+import org.junit.Test
+import org.mockito.Mockito
+import org.slf4j.LoggerFactory
+import java.time.OffsetDateTime
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class PermissionIndexTest {
+    companion object {
+        private val logger = LoggerFactory.getLogger(PermissionIndexTest::class.java)
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun newAces(): IMap<AceKey, AceValue> = Mockito.mock(IMap::class.java) as IMap<AceKey, AceValue>
+
+    private fun newIndex(aces: IMap<AceKey, AceValue> = newAces()): PermissionIndex {
+        return PermissionIndex(aces, MetricRegistry())
+    }
+
+    private fun principal(id: String) = Principal(PrincipalType.USER, id)
+
+    @Test
+    fun testAuthorizedObjectsOfType() {
+        val index = newIndex()
+        val p1 = principal("p1")
+        val p2 = principal("p2")
+        val readable = AclKey(UUID.randomUUID())
+        val writable = AclKey(UUID.randomUUID())
+        val otherType = AclKey(UUID.randomUUID())
+
+        index.put(AceKey(readable, p1), AceValue(EnumSet.of(Permission.READ), SecurableObjectType.EntitySet))
+        index.put(
+                AceKey(writable, p2),
+                AceValue(EnumSet.of(Permission.READ, Permission.WRITE), SecurableObjectType.EntitySet)
+        )
+        index.put(AceKey(otherType, p1), AceValue(EnumSet.of(Permission.READ), SecurableObjectType.PropertyTypeInEntitySet))
+
+        Assert.assertEquals(
+                setOf(readable, writable),
+                index.getAuthorizedObjectsOfType(
+                        setOf(p1, p2), SecurableObjectType.EntitySet, EnumSet.of(Permission.READ)
+                ).toSet()
+        )
+        Assert.assertEquals(
+                listOf(writable),
+                index.getAuthorizedObjectsOfType(
+                        setOf(p1, p2), SecurableObjectType.EntitySet, EnumSet.of(Permission.READ, Permission.WRITE)
+                )
+        )
+
+        index.remove(AceKey(writable, p2))
+        Assert.assertEquals(
+                listOf(readable),
+                index.getAuthorizedObjectsOfType(
+                        setOf(p1, p2), SecurableObjectType.EntitySet, EnumSet.of(Permission.READ)
+                )
+        )
+
+        index.setSecurableObjectType(setOf(otherType), SecurableObjectType.EntitySet)
+        Assert.assertEquals(
+                setOf(readable, otherType),
+                index.getAuthorizedObjectsOfType(
+                        setOf(p1), SecurableObjectType.EntitySet, EnumSet.of(Permission.READ)
+                ).toSet()
+        )
+    }
+
+    @Test
+    fun testAuthorizedPrincipals() {
+        val index = newIndex()
+        val p1 = principal("p1")
+        val p2 = principal("p2")
+        val aclKey = AclKey(UUID.randomUUID())
+
+        index.putAll(
+                mapOf(
+                        AceKey(aclKey, p1) to AceValue(
+                                EnumSet.of(Permission.OWNER, Permission.READ), SecurableObjectType.EntitySet
+                        ),
+                        AceKey(aclKey, p2) to AceValue(EnumSet.of(Permission.READ), SecurableObjectType.EntitySet)
+                )
+        )
+
+        Assert.assertEquals(setOf(p1), index.getAuthorizedPrincipals(aclKey, EnumSet.of(Permission.OWNER)))
+        Assert.assertEquals(setOf(p1, p2), index.getAuthorizedPrincipals(aclKey, EnumSet.of(Permission.READ)))
+
+        index.removePrincipal(p1)
+        Assert.assertEquals(setOf(p2), index.getAuthorizedPrincipals(aclKey, EnumSet.of(Permission.READ)))
+
+        index.removeAclKey(aclKey)
+        Assert.assertEquals(setOf<Principal>(), index.getAuthorizedPrincipals(aclKey, EnumSet.of(Permission.READ)))
+    }
+
+    @Test
+    fun testEventsDuringAWriteAreNotOverwrittenByIt() {
+        val aces = newAces()
+        val index = newIndex(aces)
+        val p1 = principal("p1")
+        val aceKey = AceKey(AclKey(UUID.randomUUID()), p1)
+        val read = AceValue(EnumSet.of(Permission.READ), SecurableObjectType.EntitySet)
+        val readWrite = AceValue(EnumSet.of(Permission.READ, Permission.WRITE), SecurableObjectType.EntitySet)
+        Assert.assertEquals(setOf<Principal>(), index.getAuthorizedPrincipals(aceKey.aclKey, EnumSet.of(Permission.READ)))
+
+        //The write reads the ace, and a later write made on another node is delivered before the read returns.
+        val readStarted = CountDownLatch(1)
+        val eventDelivered = CountDownLatch(1)
+        Mockito.`when`(aces.getAll(Mockito.anySetOf(AceKey::class.java))).thenAnswer {
+            readStarted.countDown()
+            Assert.assertTrue(eventDelivered.await(10, TimeUnit.SECONDS))
+            mapOf(aceKey to read)
+        }
+        val listener = Thread {
+            readStarted.await()
+            index.entryUpdated(
+                    EntryEvent(aceKey.aclKey.toString(), null, EntryEventType.UPDATED.type, aceKey, read, readWrite)
+            )
+            eventDelivered.countDown()
+        }
+        listener.start()
+
+        index.write(listOf(aceKey)) {}
+        listener.join()
+
+        Assert.assertEquals(setOf(p1), index.getAuthorizedPrincipals(aceKey.aclKey, EnumSet.of(Permission.WRITE)))
+
+        //A local write that no event has overtaken is indexed right away.
+        index.write(mapOf(aceKey to read)) {}
+        Assert.assertEquals(setOf<Principal>(), index.getAuthorizedPrincipals(aceKey.aclKey, EnumSet.of(Permission.WRITE)))
+    }
+
+    @Test
+    fun testEventsDuringAMutationWinOverItsValues() {
+        val index = newIndex()
+        val p1 = principal("p1")
+        val aceKey = AceKey(AclKey(UUID.randomUUID()), p1)
+        val read = AceValue(EnumSet.of(Permission.READ), SecurableObjectType.EntitySet)
+        val readWrite = AceValue(EnumSet.of(Permission.READ, Permission.WRITE), SecurableObjectType.EntitySet)
+        index.getAuthorizedPrincipals(aceKey.aclKey, EnumSet.of(Permission.READ))
+
+        index.write(mapOf(aceKey to read)) {
+            val listener = Thread { index.put(aceKey, readWrite) }
+            listener.start()
+            listener.join()
+        }
+
+        Assert.assertEquals(setOf(p1), index.getAuthorizedPrincipals(aceKey.aclKey, EnumSet.of(Permission.WRITE)))
+    }
+
+    @Test
+    @Ignore
+    fun benchmarkAgainstScan() {
+        val random = Random(0)
+        val principals = (0 until 1_000).map { principal("p$it") }
+        val types = listOf(
+                SecurableObjectType.EntitySet,
+                SecurableObjectType.PropertyTypeInEntitySet,
+                SecurableObjectType.Organization
+        )
+        val permissionChoices = listOf(
+                EnumSet.of(Permission.READ),
+                EnumSet.of(Permission.READ, Permission.WRITE),
+                EnumSet.of(Permission.OWNER, Permission.READ, Permission.WRITE)
+        )
+
+        val aces = (0 until 500_000).associate {
+            AceKey(AclKey(UUID.randomUUID()), principals[random.nextInt(principals.size)]) to AceValue(
+                    permissionChoices[random.nextInt(permissionChoices.size)],
+                    types[random.nextInt(types.size)],
+                    OffsetDateTime.MAX
+            )
+        }
+
+        val index = newIndex()
+        index.putAll(aces)
+
+        val requestingPrincipals = principals.take(25).toSet()
+        val requestedPermissions = EnumSet.of(Permission.READ, Permission.WRITE)
+
+        val scanWatch = Stopwatch.createStarted()
+        val scanned = aces.entries
+                .filter { (aceKey, aceValue) ->
+                    requestingPrincipals.contains(aceKey.principal)
+                            && aceValue.securableObjectType == SecurableObjectType.EntitySet
+                            && aceValue.permissions.containsAll(requestedPermissions)
+                }
+                .map { it.key.aclKey }
+                .toSet()
+        scanWatch.stop()
+
+        val indexWatch = Stopwatch.createStarted()
+        val indexed = index.getAuthorizedObjectsOfType(
+                requestingPrincipals, SecurableObjectType.EntitySet, requestedPermissions
+        ).toSet()
+        indexWatch.stop()
+
+        Assert.assertEquals(scanned, indexed)
+        logger.info(
+                "Found {} authorized objects in {} ms by scanning and {} ms from the index.",
+                indexed.size,
+                scanWatch.elapsed(TimeUnit.MILLISECONDS),
+                indexWatch.elapsed(TimeUnit.MILLISECONDS)
+        )
+    }
+}
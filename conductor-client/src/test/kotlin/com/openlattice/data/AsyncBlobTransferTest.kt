@@ -0,0 +1,128 @@
+package com.openlattice.data
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.base.Stopwatch
+import com.kryptnostic.rhizome.configuration.RhizomeConfiguration
+import com.kryptnostic.rhizome.configuration.service.ConfigurationService
+import com.openlattice.data.storage.BlobObject
+import com.openlattice.data.storage.BlobTransferExecutor
+import com.openlattice.data.storage.LocalBlobDataService
+import com.zaxxer.hikari.HikariConfig
+import com.zaxxer.hikari.HikariDataSource
+import org.junit.AfterClass
+import org.junit.Assert
+import org.junit.BeforeClass
+import org.junit.Test
+import org.slf4j.LoggerFactory
+import java.sql.Connection
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares the synchronous and asynchronous blob APIs of [LocalBlobDataService] against a data source that adds a
+ * fixed latency to every connection, standing in for the round trip to a remote object store.
+ */
+class AsyncBlobTransferTest {
+    companion object {
+        private val logger = LoggerFactory.getLogger(AsyncBlobTransferTest::class.java)
+
+        private const val LATENCY_MILLIS = 20L
+        private const val OBJECT_COUNT = 100
+        private const val PARALLELISM = 16
+
+        private lateinit var hds: HikariDataSource
+        private lateinit var transferExecutor: BlobTransferExecutor
+        private lateinit var byteBlobDataManager: LocalBlobDataService
+
+        private val r = Random()
+
+        @BeforeClass
+        @JvmStatic
+        fun setUp() {
+            val rhizomeConfiguration = ConfigurationService.StaticLoader.loadConfiguration(
+                    RhizomeConfiguration::class.java
+            )
+            val hc = HikariConfig(rhizomeConfiguration?.postgresConfiguration?.get()?.hikariConfiguration)
+            hds = object : HikariDataSource(hc) {
+                override fun getConnection(): Connection {
+                    Thread.sleep(LATENCY_MILLIS)
+                    return super.getConnection()
+                }
+            }
+            transferExecutor = BlobTransferExecutor(MetricRegistry(), PARALLELISM, 1)
+            byteBlobDataManager = LocalBlobDataService(hds, transferExecutor)
+        }
+
+        @AfterClass
+        @JvmStatic
+        fun tearDown() {
+            transferExecutor.close()
+            hds.close()
+        }
+    }
+
+    private fun newObjects(): List<BlobObject> {
+        return (0 until OBJECT_COUNT).map {
+            val data = ByteArray(1_024)
+            r.nextBytes(data)
+            BlobObject("${UUID.randomUUID()}/${UUID.randomUUID()}", data, "png")
+        }
+    }
+
+    @Test
+    fun testAsyncRoundTrip() {
+        val objects = newObjects()
+        val keys = objects.map { it.s3Key }
+
+        byteBlobDataManager.putObjectsAsync(objects).get()
+
+        val read = byteBlobDataManager.getObjectsAsync(keys).get()
+        Assert.assertEquals(objects.size, read.size)
+        objects.zip(read).forEach { (expected, actual) -> Assert.assertArrayEquals(expected.data, actual as ByteArray) }
+
+        byteBlobDataManager.deleteObjectsAsync(keys).get()
+        Assert.assertEquals(listOf<Any>(), byteBlobDataManager.getObjectsAsync(keys).get())
+    }
+
+    @Test
+    fun testAsyncReadSkipsMissingKeysWithoutShiftingResults() {
+        val objects = newObjects()
+        val missingKeys = (0 until OBJECT_COUNT).map { "${UUID.randomUUID()}/${UUID.randomUUID()}" }
+        //Interleave missing keys so that every batch of the transfer executor is missing some of its keys.
+        val keys = objects.zip(missingKeys).flatMap { (blob, missingKey) -> listOf(missingKey, blob.s3Key) }
+
+        byteBlobDataManager.putObjectsAsync(objects).get()
+
+        val read = byteBlobDataManager.getObjectsAsync(keys).get()
+        Assert.assertEquals(objects.size, read.size)
+        objects.zip(read).forEach { (expected, actual) -> Assert.assertArrayEquals(expected.data, actual as ByteArray) }
+
+        byteBlobDataManager.deleteObjectsAsync(objects.map { it.s3Key }).get()
+    }
+
+    @Test
+    fun testAsyncPutsOverlapLatency() {
+        val syncObjects = newObjects()
+        val asyncObjects = newObjects()
+
+        val syncWatch = Stopwatch.createStarted()
+        syncObjects.forEach { byteBlobDataManager.putObject(it.s3Key, it.data, it.contentType) }
+        syncWatch.stop()
+
+        val asyncWatch = Stopwatch.createStarted()
+        byteBlobDataManager.putObjectsAsync(asyncObjects).get()
+        asyncWatch.stop()
+
+        logger.info(
+                "Stored {} objects with {} ms of latency each in {} ms one at a time and {} ms asynchronously.",
+                OBJECT_COUNT,
+                LATENCY_MILLIS,
+                syncWatch.elapsed(TimeUnit.MILLISECONDS),
+                asyncWatch.elapsed(TimeUnit.MILLISECONDS)
+        )
+        Assert.assertTrue(syncWatch.elapsed(TimeUnit.MILLISECONDS) >= OBJECT_COUNT * LATENCY_MILLIS)
+        Assert.assertTrue(asyncWatch.elapsed(TimeUnit.MILLISECONDS) < syncWatch.elapsed(TimeUnit.MILLISECONDS) / 2)
+
+        byteBlobDataManager.deleteObjectsAsync((syncObjects + asyncObjects).map { it.s3Key }).get()
+    }
+}
@@ -1,5 +1,6 @@
 package com.openlattice.data
 
+import com.codahale.metrics.MetricRegistry
 import com.amazonaws.HttpMethod
 import com.amazonaws.regions.Region
 import com.amazonaws.regions.Regions
@@ -9,6 +10,7 @@ import com.google.common.util.concurrent.MoreExecutors
 import com.kryptnostic.rhizome.configuration.amazon.AmazonLaunchConfiguration
 import com.kryptnostic.rhizome.configuration.amazon.AwsLaunchConfiguration
 import com.openlattice.ResourceConfigurationLoader
+import com.openlattice.data.storage.BlobTransferExecutor
 import com.openlattice.data.storage.ByteBlobDataManager
 import com.openlattice.data.storage.aws.AwsBlobDataService
 import com.openlattice.datastore.configuration.DatastoreConfiguration
@@ -39,7 +41,8 @@ class AwsBlobDataServiceTest {
 
             val byteBlobDataManager = AwsBlobDataService(
                     config,
-                    MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2))
+                    MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2)),
+                    BlobTransferExecutor(MetricRegistry())
             )
             this.byteBlobDataManager = byteBlobDataManager
         }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.data
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.base.Stopwatch
+import com.openlattice.TestServer
+import com.openlattice.data.storage.ByteBlobDataManager
+import com.openlattice.data.storage.EntityReadMode
+import com.openlattice.data.storage.MetadataOption
+import com.openlattice.data.storage.PartitionWriteExecutor
+import com.openlattice.data.storage.PostgresEntityDataQueryService
+import com.openlattice.data.storage.partitions.PartitionManager
+import com.openlattice.edm.type.PropertyType
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.junit.Assert
+import org.junit.BeforeClass
+import org.junit.Ignore
+import org.junit.Test
+import org.mockito.Mockito
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import java.time.LocalDate
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+private const val NUM_ENTITIES = 100_000
+private const val NUM_RUNS = 5
+
+/**
+ * Compares reading an entity set through the jsonb aggregation path against the columnar array path.
+ *
+ * Requires a local postgres and is therefore ignored by default.
+ */
+class EntityReadModeBenchmarkTest : TestServer() {
+    companion object {
+        private val logger: Logger = LoggerFactory.getLogger(EntityReadModeBenchmarkTest::class.java)
+
+        private val entitySetId = UUID.randomUUID()
+        private val partitions = (0 until 257).toSet()
+
+        private val propertyTypes = listOf(
+                PropertyType(UUID.randomUUID(), FullQualifiedName("nc.PersonGivenName"), "PersonGivenName", Optional.empty<String>(), setOf(), EdmPrimitiveTypeKind.String),
+                PropertyType(UUID.randomUUID(), FullQualifiedName("nc.PersonSurName"), "PersonSurName", Optional.empty<String>(), setOf(), EdmPrimitiveTypeKind.String),
+                PropertyType(UUID.randomUUID(), FullQualifiedName("nc.PersonBirthDate"), "PersonBirthDate", Optional.empty<String>(), setOf(), EdmPrimitiveTypeKind.Date),
+                PropertyType(UUID.randomUUID(), FullQualifiedName("nc.PersonHeightMeasure"), "PersonHeightMeasure", Optional.empty<String>(), setOf(), EdmPrimitiveTypeKind.Int32),
+                PropertyType(UUID.randomUUID(), FullQualifiedName("nc.SubjectIdentification"), "SubjectIdentification", Optional.empty<String>(), setOf(), EdmPrimitiveTypeKind.Guid)
+        ).associateBy { it.id }
+
+        private lateinit var dataQueryService: PostgresEntityDataQueryService
+
+        @BeforeClass
+        @JvmStatic
+        fun setUp() {
+            val partitionManager = Mockito.mock(PartitionManager::class.java)
+            Mockito.`when`(partitionManager.getEntitySetPartitions(entitySetId)).thenReturn(partitions)
+            dataQueryService = PostgresEntityDataQueryService(
+                    hds,
+                    hds,
+                    Mockito.mock(ByteBlobDataManager::class.java),
+                    partitionManager,
+                    PartitionWriteExecutor(MetricRegistry())
+            )
+
+            val r = Random()
+            val entities = (0 until NUM_ENTITIES).associate {
+                UUID.randomUUID() to propertyTypes.values.associate { propertyType ->
+                    propertyType.id to when (propertyType.datatype) {
+                        EdmPrimitiveTypeKind.Date -> setOf<Any>(LocalDate.ofEpochDay(r.nextInt(20_000).toLong()))
+                        EdmPrimitiveTypeKind.Int32 -> setOf<Any>(r.nextInt())
+                        EdmPrimitiveTypeKind.Guid -> setOf<Any>(UUID.randomUUID())
+                        else -> setOf<Any>(UUID.randomUUID().toString(), UUID.randomUUID().toString())
+                    }
+                }
+            }
+            dataQueryService.upsertEntities(entitySetId, entities, propertyTypes, partitions = partitions.toList())
+        }
+    }
+
+    @Test
+    @Ignore
+    fun benchmarkReadModes() {
+        val authorizedPropertyTypes = mapOf(entitySetId to propertyTypes)
+        val entityKeyIds = mapOf(entitySetId to Optional.empty<Set<UUID>>())
+
+        EntityReadMode.values().forEach { readMode ->
+            val durations = (0 until NUM_RUNS).map {
+                val sw = Stopwatch.createStarted()
+                val count = dataQueryService.getEntitiesWithPropertyTypeIds(
+                        entityKeyIds,
+                        authorizedPropertyTypes,
+                        mapOf(),
+                        EnumSet.of(MetadataOption.LAST_WRITE),
+                        Optional.empty(),
+                        readMode
+                ).count()
+                Assert.assertEquals(NUM_ENTITIES, count)
+                sw.elapsed(TimeUnit.MILLISECONDS)
+            }
+            logger.info(
+                    "Read {} entities with {} mode: mean = {} ms, min = {} ms, max = {} ms",
+                    NUM_ENTITIES,
+                    readMode,
+                    durations.average(),
+                    durations.min(),
+                    durations.max()
+            )
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.data
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.TestServer
+import com.openlattice.data.storage.ByteBlobDataManager
+import com.openlattice.data.storage.EntityReadMode
+import com.openlattice.data.storage.MetadataOption
+import com.openlattice.data.storage.PartitionWriteExecutor
+import com.openlattice.data.storage.PostgresEntityDataQueryService
+import com.openlattice.data.storage.partitions.PartitionManager
+import com.openlattice.edm.type.PropertyType
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.junit.Assert
+import org.junit.BeforeClass
+import org.junit.Test
+import org.mockito.Mockito
+import java.time.LocalDate
+import java.time.LocalTime
+import java.time.OffsetDateTime
+import java.time.OffsetTime
+import java.time.ZoneOffset
+import java.util.*
+
+/**
+ * Checks that reading entities through the columnar array path returns the values of the jsonb path. Temporal values
+ * are returned as text by the jsonb path and natively by the columnar path, so they are compared as native values.
+ */
+class EntityReadModeTest : TestServer() {
+    companion object {
+        private const val NUM_ENTITIES = 100
+
+        private val entitySetId = UUID.randomUUID()
+        private val partitions = (0 until 8).toSet()
+
+        private val propertyTypes = listOf(
+                EdmPrimitiveTypeKind.String,
+                EdmPrimitiveTypeKind.Guid,
+                EdmPrimitiveTypeKind.Int16,
+                EdmPrimitiveTypeKind.Int32,
+                EdmPrimitiveTypeKind.Int64,
+                EdmPrimitiveTypeKind.Double,
+                EdmPrimitiveTypeKind.Boolean,
+                EdmPrimitiveTypeKind.Date,
+                EdmPrimitiveTypeKind.DateTimeOffset,
+                EdmPrimitiveTypeKind.TimeOfDay
+        ).map { datatype ->
+            PropertyType(
+                    UUID.randomUUID(),
+                    FullQualifiedName("test", "${datatype.name}${UUID.randomUUID()}"),
+                    datatype.name,
+                    Optional.empty<String>(),
+                    setOf(),
+                    datatype
+            )
+        }.associateBy { it.id }
+
+        private lateinit var dataQueryService: PostgresEntityDataQueryService
+
+        @BeforeClass
+        @JvmStatic
+        fun setUp() {
+            val partitionManager = Mockito.mock(PartitionManager::class.java)
+            Mockito.`when`(partitionManager.getEntitySetPartitions(entitySetId)).thenReturn(partitions)
+            dataQueryService = PostgresEntityDataQueryService(
+                    hds,
+                    hds,
+                    Mockito.mock(ByteBlobDataManager::class.java),
+                    partitionManager,
+                    PartitionWriteExecutor(MetricRegistry())
+            )
+
+            val r = Random()
+            val entities = (0 until NUM_ENTITIES).associate {
+                UUID.randomUUID() to propertyTypes.values.associate { propertyType ->
+                    propertyType.id to randomValues(r, propertyType.datatype)
+                }
+            }
+            dataQueryService.upsertEntities(entitySetId, entities, propertyTypes, partitions = partitions.toList())
+        }
+
+        private fun randomValues(r: Random, datatype: EdmPrimitiveTypeKind): Set<Any> {
+            return (0 until 2).map<Int, Any> {
+                when (datatype) {
+                    EdmPrimitiveTypeKind.Guid -> UUID.randomUUID()
+                    EdmPrimitiveTypeKind.Int16 -> r.nextInt(Short.MAX_VALUE.toInt()).toShort()
+                    EdmPrimitiveTypeKind.Int32 -> r.nextInt()
+                    EdmPrimitiveTypeKind.Int64 -> if (it == 0) r.nextInt().toLong() else r.nextLong()
+                    EdmPrimitiveTypeKind.Double -> r.nextDouble()
+                    EdmPrimitiveTypeKind.Boolean -> it == 0
+                    EdmPrimitiveTypeKind.Date -> LocalDate.ofEpochDay(r.nextInt(20_000).toLong())
+                    EdmPrimitiveTypeKind.DateTimeOffset -> OffsetDateTime.of(
+                            2020, 1 + r.nextInt(12), 1 + r.nextInt(28), r.nextInt(24), r.nextInt(60), r.nextInt(60),
+                            r.nextInt(1_000_000) * 1_000,
+                            ZoneOffset.UTC
+                    )
+                    EdmPrimitiveTypeKind.TimeOfDay -> LocalTime.ofNanoOfDay(
+                            r.nextInt(86_400_000).toLong() * 1_000_000 + r.nextInt(1_000) * 1_000
+                    )
+                    else -> UUID.randomUUID().toString()
+                }
+            }.toSet()
+        }
+
+        /**
+         * Parses the temporal values of [entities] read through the jsonb path into the types the columnar path reads.
+         */
+        private fun nativeValues(entities: Map<UUID, Map<UUID, Set<Any>>>): Map<UUID, Map<UUID, Set<Any>>> {
+            return entities.mapValues { (_, entity) ->
+                entity.mapValues { (propertyTypeId, values) ->
+                    when (propertyTypes[propertyTypeId]?.datatype) {
+                        EdmPrimitiveTypeKind.Date -> values.map { LocalDate.parse(it as String) }.toSet()
+                        EdmPrimitiveTypeKind.DateTimeOffset -> values
+                                .map { OffsetDateTime.parse(it as String).withOffsetSameInstant(ZoneOffset.UTC) }
+                                .toSet()
+                        EdmPrimitiveTypeKind.TimeOfDay -> values.map { OffsetTime.parse(it as String) }.toSet()
+                        else -> values
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testReadModesReturnEqualEntities() {
+        val authorizedPropertyTypes = mapOf(entitySetId to propertyTypes)
+        val entityKeyIds = mapOf(entitySetId to Optional.empty<Set<UUID>>())
+
+        val json = dataQueryService.getEntitiesWithPropertyTypeIds(
+                entityKeyIds,
+                authorizedPropertyTypes,
+                metadataOptions = EnumSet.of(MetadataOption.LAST_WRITE)
+        ).toMap()
+        val columnar = dataQueryService.getEntitiesWithPropertyTypeIds(
+                entityKeyIds,
+                authorizedPropertyTypes,
+                metadataOptions = EnumSet.of(MetadataOption.LAST_WRITE),
+                readMode = EntityReadMode.COLUMNAR
+        ).toMap()
+
+        Assert.assertEquals(NUM_ENTITIES, json.size)
+        Assert.assertEquals(nativeValues(json), columnar)
+    }
+
+    @Test
+    fun testPartitionReadModesReturnEqualEntities() {
+        partitions.forEach { partition ->
+            val json = dataQueryService.getEntitiesInPartition(entitySetId, partition, propertyTypes).toMap()
+            val columnar = dataQueryService
+                    .getEntitiesInPartition(entitySetId, partition, propertyTypes, readMode = EntityReadMode.COLUMNAR)
+                    .toMap()
+
+            Assert.assertEquals(nativeValues(json), columnar)
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package com.openlattice.data
 
+import com.codahale.metrics.MetricRegistry
 import com.kryptnostic.rhizome.configuration.RhizomeConfiguration
 import com.kryptnostic.rhizome.configuration.service.ConfigurationService
+import com.openlattice.data.storage.BlobObject
+import com.openlattice.data.storage.BlobTransferExecutor
 import com.openlattice.data.storage.ByteBlobDataManager
+import com.openlattice.data.storage.LOCAL_BLOB_LARGE_OBJECT_THRESHOLD
 import com.openlattice.data.storage.LocalBlobDataService
 import com.zaxxer.hikari.HikariConfig
 import com.zaxxer.hikari.HikariDataSource
@@ -31,7 +35,7 @@ class LocalBlobDataServiceTest {
             val rhizomeConfiguration = ConfigurationService.StaticLoader.loadConfiguration(RhizomeConfiguration::class.java)
             val hc = HikariConfig(rhizomeConfiguration?.postgresConfiguration?.get()?.hikariConfiguration)
             hds = HikariDataSource(hc)
-            val byteBlobDataManager = LocalBlobDataService(hds)
+            val byteBlobDataManager = LocalBlobDataService(hds, BlobTransferExecutor(MetricRegistry()))
             this.byteBlobDataManager = byteBlobDataManager
             addMockS3Bucket()
         }
@@ -92,4 +96,43 @@ class LocalBlobDataServiceTest {
         Assert.assertEquals(objects.size, 0)
     }
 
-}
\ No newline at end of file
+    @Test
+    fun testBatchPutGetAndDelete() {
+        val localBlobDataService = byteBlobDataManager as LocalBlobDataService
+        val objects = (0 until 100).map {
+            val data = ByteArray(10)
+            r.nextBytes(data)
+            BlobObject("${UUID.randomUUID()}/${UUID.randomUUID()}", data, "png")
+        }
+        val keys = objects.map { it.s3Key }
+
+        localBlobDataService.putObjects(objects)
+        val missingKey = UUID.randomUUID().toString()
+        val returned = byteBlobDataManager.getObjects(keys.reversed() + missingKey)
+        Assert.assertEquals(objects.size, returned.size)
+        objects.reversed().zip(returned).forEach { (expected, actual) ->
+            Assert.assertArrayEquals(expected.data, actual as ByteArray)
+        }
+
+        byteBlobDataManager.deleteObjects(keys)
+        Assert.assertEquals(0, byteBlobDataManager.getObjects(keys).size)
+    }
+
+    @Test
+    fun testLargeObjectIsReplaced() {
+        val key = "${UUID.randomUUID()}/${UUID.randomUUID()}"
+        val large = ByteArray(LOCAL_BLOB_LARGE_OBJECT_THRESHOLD + 1)
+        r.nextBytes(large)
+
+        byteBlobDataManager.putObject(key, large, "png")
+        Assert.assertArrayEquals(large, byteBlobDataManager.getObjects(listOf(key))[0] as ByteArray)
+
+        val small = ByteArray(10)
+        r.nextBytes(small)
+        byteBlobDataManager.putObject(key, small, "png")
+        Assert.assertArrayEquals(small, byteBlobDataManager.getObjects(listOf(key))[0] as ByteArray)
+
+        byteBlobDataManager.deleteObject(key)
+        Assert.assertEquals(0, byteBlobDataManager.getObjects(listOf(key)).size)
+    }
+}
@@ -23,9 +23,12 @@ package com.openlattice.data
 
 import com.openlattice.data.storage.*
 import com.openlattice.edm.type.PropertyType
+import com.openlattice.postgres.DataTables.LAST_WRITE
+import com.openlattice.postgres.PostgresDataTables.Companion.getSourceDataColumnName
 import com.openlattice.postgres.PostgresTable
 import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
 import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.junit.Assert
 import org.junit.Test
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
@@ -91,5 +94,28 @@ class PostgresEntityDataQueryServiceTest {
                         partitionsPresent = true
                 ).first
         )
+
+        val columnarSql = buildPreparableColumnarFiltersSql(
+                0,
+                propertyTypes.associateBy { it.id },
+                mapOf(),
+                EnumSet.of(MetadataOption.LAST_WRITE),
+                linking = false,
+                idsPresent = true,
+                partitionsPresent = true
+        ).first
+        logger.info("buildPreparableColumnarFiltersSql query:\n{}", columnarSql)
+
+        Assert.assertFalse(columnarSql.contains("jsonb_object_agg"))
+        Assert.assertTrue(columnarSql.contains(LAST_WRITE.name))
+        Assert.assertFalse(columnarSql.contains("to_jsonb"))
+        getColumnarValueColumns(propertyTypes).keys.forEach { column ->
+            Assert.assertTrue(columnarSql.contains("AS ${getColumnarPropertyTypeIdsColumnName(column)}"))
+            Assert.assertTrue(columnarSql.contains("AS $column"))
+        }
+        //Values of every type, temporal ones included, are selected natively.
+        propertyTypes
+                .map { getSourceDataColumnName(it) }
+                .forEach { column -> Assert.assertTrue(columnarSql.contains("array_agg($column) FILTER")) }
     }
 }
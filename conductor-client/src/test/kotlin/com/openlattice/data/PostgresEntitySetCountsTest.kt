@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.data
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.TestServer
+import com.openlattice.data.storage.ByteBlobDataManager
+import com.openlattice.data.storage.PartitionWriteExecutor
+import com.openlattice.data.storage.PostgresEntityDataQueryService
+import com.openlattice.data.storage.PostgresEntitySetCounts
+import com.openlattice.data.storage.partitions.PartitionManager
+import com.openlattice.data.storage.partitions.getPartition
+import com.openlattice.edm.type.PropertyType
+import com.openlattice.postgres.PostgresArrays
+import com.openlattice.postgres.PostgresColumn.ENTITY_SET_ID
+import com.openlattice.postgres.PostgresColumn.ID
+import com.openlattice.postgres.PostgresColumn.PARTITION
+import com.openlattice.postgres.PostgresColumn.VERSION
+import com.openlattice.postgres.PostgresTable.IDS
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.junit.Assert
+import org.junit.BeforeClass
+import org.junit.Test
+import org.mockito.Mockito
+import java.util.*
+import java.util.concurrent.Executors
+
+/**
+ * Checks that the entity set counts maintained from the delta log follow upserts, deletes and clears, and that drift
+ * is found by [PostgresEntityDataQueryService.checkEntitySetCounts] and corrected by
+ * [PostgresEntityDataQueryService.recountEntitySet].
+ */
+class PostgresEntitySetCountsTest : TestServer() {
+    companion object {
+        private val partitions = (0 until 8).toList()
+
+        private val propertyType = PropertyType(
+                UUID.randomUUID(),
+                FullQualifiedName("test", "count${UUID.randomUUID()}"),
+                "count",
+                Optional.empty<String>(),
+                setOf(),
+                EdmPrimitiveTypeKind.String
+        )
+        private val propertyTypes = mapOf(propertyType.id to propertyType)
+
+        private val partitionManager = Mockito.mock(PartitionManager::class.java)
+
+        private lateinit var entitySetCounts: PostgresEntitySetCounts
+        private lateinit var dataQueryService: PostgresEntityDataQueryService
+
+        @BeforeClass
+        @JvmStatic
+        fun setUp() {
+            entitySetCounts = PostgresEntitySetCounts(hds)
+            entitySetCounts.initialize()
+            dataQueryService = PostgresEntityDataQueryService(
+                    hds,
+                    hds,
+                    Mockito.mock(ByteBlobDataManager::class.java),
+                    partitionManager,
+                    PartitionWriteExecutor(MetricRegistry())
+            )
+        }
+
+        private fun newEntitySet(): UUID {
+            val entitySetId = UUID.randomUUID()
+            Mockito.`when`(partitionManager.getEntitySetPartitions(entitySetId)).thenReturn(partitions.toSet())
+            return entitySetId
+        }
+
+        /**
+         * Assigns [count] new entity key ids in [entitySetId], as the entity key id service would.
+         */
+        private fun reserveIds(entitySetId: UUID, count: Int): Set<UUID> {
+            val entityKeyIds = (0 until count).map { UUID.randomUUID() }.toSet()
+            hds.connection.use { connection ->
+                connection.prepareStatement(
+                        "INSERT INTO ${IDS.name} (${ENTITY_SET_ID.name}, ${ID.name}, ${PARTITION.name}) VALUES (?, ?, ?)"
+                ).use { ps ->
+                    entityKeyIds.forEach { entityKeyId ->
+                        ps.setObject(1, entitySetId)
+                        ps.setObject(2, entityKeyId)
+                        ps.setInt(3, getPartition(entityKeyId, partitions))
+                        ps.addBatch()
+                    }
+                    ps.executeBatch()
+                }
+            }
+            return entityKeyIds
+        }
+
+        private fun upsert(entitySetId: UUID, entityKeyIds: Set<UUID>) {
+            val entities = entityKeyIds.associateWith {
+                mapOf(propertyType.id to setOf<Any>(UUID.randomUUID().toString()))
+            }
+            dataQueryService.upsertEntities(entitySetId, entities, propertyTypes, partitions = partitions)
+        }
+
+        private fun maintainedCount(entitySetId: UUID): Long {
+            entitySetCounts.fold()
+            return dataQueryService.getEntitySetCounts()[entitySetId] ?: 0L
+        }
+    }
+
+    @Test
+    fun testUpsertsAreCounted() {
+        val entitySetId = newEntitySet()
+        val entityKeyIds = reserveIds(entitySetId, 10)
+
+        upsert(entitySetId, entityKeyIds)
+        Assert.assertEquals(10L, maintainedCount(entitySetId))
+
+        //Entities that are already visible are not counted again.
+        upsert(entitySetId, entityKeyIds)
+        Assert.assertEquals(10L, maintainedCount(entitySetId))
+
+        upsert(entitySetId, reserveIds(entitySetId, 5))
+        Assert.assertEquals(15L, maintainedCount(entitySetId))
+        Assert.assertFalse(dataQueryService.checkEntitySetCounts().containsKey(entitySetId))
+    }
+
+    @Test
+    fun testDeletesAreCounted() {
+        val entitySetId = newEntitySet()
+        val entityKeyIds = reserveIds(entitySetId, 10)
+        upsert(entitySetId, entityKeyIds)
+
+        dataQueryService.deleteEntities(entitySetId, entityKeyIds.take(4).toSet())
+        Assert.assertEquals(6L, maintainedCount(entitySetId))
+
+        dataQueryService.tombstoneDeletedEntities(entitySetId, entityKeyIds.drop(4).take(2).toSet())
+        Assert.assertEquals(4L, maintainedCount(entitySetId))
+        Assert.assertFalse(dataQueryService.checkEntitySetCounts().containsKey(entitySetId))
+    }
+
+    @Test
+    fun testClearsAreCounted() {
+        val entitySetId = newEntitySet()
+        val entityKeyIds = reserveIds(entitySetId, 10)
+        upsert(entitySetId, entityKeyIds)
+
+        dataQueryService.clearEntities(entitySetId, entityKeyIds.take(3).toSet(), propertyTypes, partitions)
+        Assert.assertEquals(7L, maintainedCount(entitySetId))
+
+        //Clearing entities that are already cleared changes nothing.
+        dataQueryService.clearEntities(entitySetId, entityKeyIds.take(3).toSet(), propertyTypes, partitions)
+        Assert.assertEquals(7L, maintainedCount(entitySetId))
+
+        dataQueryService.clearEntitySet(entitySetId, propertyTypes)
+        Assert.assertEquals(0L, maintainedCount(entitySetId))
+        Assert.assertFalse(dataQueryService.checkEntitySetCounts().containsKey(entitySetId))
+    }
+
+    @Test
+    fun testConcurrentInitializationKeepsCounts() {
+        val entitySetId = newEntitySet()
+        upsert(entitySetId, reserveIds(entitySetId, 3))
+        Assert.assertEquals(3L, maintainedCount(entitySetId))
+
+        //Every node initializes the counts on startup, and only the first one may seed them.
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            (0 until 4).map { executor.submit { PostgresEntitySetCounts(hds).initialize() } }.forEach { it.get() }
+        } finally {
+            executor.shutdown()
+        }
+
+        upsert(entitySetId, reserveIds(entitySetId, 2))
+        Assert.assertEquals(5L, maintainedCount(entitySetId))
+        Assert.assertFalse(dataQueryService.checkEntitySetCounts().containsKey(entitySetId))
+    }
+
+    @Test
+    fun testCheckFindsDriftAndRecountCorrectsIt() {
+        val entitySetId = newEntitySet()
+        val entityKeyIds = reserveIds(entitySetId, 10)
+        upsert(entitySetId, entityKeyIds)
+
+        //Hide entities without recording a delta, as a direct change to the database would.
+        hds.connection.use { connection ->
+            connection.prepareStatement(
+                    "UPDATE ${IDS.name} SET ${VERSION.name} = 0 WHERE ${ENTITY_SET_ID.name} = ? AND ${ID.name} = ANY(?)"
+            ).use { ps ->
+                ps.setObject(1, entitySetId)
+                ps.setArray(2, PostgresArrays.createUuidArray(connection, entityKeyIds.take(4)))
+                ps.executeUpdate()
+            }
+        }
+
+        Assert.assertEquals(10L to 6L, dataQueryService.checkEntitySetCounts()[entitySetId])
+
+        Assert.assertEquals(6L, dataQueryService.recountEntitySet(entitySetId))
+        Assert.assertEquals(6L, maintainedCount(entitySetId))
+        Assert.assertFalse(dataQueryService.checkEntitySetCounts().containsKey(entitySetId))
+
+        //Deltas recorded after the recount are still applied on top of it.
+        dataQueryService.deleteEntities(entitySetId, entityKeyIds.drop(4).take(1).toSet())
+        Assert.assertEquals(5L, maintainedCount(entitySetId))
+    }
+}
@@ -1,5 +1,6 @@
 package com.openlattice.data
 
+import com.codahale.metrics.MetricRegistry
 import com.amazonaws.regions.Region
 import com.amazonaws.regions.Regions
 import com.amazonaws.services.s3.AmazonS3
@@ -9,6 +10,7 @@ import com.google.common.util.concurrent.MoreExecutors
 import com.kryptnostic.rhizome.configuration.amazon.AmazonLaunchConfiguration
 import com.kryptnostic.rhizome.configuration.amazon.AwsLaunchConfiguration
 import com.openlattice.ResourceConfigurationLoader
+import com.openlattice.data.storage.BlobTransferExecutor
 import com.openlattice.data.storage.ByteBlobDataManager
 import com.openlattice.data.storage.aws.AwsBlobDataService
 import com.openlattice.datastore.configuration.DatastoreConfiguration
@@ -45,7 +47,8 @@ class S3BenchmarkTest {
             val datastoreConfig = setUpLocal()
             val byteBlobDataManager = AwsBlobDataService(
                     datastoreConfig,
-                    MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2))
+                    MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2)),
+                    BlobTransferExecutor(MetricRegistry())
             )
             this.byteBlobDataManager = byteBlobDataManager
         }
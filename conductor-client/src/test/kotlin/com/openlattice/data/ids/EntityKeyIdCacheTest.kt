@@ -0,0 +1,59 @@
+package com.openlattice.data.ids
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.data.EntityKey
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+class EntityKeyIdCacheTest {
+
+    @Test
+    fun testBidirectionalLookup() {
+        val cache = EntityKeyIdCache(MetricRegistry(), 16)
+        val entityKey = EntityKey(UUID.randomUUID(), "person-1")
+        val entityKeyId = UUID.randomUUID()
+
+        Assert.assertNull(cache.getEntityKeyId(entityKey))
+        cache.put(entityKey, entityKeyId, cache.generation())
+
+        Assert.assertEquals(entityKeyId, cache.getEntityKeyId(entityKey))
+        Assert.assertEquals(entityKey, cache.getEntityKey(entityKeyId))
+        Assert.assertEquals(mapOf(entityKeyId to entityKey), cache.getEntityKeys(setOf(entityKeyId, UUID.randomUUID())))
+    }
+
+    @Test
+    fun testInvalidationDropsOnlyTheEntitySet() {
+        val cache = EntityKeyIdCache(MetricRegistry(), 16)
+        val invalidatedEntitySetId = UUID.randomUUID()
+        val invalidated = EntityKey(invalidatedEntitySetId, "a")
+        val kept = EntityKey(UUID.randomUUID(), "a")
+        val invalidatedId = UUID.randomUUID()
+        val keptId = UUID.randomUUID()
+        cache.putAll(mapOf(invalidated to invalidatedId, kept to keptId), cache.generation())
+
+        cache.invalidateEntitySet(invalidatedEntitySetId)
+
+        Assert.assertEquals(setOf(kept), cache.getEntityKeyIds(setOf(invalidated, kept)).keys)
+        Assert.assertEquals(setOf(keptId), cache.getEntityKeys(setOf(invalidatedId, keptId)).keys)
+    }
+
+    @Test
+    fun testAssignmentsLoadedBeforeAnInvalidationAreNotCached() {
+        val cache = EntityKeyIdCache(MetricRegistry(), 16)
+        val entityKey = EntityKey(UUID.randomUUID(), "a")
+        val staleId = UUID.randomUUID()
+
+        //The assignment is loaded, then invalidated on another node before it is cached.
+        val loadedAt = cache.generation()
+        cache.invalidateEntitySet(entityKey.entitySetId)
+        cache.put(entityKey, staleId, loadedAt)
+
+        Assert.assertNull(cache.getEntityKeyId(entityKey))
+        Assert.assertNull(cache.getEntityKey(staleId))
+
+        val reloadedId = UUID.randomUUID()
+        cache.put(entityKey, reloadedId, cache.generation())
+        Assert.assertEquals(reloadedId, cache.getEntityKeyId(entityKey))
+    }
+}
@@ -21,8 +21,10 @@
 
 package com.openlattice.data.ids
 
+import com.codahale.metrics.MetricRegistry
 import com.geekbeast.hazelcast.HazelcastClientProvider
 import com.geekbeast.hazelcast.IHazelcastClientProvider
+import com.google.common.eventbus.EventBus
 import com.hazelcast.core.HazelcastInstance
 import com.kryptnostic.rhizome.configuration.RhizomeConfiguration
 import com.kryptnostic.rhizome.configuration.hazelcast.HazelcastConfiguration
@@ -35,10 +37,15 @@ import com.openlattice.data.storage.lockEntitiesInIdsTable
 import com.openlattice.data.storage.partitions.PartitionManager
 import com.openlattice.data.storage.partitions.getPartition
 import com.openlattice.data.storage.upsertEntitiesSql
+import com.openlattice.edm.events.EntitySetDeletedEvent
 import com.openlattice.hazelcast.HazelcastClient
 import com.openlattice.ids.HazelcastIdGenerationService
 import com.openlattice.mapstores.TestDataFactory
 import com.openlattice.postgres.PostgresArrays
+import com.openlattice.postgres.PostgresColumn.ENTITY_ID
+import com.openlattice.postgres.PostgresColumn.ENTITY_SET_ID
+import com.openlattice.postgres.PostgresColumn.ID
+import com.openlattice.postgres.PostgresTable.SYNC_IDS
 import com.openlattice.postgres.lockIdsAndExecute
 import org.apache.commons.lang3.RandomStringUtils
 import org.junit.Assert
@@ -88,11 +95,14 @@ class PostgresEntityKeyIdServiceTest : TestServer() {
                 entitySetIds.associateWith { (0 until 257).toSet() }
             }.`when`(partMgr).getPartitionsByEntitySetId(anySet() as Set<UUID>)
 
-            idGenService = HazelcastIdGenerationService(hzClientProvider, true)
+            idGenService = HazelcastIdGenerationService(hzClientProvider, MetricRegistry(), true)
             postgresEntityKeyIdService = PostgresEntityKeyIdService(
                     hds,
                     idGenService,
-                    partMgr
+                    partMgr,
+                    hazelcastInstance,
+                    EventBus(),
+                    MetricRegistry()
             )
 
         }
@@ -286,4 +296,65 @@ class PostgresEntityKeyIdServiceTest : TestServer() {
         Assert.assertEquals("Number of keys do not match.", expectedCount, actualCount)
     }
 
-}
\ No newline at end of file
+    /**
+     * Assigns a new entity key id to [entityKey] directly in the database, as repairing duplicate assignments does.
+     */
+    private fun reassign(entityKey: EntityKey): UUID {
+        val reassignedId = UUID.randomUUID()
+        hds.connection.use { connection ->
+            connection.prepareStatement(
+                    "UPDATE ${SYNC_IDS.name} SET ${ID.name} = ? WHERE ${ENTITY_SET_ID.name} = ? AND ${ENTITY_ID.name} = ?"
+            ).use { ps ->
+                ps.setObject(1, reassignedId)
+                ps.setObject(2, entityKey.entitySetId)
+                ps.setString(3, entityKey.entityId)
+                Assert.assertEquals(1, ps.executeUpdate())
+            }
+        }
+        return reassignedId
+    }
+
+    private fun awaitEntityKeyId(entityKey: EntityKey, expected: UUID) {
+        val deadline = System.currentTimeMillis() + 10_000
+        while (postgresEntityKeyIdService.getEntityKeyId(entityKey) != expected &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(50)
+        }
+        Assert.assertEquals(expected, postgresEntityKeyIdService.getEntityKeyId(entityKey))
+    }
+
+    @Test
+    fun testReassignmentInvalidatesCachesOnEveryNode() {
+        val otherNode = PostgresEntityKeyIdService(
+                hds,
+                idGenService,
+                partMgr,
+                hazelcastInstance,
+                EventBus(),
+                MetricRegistry()
+        )
+        val entityKey = EntityKey(UUID.randomUUID(), RandomStringUtils.randomAlphanumeric(10))
+        val originalId = postgresEntityKeyIdService.getEntityKeyId(entityKey)
+        val reassignedId = reassign(entityKey)
+        Assert.assertEquals(originalId, postgresEntityKeyIdService.getEntityKeyId(entityKey))
+
+        otherNode.invalidateReassignedEntitySets(setOf(entityKey.entitySetId))
+
+        awaitEntityKeyId(entityKey, reassignedId)
+    }
+
+    @Test
+    fun testEntitySetDeletionInvalidatesCachesOnEveryNode() {
+        val otherNodeEventBus = EventBus()
+        PostgresEntityKeyIdService(hds, idGenService, partMgr, hazelcastInstance, otherNodeEventBus, MetricRegistry())
+        val entityKey = EntityKey(UUID.randomUUID(), RandomStringUtils.randomAlphanumeric(10))
+        val originalId = postgresEntityKeyIdService.getEntityKeyId(entityKey)
+        val reassignedId = reassign(entityKey)
+        Assert.assertEquals(originalId, postgresEntityKeyIdService.getEntityKeyId(entityKey))
+
+        //The entity set is deleted on the other node, which is the only one to see the event.
+        otherNodeEventBus.post(EntitySetDeletedEvent(entityKey.entitySetId, UUID.randomUUID()))
+
+        awaitEntityKeyId(entityKey, reassignedId)
+    }
+}
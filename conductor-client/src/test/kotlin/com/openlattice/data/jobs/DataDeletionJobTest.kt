@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.data.jobs
+
+import com.openlattice.TestServer
+import com.openlattice.authorization.Principal
+import com.openlattice.controllers.exceptions.ForbiddenException
+import com.openlattice.data.DataDeletionManager
+import com.openlattice.data.DeleteType
+import com.openlattice.data.WriteEvent
+import com.openlattice.data.storage.partitions.getPartition
+import com.openlattice.postgres.PostgresColumn.ENTITY_SET_ID
+import com.openlattice.postgres.PostgresColumn.ID
+import com.openlattice.postgres.PostgresColumn.PARTITION
+import com.openlattice.postgres.PostgresTable.IDS
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.util.*
+
+/**
+ * Runs [DataDeletionJob]s chunk by chunk against staged entities, with a data deletion manager that records what it
+ * is asked to delete instead of deleting it.
+ */
+class DataDeletionJobTest : TestServer() {
+    companion object {
+        private const val NUM_ENTITIES = 1_500
+        private const val MAX_CHUNKS = 10_000
+
+        private val partitions = (0 until 4).toList()
+    }
+
+    /**
+     * Records every chunk it is asked to authorize or delete, and fails the chunk after [failAfterChunks] chunks if it
+     * is set. Every entity is connected to one association entity set of its own, and deleting from the association
+     * entity sets of entities in [forbidden] is not authorized.
+     */
+    private class RecordingDataDeletionManager(
+            private val neighbors: Map<UUID, Pair<UUID, UUID>> = mapOf(),
+            private val forbidden: Set<UUID> = setOf()
+    ) : DataDeletionManager by Mockito.mock(DataDeletionManager::class.java) {
+        val authorizedChunks = mutableListOf<Pair<UUID, Set<UUID>>>()
+        val deletedChunks = mutableListOf<Pair<UUID, Set<UUID>>>()
+        var failAfterChunks: Int? = null
+
+        override fun authorizeAssociationsOfJob(
+                entitySetId: UUID,
+                entityKeyIds: Set<UUID>,
+                deleteType: DeleteType,
+                principals: Set<Principal>,
+                authorizedAssociationEntitySetIds: MutableSet<UUID>
+        ) {
+            if (entityKeyIds.any { forbidden.contains(it) }) {
+                throw ForbiddenException("Simulated missing permissions on an association entity set.")
+            }
+            authorizedChunks.add(entitySetId to entityKeyIds)
+            authorizedAssociationEntitySetIds.addAll(entityKeyIds)
+        }
+
+        override fun getNeighborEntityKeyIds(
+                entitySetId: UUID,
+                entityKeyIds: Set<UUID>,
+                neighborEntitySetIds: Set<UUID>,
+                deleteType: DeleteType
+        ): Map<UUID, Set<UUID>> {
+            return entityKeyIds
+                    .mapNotNull { neighbors[it] }
+                    .filter { neighborEntitySetIds.contains(it.first) }
+                    .groupBy({ it.first }, { it.second })
+                    .mapValues { it.value.toSet() }
+        }
+
+        override fun clearOrDeleteEntitiesOfJob(
+                entitySetId: UUID,
+                entityKeyIds: Set<UUID>,
+                deleteType: DeleteType,
+                principals: Set<Principal>,
+                authorizedAssociationEntitySetIds: MutableSet<UUID>
+        ): WriteEvent {
+            if (failAfterChunks == deletedChunks.size) {
+                throw IllegalStateException("Simulated failure while deleting a chunk.")
+            }
+            Assert.assertTrue(
+                    "Associations of deleted entities were not authorized first.",
+                    authorizedAssociationEntitySetIds.containsAll(entityKeyIds)
+            )
+            deletedChunks.add(entitySetId to entityKeyIds)
+            return WriteEvent(System.currentTimeMillis(), entityKeyIds.size)
+        }
+
+        fun deletedEntityKeyIds(): List<UUID> = deletedChunks.flatMap { it.second }
+    }
+
+    /**
+     * Assigns [count] new entity key ids in [entitySetId], as the entity key id service would.
+     */
+    private fun reserveIds(entitySetId: UUID, count: Int): List<UUID> {
+        val entityKeyIds = (0 until count).map { UUID.randomUUID() }
+        hds.connection.use { connection ->
+            connection.prepareStatement(
+                    "INSERT INTO ${IDS.name} (${ENTITY_SET_ID.name}, ${ID.name}, ${PARTITION.name}) VALUES (?, ?, ?)"
+            ).use { ps ->
+                entityKeyIds.forEach { entityKeyId ->
+                    ps.setObject(1, entitySetId)
+                    ps.setObject(2, entityKeyId)
+                    ps.setInt(3, getPartition(entityKeyId, partitions))
+                    ps.addBatch()
+                }
+                ps.executeBatch()
+            }
+        }
+        return entityKeyIds
+    }
+
+    private fun newJob(
+            state: DataDeletionJobState,
+            dataDeletionManager: DataDeletionManager
+    ): DataDeletionJob {
+        val job = DataDeletionJob(state)
+        job.setHikariDataSource(hds)
+        job.setDataDeletionManager(dataDeletionManager)
+        job.initializeState()
+        return job
+    }
+
+    private fun newState(
+            deletionId: UUID,
+            entitySetId: UUID,
+            neighborEntitySetIds: Set<UUID> = setOf()
+    ): DataDeletionJobState {
+        return DataDeletionJobState(
+                deletionId,
+                entitySetId,
+                neighborEntitySetIds,
+                DeleteType.Soft,
+                setOf(),
+                phase = if (neighborEntitySetIds.isEmpty()) {
+                    DataDeletionJobPhase.AUTHORIZE_ASSOCIATIONS
+                } else {
+                    DataDeletionJobPhase.STAGE_NEIGHBORS
+                },
+                chunkSize = MIN_DELETION_CHUNK_SIZE
+        )
+    }
+
+    private fun runToCompletion(job: DataDeletionJob) {
+        var chunks = 0
+        while (job.hasWorkRemaining) {
+            job.processNextChunk()
+            Assert.assertTrue("Data deletion job did not finish.", ++chunks < MAX_CHUNKS)
+        }
+    }
+
+    private fun countStaged(deletionId: UUID): Long = hds.connection.use { connection ->
+        connection.prepareStatement("SELECT count(*) FROM $DELETION_JOB_ENTITIES WHERE deletion_id = ?").use { ps ->
+            ps.setObject(1, deletionId)
+            ps.executeQuery().use { rs ->
+                rs.next()
+                rs.getLong(1)
+            }
+        }
+    }
+
+    @Test
+    fun testEntitiesAreDeletedInBoundedChunksPerPartition() {
+        val entitySetId = UUID.randomUUID()
+        val deletionId = UUID.randomUUID()
+        val entityKeyIds = reserveIds(entitySetId, NUM_ENTITIES)
+        stageEntitiesForDeletion(hds, deletionId, entitySetId, entityKeyIds.toSet())
+
+        val manager = RecordingDataDeletionManager()
+        runToCompletion(newJob(newState(deletionId, entitySetId), manager))
+
+        Assert.assertTrue(manager.deletedChunks.size > partitions.size)
+        manager.deletedChunks.forEach { (chunkEntitySetId, chunk) ->
+            Assert.assertEquals(entitySetId, chunkEntitySetId)
+            Assert.assertTrue(chunk.size <= MAX_DELETION_CHUNK_SIZE)
+            Assert.assertEquals(1, chunk.map { getPartition(it, partitions) }.distinct().size)
+        }
+        Assert.assertEquals(MIN_DELETION_CHUNK_SIZE, manager.deletedChunks.first().second.size)
+
+        val deleted = manager.deletedEntityKeyIds()
+        Assert.assertEquals(entityKeyIds.size, deleted.size)
+        Assert.assertEquals(entityKeyIds.toSet(), deleted.toSet())
+    }
+
+    @Test
+    fun testJobResumesAfterAbortWithoutCountingTheFailedChunkTwice() {
+        val entitySetId = UUID.randomUUID()
+        val deletionId = UUID.randomUUID()
+        val entityKeyIds = reserveIds(entitySetId, NUM_ENTITIES)
+        stageEntitiesForDeletion(hds, deletionId, entitySetId, entityKeyIds.toSet())
+
+        val manager = RecordingDataDeletionManager()
+        manager.failAfterChunks = 3
+        val job = newJob(newState(deletionId, entitySetId), manager)
+
+        val failure = runCatching { runToCompletion(job) }.exceptionOrNull()
+        Assert.assertTrue(failure is IllegalStateException)
+
+        val checkpointed = job.state.copy(
+                partitions = job.state.partitions.toList(),
+                authorizedAssociationEntitySetIds = job.state.authorizedAssociationEntitySetIds.toMutableSet()
+        )
+        val deletedBeforeAbort = manager.deletedEntityKeyIds()
+        Assert.assertEquals(deletedBeforeAbort.size.toLong(), checkpointed.deletedCount)
+
+        //Resume from the checkpoint on what would be another member.
+        manager.failAfterChunks = null
+        val resumed = newJob(checkpointed, manager)
+        runToCompletion(resumed)
+
+        val deleted = manager.deletedEntityKeyIds()
+        Assert.assertEquals(entityKeyIds.toSet(), deleted.toSet())
+        Assert.assertEquals(entityKeyIds.size, deleted.size)
+        Assert.assertEquals(NUM_ENTITIES.toLong(), resumed.state.deletedCount)
+        Assert.assertEquals(NUM_ENTITIES.toLong(), resumed.state.entityCount)
+    }
+
+    @Test
+    fun testFinishedJobDeletesNeighborsAndUnstagesEverything() {
+        val entitySetId = UUID.randomUUID()
+        val neighborEntitySetId = UUID.randomUUID()
+        val deletionId = UUID.randomUUID()
+        val entityKeyIds = reserveIds(entitySetId, NUM_ENTITIES)
+        val neighborEntityKeyIds = reserveIds(neighborEntitySetId, NUM_ENTITIES)
+        stageEntitiesForDeletion(hds, deletionId, entitySetId, entityKeyIds.toSet())
+
+        val manager = RecordingDataDeletionManager(
+                entityKeyIds.zip(neighborEntityKeyIds.map { neighborEntitySetId to it }).toMap()
+        )
+        val job = newJob(newState(deletionId, entitySetId, setOf(neighborEntitySetId)), manager)
+        Assert.assertEquals(DataDeletionJobPhase.STAGE_NEIGHBORS, job.state.phase)
+        Assert.assertTrue(manager.deletedChunks.isEmpty())
+
+        runToCompletion(job)
+
+        val deletedByEntitySet = manager.deletedChunks
+                .groupBy({ it.first }, { it.second })
+                .mapValues { it.value.flatten() }
+        Assert.assertEquals(setOf(entitySetId, neighborEntitySetId), deletedByEntitySet.keys)
+        Assert.assertEquals(entityKeyIds.toSet(), deletedByEntitySet.getValue(entitySetId).toSet())
+        Assert.assertEquals(neighborEntityKeyIds.toSet(), deletedByEntitySet.getValue(neighborEntitySetId).toSet())
+        Assert.assertEquals(
+                (entityKeyIds + neighborEntityKeyIds).toSet(),
+                manager.authorizedChunks.flatMap { it.second }.toSet()
+        )
+
+        Assert.assertFalse(job.hasWorkRemaining)
+        Assert.assertEquals(DataDeletionJobPhase.DELETE, job.state.phase)
+        Assert.assertEquals(2L * NUM_ENTITIES, job.state.entityCount)
+        Assert.assertEquals(2L * NUM_ENTITIES, job.state.deletedCount)
+        Assert.assertEquals(100.toByte(), job.progress)
+        Assert.assertEquals(0L, countStaged(deletionId))
+    }
+
+    @Test
+    fun testUnauthorizedAssociationsFailTheJobBeforeAnythingIsDeleted() {
+        val entitySetId = UUID.randomUUID()
+        val deletionId = UUID.randomUUID()
+        val entityKeyIds = reserveIds(entitySetId, NUM_ENTITIES)
+        stageEntitiesForDeletion(hds, deletionId, entitySetId, entityKeyIds.toSet())
+
+        //The last entity in walk order is only reached after every other chunk has been authorized.
+        val last = entityKeyIds
+                .filter { getPartition(it, partitions) == partitions.last() }
+                .maxBy { it.toString() }!!
+        val manager = RecordingDataDeletionManager(forbidden = setOf(last))
+        val job = newJob(newState(deletionId, entitySetId), manager)
+
+        val failure = runCatching { runToCompletion(job) }.exceptionOrNull()
+        Assert.assertTrue(failure is ForbiddenException)
+        Assert.assertTrue(manager.authorizedChunks.isNotEmpty())
+        Assert.assertTrue(manager.deletedChunks.isEmpty())
+        Assert.assertEquals(DataDeletionJobPhase.AUTHORIZE_ASSOCIATIONS, job.state.phase)
+        Assert.assertEquals(0L, job.state.deletedCount)
+    }
+}
@@ -0,0 +1,148 @@
+package com.openlattice.data.storage
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.eventbus.EventBus
+import com.google.common.eventbus.Subscribe
+import com.openlattice.assembler.events.MaterializedEntitySetDataChangeEvent
+import com.openlattice.data.DeleteType
+import com.openlattice.data.events.EntitiesDeletedEvent
+import com.openlattice.data.events.EntitiesUpsertedEvent
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+
+class CoalescingIndexingQueueTest {
+
+    private class Recorder {
+        val upserts = CopyOnWriteArrayList<EntitiesUpsertedEvent>()
+        val changes = CopyOnWriteArrayList<MaterializedEntitySetDataChangeEvent>()
+        val indexingEvents = CopyOnWriteArrayList<Any>()
+
+        @Subscribe
+        fun upserted(event: EntitiesUpsertedEvent) {
+            upserts.add(event)
+            indexingEvents.add(event)
+        }
+
+        @Subscribe
+        fun deleted(event: EntitiesDeletedEvent) {
+            indexingEvents.add(event)
+        }
+
+        @Subscribe
+        fun changed(event: MaterializedEntitySetDataChangeEvent) {
+            changes.add(event)
+        }
+    }
+
+    private val loads = CopyOnWriteArrayList<Set<UUID>>()
+
+    private val load: (UUID, Set<UUID>) -> Map<UUID, Map<UUID, Set<Any>>> = { _, entityKeyIds ->
+        loads.add(entityKeyIds)
+        entityKeyIds.associateWith { mapOf<UUID, Set<Any>>() }
+    }
+
+    @Test
+    fun testRepeatedWritesAreIndexedOnce() {
+        val eventBus = EventBus()
+        val recorder = Recorder()
+        eventBus.register(recorder)
+        val metricRegistry = MetricRegistry()
+
+        CoalescingIndexingQueue(eventBus, load, metricRegistry, 60_000L).use { queue ->
+            val entitySetId = UUID.randomUUID()
+            val entityKeyIds = (0 until 10).map { UUID.randomUUID() }.toSet()
+
+            repeat(5) {
+                queue.entitiesWritten(entitySetId, entityKeyIds)
+                queue.entitySetChanged(entitySetId)
+            }
+            queue.flush()
+
+            Assert.assertEquals(listOf(entityKeyIds), loads)
+            Assert.assertEquals(1, recorder.upserts.size)
+            Assert.assertEquals(entityKeyIds, recorder.upserts[0].entities.keys)
+            Assert.assertEquals(listOf(MaterializedEntitySetDataChangeEvent(entitySetId)), recorder.changes)
+            Assert.assertEquals(
+                    44L,
+                    metricRegistry.meter(MetricRegistry.name(CoalescingIndexingQueue::class.java, "coalesced")).count
+            )
+        }
+    }
+
+    @Test
+    fun testDeletedEntitiesAreNotIndexed() {
+        CoalescingIndexingQueue(EventBus(), load, MetricRegistry(), 60_000L).use { queue ->
+            val entitySetId = UUID.randomUUID()
+            val kept = UUID.randomUUID()
+            val deleted = UUID.randomUUID()
+
+            queue.entitiesWritten(entitySetId, setOf(kept, deleted))
+            queue.entitiesDeleted(entitySetId, setOf(deleted))
+            queue.flush()
+
+            Assert.assertEquals(listOf(setOf(kept)), loads)
+        }
+    }
+
+    @Test
+    fun testDeletesArePostedAfterInFlightFlushes() {
+        val eventBus = EventBus()
+        val recorder = Recorder()
+        eventBus.register(recorder)
+
+        val loading = CountDownLatch(1)
+        val loaded = CountDownLatch(1)
+        val blockingLoad: (UUID, Set<UUID>) -> Map<UUID, Map<UUID, Set<Any>>> = { _, entityKeyIds ->
+            loading.countDown()
+            loaded.await()
+            entityKeyIds.associateWith { mapOf<UUID, Set<Any>>() }
+        }
+
+        CoalescingIndexingQueue(eventBus, blockingLoad, MetricRegistry(), 60_000L).use { queue ->
+            val entitySetId = UUID.randomUUID()
+            val entityKeyIds = setOf(UUID.randomUUID())
+
+            queue.entitiesWritten(entitySetId, entityKeyIds)
+            val flush = Thread { queue.flush() }
+            flush.start()
+            loading.await()
+
+            //The entity is deleted after the flush loaded it, but before the flush posted it.
+            val delete = Thread {
+                queue.entitiesDeleted(
+                        entitySetId,
+                        entityKeyIds,
+                        EntitiesDeletedEvent(entitySetId, entityKeyIds, DeleteType.Hard)
+                )
+            }
+            delete.start()
+            delete.join(200L)
+            Assert.assertTrue(delete.isAlive)
+
+            loaded.countDown()
+            flush.join()
+            delete.join()
+
+            Assert.assertEquals(
+                    listOf(EntitiesUpsertedEvent::class.java, EntitiesDeletedEvent::class.java),
+                    recorder.indexingEvents.map { it.javaClass }
+            )
+        }
+    }
+
+    @Test
+    fun testWritersWaitForFlushWhenFull() {
+        CoalescingIndexingQueue(EventBus(), load, MetricRegistry(), 10L, maxPending = 4).use { queue ->
+            val entitySetId = UUID.randomUUID()
+
+            repeat(8) { queue.entitiesWritten(entitySetId, setOf(UUID.randomUUID(), UUID.randomUUID())) }
+            queue.flush()
+
+            Assert.assertEquals(16, loads.sumBy { it.size })
+            Assert.assertTrue(loads.all { it.size <= 4 })
+        }
+    }
+}
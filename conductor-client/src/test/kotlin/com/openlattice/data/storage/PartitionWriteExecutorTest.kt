@@ -0,0 +1,57 @@
+package com.openlattice.data.storage
+
+import com.codahale.metrics.MetricRegistry
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+class PartitionWriteExecutorTest {
+
+    @Test
+    fun testResultsAreMergedByPartition() {
+        val metricRegistry = MetricRegistry()
+        PartitionWriteExecutor(metricRegistry, 4).use { executor ->
+            val batches = (0 until 32).associateWith { partition -> (0 until partition).toList() }
+            val results = executor.execute(batches) { _, batch -> batch.size }
+
+            Assert.assertEquals(batches.keys, results.keys)
+            Assert.assertEquals(batches.values.sumBy { it.size }, results.values.sum())
+            Assert.assertEquals(
+                    32L,
+                    metricRegistry.timer(MetricRegistry.name(PartitionWriteExecutor::class.java, "partitionWrite")).count
+            )
+        }
+    }
+
+    @Test
+    fun testOrderWithinPartitionAndBoundedParallelism() {
+        val parallelism = 3
+        PartitionWriteExecutor(MetricRegistry(), parallelism).use { executor ->
+            val running = AtomicInteger()
+            val maxRunning = AtomicInteger()
+            val written = ConcurrentHashMap<Int, MutableList<Int>>()
+            val batches = (0 until 16).associateWith { (0 until 100).toList() }
+
+            executor.execute(batches) { partition, batch ->
+                maxRunning.accumulateAndGet(running.incrementAndGet()) { a, b -> Math.max(a, b) }
+                batch.forEach { written.getOrPut(partition) { Collections.synchronizedList(mutableListOf()) }.add(it) }
+                Thread.sleep(5)
+                running.decrementAndGet()
+            }
+
+            Assert.assertTrue(maxRunning.get() <= parallelism)
+            batches.forEach { (partition, batch) -> Assert.assertEquals(batch, written.getValue(partition)) }
+        }
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun testFailureIsRethrown() {
+        PartitionWriteExecutor(MetricRegistry(), 2).use { executor ->
+            executor.execute((0 until 4).associateWith { it }) { partition, _ ->
+                check(partition != 2) { "Failed to write partition $partition." }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.openlattice.data.storage.partitions
+
+import com.codahale.metrics.MetricRegistry
+import com.hazelcast.core.EntryEvent
+import com.hazelcast.map.IMap
+import com.openlattice.edm.EntitySet
+import com.openlattice.edm.processors.GetPartitionsFromEntitySetEntryProcessor
+import com.openlattice.rhizome.DelegatedIntSet
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.util.*
+
+class EntitySetPartitionTableTest {
+    private val metricRegistry = MetricRegistry()
+    private val stored = mutableMapOf<UUID, List<Int>>()
+    private var loads = 0
+
+    @Suppress("UNCHECKED_CAST")
+    private val entitySets = Mockito.mock(IMap::class.java) as IMap<UUID, EntitySet>
+
+    init {
+        Mockito.`when`(
+                entitySets.executeOnKeys(
+                        Mockito.anySetOf(UUID::class.java),
+                        Mockito.any(GetPartitionsFromEntitySetEntryProcessor::class.java)
+                )
+        ).thenAnswer { invocation ->
+            loads++
+            //Like the entry processor, entity sets that do not exist have no partitions.
+            (invocation.arguments[0] as Set<*>)
+                    .map { it as UUID }
+                    .associateWith { DelegatedIntSet((stored[it] ?: listOf()).toCollection(LinkedHashSet())) }
+        }
+    }
+
+    private val table = EntitySetPartitionTable(entitySets, metricRegistry)
+
+    private val first = UUID.randomUUID()
+    private val second = UUID.randomUUID()
+
+    private fun hits(): Long {
+        return metricRegistry.meter(MetricRegistry.name(EntitySetPartitionTable::class.java, "hits")).count
+    }
+
+    @Test
+    fun testPartitionsAreCachedInAssignmentOrder() {
+        stored[first] = listOf(5, 1, 3)
+        stored[second] = listOf(2)
+
+        Assert.assertArrayEquals(intArrayOf(5, 1, 3), table.get(first))
+        Assert.assertEquals(1, loads)
+
+        val partitions = table.getAll(setOf(first, second))
+        Assert.assertArrayEquals(intArrayOf(5, 1, 3), partitions.getValue(first))
+        Assert.assertArrayEquals(intArrayOf(2), partitions.getValue(second))
+        Assert.assertEquals(2, loads)
+        Assert.assertEquals(1L, hits())
+
+        table.getAll(setOf(first, second))
+        Assert.assertEquals(2, loads)
+        Assert.assertEquals(3L, hits())
+    }
+
+    @Test
+    fun testMissingEntitySetsAreNotCached() {
+        Assert.assertEquals(0, table.get(first).size)
+
+        //The entity set is created, but its creation event has not been delivered to this node yet.
+        stored[first] = listOf(7, 8)
+
+        Assert.assertArrayEquals(intArrayOf(7, 8), table.get(first))
+        Assert.assertEquals(2, loads)
+    }
+
+    @Test
+    fun testEventsInvalidateTheirEntitySet() {
+        stored[first] = listOf(1)
+        stored[second] = listOf(2)
+        table.getAll(setOf(first, second))
+
+        stored[first] = listOf(1, 4)
+        stored[second] = listOf(2, 4)
+
+        @Suppress("UNCHECKED_CAST")
+        val event = Mockito.mock(EntryEvent::class.java) as EntryEvent<UUID, EntitySet>
+        Mockito.`when`(event.key).thenReturn(first)
+        table.entryUpdated(event)
+
+        Assert.assertArrayEquals(intArrayOf(1, 4), table.get(first))
+        Assert.assertArrayEquals(intArrayOf(2), table.get(second))
+
+        table.invalidateAll()
+        Assert.assertArrayEquals(intArrayOf(2, 4), table.get(second))
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.graph
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.TestServer
+import com.openlattice.data.DataEdgeKey
+import com.openlattice.data.EntityDataKey
+import com.openlattice.data.EntityKeyIdService
+import com.openlattice.data.storage.PostgresEntityDataQueryService
+import com.openlattice.data.storage.partitions.PartitionManager
+import com.openlattice.datastore.services.EntitySetManager
+import org.junit.After
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.util.*
+
+/**
+ * Creates, clears and deletes edges through the chunked mutation path, whose statements match edges on their
+ * partition and on the unnested (src, dst, edge) entity key ids of each chunk.
+ */
+class GraphEdgeMutationTest : TestServer() {
+    private val src = UUID.randomUUID()
+    private val dst = UUID.randomUUID()
+    private val association = UUID.randomUUID()
+    private val partitions = mapOf(src to intArrayOf(11, 12, 13), dst to intArrayOf(14), association to intArrayOf(15))
+
+    private val partitionManager = Mockito.mock(PartitionManager::class.java)
+    private val graph = Graph(
+            hds,
+            hds,
+            Mockito.mock(EntitySetManager::class.java),
+            partitionManager,
+            Mockito.mock(PostgresEntityDataQueryService::class.java),
+            Mockito.mock(EntityKeyIdService::class.java),
+            MetricRegistry()
+    )
+
+    init {
+        Mockito.`when`(partitionManager.getPartitionArraysByEntitySetId(Mockito.anySetOf(UUID::class.java)))
+                .thenAnswer { invocation -> partitions.filterKeys { (invocation.arguments[0] as Set<*>).contains(it) } }
+    }
+
+    private val edges = (0 until 100).map {
+        DataEdgeKey(
+                EntityDataKey(src, UUID.randomUUID()),
+                EntityDataKey(dst, UUID.randomUUID()),
+                EntityDataKey(association, UUID.randomUUID())
+        )
+    }
+
+    @After
+    fun tearDown() {
+        graph.deleteEdges(edges)
+    }
+
+    private fun edgesOf(includeClearedEdges: Boolean): Set<DataEdgeKey> {
+        return graph.getEdgeKeysContainingEntities(src, edges.map { it.src.entityKeyId }.toSet(), includeClearedEdges)
+                .toSet()
+    }
+
+    @Test
+    fun testEdgesAreCreatedClearedAndDeleted() {
+        graph.createEdges(edges.toSet())
+        Assert.assertEquals(edges.toSet(), edgesOf(true))
+        Assert.assertEquals(edges.toSet(), edgesOf(false))
+
+        val cleared = edges.take(40)
+        Assert.assertEquals(cleared.size, graph.clearEdges(cleared))
+        Assert.assertEquals((edges - cleared).toSet(), edgesOf(false))
+        Assert.assertEquals(edges.toSet(), edgesOf(true))
+
+        //Deleting removes both cleared and live edges.
+        val deleted = edges.drop(20).take(40)
+        Assert.assertEquals(deleted.size, graph.deleteEdges(deleted).numUpdates)
+        Assert.assertEquals((edges - deleted).toSet(), edgesOf(true))
+        Assert.assertEquals((edges - cleared - deleted).toSet(), edgesOf(false))
+
+        //Edges that no longer exist are not counted.
+        Assert.assertEquals(0, graph.deleteEdges(deleted).numUpdates)
+        Assert.assertEquals(0, graph.clearEdges(deleted))
+    }
+
+    @Test
+    fun testDuplicateKeysAreMutatedOnce() {
+        graph.createEdges(edges.toSet())
+
+        val cleared = edges.take(10)
+        Assert.assertEquals(cleared.size, graph.clearEdges(cleared + cleared + cleared.take(3)))
+        Assert.assertEquals((edges - cleared).toSet(), edgesOf(false))
+
+        val deleted = edges.drop(50)
+        Assert.assertEquals(deleted.size, graph.deleteEdges(deleted + deleted.reversed()).numUpdates)
+        Assert.assertEquals(edges.take(50).toSet(), edgesOf(true))
+    }
+
+    @Test
+    fun testEmptyMutationsDoNothing() {
+        graph.createEdges(edges.toSet())
+
+        Assert.assertEquals(0, graph.clearEdges(listOf()))
+        Assert.assertEquals(0, graph.deleteEdges(listOf()).numUpdates)
+        Assert.assertEquals(edges.toSet(), edgesOf(false))
+    }
+}
@@ -0,0 +1,173 @@
+package com.openlattice.graph
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.TestServer
+import com.openlattice.analysis.requests.DateRangeFilter
+import com.openlattice.data.storage.ByteBlobDataManager
+import com.openlattice.data.storage.PartitionWriteExecutor
+import com.openlattice.data.storage.PostgresEntityDataQueryService
+import com.openlattice.data.storage.PostgresEntitySetCounts
+import com.openlattice.data.storage.partitions.PartitionManager
+import com.openlattice.data.storage.partitions.getPartition
+import com.openlattice.edm.type.PropertyType
+import com.openlattice.postgres.PostgresColumn.*
+import com.openlattice.postgres.PostgresTable.E
+import com.openlattice.postgres.PostgresTable.IDS
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.junit.Assert
+import org.junit.BeforeClass
+import org.junit.Test
+import org.mockito.Mockito
+import java.time.LocalDate
+import java.util.*
+
+/**
+ * Checks that neighborhood filters only match on values that can be read. A person is connected to two incidents in
+ * an entity set whose dates can be read and to two incidents in an entity set whose dates can't be read, and one
+ * incident of each falls within the filtered range.
+ */
+class NeighborhoodQueryAuthorizationTest : TestServer() {
+    companion object {
+        private val partitions = (0 until 8).toList()
+
+        private val date = PropertyType(
+                UUID.randomUUID(),
+                FullQualifiedName("test", "date${UUID.randomUUID()}"),
+                "date",
+                Optional.empty<String>(),
+                setOf(),
+                EdmPrimitiveTypeKind.Date
+        )
+        private val propertyTypes = mapOf(date.id to date)
+
+        private val people = UUID.randomUUID()
+        private val incidents = UUID.randomUUID()
+        private val restrictedIncidents = UUID.randomUUID()
+        private val involvedIn = UUID.randomUUID()
+
+        private val person = UUID.randomUUID()
+        private val incidentsInRange = mutableMapOf<UUID, UUID>()
+        private val incidentsOutOfRange = mutableMapOf<UUID, UUID>()
+
+        private lateinit var engine: NeighborhoodQueryEngine
+
+        @BeforeClass
+        @JvmStatic
+        fun setUp() {
+            PostgresEntitySetCounts(hds).initialize()
+            val partitionManager = Mockito.mock(PartitionManager::class.java)
+            val dataQueryService = PostgresEntityDataQueryService(
+                    hds,
+                    hds,
+                    Mockito.mock(ByteBlobDataManager::class.java),
+                    partitionManager,
+                    PartitionWriteExecutor(MetricRegistry())
+            )
+            engine = NeighborhoodQueryEngine(hds)
+
+            listOf(incidents, restrictedIncidents).forEach { entitySetId ->
+                val inRange = UUID.randomUUID()
+                val outOfRange = UUID.randomUUID()
+                incidentsInRange[entitySetId] = inRange
+                incidentsOutOfRange[entitySetId] = outOfRange
+
+                reserveIds(entitySetId, setOf(inRange, outOfRange))
+                dataQueryService.upsertEntities(
+                        entitySetId,
+                        mapOf(
+                                inRange to mapOf(date.id to setOf<Any>(LocalDate.of(2000, 6, 1))),
+                                outOfRange to mapOf(date.id to setOf<Any>(LocalDate.of(2010, 6, 1)))
+                        ),
+                        propertyTypes,
+                        partitions = partitions
+                )
+                insertEdges(entitySetId, listOf(inRange, outOfRange))
+            }
+        }
+
+        private fun reserveIds(entitySetId: UUID, entityKeyIds: Set<UUID>) {
+            hds.connection.use { connection ->
+                connection.prepareStatement(
+                        "INSERT INTO ${IDS.name} (${ENTITY_SET_ID.name}, ${ID.name}, ${PARTITION.name}) VALUES (?, ?, ?)"
+                ).use { ps ->
+                    entityKeyIds.forEach { entityKeyId ->
+                        ps.setObject(1, entitySetId)
+                        ps.setObject(2, entityKeyId)
+                        ps.setInt(3, getPartition(entityKeyId, partitions))
+                        ps.addBatch()
+                    }
+                    ps.executeBatch()
+                }
+            }
+        }
+
+        private fun insertEdges(entitySetId: UUID, entityKeyIds: List<UUID>) {
+            val insertEdge = "INSERT INTO ${E.name} (${PARTITION.name},${SRC_ENTITY_SET_ID.name},${SRC_ENTITY_KEY_ID.name}," +
+                    "${DST_ENTITY_SET_ID.name},${DST_ENTITY_KEY_ID.name},${EDGE_ENTITY_SET_ID.name},${EDGE_ENTITY_KEY_ID.name}," +
+                    "${VERSION.name},${VERSIONS.name}) VALUES (?,?,?,?,?,?,?,1,'{1}')"
+
+            hds.connection.use { connection ->
+                connection.prepareStatement(insertEdge).use { ps ->
+                    entityKeyIds.forEach { entityKeyId ->
+                        ps.setInt(1, getPartition(person, partitions))
+                        ps.setObject(2, people)
+                        ps.setObject(3, person)
+                        ps.setObject(4, entitySetId)
+                        ps.setObject(5, entityKeyId)
+                        ps.setObject(6, involvedIn)
+                        ps.setObject(7, UUID.randomUUID())
+                        ps.addBatch()
+                    }
+                    ps.executeBatch()
+                }
+            }
+        }
+
+        private fun getNeighbors(authorizedPropertyTypes: Map<UUID, Set<UUID>>): Set<UUID> {
+            val filter = DateRangeFilter(
+                    Optional.of(LocalDate.of(2000, 1, 1)),
+                    Optional.of(true),
+                    Optional.of(LocalDate.of(2000, 12, 31)),
+                    Optional.of(true)
+            )
+            val selection = NeighborhoodSelectionDefinition(
+                    NeighborhoodDirection.DST,
+                    listOf(
+                            AssociationFilterDefinition(
+                                    UUID.randomUUID(),
+                                    setOf(incidents, restrictedIncidents),
+                                    mapOf(date.id to setOf(filter))
+                            )
+                    ),
+                    listOf(AssociationFilterDefinition(UUID.randomUUID(), setOf(involvedIn), mapOf()))
+            )
+
+            return engine
+                    .getNeighborhoodEdges(
+                            mapOf(people to Optional.of(setOf(person))),
+                            listOf(selection),
+                            propertyTypes,
+                            authorizedPropertyTypes,
+                            Optional.empty()
+                    )
+                    .map { it.edge.dst.entityKeyId }
+                    .toSet()
+        }
+    }
+
+    @Test
+    fun testFiltersOnlyMatchReadableValues() {
+        val neighbors = getNeighbors(mapOf(incidents to setOf(date.id), restrictedIncidents to setOf()))
+
+        //Incidents whose dates can't be read are not matched, whatever their dates are.
+        Assert.assertEquals(setOf(incidentsInRange.getValue(incidents)), neighbors)
+    }
+
+    @Test
+    fun testFiltersOnUnreadablePropertyTypesDoNotNarrowNeighbors() {
+        val neighbors = getNeighbors(mapOf(incidents to setOf(), restrictedIncidents to setOf()))
+
+        Assert.assertEquals((incidentsInRange.values + incidentsOutOfRange.values).toSet(), neighbors)
+    }
+}
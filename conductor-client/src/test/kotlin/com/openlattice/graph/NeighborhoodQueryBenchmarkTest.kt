@@ -0,0 +1,150 @@
+package com.openlattice.graph
+
+import com.google.common.base.Stopwatch
+import com.openlattice.TestServer
+import com.openlattice.postgres.PostgresColumn.*
+import com.openlattice.postgres.PostgresTable.E
+import org.junit.Assert
+import org.junit.BeforeClass
+import org.junit.Ignore
+import org.junit.Test
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+private const val NUM_CENTERS = 1_000
+private const val NEIGHBORS_PER_CENTER = 20
+private const val NUM_RUNS = 5
+
+/**
+ * Runs representative neighborhood queries against a synthetic graph: people connected to incidents and vehicles
+ * through two association entity sets.
+ *
+ * Requires a local postgres and is therefore ignored by default.
+ */
+class NeighborhoodQueryBenchmarkTest : TestServer() {
+    companion object {
+        private val logger: Logger = LoggerFactory.getLogger(NeighborhoodQueryBenchmarkTest::class.java)
+
+        private val people = UUID.randomUUID()
+        private val incidents = UUID.randomUUID()
+        private val vehicles = UUID.randomUUID()
+        private val involvedIn = UUID.randomUUID()
+        private val owns = UUID.randomUUID()
+
+        private val centers = (0 until NUM_CENTERS).map { UUID.randomUUID() }
+
+        private lateinit var engine: NeighborhoodQueryEngine
+
+        @BeforeClass
+        @JvmStatic
+        fun setUp() {
+            engine = NeighborhoodQueryEngine(hds)
+            val insertEdge = "INSERT INTO ${E.name} (${PARTITION.name},${SRC_ENTITY_SET_ID.name},${SRC_ENTITY_KEY_ID.name}," +
+                    "${DST_ENTITY_SET_ID.name},${DST_ENTITY_KEY_ID.name},${EDGE_ENTITY_SET_ID.name},${EDGE_ENTITY_KEY_ID.name}," +
+                    "${VERSION.name},${VERSIONS.name}) VALUES (?,?,?,?,?,?,?,1,'{1}')"
+
+            hds.connection.use { connection ->
+                connection.prepareStatement(insertEdge).use { ps ->
+                    centers.forEach { person ->
+                        (0 until NEIGHBORS_PER_CENTER).forEach { i ->
+                            val (dstEntitySetId, edgeEntitySetId) = if (i % 2 == 0) incidents to involvedIn else vehicles to owns
+                            ps.setInt(1, i)
+                            ps.setObject(2, people)
+                            ps.setObject(3, person)
+                            ps.setObject(4, dstEntitySetId)
+                            ps.setObject(5, UUID.randomUUID())
+                            ps.setObject(6, edgeEntitySetId)
+                            ps.setObject(7, UUID.randomUUID())
+                            ps.addBatch()
+                        }
+                    }
+                    ps.executeBatch()
+                }
+            }
+        }
+
+        private fun selection(direction: NeighborhoodDirection, entitySetId: UUID, associationEntitySetId: UUID) =
+                NeighborhoodSelectionDefinition(
+                        direction,
+                        listOf(AssociationFilterDefinition(UUID.randomUUID(), setOf(entitySetId), mapOf())),
+                        listOf(AssociationFilterDefinition(UUID.randomUUID(), setOf(associationEntitySetId), mapOf()))
+                )
+    }
+
+    private fun benchmark(name: String, expected: Int, query: () -> Int) {
+        val durations = (0 until NUM_RUNS).map {
+            val sw = Stopwatch.createStarted()
+            Assert.assertEquals(expected, query())
+            sw.elapsed(TimeUnit.MILLISECONDS)
+        }
+        logger.info(
+                "{}: mean = {} ms, min = {} ms, max = {} ms",
+                name,
+                durations.average(),
+                durations.min(),
+                durations.max()
+        )
+    }
+
+    @Test
+    @Ignore
+    fun benchmarkSingleEntityNeighborhood() {
+        val ids = mapOf(people to Optional.of(setOf(centers.first())))
+        val selections = listOf(selection(NeighborhoodDirection.DST, incidents, involvedIn))
+
+        benchmark("Single entity, one selection", NEIGHBORS_PER_CENTER / 2) {
+            engine.getNeighborhoodEdges(ids, selections, mapOf(), mapOf(), Optional.empty()).count()
+        }
+    }
+
+    @Test
+    @Ignore
+    fun benchmarkManySelections() {
+        val ids = mapOf(people to Optional.of(centers.take(100).toSet()))
+        val selections = listOf(
+                selection(NeighborhoodDirection.DST, incidents, involvedIn),
+                selection(NeighborhoodDirection.DST, vehicles, owns),
+                selection(NeighborhoodDirection.SRC, incidents, involvedIn),
+                selection(NeighborhoodDirection.SRC, vehicles, owns)
+        )
+
+        benchmark("100 entities, four selections", 100 * NEIGHBORS_PER_CENTER) {
+            engine.getNeighborhoodEdges(ids, selections, mapOf(), mapOf(), Optional.empty()).count()
+        }
+    }
+
+    @Test
+    @Ignore
+    fun benchmarkTwoHops() {
+        benchmark("Two hops from 10 entities", 10 * NEIGHBORS_PER_CENTER / 2) {
+            val firstHop = engine.getNeighborhoodEdges(
+                    mapOf(people to Optional.of(centers.take(10).toSet())),
+                    listOf(selection(NeighborhoodDirection.DST, incidents, involvedIn)),
+                    mapOf(),
+                    mapOf(),
+                    Optional.empty()
+            ).map { it.edge.dst.entityKeyId }.toSet()
+
+            engine.getNeighborhoodEdges(
+                    mapOf(incidents to Optional.of(firstHop)),
+                    listOf(selection(NeighborhoodDirection.SRC, people, involvedIn)),
+                    mapOf(),
+                    mapOf(),
+                    Optional.empty()
+            ).count()
+        }
+    }
+
+    @Test
+    @Ignore
+    fun benchmarkWholeEntitySet() {
+        val ids = mapOf(people to Optional.empty<Set<UUID>>())
+        val selections = listOf(selection(NeighborhoodDirection.DST, vehicles, owns))
+
+        benchmark("Whole entity set, one selection", NUM_CENTERS * NEIGHBORS_PER_CENTER / 2) {
+            engine.getNeighborhoodEdges(ids, selections, mapOf(), mapOf(), Optional.empty()).count()
+        }
+    }
+}
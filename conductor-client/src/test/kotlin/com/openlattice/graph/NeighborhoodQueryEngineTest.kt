@@ -0,0 +1,76 @@
+package com.openlattice.graph
+
+import com.zaxxer.hikari.HikariDataSource
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.util.*
+
+class NeighborhoodQueryEngineTest {
+
+    private fun selection(direction: NeighborhoodDirection) = NeighborhoodSelectionDefinition(
+            direction,
+            listOf(AssociationFilterDefinition(UUID.randomUUID(), setOf(UUID.randomUUID()), mapOf())),
+            listOf(AssociationFilterDefinition(UUID.randomUUID(), setOf(UUID.randomUUID(), UUID.randomUUID()), mapOf()))
+    )
+
+    @Test
+    fun testQueriesOfSameShapeShareSql() {
+        val engine = NeighborhoodQueryEngine(Mockito.mock(HikariDataSource::class.java))
+
+        val first = engine.compile(
+                listOf(selection(NeighborhoodDirection.SRC), selection(NeighborhoodDirection.DST)),
+                mapOf(),
+                Optional.empty()
+        )
+        val second = engine.compile(
+                listOf(selection(NeighborhoodDirection.SRC), selection(NeighborhoodDirection.DST)),
+                mapOf(),
+                Optional.empty()
+        )
+
+        Assert.assertSame(first, second)
+        Assert.assertEquals(1L, engine.cachedShapeCount())
+        Assert.assertFalse(first.contains("VIEW"))
+
+        engine.compile(listOf(selection(NeighborhoodDirection.DST)), mapOf(), Optional.empty())
+        Assert.assertEquals(2L, engine.cachedShapeCount())
+    }
+
+    @Test
+    fun testUnfilteredSelectionsOnlyBindArrays() {
+        val sql = buildNeighborhoodSql(
+                NeighborhoodQueryShape(
+                        listOf(
+                                NeighborhoodSelectionShape(NeighborhoodDirection.SRC, listOf(), listOf()),
+                                NeighborhoodSelectionShape(NeighborhoodDirection.DST, listOf(), listOf())
+                        ),
+                        null
+                )
+        )
+
+        Assert.assertEquals(8, sql.count { it == '?' })
+        Assert.assertEquals(1, Regex("UNION ALL").findAll(sql).count())
+    }
+
+    @Test
+    fun testFilteredSelectionsJoinFilteredEntities() {
+        val sql = buildNeighborhoodSql(
+                NeighborhoodQueryShape(
+                        listOf(
+                                NeighborhoodSelectionShape(
+                                        NeighborhoodDirection.SRC,
+                                        listOf(listOf(listOf("b_TEXT = ?"), listOf())),
+                                        listOf()
+                                )
+                        ),
+                        null
+                )
+        )
+
+        // 4 selection arrays, the filtered entity sets, 2 property type ids, 1 filter value and the unfiltered entity sets
+        Assert.assertEquals(9, sql.count { it == '?' })
+        Assert.assertTrue(sql.contains("filtered_0_entities_0 AS"))
+        Assert.assertTrue(sql.contains("HAVING count(DISTINCT property_type_id) = 2"))
+    }
+}
@@ -0,0 +1,189 @@
+package com.openlattice.graph
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.TestServer
+import com.openlattice.analysis.AuthorizedFilteredNeighborsRanking
+import com.openlattice.analysis.requests.AggregationType
+import com.openlattice.analysis.requests.FilteredNeighborsRankingAggregation
+import com.openlattice.analysis.requests.WeightedRankingAggregation
+import com.openlattice.data.DataEdgeKey
+import com.openlattice.data.EntityDataKey
+import com.openlattice.data.EntityKeyIdService
+import com.openlattice.data.storage.ByteBlobDataManager
+import com.openlattice.data.storage.PartitionWriteExecutor
+import com.openlattice.data.storage.PostgresEntityDataQueryService
+import com.openlattice.data.storage.PostgresEntitySetCounts
+import com.openlattice.data.storage.partitions.PartitionManager
+import com.openlattice.data.storage.partitions.getPartition
+import com.openlattice.datastore.services.EntitySetManager
+import com.openlattice.edm.type.PropertyType
+import com.openlattice.postgres.PostgresColumn.*
+import com.openlattice.postgres.PostgresTable.IDS
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.junit.Assert
+import org.junit.BeforeClass
+import org.junit.Test
+import org.mockito.Mockito
+import java.util.*
+
+/**
+ * Checks that top entities of normal entity sets computed in batches per partition rank the same entities with the
+ * same scores as the aggregation that loads every source entity and neighborhood at once. Person i visits i + 1
+ * places, each visit lasting i, so every person has a distinct score and the top people are known.
+ */
+class TopEntitiesStreamingTest : TestServer() {
+    companion object {
+        private const val PEOPLE = 30
+        private const val LIMIT = 10
+
+        private val partitions = (0 until 8).toList()
+
+        private val name = PropertyType(
+                UUID.randomUUID(),
+                FullQualifiedName("test", "name${UUID.randomUUID()}"),
+                "name",
+                Optional.empty<String>(),
+                setOf(),
+                EdmPrimitiveTypeKind.String
+        )
+        private val duration = PropertyType(
+                UUID.randomUUID(),
+                FullQualifiedName("test", "duration${UUID.randomUUID()}"),
+                "duration",
+                Optional.empty<String>(),
+                setOf(),
+                EdmPrimitiveTypeKind.Int64
+        )
+
+        private val people = UUID.randomUUID()
+        private val places = UUID.randomUUID()
+        private val visits = UUID.randomUUID()
+
+        private val authorizedPropertyTypes = mapOf(
+                people to mapOf(name.id to name),
+                places to mapOf(name.id to name),
+                visits to mapOf(duration.id to duration)
+        )
+
+        private val ranking = AuthorizedFilteredNeighborsRanking(
+                FilteredNeighborsRankingAggregation(
+                        UUID.randomUUID(),
+                        UUID.randomUUID(),
+                        Optional.empty(),
+                        Optional.empty(),
+                        mapOf(duration.id to WeightedRankingAggregation(AggregationType.SUM, 1.0)),
+                        mapOf(),
+                        false,
+                        Optional.empty()
+                ),
+                mapOf(visits to setOf(duration.id)),
+                mapOf(duration.id to duration),
+                mapOf(places to setOf(name.id)),
+                mapOf(name.id to name)
+        )
+
+        private val personIds = (0 until PEOPLE).map { UUID.randomUUID() }
+
+        private lateinit var graph: Graph
+
+        @BeforeClass
+        @JvmStatic
+        fun setUp() {
+            PostgresEntitySetCounts(hds).initialize()
+            val partitionManager = Mockito.mock(PartitionManager::class.java) { invocation ->
+                when (invocation.method.name) {
+                    "getEntitySetPartitions" -> partitions.toSet()
+                    "getPartitionsByEntitySetId" -> (invocation.arguments[0] as Set<*>).associateWith { partitions.toSet() }
+                    "getPartitionArraysByEntitySetId" ->
+                        (invocation.arguments[0] as Set<*>).associateWith { partitions.toIntArray() }
+                    else -> Mockito.RETURNS_DEFAULTS.answer(invocation)
+                }
+            }
+            val dataQueryService = PostgresEntityDataQueryService(
+                    hds,
+                    hds,
+                    Mockito.mock(ByteBlobDataManager::class.java),
+                    partitionManager,
+                    PartitionWriteExecutor(MetricRegistry())
+            )
+            graph = Graph(
+                    hds,
+                    hds,
+                    Mockito.mock(EntitySetManager::class.java),
+                    partitionManager,
+                    dataQueryService,
+                    Mockito.mock(EntityKeyIdService::class.java),
+                    MetricRegistry()
+            )
+
+            val edges = mutableSetOf<DataEdgeKey>()
+            val placeEntities = mutableMapOf<UUID, Map<UUID, Set<Any>>>()
+            val visitEntities = mutableMapOf<UUID, Map<UUID, Set<Any>>>()
+            personIds.forEachIndexed { i, person ->
+                repeat(i + 1) {
+                    val place = UUID.randomUUID()
+                    val visit = UUID.randomUUID()
+                    placeEntities[place] = mapOf(name.id to setOf<Any>("place $place"))
+                    visitEntities[visit] = mapOf(duration.id to setOf<Any>(i.toLong()))
+                    edges.add(DataEdgeKey(EntityDataKey(people, person), EntityDataKey(places, place), EntityDataKey(visits, visit)))
+                }
+            }
+
+            upsert(dataQueryService, people, personIds.associateWith { mapOf(name.id to setOf<Any>("person $it")) })
+            upsert(dataQueryService, places, placeEntities)
+            upsert(dataQueryService, visits, visitEntities)
+            graph.createEdges(edges)
+        }
+
+        private fun upsert(
+                dataQueryService: PostgresEntityDataQueryService,
+                entitySetId: UUID,
+                entities: Map<UUID, Map<UUID, Set<Any>>>
+        ) {
+            hds.connection.use { connection ->
+                connection.prepareStatement(
+                        "INSERT INTO ${IDS.name} (${ENTITY_SET_ID.name}, ${ID.name}, ${PARTITION.name}) VALUES (?, ?, ?)"
+                ).use { ps ->
+                    entities.keys.forEach { entityKeyId ->
+                        ps.setObject(1, entitySetId)
+                        ps.setObject(2, entityKeyId)
+                        ps.setInt(3, getPartition(entityKeyId, partitions))
+                        ps.addBatch()
+                    }
+                    ps.executeBatch()
+                }
+            }
+            dataQueryService.upsertEntities(
+                    entitySetId,
+                    entities,
+                    authorizedPropertyTypes.getValue(entitySetId),
+                    partitions = partitions
+            )
+        }
+    }
+
+    @Test
+    fun testStreamedRankingsMatchTheInMemoryAggregation() {
+        val streamed = graph.computeTopEntities(
+                LIMIT, setOf(people), authorizedPropertyTypes, listOf(ranking), false, Optional.empty()
+        )
+        val inMemory = graph.computeTopEntitiesInMemory(
+                LIMIT, setOf(people), authorizedPropertyTypes, listOf(ranking), false
+        )
+
+        val expected = personIds.indices.reversed().take(LIMIT).map { i ->
+            personIds[i] to (i + 1) * (1.0 + i)
+        }
+        Assert.assertEquals(expected, streamed.rankings.map { it.entityKeyId to it.score })
+        Assert.assertEquals(
+                inMemory.rankings.map { it.entityKeyId to it.score },
+                streamed.rankings.map { it.entityKeyId to it.score }
+        )
+        Assert.assertEquals(inMemory.edges, streamed.edges)
+
+        //The in memory aggregation also returns every source entity, while the streamed one only loads the ranked ones.
+        Assert.assertTrue(streamed.entities.keys.containsAll(expected.map { it.first }))
+        Assert.assertEquals(inMemory.entities.filterKeys { streamed.entities.containsKey(it) }, streamed.entities)
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.graph.partioning
+
+import com.openlattice.TestServer
+import com.openlattice.data.storage.partitions.getPartition
+import com.openlattice.hazelcast.HazelcastMap
+import com.openlattice.mapstores.TestDataFactory
+import com.openlattice.postgres.PostgresColumn.ENTITY_SET_ID
+import com.openlattice.postgres.PostgresColumn.ID
+import com.openlattice.postgres.PostgresColumn.PARTITION
+import com.openlattice.postgres.PostgresTable.IDS
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+/**
+ * Runs [RepartitioningJob]s batch by batch against the ids of an entity set, without publishing their state, and
+ * checks how they walk partitions, switch phases and throttle themselves.
+ */
+class RepartitioningJobTest : TestServer() {
+    companion object {
+        private const val NUM_ENTITIES = 4_000
+        private const val PARALLELISM = 2
+        private const val MAX_BATCHES = 1_000
+
+        private val oldPartitions = (0 until 4).toList()
+        private val newPartitions = (4 until 8).toSet()
+    }
+
+    /**
+     * Creates an entity set on [oldPartitions] with [NUM_ENTITIES] entities and returns their ids.
+     */
+    private fun createEntitySet(): Pair<UUID, List<UUID>> {
+        val entitySet = TestDataFactory.entitySet()
+        entitySet.setPartitions(oldPartitions)
+        HazelcastMap.ENTITY_SETS.getMap(hazelcastInstance).set(entitySet.id, entitySet)
+
+        val entityKeyIds = (0 until NUM_ENTITIES).map { UUID.randomUUID() }
+        hds.connection.use { connection ->
+            connection.prepareStatement(
+                    "INSERT INTO ${IDS.name} (${ENTITY_SET_ID.name}, ${ID.name}, ${PARTITION.name}) VALUES (?, ?, ?)"
+            ).use { ps ->
+                entityKeyIds.forEach { entityKeyId ->
+                    ps.setObject(1, entitySet.id)
+                    ps.setObject(2, entityKeyId)
+                    ps.setInt(3, getPartition(entityKeyId, oldPartitions))
+                    ps.addBatch()
+                }
+                ps.executeBatch()
+            }
+        }
+        return entitySet.id to entityKeyIds
+    }
+
+    private fun newState(entitySetId: UUID): RepartitioningJobState = RepartitioningJobState(
+            entitySetId,
+            oldPartitions,
+            newPartitions,
+            parallelism = PARALLELISM,
+            chunkSize = MIN_REPARTITIONING_CHUNK_SIZE
+    )
+
+    private fun newJob(state: RepartitioningJobState): RepartitioningJob {
+        val job = RepartitioningJob(state)
+        job.setHikariDataSource(hds)
+        job.setHazelcastInstance(hazelcastInstance)
+        return job
+    }
+
+    private fun runToCompletion(job: RepartitioningJob) {
+        var batches = 0
+        while (job.hasWorkRemaining) {
+            job.moveNextChunks()
+            Assert.assertTrue(job.state.partitionCursors.size <= PARALLELISM)
+            Assert.assertTrue("Repartitioning job did not finish.", ++batches < MAX_BATCHES)
+        }
+    }
+
+    private fun getPartitionsOfIds(entitySetId: UUID): Map<UUID, List<Int>> = hds.connection.use { connection ->
+        connection.prepareStatement(
+                "SELECT ${ID.name}, ${PARTITION.name} FROM ${IDS.name} WHERE ${ENTITY_SET_ID.name} = ?"
+        ).use { ps ->
+            ps.setObject(1, entitySetId)
+            ps.executeQuery().use { rs ->
+                val partitions = mutableMapOf<UUID, MutableList<Int>>()
+                while (rs.next()) {
+                    partitions.getOrPut(rs.getObject(1, UUID::class.java)) { mutableListOf() }.add(rs.getInt(2))
+                }
+                partitions
+            }
+        }
+    }
+
+    private fun assertMovedToNewPartitions(entitySetId: UUID, entityKeyIds: List<UUID>) {
+        val partitionsOfIds = getPartitionsOfIds(entitySetId)
+        Assert.assertEquals(entityKeyIds.toSet(), partitionsOfIds.keys)
+        partitionsOfIds.forEach { (entityKeyId, partitions) ->
+            Assert.assertEquals(listOf(getPartition(entityKeyId, newPartitions.toList())), partitions)
+        }
+        Assert.assertEquals(newPartitions, HazelcastMap.ENTITY_SETS.getMap(hazelcastInstance)[entitySetId]!!.partitions)
+    }
+
+    @Test
+    fun testPartitionsAreWalkedInChunksAndSwitchedBeforeFinalizing() {
+        val (entitySetId, entityKeyIds) = createEntitySet()
+        val job = newJob(newState(entitySetId))
+        job.initializeState()
+        Assert.assertEquals(3L * NUM_ENTITIES, job.state.needsMigrationCount)
+
+        var batches = 0
+        while (job.phase == RepartitioningPhase.POPULATE) {
+            job.moveNextChunks()
+            Assert.assertTrue(job.state.partitionCursors.size <= PARALLELISM)
+            Assert.assertTrue("Populate phase did not finish.", ++batches < MAX_BATCHES)
+        }
+
+        //Every old partition was walked in more than one chunk and every row was copied without removing any.
+        Assert.assertTrue(batches > oldPartitions.size / PARALLELISM)
+        Assert.assertTrue(job.hasWorkRemaining)
+        Assert.assertTrue(job.state.partitionCursors.isEmpty())
+        Assert.assertEquals(0, job.state.currentlyMigratingPartitionIndex)
+        Assert.assertEquals(NUM_ENTITIES.toLong(), job.state.repartitionCount)
+        Assert.assertEquals(0L, job.state.deleteCount)
+        Assert.assertEquals(2 * NUM_ENTITIES, getPartitionsOfIds(entitySetId).values.sumBy { it.size })
+        Assert.assertEquals(newPartitions, HazelcastMap.ENTITY_SETS.getMap(hazelcastInstance)[entitySetId]!!.partitions)
+
+        runToCompletion(job)
+
+        Assert.assertEquals(RepartitioningPhase.FINALIZE, job.phase)
+        Assert.assertEquals(NUM_ENTITIES.toLong(), job.state.deleteCount)
+        assertMovedToNewPartitions(entitySetId, entityKeyIds)
+    }
+
+    @Test
+    fun testJobResumesFromItsCursorsWithoutMovingChunksTwice() {
+        val (entitySetId, entityKeyIds) = createEntitySet()
+        val job = newJob(newState(entitySetId))
+        job.initializeState()
+        job.moveNextChunks()
+        Assert.assertEquals(PARALLELISM, job.state.partitionCursors.size)
+
+        //Resume from the checkpoint on what would be another member.
+        val checkpointed = job.state.copy(partitionCursors = job.state.partitionCursors.toMutableMap())
+        val resumed = newJob(checkpointed)
+        runToCompletion(resumed)
+
+        //Rows are copied once in each phase and removed once from their old partition.
+        Assert.assertEquals(2L * NUM_ENTITIES, resumed.state.repartitionCount)
+        Assert.assertEquals(NUM_ENTITIES.toLong(), resumed.state.deleteCount)
+        assertMovedToNewPartitions(entitySetId, entityKeyIds)
+    }
+
+    @Test
+    fun testSlowBatchesBackOffAndFastBatchesRecover() {
+        val job = RepartitioningJob(newState(UUID.randomUUID()))
+        Assert.assertEquals(0L, job.getNextBatchDelay())
+
+        repeat(10) { job.throttle(10_000L) }
+        Assert.assertEquals(MIN_REPARTITIONING_CHUNK_SIZE, job.state.chunkSize)
+        Assert.assertEquals(30_000L, job.state.pauseMillis)
+        Assert.assertTrue(job.getNextBatchDelay() in 1L..30_000L)
+
+        repeat(20) { job.throttle(100L) }
+        Assert.assertEquals(MAX_REPARTITIONING_CHUNK_SIZE, job.state.chunkSize)
+        Assert.assertEquals(0L, job.state.pauseMillis)
+        Assert.assertEquals(0L, job.getNextBatchDelay())
+    }
+
+    @Test
+    fun testChunksAreScheduledForWhenTheNextBatchIsDue() {
+        val (entitySetId, _) = createEntitySet()
+        val state = newState(entitySetId)
+        val job = newJob(state)
+        job.initializeState()
+
+        val due = System.currentTimeMillis() + 1_000L
+        state.pauseMillis = 1_000L
+        state.nextBatchMillis = due
+        job.moveNextChunks()
+
+        Assert.assertTrue(System.currentTimeMillis() >= due)
+        Assert.assertTrue(state.repartitionCount > 0)
+        Assert.assertEquals(PARALLELISM, state.partitionCursors.size)
+    }
+}
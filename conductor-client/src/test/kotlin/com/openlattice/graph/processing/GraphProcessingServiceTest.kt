@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.graph.processing
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.TestServer
+import com.openlattice.datastore.services.EdmManager
+import com.openlattice.datastore.services.EntitySetManager
+import com.openlattice.postgres.PostgresColumn.ENTITY_SET_ID
+import com.openlattice.postgres.PostgresColumn.HASH
+import com.openlattice.postgres.PostgresColumn.ID_VALUE
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.sql.Connection
+import java.util.*
+
+/**
+ * Runs the delta driven iterations of [GraphProcessingService] against a chain of entities, where every pass moves a
+ * signal one entity further down the chain. Every entity has two rows, as entities with several values of a property
+ * do, so rows touched and frontier sizes differ.
+ */
+class GraphProcessingServiceTest : TestServer() {
+    companion object {
+        private const val CHAIN = "graph_processing_chain"
+        private const val NEXT = "next"
+        private const val REACHED = "reached"
+        private const val ROWS_PER_ENTITY = 2
+    }
+
+    private fun newService(metricRegistry: MetricRegistry, maxIterations: Int): GraphProcessingService {
+        return GraphProcessingService(
+                Mockito.mock(EdmManager::class.java),
+                Mockito.mock(EntitySetManager::class.java),
+                hds,
+                hazelcastInstance,
+                setOf(),
+                metricRegistry,
+                maxIterations
+        )
+    }
+
+    /**
+     * Creates a chain of [length] entities, of which only the first has been reached.
+     *
+     * @return The entity key ids of the chain, in order.
+     */
+    private fun createChain(connection: Connection, length: Int): List<UUID> {
+        val entitySetId = UUID.randomUUID()
+        val entityKeyIds = (0 until length).map { UUID.randomUUID() }
+        connection.createStatement().use { stmt ->
+            stmt.execute(
+                    "CREATE TEMPORARY TABLE $CHAIN (${ENTITY_SET_ID.name} uuid, ${ID_VALUE.name} uuid, " +
+                            "${HASH.name} int, $NEXT uuid, $REACHED boolean)"
+            )
+        }
+        connection.prepareStatement("INSERT INTO $CHAIN VALUES (?, ?, ?, ?, ?)").use { ps ->
+            entityKeyIds.forEachIndexed { index, entityKeyId ->
+                (0 until ROWS_PER_ENTITY).forEach { hash ->
+                    ps.setObject(1, entitySetId)
+                    ps.setObject(2, entityKeyId)
+                    ps.setInt(3, hash)
+                    ps.setObject(4, entityKeyIds.getOrNull(index + 1))
+                    ps.setBoolean(5, index == 0)
+                    ps.addBatch()
+                }
+            }
+            ps.executeBatch()
+        }
+        return entityKeyIds
+    }
+
+    private fun dropChain(connection: Connection) {
+        connection.createStatement().use { stmt -> stmt.execute("DROP TABLE IF EXISTS $CHAIN") }
+    }
+
+    /**
+     * Marks every entity following a reached entity as reached, only starting from the frontier if
+     * [restrictToFrontier] is set.
+     */
+    private fun propagate(connection: Connection, restrictToFrontier: Boolean): Int {
+        val frontierFilter = if (restrictToFrontier) {
+            "AND ${buildFrontierFilter("src.${ENTITY_SET_ID.name}", "src.${ID_VALUE.name}")}"
+        } else {
+            ""
+        }
+        val update = "UPDATE $CHAIN SET $REACHED = true FROM $CHAIN AS src " +
+                "WHERE src.$REACHED AND src.$NEXT = $CHAIN.${ID_VALUE.name} AND NOT $CHAIN.$REACHED $frontierFilter"
+
+        return connection.createStatement().use { stmt ->
+            executeRecordingChanges(stmt, buildRecordChangesSql(CHAIN, update))
+        }
+    }
+
+    private fun countReached(connection: Connection): Int {
+        return connection.createStatement().use { stmt ->
+            stmt.executeQuery("SELECT count(DISTINCT ${ID_VALUE.name}) FROM $CHAIN WHERE $REACHED").use { rs ->
+                rs.next()
+                rs.getInt(1)
+            }
+        }
+    }
+
+    @Test
+    fun testIterationsFollowTheFrontierUntilItIsEmpty() {
+        val length = 10
+        val metricRegistry = MetricRegistry()
+        val service = newService(metricRegistry, DEFAULT_MAX_GRAPH_PROCESSING_ITERATIONS)
+        val restrictions = mutableListOf<Boolean>()
+
+        hds.connection.use { connection ->
+            try {
+                createChain(connection, length)
+                service.createFrontier(connection)
+                service.iterate(connection, "test") { restrictToFrontier ->
+                    restrictions.add(restrictToFrontier)
+                    propagate(connection, restrictToFrontier)
+                }
+
+                Assert.assertEquals(length, countReached(connection))
+            } finally {
+                dropChain(connection)
+            }
+        }
+
+        //One pass per link of the chain, and a last one that finds nothing left to change.
+        Assert.assertEquals(listOf(false) + List(length - 1) { true }, restrictions)
+
+        val rowsTouched = metricRegistry.histogram(MetricRegistry.name(GraphProcessingService::class.java, "rowsTouched"))
+        val frontier = metricRegistry.histogram(MetricRegistry.name(GraphProcessingService::class.java, "frontier"))
+        Assert.assertEquals(length.toLong(), rowsTouched.count)
+        Assert.assertEquals(ROWS_PER_ENTITY * (length - 1L), rowsTouched.snapshot.values.sum())
+        Assert.assertEquals(length - 1L, frontier.snapshot.values.sum())
+        Assert.assertEquals(
+                0L,
+                metricRegistry.meter(MetricRegistry.name(GraphProcessingService::class.java, "unconverged")).count
+        )
+    }
+
+    @Test
+    fun testIterationsStopAtTheCap() {
+        val maxIterations = 3
+        val metricRegistry = MetricRegistry()
+        val service = newService(metricRegistry, maxIterations)
+
+        hds.connection.use { connection ->
+            try {
+                createChain(connection, 10)
+                service.createFrontier(connection)
+                service.iterate(connection, "test") { restrictToFrontier -> propagate(connection, restrictToFrontier) }
+
+                Assert.assertEquals(maxIterations + 1, countReached(connection))
+            } finally {
+                dropChain(connection)
+            }
+        }
+
+        Assert.assertEquals(
+                1L,
+                metricRegistry.meter(MetricRegistry.name(GraphProcessingService::class.java, "unconverged")).count
+        )
+    }
+
+    @Test
+    fun testRestrictedPassesOnlyStartFromTheFrontier() {
+        val metricRegistry = MetricRegistry()
+        val service = newService(metricRegistry, DEFAULT_MAX_GRAPH_PROCESSING_ITERATIONS)
+
+        hds.connection.use { connection ->
+            try {
+                val entityKeyIds = createChain(connection, 10)
+                var passes = 0
+                service.createFrontier(connection)
+                service.iterate(connection, "test") { restrictToFrontier ->
+                    if (++passes == 2) {
+                        //Reach the middle of the chain without recording it in the frontier.
+                        connection.prepareStatement(
+                                "UPDATE $CHAIN SET $REACHED = true WHERE ${ID_VALUE.name} = ?"
+                        ).use { ps ->
+                            ps.setObject(1, entityKeyIds[5])
+                            ps.executeUpdate()
+                        }
+                    }
+                    propagate(connection, restrictToFrontier)
+                }
+
+                //The signal stops where it meets the unrecorded change, which is left for the next full pass.
+                Assert.assertEquals(6, countReached(connection))
+                Assert.assertEquals(1, propagate(connection, false) / ROWS_PER_ENTITY)
+            } finally {
+                dropChain(connection)
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.openlattice.hazelcast.serializers
+
+import com.dataloom.mappers.ObjectMappers
+import com.esotericsoftware.kryo.io.Input
+import com.esotericsoftware.kryo.io.Output
+import com.fasterxml.jackson.module.kotlin.readValue
+import org.junit.Assert
+import org.junit.Ignore
+import org.junit.Test
+import org.slf4j.LoggerFactory
+import java.time.OffsetDateTime
+import java.util.*
+
+class EntityDataCodecTest {
+    companion object {
+        private val logger = LoggerFactory.getLogger(EntityDataCodecTest::class.java)
+        private const val ITERATIONS = 200
+    }
+
+    private val propertyTypeIds = (0 until 20).map { UUID.randomUUID() }
+
+    private fun entity(random: Random): Map<UUID, Set<Any>> {
+        return mapOf(
+                propertyTypeIds[0] to setOf("person-${random.nextInt()}"),
+                propertyTypeIds[1] to setOf(random.nextLong()),
+                propertyTypeIds[2] to setOf(random.nextInt(), random.nextInt()),
+                propertyTypeIds[3] to setOf(random.nextDouble()),
+                propertyTypeIds[4] to setOf(random.nextBoolean()),
+                propertyTypeIds[5] to setOf(UUID.randomUUID()),
+                propertyTypeIds[6 + random.nextInt(14)] to setOf("a", "b", "c")
+        )
+    }
+
+    @Test
+    fun testRoundTrip() {
+        val random = Random(0)
+        val entities = (0 until 100).map { entity(random) }
+        val dictionary = EntityDataCodec.buildDictionary(entities)
+
+        val output = Output(4096, -1)
+        EntityDataCodec.writeDictionary(output, dictionary)
+        entities.forEach { EntityDataCodec.writeEntity(output, it, dictionary) }
+        EntityDataCodec.writeDictionary(output, null)
+        EntityDataCodec.writeEntity(output, entities.first(), null)
+
+        val input = Input(output.toBytes())
+        val readDictionary = EntityDataCodec.readDictionary(input)
+        Assert.assertEquals(entities, entities.map { EntityDataCodec.readEntity(input, readDictionary) })
+        Assert.assertNull(EntityDataCodec.readDictionary(input))
+        Assert.assertEquals(entities.first(), EntityDataCodec.readEntity(input, null))
+    }
+
+    @Test
+    fun testUnrecognizedValuesFallBackToSmile() {
+        val propertyTypeId = UUID.randomUUID()
+        val entity = mapOf<UUID, Set<Any>>(propertyTypeId to setOf(OffsetDateTime.now(), listOf(1.0, 2.0)))
+
+        val output = Output(4096, -1)
+        EntityDataCodec.writeEntity(output, entity, null)
+        val read = EntityDataCodec.readEntity(Input(output.toBytes()), null)
+
+        Assert.assertEquals(setOf(propertyTypeId), read.keys)
+        Assert.assertEquals(2, read.getValue(propertyTypeId).size)
+    }
+
+    @Test
+    @Ignore
+    fun benchmarkAgainstSmileInKryo() {
+        val random = Random(0)
+        val entities = (0 until 1_000).associate { UUID.randomUUID() to entity(random) }
+        val mapper = ObjectMappers.getSmileMapper()
+
+        fun writeSmile(): ByteArray {
+            val output = Output(4096, -1)
+            entities.forEach { (id, entity) ->
+                EntityDataCodec.writeUUID(output, id)
+                val bytes = mapper.writeValueAsBytes(entity)
+                output.writeInt(bytes.size)
+                output.writeBytes(bytes)
+            }
+            return output.toBytes()
+        }
+
+        fun readSmile(bytes: ByteArray) {
+            val input = Input(bytes)
+            entities.forEach { _ ->
+                EntityDataCodec.readUUID(input)
+                mapper.readValue<Map<UUID, Set<Any>>>(input.readBytes(input.readInt()))
+            }
+        }
+
+        fun writeCodec(): ByteArray {
+            val output = Output(4096, -1)
+            val dictionary = EntityDataCodec.buildDictionary(entities.values)
+            EntityDataCodec.writeDictionary(output, dictionary)
+            entities.forEach { (id, entity) ->
+                EntityDataCodec.writeUUID(output, id)
+                EntityDataCodec.writeEntity(output, entity, dictionary)
+            }
+            return output.toBytes()
+        }
+
+        fun readCodec(bytes: ByteArray) {
+            val input = Input(bytes)
+            val dictionary = EntityDataCodec.readDictionary(input)
+            entities.forEach { _ ->
+                EntityDataCodec.readUUID(input)
+                EntityDataCodec.readEntity(input, dictionary)
+            }
+        }
+
+        fun nanosPerOp(op: () -> Unit): Long {
+            repeat(ITERATIONS) { op() }
+            val start = System.nanoTime()
+            repeat(ITERATIONS) { op() }
+            return (System.nanoTime() - start) / ITERATIONS
+        }
+
+        val smileBytes = writeSmile()
+        val codecBytes = writeCodec()
+        Assert.assertTrue(codecBytes.size < smileBytes.size)
+
+        logger.info(
+                "Smile in kryo: {} bytes, {} ns/op to write, {} ns/op to read. " +
+                        "Entity data codec: {} bytes, {} ns/op to write, {} ns/op to read.",
+                smileBytes.size,
+                nanosPerOp { writeSmile() },
+                nanosPerOp { readSmile(smileBytes) },
+                codecBytes.size,
+                nanosPerOp { writeCodec() },
+                nanosPerOp { readCodec(codecBytes) }
+        )
+    }
+}
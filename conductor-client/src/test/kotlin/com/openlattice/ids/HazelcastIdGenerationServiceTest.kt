@@ -0,0 +1,101 @@
+package com.openlattice.ids
+
+import com.codahale.metrics.MetricRegistry
+import com.geekbeast.hazelcast.IHazelcastClientProvider
+import com.hazelcast.core.HazelcastInstance
+import com.openlattice.TestServer
+import org.junit.Assert
+import org.junit.BeforeClass
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+private const val NUM_CALLERS = 16
+private const val CALLS_PER_CALLER = 50
+
+/**
+ * Checks that ids leased in blocks are never handed out twice, by concurrent callers of one service or by services on
+ * different nodes sharing the same ranges.
+ */
+class HazelcastIdGenerationServiceTest : TestServer() {
+    companion object {
+        private lateinit var hzClientProvider: IHazelcastClientProvider
+
+        @BeforeClass
+        @JvmStatic
+        fun setUp() {
+            hzClientProvider = object : IHazelcastClientProvider {
+                override fun getClient(name: String): HazelcastInstance {
+                    return hazelcastInstance
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testIdsAreUniqueAcrossConcurrentCallers() {
+        val idGenerationService = HazelcastIdGenerationService(hzClientProvider, MetricRegistry())
+        val ids = generateConcurrently(listOf(idGenerationService))
+
+        Assert.assertEquals("Generated ids must be unique.", ids.second, ids.first.size)
+    }
+
+    @Test
+    fun testIdsAreUniqueAcrossNodes() {
+        val idGenerationServices = (0 until 4).map {
+            HazelcastIdGenerationService(hzClientProvider, MetricRegistry())
+        }
+        val ids = generateConcurrently(idGenerationServices)
+
+        Assert.assertEquals("Generated ids must be unique.", ids.second, ids.first.size)
+    }
+
+    @Test
+    fun testRequestsLargerThanABlock() {
+        val idGenerationService = HazelcastIdGenerationService(hzClientProvider, MetricRegistry())
+        val count = 3 * HazelcastIdGenerationService.BLOCK_SIZE + 7
+
+        val first = idGenerationService.getNextIdArray(count)
+        val second = idGenerationService.getNextIds(count)
+
+        Assert.assertEquals(count, first.toSet().size)
+        Assert.assertEquals(count, second.size)
+        Assert.assertTrue(first.none { second.contains(it) })
+    }
+
+    /**
+     * Requests ids of varying batch sizes from [NUM_CALLERS] threads at once, spread over [idGenerationServices].
+     *
+     * @return The distinct ids generated and the total number of ids generated.
+     */
+    private fun generateConcurrently(idGenerationServices: List<HazelcastIdGenerationService>): Pair<Set<UUID>, Int> {
+        val executor = Executors.newFixedThreadPool(NUM_CALLERS)
+        val ids = ConcurrentHashMap.newKeySet<UUID>()
+        val generated = AtomicInteger()
+        val start = CountDownLatch(1)
+
+        try {
+            (0 until NUM_CALLERS).map { caller ->
+                executor.submit {
+                    val idGenerationService = idGenerationServices[caller % idGenerationServices.size]
+                    val r = Random(caller.toLong())
+                    start.await()
+                    repeat(CALLS_PER_CALLER) {
+                        val count = 1 + r.nextInt(2 * HazelcastIdGenerationService.BLOCK_SIZE)
+                        val batch = idGenerationService.getNextIdArray(count)
+                        Assert.assertEquals(count, batch.size)
+                        ids.addAll(batch)
+                        generated.addAndGet(count)
+                    }
+                }
+            }.also { start.countDown() }.forEach { it.get() }
+        } finally {
+            executor.shutdown()
+        }
+
+        return ids to generated.get()
+    }
+}
@@ -0,0 +1,77 @@
+package com.openlattice.ids
+
+import com.codahale.metrics.MetricRegistry
+import com.geekbeast.hazelcast.IHazelcastClientProvider
+import com.google.common.base.Stopwatch
+import com.hazelcast.core.HazelcastInstance
+import com.openlattice.TestServer
+import org.junit.Assert
+import org.junit.BeforeClass
+import org.junit.Ignore
+import org.junit.Test
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+private const val IDS_PER_CALLER = 100_000
+private const val IDS_PER_CALL = 64
+
+/**
+ * Measures id generation throughput with 1, 8 and 64 concurrent callers.
+ *
+ * Requires a local hazelcast cluster and is therefore ignored by default.
+ */
+class IdGenerationBenchmarkTest : TestServer() {
+    companion object {
+        private val logger = LoggerFactory.getLogger(IdGenerationBenchmarkTest::class.java)
+        private val metricRegistry = MetricRegistry()
+        private lateinit var idGenerationService: HazelcastIdGenerationService
+
+        @BeforeClass
+        @JvmStatic
+        fun setUp() {
+            val hzClientProvider = object : IHazelcastClientProvider {
+                override fun getClient(name: String): HazelcastInstance {
+                    return hazelcastInstance
+                }
+            }
+            idGenerationService = HazelcastIdGenerationService(hzClientProvider, metricRegistry)
+        }
+    }
+
+    @Test
+    @Ignore
+    fun benchmarkConcurrentCallers() {
+        listOf(1, 8, 64).forEach { callers ->
+            val executor = Executors.newFixedThreadPool(callers)
+            val ids = ConcurrentHashMap.newKeySet<UUID>()
+            val sw = Stopwatch.createStarted()
+
+            (0 until callers).map {
+                executor.submit {
+                    repeat(IDS_PER_CALLER / IDS_PER_CALL) {
+                        ids.addAll(idGenerationService.getNextIdArray(IDS_PER_CALL))
+                    }
+                }
+            }.forEach { it.get() }
+
+            val elapsed = sw.elapsed(TimeUnit.MILLISECONDS)
+            executor.shutdown()
+
+            Assert.assertEquals("Generated ids must be unique.", callers * (IDS_PER_CALLER / IDS_PER_CALL) * IDS_PER_CALL, ids.size)
+            val getNextIds = metricRegistry.timer(
+                    MetricRegistry.name(HazelcastIdGenerationService::class.java, "getNextIds")
+            ).snapshot
+            logger.info(
+                    "{} callers generated {} ids in {} ms ({} ids/s, p99 call latency {} ms)",
+                    callers,
+                    ids.size,
+                    elapsed,
+                    ids.size * 1000L / Math.max(elapsed, 1L),
+                    getNextIds.get99thPercentile() / 1_000_000.0
+            )
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2020. OpenLattice, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * You can contact the owner of the copyright at support@openlattice.com
+ *
+ *
+ */
+
+package com.openlattice.linking
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.eventbus.EventBus
+import com.openlattice.TestServer
+import com.openlattice.assembler.events.MaterializedEntitySetDataChangeEvent
+import com.openlattice.data.DeleteType
+import com.openlattice.data.EntityDataKey
+import com.openlattice.data.events.EntitiesDeletedEvent
+import com.openlattice.data.events.EntitiesUpsertedEvent
+import com.openlattice.datastore.services.EntitySetManager
+import com.openlattice.edm.events.EntitySetDataDeletedEvent
+import com.openlattice.linking.util.BlockingKey
+import com.openlattice.linking.util.PERSON_FQN_TO_ID
+import com.openlattice.linking.util.PersonProperties
+import com.openlattice.rhizome.hazelcast.DelegatedStringSet
+import org.junit.After
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.util.*
+
+/**
+ * Maintains blocks of people through the events posted by the datastore and generates candidates from them. People are
+ * only blocked on the last digits of their social security numbers, so that which people share a block is fully
+ * determined by the test.
+ */
+class PostgresBlockingIndexTest : TestServer() {
+    companion object {
+        private const val REBUILD_DELAY_MILLIS = 50L
+    }
+
+    private val personType = UUID.randomUUID()
+    private val people = UUID.randomUUID()
+    private val otherPeople = UUID.randomUUID()
+    private val places = UUID.randomUUID()
+
+    private val eventBus = EventBus()
+    private val metricRegistry = MetricRegistry()
+    private val entitySetManager = Mockito.mock(EntitySetManager::class.java)
+
+    /**
+     * The entities [newIndex] loads when rebuilding an entity set, as the datastore loads them.
+     */
+    private val stored = mutableMapOf<UUID, Map<UUID, Map<UUID, Set<Any>>>>()
+
+    init {
+        val entityTypeIds = mapOf(people to personType, otherPeople to personType, places to UUID.randomUUID())
+        Mockito.`when`(entitySetManager.getEntityTypeIdsByEntitySetIds(Mockito.anySetOf(UUID::class.java)))
+                .thenAnswer { invocation -> entityTypeIds.filterKeys { (invocation.arguments[0] as Set<*>).contains(it) } }
+    }
+
+    private fun newIndex(
+            maxBlockSize: Int = DEFAULT_MAX_BLOCK_SIZE,
+            getLinkableEntityTypeIds: () -> Set<UUID> = { setOf(personType) }
+    ): PostgresBlockingIndex {
+        return PostgresBlockingIndex(
+                hds,
+                eventBus,
+                metricRegistry,
+                entitySetManager,
+                getLinkableEntityTypeIds,
+                { PERSON_FQN_TO_ID },
+                { entitySetId, _ -> stored.getOrDefault(entitySetId, mapOf()).toList().asSequence() },
+                EnumSet.of(BlockingKey.SSN_SUFFIX),
+                maxBlockSize,
+                REBUILD_DELAY_MILLIS
+        )
+    }
+
+    private fun waitFor(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 10_000L
+        while (!condition()) {
+            Assert.assertTrue("Timed out waiting for the blocking index.", System.currentTimeMillis() < deadline)
+            Thread.sleep(REBUILD_DELAY_MILLIS)
+        }
+    }
+
+    @After
+    fun tearDown() {
+        newIndex().use { index -> listOf(people, otherPeople, places).forEach { index.removeEntitySet(it) } }
+    }
+
+    /**
+     * Returns a person with social security numbers ending in each of [ssnSuffixes], as the datastore loads them.
+     */
+    private fun person(vararg ssnSuffixes: Int): Map<UUID, Set<Any>> {
+        return mapOf(
+                PERSON_FQN_TO_ID.getValue(PersonProperties.SSN_FQN) to ssnSuffixes.map { "123-45-$it" }.toSet<Any>()
+        )
+    }
+
+    private fun indexed(entities: Map<UUID, Map<UUID, Set<Any>>>): Map<UUID, Map<UUID, DelegatedStringSet>> {
+        return entities.mapValues { (_, entity) ->
+            entity.mapValues { (_, values) -> DelegatedStringSet.wrap(values.map { it.toString() }.toSet()) }
+        }
+    }
+
+    private fun newPeople(count: Int, vararg ssnSuffixes: Int): Map<UUID, Map<UUID, Set<Any>>> {
+        return (0 until count).associate { UUID.randomUUID() to person(*ssnSuffixes) }
+    }
+
+    private fun candidates(index: PostgresBlockingIndex, entitySetId: UUID, entityKeyId: UUID): Set<EntityDataKey> {
+        val entity = EntityDataKey(entitySetId, entityKeyId)
+        return index.getCandidates(setOf(entity)).getValue(entity)
+    }
+
+    private fun keys(entitySetId: UUID, entityKeyIds: Collection<UUID>): Set<EntityDataKey> {
+        return entityKeyIds.map { EntityDataKey(entitySetId, it) }.toSet()
+    }
+
+    @Test
+    fun testWritesAndDeletesAreIndexedIncrementally() {
+        val index = newIndex()
+        val (first, second, third, other, place) = (0 until 5).map { UUID.randomUUID() }
+
+        eventBus.post(EntitiesUpsertedEvent(people, mapOf(first to person(1111), second to person(1111))))
+        eventBus.post(EntitiesUpsertedEvent(otherPeople, mapOf(other to person(1111))))
+        eventBus.post(EntitiesUpsertedEvent(places, mapOf(place to person(1111))))
+        Assert.assertEquals(keys(people, listOf(second)) + keys(otherPeople, listOf(other)), candidates(index, people, first))
+
+        //A write replaces the blocks of the entity.
+        eventBus.post(EntitiesUpsertedEvent(people, mapOf(third to person(1111), second to person(2222))))
+        Assert.assertEquals(keys(people, listOf(third)) + keys(otherPeople, listOf(other)), candidates(index, people, first))
+
+        eventBus.post(EntitiesDeletedEvent(people, setOf(third), DeleteType.Soft))
+        Assert.assertEquals(keys(otherPeople, listOf(other)), candidates(index, people, first))
+
+        eventBus.post(EntitySetDataDeletedEvent(otherPeople, DeleteType.Hard))
+        Assert.assertTrue(candidates(index, people, first).isEmpty())
+    }
+
+    @Test
+    fun testOversizedBlocksAreSkipped() {
+        val maxBlockSize = 3
+        val index = newIndex(maxBlockSize)
+        val entity = UUID.randomUUID()
+        val common = newPeople(maxBlockSize + 2, 3333)
+        val rare = newPeople(1, 4444)
+
+        index.index(people, indexed(common + rare + mapOf(entity to person(3333, 4444))))
+
+        Assert.assertEquals(keys(people, rare.keys), candidates(index, people, entity))
+
+        val blockSizes = metricRegistry.histogram(MetricRegistry.name(PostgresBlockingIndex::class.java, "blockSize"))
+        val oversizedBlocks = metricRegistry.meter(MetricRegistry.name(PostgresBlockingIndex::class.java, "oversizedBlocks"))
+        Assert.assertEquals(1L, oversizedBlocks.count)
+        Assert.assertEquals(listOf(2L), blockSizes.snapshot.values.toList())
+
+        //The distribution still reports the full size of the oversized block.
+        Assert.assertEquals(sortedMapOf(2L to 1L, maxBlockSize + 3L to 1L), index.getBlockSizeDistribution(people))
+    }
+
+    @Test
+    fun testRebuildReplacesBlocksWithoutExposingAnEmptyIndex() {
+        val index = newIndex()
+        val entities = newPeople(5, 5555)
+        val entity = entities.keys.first()
+        val before = keys(people, entities.keys - entity)
+        index.index(people, indexed(entities))
+
+        val rebuilt = entities.keys.mapIndexed { i, entityKeyId -> entityKeyId to person(if (i % 2 == 0) 6666 else 7777) }
+        val written = index.rebuild(
+                people,
+                indexed(rebuilt.toMap()).asSequence().map { (entityKeyId, values) ->
+                    //Until the rebuild commits, candidates are generated from the previous blocks.
+                    Assert.assertEquals(before, candidates(index, people, entity))
+                    entityKeyId to values
+                },
+                chunkSize = 2
+        )
+
+        Assert.assertEquals(entities.size, written)
+        Assert.assertEquals(
+                keys(people, rebuilt.filterIndexed { i, _ -> i % 2 == 0 }.map { it.first } - entity),
+                candidates(index, people, entity)
+        )
+    }
+
+    @Test
+    fun testLargeWritesAreIndexedByRebuildingTheirEntitySet() {
+        val index = newIndex()
+        val entities = newPeople(3, 8888)
+        val entity = entities.keys.first()
+
+        //Writes too large to be posted directly only mark the entity set as changed.
+        stored[people] = entities
+        eventBus.post(MaterializedEntitySetDataChangeEvent(people))
+        eventBus.post(MaterializedEntitySetDataChangeEvent(places))
+        waitFor { candidates(index, people, entity) == keys(people, entities.keys - entity) }
+
+        //The same goes for large deletes.
+        stored[people] = entities - entities.keys.last()
+        eventBus.post(MaterializedEntitySetDataChangeEvent(people))
+        waitFor { candidates(index, people, entity) == keys(people, entities.keys - entity - entities.keys.last()) }
+        index.close()
+    }
+
+    @Test
+    fun testPersonTypeCreatedAfterTheIndexIsPickedUp() {
+        var linkableEntityTypeIds = setOf<UUID>()
+        val index = newIndex(getLinkableEntityTypeIds = { linkableEntityTypeIds })
+        val (first, second) = (0 until 2).map { UUID.randomUUID() }
+
+        eventBus.post(EntitiesUpsertedEvent(people, mapOf(first to person(9999), second to person(9999))))
+        Assert.assertTrue(candidates(index, people, first).isEmpty())
+
+        linkableEntityTypeIds = setOf(personType)
+        eventBus.post(EntitiesUpsertedEvent(people, mapOf(first to person(9999), second to person(9999))))
+        Assert.assertEquals(keys(people, listOf(second)), candidates(index, people, first))
+        index.close()
+    }
+}
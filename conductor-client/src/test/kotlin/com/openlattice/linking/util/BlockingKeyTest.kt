@@ -0,0 +1,44 @@
+package com.openlattice.linking.util
+
+import com.openlattice.rhizome.hazelcast.DelegatedStringSet
+import org.junit.Assert
+import org.junit.Test
+
+class BlockingKeyTest {
+
+    private fun person(firstName: String, lastName: String, dob: String, ssn: String): PersonFeatures {
+        return PersonFeatures.of(
+                mapOf(
+                        PERSON_FQN_TO_ID.getValue(PersonProperties.FIRST_NAME_FQN) to DelegatedStringSet.wrap(setOf(firstName)),
+                        PERSON_FQN_TO_ID.getValue(PersonProperties.LAST_NAME_FQN) to DelegatedStringSet.wrap(setOf(lastName)),
+                        PERSON_FQN_TO_ID.getValue(PersonProperties.DOB_FQN) to DelegatedStringSet.wrap(setOf(dob)),
+                        PERSON_FQN_TO_ID.getValue(PersonProperties.SSN_FQN) to DelegatedStringSet.wrap(setOf(ssn))
+                ),
+                PERSON_FQN_TO_ID
+        )
+    }
+
+    @Test
+    fun testSpellingVariantsShareBlocks() {
+        val smith = person("John", "Smith", "1980-01-02", "123-45-6789")
+        val smyth = person("Jon", "SMYTH", "1980-12-31", "987654321")
+
+        Assert.assertEquals(
+                BlockingKey.SURNAME_METAPHONE_BIRTH_YEAR.keys(smith),
+                BlockingKey.SURNAME_METAPHONE_BIRTH_YEAR.keys(smyth)
+        )
+        Assert.assertNotEquals(
+                BlockingKey.FIRST_NAME_METAPHONE_BIRTH_DATE.keys(smith),
+                BlockingKey.FIRST_NAME_METAPHONE_BIRTH_DATE.keys(smyth)
+        )
+        Assert.assertEquals(setOf("SSN_SUFFIX:6789"), BlockingKey.SSN_SUFFIX.keys(smith))
+        Assert.assertEquals(setOf("SSN_SUFFIX:4321"), BlockingKey.SSN_SUFFIX.keys(smyth))
+    }
+
+    @Test
+    fun testMissingValuesProduceNoKeys() {
+        val unknown = person("John", "Smith", "not a date", "12")
+
+        Assert.assertTrue(BlockingKey.values().all { it.keys(unknown).isEmpty() })
+    }
+}
@@ -0,0 +1,49 @@
+package com.openlattice.linking.util
+
+import com.google.common.base.Stopwatch
+import org.junit.Ignore
+import org.junit.Test
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+private const val PEOPLE = 200
+private const val CANDIDATES_PER_PERSON = 200
+
+/**
+ * Compares pairs per second of the per pair metric extractors against precomputed features, with every person
+ * compared against the same set of candidates as blocking would.
+ *
+ * Ignored by default, since it only reports throughput.
+ */
+class PersonMetricBenchmarkTest {
+    companion object {
+        private val logger = LoggerFactory.getLogger(PersonMetricBenchmarkTest::class.java)
+    }
+
+    @Test
+    @Ignore
+    fun benchmarkPairsPerSecond() {
+        val random = Random(42)
+        val people = (0 until PEOPLE).map { randomPerson(random) }
+        val candidates = (0 until CANDIDATES_PER_PERSON).associateWith { randomPerson(random) }
+        val pairs = PEOPLE.toLong() * CANDIDATES_PER_PERSON
+
+        val extractors = Stopwatch.createStarted()
+        people.forEach { person ->
+            candidates.values.forEach { candidate -> PersonMetric.pDistance(person, candidate, PERSON_FQN_TO_ID) }
+        }
+        report("metric extractors", pairs, extractors.elapsed(TimeUnit.MILLISECONDS))
+
+        val features = Stopwatch.createStarted()
+        val candidateFeatures = PersonFeatures.ofAll(candidates, PERSON_FQN_TO_ID)
+        people.forEach { person ->
+            PersonMetric.distances(PersonFeatures.of(person, PERSON_FQN_TO_ID), candidateFeatures)
+        }
+        report("precomputed features", pairs, features.elapsed(TimeUnit.MILLISECONDS))
+    }
+
+    private fun report(name: String, pairs: Long, elapsed: Long) {
+        logger.info("{} compared {} pairs in {} ms ({} pairs/s)", name, pairs, elapsed, pairs * 1000L / Math.max(1L, elapsed))
+    }
+}
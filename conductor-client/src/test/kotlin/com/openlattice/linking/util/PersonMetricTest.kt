@@ -0,0 +1,64 @@
+package com.openlattice.linking.util
+
+import com.openlattice.rhizome.hazelcast.DelegatedStringSet
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.junit.Assert
+import org.junit.Test
+import java.util.*
+
+private val FIRST_NAMES = listOf("John", "JOHN", "Jon", "Maria", "mary", "Ann-Marie", "  ")
+private val LAST_NAMES = listOf("Smith", "Smyth", "O'Brien", "Garcia", "GARCÍA", "")
+private val DOBS = listOf("1980-01-02", "1980-02-01", "2001-12-31", "not a date")
+
+internal val PERSON_FQN_TO_ID: Map<FullQualifiedName, UUID> = PersonProperties.FQNS.associateWith { UUID.randomUUID() }
+
+internal fun randomPerson(random: Random): Map<UUID, DelegatedStringSet> {
+    fun pick(values: List<String>, max: Int) = DelegatedStringSet.wrap(
+            (0 until random.nextInt(max + 1)).map { values[random.nextInt(values.size)] }.toMutableSet()
+    )
+
+    return mapOf(
+            PERSON_FQN_TO_ID.getValue(PersonProperties.FIRST_NAME_FQN) to pick(FIRST_NAMES, 2),
+            PERSON_FQN_TO_ID.getValue(PersonProperties.LAST_NAME_FQN) to pick(LAST_NAMES, 2),
+            PERSON_FQN_TO_ID.getValue(PersonProperties.SEX_FQN) to pick(listOf("M", "F", "m"), 1),
+            PERSON_FQN_TO_ID.getValue(PersonProperties.DOB_FQN) to pick(DOBS, 2),
+            PERSON_FQN_TO_ID.getValue(PersonProperties.RACE_FQN) to pick(listOf("White", "Black", "Asian"), 1),
+            PERSON_FQN_TO_ID.getValue(PersonProperties.SSN_FQN) to pick(listOf("123-45-6789", "123456789"), 1)
+    )
+}
+
+class PersonMetricTest {
+
+    @Test
+    fun testPrecomputedFeaturesMatchMetricExtractors() {
+        val random = Random(42)
+
+        repeat(500) {
+            val lhs = randomPerson(random)
+            val rhs = randomPerson(random)
+
+            Assert.assertArrayEquals(
+                    PersonMetric.pDistance(lhs, rhs, PERSON_FQN_TO_ID),
+                    PersonMetric.distance(
+                            PersonFeatures.of(lhs, PERSON_FQN_TO_ID),
+                            PersonFeatures.of(rhs, PERSON_FQN_TO_ID)
+                    ),
+                    0.0
+            )
+        }
+    }
+
+    @Test
+    fun testDistancesComparesEveryCandidate() {
+        val random = Random(7)
+        val lhs = PersonFeatures.of(randomPerson(random), PERSON_FQN_TO_ID)
+        val candidates = PersonFeatures.ofAll((0 until 20).associateWith { randomPerson(random) }, PERSON_FQN_TO_ID)
+
+        val distances = PersonMetric.distances(lhs, candidates)
+
+        Assert.assertEquals(candidates.keys, distances.keys)
+        candidates.forEach { (key, candidate) ->
+            Assert.assertArrayEquals(PersonMetric.distance(lhs, candidate), distances.getValue(key), 0.0)
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.openlattice.postgres
+
+import com.dataloom.mappers.ObjectMappers
+import com.google.common.util.concurrent.Futures
+import com.google.common.util.concurrent.ListenableFuture
+import com.google.common.util.concurrent.SettableFuture
+import com.openlattice.data.storage.ByteBlobDataManager
+import com.openlattice.data.storage.PROPERTIES
+import com.openlattice.edm.type.PropertyType
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.sql.ResultSet
+import java.util.*
+
+/**
+ * Reads rows with binary properties while the object store has not answered yet, to check that rows are read without
+ * waiting for their objects and that the objects are available once the lookups complete.
+ */
+class BinaryValueResolutionTest {
+    private val picture = PropertyType(
+            UUID.randomUUID(),
+            FullQualifiedName("test", "picture"),
+            "picture",
+            Optional.empty<String>(),
+            setOf(),
+            EdmPrimitiveTypeKind.Binary
+    )
+    private val name = PropertyType(
+            UUID.randomUUID(),
+            FullQualifiedName("test", "name"),
+            "name",
+            Optional.empty<String>(),
+            setOf(),
+            EdmPrimitiveTypeKind.String
+    )
+    private val propertyTypes = mapOf(picture.id to picture, name.id to name)
+
+    private val lookups = mutableMapOf<Any, SettableFuture<List<Any>>>()
+    private val byteBlobDataManager = Mockito.mock(ByteBlobDataManager::class.java) { invocation ->
+        when (invocation.method.name) {
+            "getObjectsAsync" -> {
+                val future = SettableFuture.create<List<Any>>()
+                (invocation.arguments[0] as Collection<*>).forEach { lookups[it!!] = future }
+                future
+            }
+            else -> Mockito.RETURNS_DEFAULTS.answer(invocation)
+        }
+    }
+
+    private fun row(key: String): ResultSet {
+        val rs = Mockito.mock(ResultSet::class.java)
+        Mockito.`when`(rs.getString(PROPERTIES)).thenReturn(
+                ObjectMappers.newJsonMapper().writeValueAsString(
+                        mapOf(picture.id to listOf(key), name.id to listOf("name of $key"))
+                )
+        )
+        return rs
+    }
+
+    @Test
+    fun testRowsAreReadBeforeTheirObjectsAreFetched() {
+        val entities = listOf("a", "b", "c").map { readJsonDataColumns(row(it), propertyTypes, byteBlobDataManager) }
+
+        //Every lookup was started while reading, and none of them has completed yet.
+        Assert.assertEquals(setOf<Any>("a", "b", "c"), lookups.keys)
+        Assert.assertTrue(lookups.values.none { it.isDone })
+        Assert.assertEquals(setOf<Any>("name of a"), entities[0].getValue(name.id))
+
+        lookups.forEach { (key, future) -> future.set(listOf("object $key")) }
+
+        Assert.assertEquals(
+                listOf(setOf<Any>("object a"), setOf<Any>("object b"), setOf<Any>("object c")),
+                entities.map { it.getValue(picture.id) }
+        )
+    }
+
+    @Test(expected = IllegalStateException::class)
+    fun testFailedLookupsAreRethrownWhenRead() {
+        val failed: ListenableFuture<List<Any>> = Futures.immediateFailedFuture(IllegalStateException("unavailable"))
+        PendingObjects(failed).size
+    }
+}
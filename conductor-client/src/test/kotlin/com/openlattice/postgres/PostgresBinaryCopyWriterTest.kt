@@ -0,0 +1,78 @@
+package com.openlattice.postgres
+
+import com.openlattice.data.storage.copyIntoDataStagingTableSql
+import com.openlattice.data.storage.createDataStagingTableSql
+import com.openlattice.data.storage.mergeDataStagingTableSql
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind
+import org.junit.Assert
+import org.junit.Test
+import org.slf4j.LoggerFactory
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.time.LocalDate
+import java.time.OffsetDateTime
+import java.time.ZoneOffset
+import java.util.*
+
+class PostgresBinaryCopyWriterTest {
+    private val logger = LoggerFactory.getLogger(PostgresBinaryCopyWriterTest::class.java)
+
+    @Test
+    fun testRowEncoding() {
+        val id = UUID.randomUUID()
+        val bytes = ByteArrayOutputStream()
+
+        PostgresBinaryCopyWriter(bytes).use { writer ->
+            writer.startRow(5)
+            writer.writeUuid(id)
+            writer.writeDate(LocalDate.of(2000, 1, 2))
+            writer.writeTimestampTz(OffsetDateTime.of(2000, 1, 1, 0, 0, 1, 0, ZoneOffset.UTC))
+            writer.writeLongArray(longArrayOf(7L))
+            writer.writeNull()
+            Assert.assertEquals(1L, writer.rowCount)
+        }
+
+        val input = DataInputStream(bytes.toByteArray().inputStream())
+        val signature = ByteArray(11)
+        input.readFully(signature)
+        Assert.assertEquals("PGCOPY\n", String(signature, 0, 7))
+        Assert.assertEquals(0, input.readInt())
+        Assert.assertEquals(0, input.readInt())
+
+        Assert.assertEquals(5, input.readShort().toInt())
+
+        Assert.assertEquals(16, input.readInt())
+        Assert.assertEquals(id, UUID(input.readLong(), input.readLong()))
+
+        Assert.assertEquals(4, input.readInt())
+        Assert.assertEquals(1, input.readInt())
+
+        Assert.assertEquals(8, input.readInt())
+        Assert.assertEquals(1_000_000L, input.readLong())
+
+        Assert.assertEquals(32, input.readInt())
+        Assert.assertEquals(1, input.readInt())
+        Assert.assertEquals(0, input.readInt())
+        Assert.assertEquals(20, input.readInt())
+        Assert.assertEquals(1, input.readInt())
+        Assert.assertEquals(1, input.readInt())
+        Assert.assertEquals(8, input.readInt())
+        Assert.assertEquals(7L, input.readLong())
+
+        Assert.assertEquals(-1, input.readInt())
+
+        Assert.assertEquals(-1, input.readShort().toInt())
+        Assert.assertEquals(-1, input.read())
+    }
+
+    @Test
+    fun testStagingSql() {
+        val valueColumns = listOf(
+                PostgresDataTables.getColumnDefinition(IndexType.BTREE, EdmPrimitiveTypeKind.String),
+                PostgresDataTables.getColumnDefinition(IndexType.NONE, EdmPrimitiveTypeKind.Date)
+        )
+        logger.info(createDataStagingTableSql(valueColumns))
+        logger.info(copyIntoDataStagingTableSql(valueColumns))
+        logger.info(mergeDataStagingTableSql(valueColumns))
+    }
+}
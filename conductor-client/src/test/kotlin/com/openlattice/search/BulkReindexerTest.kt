@@ -0,0 +1,127 @@
+package com.openlattice.search
+
+import com.codahale.metrics.MetricRegistry
+import com.openlattice.IdConstants
+import com.openlattice.conductor.rpc.ConductorElasticsearchApi
+import com.openlattice.edm.type.PropertyType
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.time.OffsetDateTime
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+class BulkReindexerTest {
+
+    private class InMemoryReindexSource(
+            val entitiesByPartition: Map<Int, Map<UUID, OffsetDateTime>>,
+            private val readLastWrite: (OffsetDateTime) -> Set<Any> = { setOf(it) }
+    ) : BulkReindexSource {
+        val indexed = ConcurrentHashMap<UUID, OffsetDateTime>()
+
+        override fun getPartitions(entitySetId: UUID): Set<Int> = entitiesByPartition.keys
+
+        override fun getEntityCount(entitySetId: UUID): Long = entitiesByPartition.values.sumBy { it.size }.toLong()
+
+        override fun scan(
+                entitySetId: UUID,
+                partition: Int,
+                propertyTypes: Map<UUID, PropertyType>
+        ): Iterable<Pair<UUID, Map<UUID, Set<Any>>>> {
+            return entitiesByPartition.getValue(partition).map { (id, lastWrite) ->
+                id to mapOf(IdConstants.LAST_WRITE_ID.id to readLastWrite(lastWrite))
+            }
+        }
+
+        override fun markAsIndexed(entitySetId: UUID, partition: Int, lastWrites: Map<UUID, OffsetDateTime>) {
+            Assert.assertTrue(entitiesByPartition.getValue(partition).keys.containsAll(lastWrites.keys))
+            indexed.putAll(lastWrites)
+        }
+    }
+
+    private fun newSource(
+            readLastWrite: (OffsetDateTime) -> Set<Any> = { setOf(it) }
+    ): InMemoryReindexSource {
+        val now = OffsetDateTime.now()
+        return InMemoryReindexSource((0 until 8).associateWith { partition ->
+            (0 until 100 * partition).associate { UUID.randomUUID() to now.minusSeconds(it.toLong()) }
+        }, readLastWrite)
+    }
+
+    private fun newElasticsearchApi(): ConductorElasticsearchApi {
+        val elasticsearchApi = Mockito.mock(ConductorElasticsearchApi::class.java)
+        Mockito.doReturn(true)
+                .`when`(elasticsearchApi).createBulkEntityData(Mockito.any(), Mockito.any(), Mockito.anyMap())
+        return elasticsearchApi
+    }
+
+    @Test
+    fun testReindexSendsChunksAndMarksThemIndexed() {
+        val source = newSource()
+        val chunkSizes = Collections.synchronizedList(mutableListOf<Int>())
+        val elasticsearchApi = Mockito.mock(ConductorElasticsearchApi::class.java)
+        Mockito.doAnswer { invocation ->
+            chunkSizes.add((invocation.arguments[2] as Map<*, *>).size)
+            true
+        }.`when`(elasticsearchApi).createBulkEntityData(Mockito.any(), Mockito.any(), Mockito.anyMap())
+
+        val metricRegistry = MetricRegistry()
+        BulkReindexer(elasticsearchApi, source, metricRegistry, 3, 64).use { reindexer ->
+            val indexed = reindexer.reindex(UUID.randomUUID(), UUID.randomUUID(), mapOf())
+
+            val expected = source.entitiesByPartition.values.fold(mapOf<UUID, OffsetDateTime>()) { all, it -> all + it }
+            Assert.assertEquals(expected.size.toLong(), indexed)
+            Assert.assertEquals(expected, source.indexed)
+            Assert.assertTrue(chunkSizes.all { it <= 64 })
+            Assert.assertEquals(expected.size, chunkSizes.sum())
+            Assert.assertEquals(
+                    0L,
+                    metricRegistry.gauges[MetricRegistry.name(BulkReindexer::class.java, "remaining")]!!.value
+            )
+        }
+    }
+
+    @Test
+    fun testFailedChunksAreNotMarkedIndexed() {
+        val source = newSource()
+        val elasticsearchApi = Mockito.mock(ConductorElasticsearchApi::class.java)
+        Mockito.doReturn(false)
+                .`when`(elasticsearchApi).createBulkEntityData(Mockito.any(), Mockito.any(), Mockito.anyMap())
+
+        BulkReindexer(elasticsearchApi, source, MetricRegistry(), 2, 64).use { reindexer ->
+            try {
+                reindexer.reindex(UUID.randomUUID(), UUID.randomUUID(), mapOf())
+                Assert.fail("Reindexing should have failed.")
+            } catch (ex: IllegalStateException) {
+                Assert.assertTrue(source.indexed.isEmpty())
+            }
+        }
+    }
+
+    @Test
+    fun testLastWritesReadAsStringsAreMarkedIndexed() {
+        val source = newSource { setOf(it.toString()) }
+
+        BulkReindexer(newElasticsearchApi(), source, MetricRegistry(), 2, 64).use { reindexer ->
+            reindexer.reindex(UUID.randomUUID(), UUID.randomUUID(), mapOf())
+
+            val expected = source.entitiesByPartition.values.fold(mapOf<UUID, OffsetDateTime>()) { all, it -> all + it }
+            Assert.assertEquals(expected.keys, source.indexed.keys)
+            expected.forEach { (id, lastWrite) -> Assert.assertTrue(lastWrite.isEqual(source.indexed.getValue(id))) }
+        }
+    }
+
+    @Test
+    fun testEntitiesWithoutLastWriteAreIndexedButNotMarked() {
+        val skipped = { lastWrite: OffsetDateTime -> lastWrite.second % 2 == 0 }
+        val source = newSource { if (skipped(it)) setOf() else setOf(it) }
+
+        BulkReindexer(newElasticsearchApi(), source, MetricRegistry(), 2, 64).use { reindexer ->
+            val indexed = reindexer.reindex(UUID.randomUUID(), UUID.randomUUID(), mapOf())
+
+            val expected = source.entitiesByPartition.values.fold(mapOf<UUID, OffsetDateTime>()) { all, it -> all + it }
+            Assert.assertEquals(expected.size.toLong(), indexed)
+            Assert.assertEquals(expected.filterValues { !skipped(it) }, source.indexed)
+        }
+    }
+}
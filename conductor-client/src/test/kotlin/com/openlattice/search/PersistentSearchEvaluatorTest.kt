@@ -0,0 +1,281 @@
+package com.openlattice.search
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.eventbus.EventBus
+import com.hazelcast.map.IMap
+import com.openlattice.authorization.AccessCheck
+import com.openlattice.authorization.AclKey
+import com.openlattice.authorization.Authorization
+import com.openlattice.authorization.AuthorizationManager
+import com.openlattice.authorization.EdmAuthorizationHelper
+import com.openlattice.authorization.Permission
+import com.openlattice.authorization.Principal
+import com.openlattice.authorization.securable.SecurableObjectType
+import com.openlattice.conductor.rpc.ConductorElasticsearchApi
+import com.openlattice.data.EntityDataKey
+import com.openlattice.data.storage.EntityDatastore
+import com.openlattice.data.storage.IndexingMetadataManager
+import com.openlattice.datastore.services.EdmManager
+import com.openlattice.datastore.services.EntitySetManager
+import com.openlattice.edm.EdmConstants
+import com.openlattice.edm.EntitySet
+import com.openlattice.edm.type.EntityType
+import com.openlattice.edm.type.PropertyType
+import com.openlattice.graph.core.GraphService
+import com.openlattice.mail.MailServiceClient
+import com.openlattice.mapstores.TestDataFactory
+import com.openlattice.organizations.roles.SecurePrincipalsManager
+import com.openlattice.postgres.IndexType
+import com.openlattice.search.requests.EntityDataKeySearchResult
+import com.openlattice.search.requests.PersistentSearch
+import com.openlattice.search.requests.PersistentSearchNotificationType
+import com.openlattice.search.requests.SearchConstraints
+import com.zaxxer.hikari.HikariDataSource
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.time.OffsetDateTime
+import java.util.*
+import java.util.stream.Stream
+
+/**
+ * Evaluates persistent searches of two users over the same entity sets, with an elasticsearch that returns the hits
+ * chosen by each test for each search and a datastore that returns every entity it is asked for.
+ */
+class PersistentSearchEvaluatorTest {
+    private val propertyType = TestDataFactory.propertyType(IndexType.NONE, false)
+    private val hiddenPropertyType = TestDataFactory.propertyType(IndexType.NONE, false)
+    private val entityType = TestDataFactory.entityType(propertyType, hiddenPropertyType)
+
+    private val cars = TestDataFactory.entitySetWithType(entityType.id)
+    private val plates = TestDataFactory.entitySetWithType(entityType.id)
+    private val entitySets = listOf(cars, plates).associateBy { it.id }
+
+    private val alice = TestDataFactory.securableUserPrincipal()
+    private val bob = TestDataFactory.securableUserPrincipal()
+    private val users = listOf(alice, bob).associateBy { it.aclKey }
+
+    /**
+     * Entity sets of which [bob] may only read [propertyType].
+     */
+    private val restrictedForBob = mutableSetOf<UUID>()
+
+    /**
+     * The entity key ids hit by each persistent search, by persistent search id.
+     */
+    private val hitsBySearch = mutableMapOf<UUID, List<EntityDataKey>>()
+    private val persistentSearches = mutableMapOf<UUID, PersistentSearch>()
+
+    private val authorizationManager = Mockito.mock(AuthorizationManager::class.java)
+    private val authorizationHelper = Mockito.mock(EdmAuthorizationHelper::class.java)
+    private val graphService = Mockito.mock(GraphService::class.java)
+    private val dependencies: PersistentSearchMessengerTaskDependencies
+
+    init {
+        Mockito.`when`(authorizationManager.accessChecksForPrincipals(
+                Mockito.anySetOf(AccessCheck::class.java),
+                Mockito.anySetOf(Principal::class.java)
+        )).thenAnswer { invocation ->
+            @Suppress("UNCHECKED_CAST")
+            (invocation.arguments[0] as Set<AccessCheck>).stream().map { accessCheck ->
+                val permissions = EnumMap<Permission, Boolean>(Permission::class.java)
+                permissions[Permission.READ] = true
+                Authorization(accessCheck.aclKey, permissions)
+            }
+        }
+        Mockito.`when`(authorizationManager.getAuthorizedObjectsOfType(
+                Mockito.anySetOf(Principal::class.java),
+                Mockito.any(SecurableObjectType::class.java),
+                Mockito.any()
+        )).thenAnswer { Stream.empty<AclKey>() }
+
+        Mockito.`when`(authorizationHelper.getAuthorizedEntitySetsForPrincipals(
+                Mockito.anySetOf(UUID::class.java),
+                Mockito.any(),
+                Mockito.anySetOf(Principal::class.java)
+        )).thenAnswer { invocation -> invocation.arguments[0] }
+        Mockito.`when`(authorizationHelper.getAuthorizedPropertiesOnEntitySets(
+                Mockito.anySetOf(UUID::class.java),
+                Mockito.any(),
+                Mockito.anySetOf(Principal::class.java)
+        )).thenAnswer { invocation ->
+            val principals = invocation.arguments[2] as Set<*>
+            (invocation.arguments[0] as Set<*>).map { it as UUID }.associateWith { entitySetId ->
+                if (principals.contains(bob.principal) && restrictedForBob.contains(entitySetId)) {
+                    mapOf(propertyType.id to propertyType)
+                } else {
+                    mapOf(propertyType.id to propertyType, hiddenPropertyType.id to hiddenPropertyType)
+                }
+            }
+        }
+
+        val principalsManager = Mockito.mock(SecurePrincipalsManager::class.java)
+        Mockito.`when`(principalsManager.getSecurablePrincipal(Mockito.any(AclKey::class.java))).thenAnswer { invocation ->
+            users.getValue(invocation.arguments[0] as AclKey)
+        }
+
+        val elasticsearchApi = Mockito.mock(ConductorElasticsearchApi::class.java)
+        Mockito.`when`(elasticsearchApi.executeSearches(
+                Mockito.anyListOf(SearchConstraints::class.java),
+                Mockito.anyMap(),
+                Mockito.anyMap(),
+                Mockito.anyMap()
+        )).thenAnswer { invocation ->
+            @Suppress("UNCHECKED_CAST")
+            (invocation.arguments[0] as List<SearchConstraints>).map { constraints ->
+                val id = persistentSearches.values.first { it.searchConstraints === constraints }.id
+                val hits = hitsBySearch.getOrDefault(id, listOf())
+                EntityDataKeySearchResult(hits.size.toLong(), hits)
+            }
+        }
+
+        val dataManager = Mockito.mock(EntityDatastore::class.java) { invocation ->
+            when (invocation.method.name) {
+                "getEntitiesWithMetadata" -> (invocation.arguments[1] as Set<*>).stream().map { entityKeyId ->
+                    mutableMapOf<FullQualifiedName, MutableSet<Any>>(
+                            EdmConstants.ID_FQN to mutableSetOf<Any>(entityKeyId.toString()),
+                            EdmConstants.LAST_WRITE_FQN to mutableSetOf<Any>(OffsetDateTime.now())
+                    )
+                }
+                else -> Mockito.RETURNS_DEFAULTS.answer(invocation)
+            }
+        }
+
+        val entitySetService = Mockito.mock(EntitySetManager::class.java)
+        Mockito.`when`(entitySetService.getEntitySetsAsMap(Mockito.anySetOf(UUID::class.java))).thenAnswer { invocation ->
+            entitySets.filterKeys { (invocation.arguments[0] as Set<*>).contains(it) }
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        val entitySetsMap = Mockito.mock(IMap::class.java) as IMap<UUID, EntitySet>
+        Mockito.`when`(entitySetsMap.getAll(Mockito.anySetOf(UUID::class.java))).thenAnswer { invocation ->
+            entitySets.filterKeys { (invocation.arguments[0] as Set<*>).contains(it) }
+        }
+
+        val searchService = SearchService(
+                EventBus(),
+                MetricRegistry(),
+                authorizationManager,
+                elasticsearchApi,
+                Mockito.mock(EdmManager::class.java),
+                entitySetService,
+                graphService,
+                dataManager,
+                Mockito.mock(IndexingMetadataManager::class.java),
+                Mockito.mock(BulkReindexSource::class.java)
+        )
+
+        @Suppress("UNCHECKED_CAST")
+        dependencies = PersistentSearchMessengerTaskDependencies(
+                Mockito.mock(HikariDataSource::class.java),
+                principalsManager,
+                authorizationManager,
+                authorizationHelper,
+                searchService,
+                Mockito.mock(MailServiceClient::class.java),
+                "",
+                entitySetsMap,
+                Mockito.mock(IMap::class.java) as IMap<UUID, EntityType>,
+                Mockito.mock(IMap::class.java) as IMap<UUID, PropertyType>
+        )
+    }
+
+    private fun persistentSearch(entitySet: EntitySet, vararg hits: UUID): PersistentSearch {
+        val constraints = SearchConstraints.writeDateTimeFilterConstraints(
+                arrayOf(entitySet.id),
+                0,
+                100,
+                Optional.of(OffsetDateTime.now().minusDays(1)),
+                Optional.empty()
+        )
+        val persistentSearch = PersistentSearch(
+                UUID.randomUUID(),
+                OffsetDateTime.now().minusDays(1),
+                OffsetDateTime.now().plusDays(1),
+                PersistentSearchNotificationType.ALPR_ALERT,
+                SearchConstraints(
+                        constraints.entitySetIds,
+                        constraints.start,
+                        constraints.maxHits,
+                        constraints.constraintGroups.toMutableList(),
+                        constraints.sortDefinition
+                ),
+                mapOf(),
+                setOf()
+        )
+        persistentSearches[persistentSearch.id] = persistentSearch
+        hitsBySearch[persistentSearch.id] = hits.map { EntityDataKey(entitySet.id, it) }
+        return persistentSearch
+    }
+
+    private fun hitIds(hits: List<Map<FullQualifiedName, Set<Any>>>): Set<UUID> {
+        return hits.map { UUID.fromString(it.getValue(EdmConstants.ID_FQN).first().toString()) }.toSet()
+    }
+
+    @Test
+    fun testSearchesAreGroupedByEntitySetsAndAuthorizedPropertyTypes() {
+        restrictedForBob.add(plates.id)
+        val aliceCars = setOf(persistentSearch(cars), persistentSearch(cars))
+        val alicePlates = persistentSearch(plates)
+        val bobCars = persistentSearch(cars)
+        val bobPlates = persistentSearch(plates)
+
+        val groups = PersistentSearchEvaluator(dependencies).groupEvaluations(mapOf(
+                alice.aclKey to aliceCars + alicePlates,
+                bob.aclKey to setOf(bobCars, bobPlates)
+        ))
+
+        //Bob may read everything alice may read on cars, but not on plates.
+        Assert.assertEquals(
+                setOf(aliceCars.map { it.id }.toSet() + bobCars.id, setOf(alicePlates.id), setOf(bobPlates.id)),
+                groups.map { evaluations -> evaluations.map { it.persistentSearch.id }.toSet() }.toSet()
+        )
+    }
+
+    @Test
+    fun testAuthorizationsAreResolvedOncePerPrincipalSet() {
+        val aliceSearches = (0 until 5).map { persistentSearch(cars, UUID.randomUUID()) }.toSet()
+        val bobSearches = (0 until 5).map { persistentSearch(cars, UUID.randomUUID()) }.toSet()
+
+        val evaluator = PersistentSearchEvaluator(dependencies)
+        val groups = evaluator.groupEvaluations(mapOf(alice.aclKey to aliceSearches, bob.aclKey to bobSearches))
+        Assert.assertEquals(1, groups.size)
+
+        val neighbors = evaluator.loadNeighbors(evaluator.search(groups.first()))
+        Assert.assertEquals(setOf(alice, bob).map { setOf(it.principal) }.toSet(), neighbors.keys)
+
+        Mockito.verify(authorizationHelper, Mockito.times(2)).getAuthorizedEntitySetsForPrincipals(
+                Mockito.anySetOf(UUID::class.java),
+                Mockito.any(),
+                Mockito.anySetOf(Principal::class.java)
+        )
+        Mockito.verify(authorizationManager, Mockito.times(2)).getAuthorizedObjectsOfType(
+                Mockito.anySetOf(Principal::class.java),
+                Mockito.any(SecurableObjectType::class.java),
+                Mockito.any()
+        )
+        //Neighbors are searched once per user, for the hits of all of their searches.
+        Mockito.verify(graphService, Mockito.times(2)).getNeighborEntitySets(Mockito.anySetOf(UUID::class.java))
+    }
+
+    @Test
+    fun testResultsAreRoutedToTheirOwnSearch() {
+        val first = UUID.randomUUID()
+        val second = UUID.randomUUID()
+        val shared = UUID.randomUUID()
+        val withHits = persistentSearch(cars, first, shared)
+        val withoutHits = persistentSearch(cars)
+        val otherWithHits = persistentSearch(cars, second, shared)
+
+        val evaluator = PersistentSearchEvaluator(dependencies)
+        val groups = evaluator.groupEvaluations(mapOf(alice.aclKey to setOf(withHits, withoutHits, otherWithHits)))
+        val results = evaluator.search(groups.single())
+                .associate { (evaluation, result) -> evaluation.persistentSearch.id to result }
+
+        Assert.assertEquals(setOf(withHits.id, otherWithHits.id), results.keys)
+        Assert.assertEquals(setOf(first, shared), hitIds(results.getValue(withHits.id).hits))
+        Assert.assertEquals(setOf(second, shared), hitIds(results.getValue(otherWithHits.id).hits))
+        Assert.assertEquals(2L, results.getValue(withHits.id).numHits)
+    }
+}
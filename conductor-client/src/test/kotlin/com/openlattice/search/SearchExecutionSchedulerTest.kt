@@ -0,0 +1,65 @@
+package com.openlattice.search
+
+import com.codahale.metrics.MetricRegistry
+import org.junit.Assert
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicInteger
+
+class SearchExecutionSchedulerTest {
+
+    @Test
+    fun testRequestParallelismIsBounded() {
+        val running = AtomicInteger()
+        val maxRunning = AtomicInteger()
+
+        SearchExecutionScheduler(8, 2, MetricRegistry()).use { scheduler ->
+            val loaded = scheduler.execute((0 until 10).toList(), Int.MAX_VALUE, count = { _: Int -> 1 }) { item ->
+                maxRunning.accumulateAndGet(running.incrementAndGet()) { a, b -> Math.max(a, b) }
+                Thread.sleep(20)
+                running.decrementAndGet()
+                item
+            }
+
+            Assert.assertTrue(loaded.complete)
+            Assert.assertEquals((0 until 10).toSet(), loaded.results.toSet())
+            Assert.assertTrue(maxRunning.get() <= 2)
+        }
+    }
+
+    @Test
+    fun testStopsOnceMaxResultsAreLoaded() {
+        val started = AtomicInteger()
+
+        SearchExecutionScheduler(1, 1, MetricRegistry()).use { scheduler ->
+            val loaded = scheduler.execute((0 until 10).toList(), 3, count = { _: Int -> 1 }) { item ->
+                started.incrementAndGet()
+                item
+            }
+
+            Assert.assertFalse(loaded.complete)
+            Assert.assertEquals(3, loaded.results.size)
+            Assert.assertEquals(3, started.get())
+        }
+    }
+
+    @Test
+    fun testReturnsPartialResultsAtDeadline() {
+        val metricRegistry = MetricRegistry()
+
+        SearchExecutionScheduler(parallelism = 2, requestParallelism = 2, metricRegistry = metricRegistry)
+                .use { scheduler ->
+                    val loaded = scheduler.execute(listOf(0L, 10_000L), Int.MAX_VALUE, 500L, { _: Long -> 1 }) {
+                        Thread.sleep(it)
+                        it
+                    }
+
+                    Assert.assertFalse(loaded.complete)
+                    Assert.assertEquals(listOf(0L), loaded.results)
+                    Assert.assertEquals(
+                            1L,
+                            metricRegistry.meter(MetricRegistry.name(SearchExecutionScheduler::class.java, "timedOut"))
+                                    .count
+                    )
+                }
+    }
+}
@@ -0,0 +1,254 @@
+package com.openlattice.search
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.collect.SetMultimap
+import com.google.common.eventbus.EventBus
+import com.openlattice.authorization.AccessCheck
+import com.openlattice.authorization.Authorization
+import com.openlattice.authorization.AuthorizationManager
+import com.openlattice.authorization.Permission
+import com.openlattice.authorization.Principal
+import com.openlattice.conductor.rpc.ConductorElasticsearchApi
+import com.openlattice.data.DataEdgeKey
+import com.openlattice.data.EntityDataKey
+import com.openlattice.data.requests.NeighborEntityDetails
+import com.openlattice.data.storage.EntityDatastore
+import com.openlattice.data.storage.IndexingMetadataManager
+import com.openlattice.datastore.services.EdmManager
+import com.openlattice.datastore.services.EntitySetManager
+import com.openlattice.edm.EdmConstants
+import com.openlattice.graph.NeighborPage
+import com.openlattice.graph.PagedNeighborRequest
+import com.openlattice.graph.core.GraphService
+import com.openlattice.graph.core.NeighborSets
+import com.openlattice.graph.edge.Edge
+import com.openlattice.mapstores.TestDataFactory
+import com.openlattice.postgres.IndexType
+import com.openlattice.search.requests.EntityNeighborsFilter
+import org.apache.olingo.commons.api.edm.FullQualifiedName
+import org.junit.Assert
+import org.junit.Test
+import org.mockito.Mockito
+import java.util.*
+
+/**
+ * Pages through the neighbors of a person connected to incidents through two association entity sets of different
+ * types, with an in memory graph that orders and pages edges as the edges table does.
+ */
+class SearchServiceNeighborSearchTest {
+    private val propertyType = TestDataFactory.propertyType(IndexType.NONE, false)
+    private val personType = TestDataFactory.entityType(propertyType)
+    private val incidentType = TestDataFactory.entityType(propertyType)
+    private val involvedInType = TestDataFactory.entityType(propertyType)
+    private val reportedByType = TestDataFactory.entityType(propertyType)
+
+    private val people = TestDataFactory.entitySetWithType(personType.id)
+    private val incidents = TestDataFactory.entitySetWithType(incidentType.id)
+    private val involvedIn = TestDataFactory.entitySetWithType(involvedInType.id)
+    private val reportedBy = TestDataFactory.entitySetWithType(reportedByType.id)
+
+    private val entitySets = listOf(people, incidents, involvedIn, reportedBy).associateBy { it.id }
+    private val entityTypes = listOf(personType, incidentType, involvedInType, reportedByType).associateBy { it.id }
+
+    private val person = UUID.randomUUID()
+    private val principals = setOf<Principal>(TestDataFactory.userPrincipal())
+
+    private val edges = mutableListOf<DataEdgeKey>()
+    private val requestedPageSizes = mutableListOf<Int>()
+
+    private val entitySetService = Mockito.mock(EntitySetManager::class.java)
+    private val searchService: SearchService
+
+    init {
+        val authorizations = Mockito.mock(AuthorizationManager::class.java)
+        Mockito.`when`(authorizations.accessChecksForPrincipals(
+                Mockito.anySetOf(AccessCheck::class.java),
+                Mockito.anySetOf(Principal::class.java)
+        )).thenAnswer { invocation ->
+            @Suppress("UNCHECKED_CAST")
+            (invocation.arguments[0] as Set<AccessCheck>).stream().map { accessCheck ->
+                val permissions = EnumMap<Permission, Boolean>(Permission::class.java)
+                permissions[Permission.READ] = true
+                Authorization(accessCheck.aclKey, permissions)
+            }
+        }
+
+        val dataModelService = Mockito.mock(EdmManager::class.java)
+        Mockito.`when`(dataModelService.getEntityTypesAsMap(Mockito.anySetOf(UUID::class.java))).thenAnswer { invocation ->
+            entityTypes.filterKeys { (invocation.arguments[0] as Set<*>).contains(it) }
+        }
+        Mockito.`when`(dataModelService.getPropertyTypesAsMap(Mockito.anySetOf(UUID::class.java)))
+                .thenReturn(mapOf(propertyType.id to propertyType))
+
+        Mockito.`when`(entitySetService.getEntityTypeIdsByEntitySetIds(Mockito.anySetOf(UUID::class.java)))
+                .thenAnswer { invocation ->
+                    entitySets
+                            .filterKeys { (invocation.arguments[0] as Set<*>).contains(it) }
+                            .mapValues { it.value.entityTypeId }
+                }
+        //The center entity set is left out, so it is not mistaken for a linking entity set.
+        Mockito.`when`(entitySetService.getEntitySetsAsMap(Mockito.anySetOf(UUID::class.java))).thenAnswer { invocation ->
+            entitySets.filterKeys { it != people.id && (invocation.arguments[0] as Set<*>).contains(it) }
+        }
+        Mockito.`when`(entitySetService.getEntitySetIdsOfType(reportedByType.id)).thenReturn(listOf(reportedBy.id))
+
+        val graphService = Mockito.mock(GraphService::class.java)
+        Mockito.`when`(graphService.getNeighborEntitySets(setOf(people.id))).thenReturn(listOf(
+                NeighborSets(people.id, involvedIn.id, incidents.id),
+                NeighborSets(people.id, reportedBy.id, incidents.id)
+        ))
+        Mockito.`when`(graphService.getEdgesAndNeighborsForVertices(
+                Mockito.anySetOf(UUID::class.java),
+                Mockito.any(PagedNeighborRequest::class.java)
+        )).thenAnswer { invocation -> getEdges(invocation.arguments[1] as PagedNeighborRequest).stream() }
+
+        val dataManager = Mockito.mock(EntityDatastore::class.java)
+        Mockito.`when`(dataManager.getEntitiesAcrossEntitySets(Mockito.any(), Mockito.anyMap())).thenAnswer { invocation ->
+            @Suppress("UNCHECKED_CAST")
+            (invocation.arguments[0] as SetMultimap<UUID, UUID>).asMap().mapValues { (_, entityKeyIds) ->
+                entityKeyIds.map {
+                    mutableMapOf<FullQualifiedName, MutableSet<Any>>(EdmConstants.ID_FQN to mutableSetOf<Any>(it.toString()))
+                }
+            }
+        }
+
+        searchService = SearchService(
+                EventBus(),
+                MetricRegistry(),
+                authorizations,
+                Mockito.mock(ConductorElasticsearchApi::class.java),
+                dataModelService,
+                entitySetService,
+                graphService,
+                dataManager,
+                Mockito.mock(IndexingMetadataManager::class.java),
+                Mockito.mock(BulkReindexSource::class.java)
+        )
+    }
+
+    private fun order(edge: DataEdgeKey): List<UUID> = listOf(
+            edge.src.entitySetId,
+            edge.src.entityKeyId,
+            edge.edge.entitySetId,
+            edge.edge.entityKeyId,
+            edge.dst.entitySetId,
+            edge.dst.entityKeyId
+    )
+
+    private fun compare(a: DataEdgeKey, b: DataEdgeKey): Int {
+        return order(a).zip(order(b)).map { (x, y) -> x.compareTo(y) }.firstOrNull { it != 0 } ?: 0
+    }
+
+    private fun getEdges(request: PagedNeighborRequest): List<Edge> {
+        requestedPageSizes.add(request.pageSize)
+        val filter = request.filter
+        val associationEntitySetIds = filter.associationEntitySetIds.orElse(setOf())
+        val matching = edges
+                .filter { filter.entityKeyIds.contains(it.src.entityKeyId) || filter.entityKeyIds.contains(it.dst.entityKeyId) }
+                .filter { associationEntitySetIds.isEmpty() || associationEntitySetIds.contains(it.edge.entitySetId) }
+                .filter { request.bookmark == null || compare(it, request.bookmark!!) > 0 }
+                .sortedWith(Comparator { a, b -> compare(a, b) })
+
+        val page = if (request.pageSize > 0) matching.take(request.pageSize) else matching
+        return page.map { Edge(it, 1L, listOf(1L)) }
+    }
+
+    /**
+     * Connects the person to [count] new incidents through [associationEntitySetId].
+     *
+     * @return The entity key ids of the new incidents.
+     */
+    private fun connect(associationEntitySetId: UUID, count: Int): Set<UUID> {
+        return (0 until count).map {
+            val incident = UUID.randomUUID()
+            edges.add(DataEdgeKey(
+                    EntityDataKey(people.id, person),
+                    EntityDataKey(incidents.id, incident),
+                    EntityDataKey(associationEntitySetId, UUID.randomUUID())
+            ))
+            incident
+        }.toSet()
+    }
+
+    private fun search(
+            bookmark: DataEdgeKey?,
+            pageSize: Int,
+            associationEntityTypeIds: Optional<Set<UUID>> = Optional.empty()
+    ): NeighborPage {
+        val filter = EntityNeighborsFilter(setOf(person), Optional.empty(), Optional.empty(), Optional.empty())
+        return searchService.executeEntityNeighborSearch(
+                setOf(people.id),
+                PagedNeighborRequest(filter, bookmark, pageSize),
+                principals,
+                associationEntityTypeIds
+        )
+    }
+
+    private fun neighborIds(page: NeighborPage): List<UUID> {
+        return page.neighbors[person].orEmpty().map { neighborId(it) }
+    }
+
+    private fun neighborId(neighbor: NeighborEntityDetails): UUID {
+        return UUID.fromString(neighbor.neighborDetails.get().getValue(EdmConstants.ID_FQN).first().toString())
+    }
+
+    @Test
+    fun testBookmarksPageThroughEveryNeighborOnce() {
+        val expected = connect(involvedIn.id, 25) + connect(reportedBy.id, 5)
+
+        val neighbors = mutableListOf<UUID>()
+        val bookmarks = mutableListOf<DataEdgeKey?>()
+        var bookmark: DataEdgeKey? = null
+        do {
+            val page = search(bookmark, 12)
+            neighbors.addAll(neighborIds(page))
+            bookmark = page.bookmark
+            bookmarks.add(bookmark)
+        } while (bookmark != null)
+
+        Assert.assertEquals(expected.size, neighbors.size)
+        Assert.assertEquals(expected, neighbors.toSet())
+
+        //The last page isn't full, so its bookmark is null and no empty page is requested.
+        Assert.assertEquals(3, bookmarks.size)
+        Assert.assertTrue(bookmarks.take(2).all { it != null })
+    }
+
+    @Test
+    fun testLastFullPageIsFollowedByAnEmptyPage() {
+        connect(involvedIn.id, 10)
+
+        val first = search(null, 10)
+        Assert.assertEquals(10, neighborIds(first).size)
+        Assert.assertNotNull(first.bookmark)
+
+        val last = search(first.bookmark, 10)
+        Assert.assertTrue(neighborIds(last).isEmpty())
+        Assert.assertNull(last.bookmark)
+    }
+
+    @Test
+    fun testUnpagedRequestsReturnEveryNeighborOnePageAtATime() {
+        val expected = connect(involvedIn.id, MAX_NEIGHBOR_PAGE_SIZE + 1)
+
+        val all = search(null, 0)
+        Assert.assertEquals(expected.size, neighborIds(all).size)
+        Assert.assertEquals(expected, neighborIds(all).toSet())
+        Assert.assertNull(all.bookmark)
+
+        //Edges were still read in pages of at most the maximum page size.
+        Assert.assertEquals(listOf(MAX_NEIGHBOR_PAGE_SIZE, MAX_NEIGHBOR_PAGE_SIZE), requestedPageSizes)
+    }
+
+    @Test
+    fun testAssociationEntityTypesNarrowNeighbors() {
+        connect(involvedIn.id, 20)
+        val reported = connect(reportedBy.id, 5)
+
+        val page = search(null, 100, Optional.of(setOf(reportedByType.id)))
+
+        Assert.assertEquals(reported, neighborIds(page).toSet())
+        Assert.assertTrue(page.neighbors.getValue(person).all { it.associationEntitySet.id == reportedBy.id })
+        Assert.assertNull(page.bookmark)
+    }
+}